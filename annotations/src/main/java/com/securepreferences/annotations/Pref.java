@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences.annotations;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The key and default of a method of a {@link PreferenceDefinitions} interface. Methods without
+ * it use their own name as the key.
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.METHOD)
+public @interface Pref {
+
+    /**
+     * Value of {@link #defaultValue()} when none is given: null for String and Set&lt;String&gt;,
+     * 0 or false for the others
+     */
+    String NO_DEFAULT = "\u0000";
+
+    /**
+     * @return the pref key, the method's name if empty
+     */
+    String key() default "";
+
+    /**
+     * @return returned when there's no value, as it would be written in Java without quotes, e.g.
+     * "42", "0.5", "true" or "Guest". Not supported for Set&lt;String&gt;.
+     */
+    String defaultValue() default NO_DEFAULT;
+}
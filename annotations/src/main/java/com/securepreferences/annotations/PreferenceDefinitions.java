@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences.annotations;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an interface of preference definitions, each a method without parameters returning
+ * String, Set&lt;String&gt;, int, long, float or boolean, e.g.
+ * <pre>
+ * &#64;PreferenceDefinitions
+ * public interface Settings {
+ *     &#64;Pref(key = "token")
+ *     String token();
+ *
+ *     &#64;Pref(key = "launches", defaultValue = "0")
+ *     int launches();
+ * }
+ * </pre>
+ * The securepreferences processor generates a class implementing it, {@code SettingsPrefs} here,
+ * that reads and writes the values through a SecurePreferences with the key names hashed at
+ * build time.
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface PreferenceDefinitions {
+
+    /**
+     * @return simple name of the generated class, the interface's name followed by Prefs if empty
+     */
+    String className() default "";
+}
@@ -9,18 +9,47 @@ import android.preference.PreferenceManager;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.securepreferences.AsyncSecurePreferences;
+import com.securepreferences.BackupReport;
+import com.securepreferences.CompactionReport;
+import com.securepreferences.HashedKey;
+import com.securepreferences.IterationCountCalibrator;
+import com.securepreferences.KeyNameScheme;
+import com.securepreferences.KeyedHashKeyNameScheme;
+import com.securepreferences.MapCodec;
+import com.securepreferences.MultiProcessSharedPreferences;
+import com.securepreferences.NamespaceMerger;
+import com.securepreferences.PreferenceBatch;
+import com.securepreferences.PreferenceFuture;
+import com.securepreferences.PreferenceMigrator;
+import com.securepreferences.PreferenceNamespace;
+import com.securepreferences.PreferenceStream;
+import com.securepreferences.SecurePreferenceDataStore;
 import com.securepreferences.SecurePreferences;
+import com.securepreferences.StorageProfile;
 import com.tozny.crypto.android.AesCbcWithIntegrity;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TestSecurePreferences extends AndroidTestCase {
 
@@ -254,6 +283,15 @@ public class TestSecurePreferences extends AndroidTestCase {
         }
     }
 
+    public void testGetAllAfterDestroyKeysReturnsNothing() {
+        SecurePreferences securePrefs = new SecurePreferences(getContext());
+        securePrefs.edit().putString(DEFAULT_KEY, DEFAULT_VALUE).commit();
+
+        securePrefs.destroyKeys();
+
+        assertTrue(securePrefs.getAll().isEmpty());
+    }
+
     public void testSupplyOwnKeys() {
         try {
             AesCbcWithIntegrity.SecretKeys mykeys = AesCbcWithIntegrity.generateKey();
@@ -344,6 +382,758 @@ public class TestSecurePreferences extends AndroidTestCase {
         assertEquals(value, valueFromPasswordChangedIteration);
     }
 
+    public void testClearAfterPasswordChangeKeepsNewValuesReadable() throws GeneralSecurityException {
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        securePrefs.edit().putString(DEFAULT_KEY, DEFAULT_VALUE).commit();
+        securePrefs.handlePasswordChange("newPassword", getContext(), 1000);
+
+        securePrefs.edit().clear().putString("afterClear", DEFAULT_VALUE).commit();
+        assertNull(securePrefs.getString(DEFAULT_KEY, null));
+        assertEquals(DEFAULT_VALUE, securePrefs.getString("afterClear", null));
+
+        //the values are under the new key id, which the file must still map to the new key
+        SecurePreferences reopened = new SecurePreferences(getContext(), "newPassword", prefFileName, 1000);
+        assertEquals(DEFAULT_VALUE, reopened.getString("afterClear", null));
+        assertNull(reopened.getString(DEFAULT_KEY, null));
+
+        deletePrefFile(prefFileName);
+    }
+
+    public void testCoalescedApplyIsReadableAndFlushed() {
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        securePrefs.enableWriteCoalescing(1000, 50);
+
+        for (int i = 0; i < 200; i++) {
+            securePrefs.edit().putInt("coalesced" + i, i).apply();
+        }
+
+        assertEquals("pending values should be readable before they are written", 199, securePrefs.getInt("coalesced199", -1));
+        assertTrue("flush should write all pending values", securePrefs.flush());
+
+        SharedPreferences normalPrefs = getContext().getSharedPreferences(prefFileName, Context.MODE_PRIVATE);
+        assertEquals(200, normalPrefs.getAll().size());
+
+        securePrefs.disableWriteCoalescing();
+        deletePrefFile(prefFileName);
+    }
+
+    public void testCalibratedIterationCountIsStoredAndReKeyed() throws GeneralSecurityException {
+        final String prefFileName = generatePrefFileNameForTest();
+
+        int iterationCount = IterationCountCalibrator.getIterationCount(getContext(), prefFileName, 50);
+        assertEquals("second open should reuse the stored count",
+                iterationCount, IterationCountCalibrator.getIterationCount(getContext(), prefFileName, 500));
+
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName, iterationCount);
+        securePrefs.edit().putString(DEFAULT_KEY, DEFAULT_VALUE).commit();
+        assertTrue("stored count should not show up in getAll", securePrefs.getAll().size() == 1);
+
+        int recalibrated = securePrefs.recalibrateIterationCount("password", getContext(), 100);
+        assertEquals(recalibrated, IterationCountCalibrator.getIterationCount(getContext(), prefFileName, 50));
+
+        SecurePreferences reopened = new SecurePreferences(getContext(), "password", prefFileName, recalibrated);
+        assertEquals(DEFAULT_VALUE, reopened.getString(DEFAULT_KEY, null));
+
+        deletePrefFile(prefFileName);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public void testMigratePlaintextPrefs() {
+        final String sourceFileName = generatePrefFileNameForTest();
+        final String targetFileName = generatePrefFileNameForTest();
+        SharedPreferences source = getContext().getSharedPreferences(sourceFileName, Context.MODE_PRIVATE);
+        Set<String> mySet = new HashSet<String>();
+        mySet.add("one");
+        mySet.add("two");
+        Editor sourceEditor = source.edit();
+        for (int i = 0; i < 50; i++) {
+            sourceEditor.putInt("int" + i, i);
+        }
+        sourceEditor.putString("string", DEFAULT_VALUE);
+        sourceEditor.putBoolean("boolean", true);
+        sourceEditor.putLong("long", Long.MAX_VALUE);
+        sourceEditor.putStringSet("set", mySet);
+        sourceEditor.commit();
+
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", targetFileName);
+        PreferenceMigrator migrator = new PreferenceMigrator(source, securePrefs, sourceFileName);
+        migrator.setBatchSize(10);
+        migrator.setRemoveSourceKeys(true);
+        PreferenceMigrator.Report report = migrator.migrate();
+
+        assertEquals(54, report.getEntriesMigrated());
+        assertTrue(migrator.isComplete());
+        assertTrue("source keys should be removed", source.getAll().isEmpty());
+        assertEquals(42, securePrefs.getInt("int42", -1));
+        assertEquals(DEFAULT_VALUE, securePrefs.getString("string", null));
+        assertTrue(securePrefs.getBoolean("boolean", false));
+        assertEquals(Long.MAX_VALUE, securePrefs.getLong("long", 0));
+        assertEquals(mySet, securePrefs.getStringSet("set", null));
+        assertEquals("checkpoint should not show up in getAll", 54, securePrefs.getAll().size());
+
+        deletePrefFile(sourceFileName);
+        deletePrefFile(targetFileName);
+    }
+
+    public void testRotateKeyKeepsValuesReadable() throws GeneralSecurityException, InterruptedException {
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        Editor editor = securePrefs.edit();
+        for (int i = 0; i < 100; i++) {
+            editor.putString("rotate" + i, DEFAULT_VALUE + i);
+        }
+        editor.commit();
+
+        securePrefs.rotateKey("newPassword", getContext(), 1000);
+
+        assertEquals("values under the old key should still read", DEFAULT_VALUE + 42, securePrefs.getString("rotate42", null));
+        securePrefs.edit().putString(DEFAULT_KEY, DEFAULT_VALUE).commit();
+
+        assertTrue("the sweep should re-encrypt everything and drop the old key", securePrefs.awaitKeyRotation(10000));
+        SharedPreferences rawPrefs = getContext().getSharedPreferences(prefFileName, Context.MODE_PRIVATE);
+        for (int i = 0; i < 100; i++) {
+            String stored = rawPrefs.getString(SecurePreferences.hashPrefKey("rotate" + i), null);
+            assertTrue("rotate" + i + " should be under the new key id", stored.matches("1[zt]*:.*"));
+        }
+        assertEquals("the ring should hold no retired keys", "1", rawPrefs.getString(SecurePreferences.hashPrefKey("com.securepreferences.keyRing"), null));
+
+        SecurePreferences reopened = new SecurePreferences(getContext(), "newPassword", prefFileName, 1000);
+        assertEquals(DEFAULT_VALUE + 99, reopened.getString("rotate99", null));
+        assertEquals(DEFAULT_VALUE, reopened.getString(DEFAULT_KEY, null));
+
+        deletePrefFile(prefFileName);
+    }
+
+    public void testPrefetchedValuesAreReturnedUntilChanged() throws Exception {
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        securePrefs.edit().putString(DEFAULT_KEY, DEFAULT_VALUE).putInt("prefetchInt", 7).commit();
+
+        securePrefs.prefetch(Arrays.asList(DEFAULT_KEY, "prefetchInt", "missing")).get();
+
+        assertEquals(DEFAULT_VALUE, securePrefs.getString(DEFAULT_KEY, null));
+        assertEquals(7, securePrefs.getInt("prefetchInt", -1));
+        assertNull(securePrefs.getString("missing", null));
+
+        securePrefs.edit().putString(DEFAULT_KEY, "changed").commit();
+        assertEquals("a changed value must not come from the prefetch", "changed", securePrefs.getString(DEFAULT_KEY, null));
+
+        deletePrefFile(prefFileName);
+    }
+
+    public void testObservedValueIsDeliveredOnChange() throws Exception {
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        securePrefs.edit().putInt("observedInt", 1).commit();
+
+        final BlockingQueue<Integer> values = new LinkedBlockingQueue<>();
+        PreferenceStream<Integer> stream = securePrefs.observe("observedInt", Integer.class);
+        assertSame(stream, securePrefs.observe("observedInt", Integer.class));
+        final PreferenceStream.Observer<Integer> observer = new PreferenceStream.Observer<Integer>() {
+            @Override
+            public void onValue(String key, Integer value) {
+                values.add(value);
+            }
+        };
+        PreferenceStream.Subscription subscription = stream.subscribe(observer);
+        assertEquals(Integer.valueOf(1), values.poll(2, TimeUnit.SECONDS));
+
+        securePrefs.edit().putInt("observedInt", 2).commit();
+        assertEquals(Integer.valueOf(2), values.poll(2, TimeUnit.SECONDS));
+
+        //subscribing again after the last observer left picks up what changed meanwhile
+        subscription.unsubscribe();
+        securePrefs.edit().putInt("observedInt", 3).commit();
+        subscription = stream.subscribe(observer);
+        assertEquals(Integer.valueOf(2), values.poll(2, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(3), values.poll(2, TimeUnit.SECONDS));
+        securePrefs.edit().putInt("observedInt", 4).commit();
+        assertEquals(Integer.valueOf(4), values.poll(2, TimeUnit.SECONDS));
+
+        subscription.unsubscribe();
+        deletePrefFile(prefFileName);
+    }
+
+    public void testBytesAndCharsRoundTrip() throws Exception {
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        final byte[] bytes = new byte[]{0, (byte) 0xff, (byte) 0xc3, 0x28, 42};
+        final char[] chars = "secret\u00e4".toCharArray();
+        securePrefs.edit().putBytes("bytes", bytes).putChars("chars", chars).commit();
+
+        assertTrue(Arrays.equals(bytes, securePrefs.getBytes("bytes", null)));
+        final byte[] buffer = new byte[bytes.length + 2];
+        assertEquals(bytes.length, securePrefs.getBytes("bytes", buffer, 2));
+        assertTrue(Arrays.equals(bytes, Arrays.copyOfRange(buffer, 2, buffer.length)));
+        assertEquals("too small a buffer is left untouched", bytes.length, securePrefs.getBytes("bytes", new byte[1], 0));
+        assertEquals(-1, securePrefs.getBytes("missing", buffer, 0));
+
+        final char[] charBuffer = new char[16];
+        final int length = securePrefs.getChars("chars", charBuffer, 0);
+        assertEquals(new String(chars), new String(charBuffer, 0, length));
+
+        securePrefs.handlePasswordChange("newPassword", getContext());
+        assertTrue("binary values must survive re-encryption", Arrays.equals(bytes, securePrefs.getBytes("bytes", null)));
+
+        deletePrefFile(prefFileName);
+    }
+
+    /**
+     * Contention benchmark: 8 threads read while the file is re-keyed, every read must return the
+     * right value. Read throughput during the re-key is logged.
+     */
+    public void testReadsDuringPasswordChange() throws Exception {
+        final String prefFileName = generatePrefFileNameForTest();
+        final SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        final int entries = 200;
+        Editor editor = securePrefs.edit();
+        for (int i = 0; i < entries; i++) {
+            editor.putString(DEFAULT_KEY + i, DEFAULT_VALUE + i);
+        }
+        editor.putStringSet("set", new HashSet<>(Arrays.asList("a", "b")));
+        editor.commit();
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong wrongReads = new AtomicLong();
+        final Thread[] readers = new Thread[8];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    int i = (int) getId();
+                    while (running.get()) {
+                        i = (i + 7) % entries;
+                        if (!(DEFAULT_VALUE + i).equals(securePrefs.getString(DEFAULT_KEY + i, null))) {
+                            wrongReads.incrementAndGet();
+                        }
+                        reads.incrementAndGet();
+                    }
+                }
+            };
+            readers[t].start();
+        }
+
+        final long readsBefore = reads.get();
+        final long start = System.nanoTime();
+        securePrefs.handlePasswordChange("newPassword", getContext());
+        final long elapsedNanos = System.nanoTime() - start;
+        final long readsDuring = reads.get() - readsBefore;
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        Log.d(TAG, readsDuring + " reads by " + readers.length + " threads during a " + elapsedNanos / 1000000
+                + "ms re-key (" + readsDuring * 1000000000L / Math.max(1, elapsedNanos) + " reads/s)");
+        assertEquals("reads during a re-key must see the old or the new value", 0, wrongReads.get());
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), securePrefs.getStringSet("set", null));
+
+        deletePrefFile(prefFileName);
+    }
+
+    /**
+     * Writers commit their own keys while getAll runs and the file is re-keyed, no write may be
+     * lost and no value may turn up under another key. The sample's StressRunner measures the same
+     * mix at scale.
+     */
+    public void testConcurrentWritesDuringPasswordChangeAreKept() throws Exception {
+        final String prefFileName = generatePrefFileNameForTest();
+        final SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        final int keysPerWriter = 20;
+        final long[][] committed = new long[4][keysPerWriter];
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong wrongValues = new AtomicLong();
+        final Thread[] threads = new Thread[committed.length + 1];
+        for (int t = 0; t < committed.length; t++) {
+            final int writer = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (long sequence = 1; running.get(); sequence++) {
+                        final int k = (int) (sequence % keysPerWriter);
+                        if (securePrefs.edit().putString("w" + writer + "k" + k, writer + ":" + k + ":" + sequence).commit()) {
+                            committed[writer][k] = sequence;
+                        }
+                    }
+                }
+            };
+        }
+        threads[committed.length] = new Thread() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    for (Map.Entry<String, ?> entry : securePrefs.getAll().entrySet()) {
+                        final String[] parts = ((String) entry.getValue()).split(":");
+                        if (!SecurePreferences.hashPrefKey("w" + parts[0] + "k" + parts[1]).equals(entry.getKey())) {
+                            wrongValues.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        };
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        securePrefs.handlePasswordChange("newPassword", getContext());
+        securePrefs.handlePasswordChange("password", getContext());
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, wrongValues.get());
+        final SecurePreferences reopened = new SecurePreferences(getContext(), "password", prefFileName);
+        for (int writer = 0; writer < committed.length; writer++) {
+            for (int k = 0; k < keysPerWriter; k++) {
+                if (committed[writer][k] != 0) {
+                    assertEquals(writer + ":" + k + ":" + committed[writer][k], reopened.getString("w" + writer + "k" + k, null));
+                }
+            }
+        }
+        deletePrefFile(prefFileName);
+    }
+
+    /**
+     * Two instances on the same file stand in for two processes, each only sees the other's
+     * writes through the log.
+     */
+    public void testMultiProcessStoreSeesOtherWriters() throws Exception {
+        final String prefFileName = generatePrefFileNameForTest();
+        final File logFile = new File(getContext().getCacheDir(), prefFileName + ".log");
+        MultiProcessSharedPreferences first = new MultiProcessSharedPreferences(logFile);
+        MultiProcessSharedPreferences second = new MultiProcessSharedPreferences(logFile);
+
+        first.edit().putString("fromFirst", "1").putInt("count", 1).commit();
+        second.edit().putString("fromSecond", "2").commit();
+
+        assertEquals("1", second.getString("fromFirst", null));
+        assertEquals(1, second.getInt("count", 0));
+        assertEquals("2", first.getString("fromSecond", null));
+
+        //enough rewrites of one key to compact the log under the other instance
+        for (int i = 0; i < 2000; i++) {
+            second.edit().putInt("count", i).apply();
+        }
+        assertEquals(1999, first.getInt("count", 0));
+        assertEquals("1", first.getString("fromFirst", null));
+
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", null, prefFileName, 1000, true);
+        securePrefs.edit().putString(DEFAULT_KEY, DEFAULT_VALUE).commit();
+        SecurePreferences otherProcess = new SecurePreferences(getContext(), "password", null, prefFileName, 1000, true);
+        assertEquals(DEFAULT_VALUE, otherProcess.getString(DEFAULT_KEY, null));
+        securePrefs.close();
+        otherProcess.close();
+
+        first.close();
+        second.close();
+        assertFalse(first.edit().putString("afterClose", "1").commit());
+        assertEquals("1", first.getString("fromFirst", null));
+        assertTrue(logFile.delete());
+    }
+
+    public void testGetValuesReturnsTypedValuesAndDefaults() throws Exception {
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        Editor editor = securePrefs.edit();
+        PreferenceBatch batch = new PreferenceBatch();
+        //enough keys to be decrypted in parallel
+        for (int i = 0; i < 40; i++) {
+            editor.putInt("batchInt" + i, i);
+            batch.addInt("batchInt" + i, -1);
+        }
+        editor.putString(DEFAULT_KEY, DEFAULT_VALUE).putBoolean("batchBoolean", true).commit();
+        batch.addString(DEFAULT_KEY, null).addBoolean("batchBoolean", false).addLong("missing", 7L);
+
+        PreferenceBatch.Values values = securePrefs.getValues(batch);
+        for (int i = 0; i < 40; i++) {
+            assertEquals(i, values.getInt("batchInt" + i));
+        }
+        assertEquals(DEFAULT_VALUE, values.getString(DEFAULT_KEY));
+        assertTrue(values.getBoolean("batchBoolean"));
+        assertEquals(7L, values.getLong("missing"));
+
+        deletePrefFile(prefFileName);
+    }
+
+    public void testLargeValuesAreCompressed() throws Exception {
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 100; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"item\"},");
+        }
+        final String largeValue = json.append("]").toString();
+
+        securePrefs.edit().putString("uncompressed", largeValue).commit();
+        securePrefs.enableCompression(SecurePreferences.DEFAULT_COMPRESSION_THRESHOLD);
+        securePrefs.edit().putString("compressed", largeValue).commit();
+
+        SharedPreferences rawPrefs = getContext().getSharedPreferences(prefFileName, Context.MODE_PRIVATE);
+        final String compressed = rawPrefs.getString(SecurePreferences.hashPrefKey("compressed"), null);
+        final String uncompressed = rawPrefs.getString(SecurePreferences.hashPrefKey("uncompressed"), null);
+        assertTrue(compressed.length() * 4 < uncompressed.length());
+
+        securePrefs.disableCompression();
+        assertEquals(largeValue, securePrefs.getString("compressed", null));
+        assertEquals(largeValue, securePrefs.getString("uncompressed", null));
+
+        deletePrefFile(prefFileName);
+    }
+
+    public void testKeyedKeyNamesShrinkFileAndSurviveRotation() throws Exception {
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        final List<String> keys = new ArrayList<>();
+        SharedPreferences.Editor editor = securePrefs.edit();
+        for (int i = 0; i < 200; i++) {
+            keys.add("key" + i);
+            editor.putString("key" + i, "value" + i);
+        }
+        editor.commit();
+
+        final long sha256Size = getPrefFile(prefFileName).length();
+        final long sha256Nanos = timeReads(securePrefs, keys);
+
+        KeyNameScheme keyed = securePrefs.createKeyedKeyNameScheme(KeyedHashKeyNameScheme.DEFAULT_NAME_BYTES);
+        assertEquals(keys.size(), securePrefs.migrateKeyNames(keyed, keys));
+        final long keyedSize = getPrefFile(prefFileName).length();
+        final long keyedNanos = timeReads(securePrefs, keys);
+        Log.d(TAG, "file bytes sha256 " + sha256Size + " keyed " + keyedSize
+                + ", ns per read sha256 " + sha256Nanos + " keyed " + keyedNanos);
+        assertTrue(keyedSize < sha256Size);
+        assertEquals("value1", securePrefs.getString("key1", null));
+
+        //the scheme is stored with the file and its secret outlives the key it was derived from
+        securePrefs.rotateKey("password2", getContext(), 1000);
+        securePrefs = new SecurePreferences(getContext(), "password2", prefFileName, 1000);
+        assertEquals(keyed, securePrefs.getKeyNameScheme());
+        assertEquals("value2", securePrefs.getString("key2", null));
+
+        deletePrefFile(prefFileName);
+    }
+
+    public void testKeyedKeyNamesSurviveClear() throws Exception {
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        securePrefs.edit().putString(DEFAULT_KEY, DEFAULT_VALUE).commit();
+        KeyNameScheme keyed = securePrefs.createKeyedKeyNameScheme(KeyedHashKeyNameScheme.DEFAULT_NAME_BYTES);
+        securePrefs.migrateKeyNames(keyed, Collections.singletonList(DEFAULT_KEY));
+
+        securePrefs.edit().clear().putString("afterClear", DEFAULT_VALUE).commit();
+
+        //the new value is stored under a keyed name, so the file must still hold the secret
+        securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        assertEquals(keyed, securePrefs.getKeyNameScheme());
+        assertEquals(DEFAULT_VALUE, securePrefs.getString("afterClear", null));
+        assertNull(securePrefs.getString(DEFAULT_KEY, null));
+
+        deletePrefFile(prefFileName);
+    }
+
+    private long timeReads(SecurePreferences securePrefs, List<String> keys) {
+        final long start = System.nanoTime();
+        for (String key : keys) {
+            securePrefs.getString(key, null);
+        }
+        return (System.nanoTime() - start) / keys.size();
+    }
+
+    public void testExportAndImportRestoresEveryValue() throws Exception {
+        final String prefFileName = generatePrefFileNameForTest();
+        final String restoredFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        securePrefs.edit()
+                .putString(DEFAULT_KEY, DEFAULT_VALUE)
+                .putInt("int", 42)
+                .putStringSet("set", new HashSet<>(Arrays.asList("a", "b")))
+                .commit();
+        AesCbcWithIntegrity.SecretKeys backupKeys = AesCbcWithIntegrity.generateKey();
+
+        for (boolean keepCiphertext : new boolean[]{false, true}) {
+            ByteArrayOutputStream archive = new ByteArrayOutputStream();
+            BackupReport exported = securePrefs.exportTo(archive, backupKeys, keepCiphertext);
+            assertEquals(3, exported.getEntries());
+
+            SecurePreferences restored = new SecurePreferences(getContext(), "other password", restoredFileName);
+            restored.edit().putString("stale", "removed by the import").commit();
+            BackupReport imported = restored.importFrom(new ByteArrayInputStream(archive.toByteArray()), backupKeys);
+            Log.d(TAG, "export " + exported + ", import " + imported);
+
+            assertEquals(3, imported.getEntries());
+            assertEquals(DEFAULT_VALUE, restored.getString(DEFAULT_KEY, null));
+            assertEquals(42, restored.getInt("int", 0));
+            assertEquals(2, restored.getStringSet("set", null).size());
+            assertFalse(restored.contains("stale"));
+
+            try {
+                restored.importFrom(new ByteArrayInputStream(archive.toByteArray()), AesCbcWithIntegrity.generateKey());
+                fail("archive should only import with its backup key");
+            } catch (GeneralSecurityException expected) {
+                assertEquals(DEFAULT_VALUE, restored.getString(DEFAULT_KEY, null));
+            }
+        }
+
+        deletePrefFile(prefFileName);
+        deletePrefFile(restoredFileName);
+    }
+
+    public void testValuesWithTimeToLiveExpire() throws Exception {
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        securePrefs.edit()
+                .putString(DEFAULT_KEY, DEFAULT_VALUE, 200)
+                .putInt("permanent", 1)
+                .commit();
+        assertEquals(DEFAULT_VALUE, securePrefs.getString(DEFAULT_KEY, null));
+
+        Thread.sleep(300);
+        assertNull("expired values should read as absent", securePrefs.getString(DEFAULT_KEY, null));
+        assertFalse(securePrefs.contains(DEFAULT_KEY));
+        assertEquals(1, securePrefs.getInt("permanent", 0));
+
+        //give the sweeper time to remove it from the file
+        Thread.sleep(500);
+        SharedPreferences rawPrefs = getContext().getSharedPreferences(prefFileName, Context.MODE_PRIVATE);
+        assertFalse(rawPrefs.contains(SecurePreferences.hashPrefKey(DEFAULT_KEY)));
+
+        deletePrefFile(prefFileName);
+    }
+
+    public void testNamespacesKeepKeysApartAndMergeFiles() throws Exception {
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        PreferenceNamespace billing = securePrefs.namespace("billing");
+        PreferenceNamespace sync = securePrefs.namespace("sync");
+
+        securePrefs.edit().putString(DEFAULT_KEY, "file").commit();
+        billing.edit().putString(DEFAULT_KEY, "billing").putInt("count", 1).commit();
+        sync.edit().putString(DEFAULT_KEY, "sync").commit();
+        assertEquals("file", securePrefs.getString(DEFAULT_KEY, null));
+        assertEquals("billing", billing.getString(DEFAULT_KEY, null));
+        assertEquals("sync", sync.getString(DEFAULT_KEY, null));
+        assertEquals(2, billing.getAll().size());
+
+        billing.edit().clear().commit();
+        assertTrue(billing.getAll().isEmpty());
+        assertEquals("sync", sync.getString(DEFAULT_KEY, null));
+        assertEquals("file", securePrefs.getString(DEFAULT_KEY, null));
+
+        final String moduleFileName = generatePrefFileNameForTest() + "Module";
+        SecurePreferences module = new SecurePreferences(getContext(), "module password", moduleFileName);
+        module.edit().putString(DEFAULT_KEY, DEFAULT_VALUE).putLong("since", 42L).commit();
+        assertEquals(2, NamespaceMerger.merge(securePrefs, "module", module));
+        assertEquals(DEFAULT_VALUE, securePrefs.namespace("module").getString(DEFAULT_KEY, null));
+        assertEquals(42L, securePrefs.namespace("module").getLong("since", 0));
+
+        deletePrefFile(moduleFileName);
+        deletePrefFile(prefFileName);
+    }
+
+    public void testGetAllReturnsTypedValuesAndReportsFailures() throws Exception {
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        final List<String> failures = new ArrayList<>();
+        securePrefs.setOnDecodeFailureListener(new SecurePreferences.OnDecodeFailureListener() {
+            @Override
+            public void onDecodeFailure(String hashedKey, Object storedValue) {
+                failures.add(hashedKey);
+            }
+        });
+        securePrefs.edit()
+                .putString("string", DEFAULT_VALUE)
+                .putInt("int", 42)
+                .putLong("long", Long.MAX_VALUE)
+                .putFloat("float", 1.5f)
+                .putBoolean("boolean", true)
+                .commit();
+        securePrefs.edit().putUnencryptedString("unencrypted", DEFAULT_VALUE).commit();
+
+        Map<String, ?> all = securePrefs.getAll();
+        assertEquals(DEFAULT_VALUE, all.get(SecurePreferences.hashPrefKey("string")));
+        assertEquals(42, all.get(SecurePreferences.hashPrefKey("int")));
+        assertEquals(Long.MAX_VALUE, all.get(SecurePreferences.hashPrefKey("long")));
+        assertEquals(1.5f, all.get(SecurePreferences.hashPrefKey("float")));
+        assertEquals(Boolean.TRUE, all.get(SecurePreferences.hashPrefKey("boolean")));
+        assertFalse("values that can't be decrypted should be left out", all.containsKey(SecurePreferences.hashPrefKey("unencrypted")));
+        assertEquals(Collections.singletonList(SecurePreferences.hashPrefKey("unencrypted")), failures);
+        assertEquals(42, securePrefs.getInt("int", 0));
+
+        deletePrefFile(prefFileName);
+    }
+
+    public void testAsyncCallsRunOnTheCryptoExecutor() throws Exception {
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        AsyncSecurePreferences asyncPrefs = new AsyncSecurePreferences(securePrefs);
+
+        assertTrue(asyncPrefs.commitAsync(securePrefs.edit().putString(DEFAULT_KEY, DEFAULT_VALUE)).get(5, TimeUnit.SECONDS));
+        PreferenceFuture<String> first = asyncPrefs.getStringAsync(DEFAULT_KEY, null);
+        PreferenceFuture<String> second = asyncPrefs.getStringAsync(DEFAULT_KEY, null);
+        assertEquals(DEFAULT_VALUE, first.get(5, TimeUnit.SECONDS));
+        assertEquals(DEFAULT_VALUE, second.get(5, TimeUnit.SECONDS));
+        assertEquals(7, (int) asyncPrefs.getIntAsync("missing", 7).get(5, TimeUnit.SECONDS));
+
+        asyncPrefs.changePasswordAsync("new password", getContext(), 1000).get(30, TimeUnit.SECONDS);
+        SecurePreferences reopened = new SecurePreferences(getContext(), "new password", prefFileName);
+        assertEquals(DEFAULT_VALUE, reopened.getString(DEFAULT_KEY, null));
+
+        asyncPrefs.shutdown();
+        deletePrefFile(prefFileName);
+    }
+
+    public void testStorageProfileFindsTheLargestEntries() throws Exception {
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        char[] large = new char[4096];
+        Arrays.fill(large, 'x');
+        securePrefs.edit().putString("large", new String(large)).putInt("count", 3)
+                .putStringSet("set", new HashSet<>(Arrays.asList("a", "b"))).commit();
+
+        StorageProfile profile = securePrefs.profileStorage(Arrays.asList("large", "count", "set"));
+        StorageProfile.Entry largest = profile.getLargestEntries(1).get(0);
+        assertEquals("large", largest.getKey());
+        assertEquals(4096, largest.getPlainTextBytes());
+        assertEquals(16, largest.getIvBytes());
+        assertEquals(32, largest.getMacBytes());
+        assertEquals("Integer", profile.getEntry("count").getType());
+        assertEquals(2, profile.getEntry("set").getMemberCount());
+        assertEquals(2, profile.getStringSetMemberCount());
+        //what the profile adds up is close to what was written
+        long fileBytes = getPrefFile(prefFileName).length();
+        assertTrue(Math.abs(profile.getTotalBytes() - fileBytes) < fileBytes / 20);
+
+        //a namespace's list of its members is metadata, not a value
+        securePrefs.namespace("profiled").edit().putString("member", "value").commit();
+        Map<String, Integer> types = securePrefs.profileStorage(Collections.<String>emptyList()).getTypeCounts();
+        assertEquals(Integer.valueOf(2), types.get("String"));
+        assertNull(types.get("Untagged"));
+        deletePrefFile(prefFileName);
+    }
+
+    public void testCompactRemovesEntriesNothingCanRead() throws Exception {
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences oldPrefs = new SecurePreferences(getContext(), null, null, prefFileName, 1000);
+        oldPrefs.edit().putString("old", "lost").commit();
+        //another iteration count generates and stores another key
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), null, null, prefFileName, 2000);
+        securePrefs.edit().putString(DEFAULT_KEY, DEFAULT_VALUE).commit();
+        getContext().getSharedPreferences(prefFileName, Context.MODE_PRIVATE).edit().putString("plain", "leftover").commit();
+
+        CompactionReport found = securePrefs.compact(false);
+        assertEquals(1, found.getUnreadableEntries().size());
+        assertEquals(1, found.getStaleKeyEntries().size());
+        assertEquals(Collections.singleton("plain"), found.getPlainEntries());
+        assertFalse(found.isRemoved());
+
+        //plain entries may be encrypted by something else, they're kept unless asked
+        securePrefs.edit().putUnencryptedString("external", "encryptedElsewhere").commit();
+        assertTrue(securePrefs.compact(true).isRemoved());
+        assertEquals(2, securePrefs.compact(false).getPlainEntries().size());
+        assertEquals("encryptedElsewhere", securePrefs.getEncryptedString("external", null));
+
+        assertTrue(securePrefs.compact(true, true).isPlainRemoved());
+        assertEquals(0, securePrefs.compact(false).getEntries());
+        assertEquals(DEFAULT_VALUE, securePrefs.getString(DEFAULT_KEY, null));
+        assertEquals(DEFAULT_VALUE, new SecurePreferences(getContext(), null, null, prefFileName, 2000).getString(DEFAULT_KEY, null));
+        deletePrefFile(prefFileName);
+    }
+
+    public void testCompactRemovesNothingWithoutAReadableValue() {
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        securePrefs.edit().putString(DEFAULT_KEY, DEFAULT_VALUE).putString("other", DEFAULT_VALUE).commit();
+
+        //under the wrong password every value looks unreadable
+        CompactionReport wrongPassword = new SecurePreferences(getContext(), "wrong", prefFileName).compact(true);
+        assertEquals(2, wrongPassword.getUnreadableEntries().size());
+        assertTrue(wrongPassword.isRefused());
+        assertFalse(wrongPassword.isRemoved());
+
+        securePrefs.destroyKeys();
+        assertTrue(securePrefs.compact(true).isRefused());
+
+        assertEquals(DEFAULT_VALUE, new SecurePreferences(getContext(), "password", prefFileName).getString(DEFAULT_KEY, null));
+        deletePrefFile(prefFileName);
+    }
+
+    public void testHashedKeysReadAndWriteLikeStringKeys() {
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        //as the processor generates it
+        HashedKey token = new HashedKey("token", "PEaenWxYddN6Q/NT1PiOYfz4EsZu7jRXRlpAsNpBU+A=");
+        assertEquals(HashedKey.of("token"), token);
+
+        securePrefs.edit().putString(token, DEFAULT_VALUE).putInt(HashedKey.of("count"), 3).commit();
+        assertEquals(DEFAULT_VALUE, securePrefs.getString("token", null));
+        assertEquals(3, securePrefs.getInt(HashedKey.of("count"), 0));
+
+        PreferenceBatch.Values values = securePrefs.getValues(new PreferenceBatch()
+                .addString(token, null)
+                .addInt("count", 0));
+        assertEquals(DEFAULT_VALUE, values.getString("token"));
+        assertEquals(3, values.getInt("count"));
+
+        securePrefs.edit().remove(token).commit();
+        assertFalse(securePrefs.contains("token"));
+        deletePrefFile(prefFileName);
+    }
+
+    public void testObjectIsStoredAsOneValueAndDecodedOnce() {
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        Map<String, Object> profile = new HashMap<>();
+        for (int i = 0; i < 30; i++) {
+            profile.put("field" + i, i % 2 == 0 ? "value" + i : i);
+        }
+        profile.put("tags", new HashSet<>(Arrays.asList("a", "b")));
+        securePrefs.edit().putObject("profile", profile, MapCodec.INSTANCE).commit();
+        assertEquals(1, getContext().getSharedPreferences(prefFileName, Context.MODE_PRIVATE).getAll().size());
+
+        Map<String, ?> read = securePrefs.getObject("profile", MapCodec.INSTANCE);
+        assertEquals(profile, read);
+        //unchanged ciphertext, nothing decrypted
+        assertSame(read, securePrefs.getObject("profile", MapCodec.INSTANCE));
+
+        profile.put("field0", "changed");
+        securePrefs.edit().putObject("profile", profile, MapCodec.INSTANCE).commit();
+        assertEquals("changed", securePrefs.getObject("profile", MapCodec.INSTANCE).get("field0"));
+        assertNull(securePrefs.getObject("missing", MapCodec.INSTANCE));
+        deletePrefFile(prefFileName);
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    public void testDataStoreBuffersWritesAndReadsThemBack() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return;
+        }
+        final String prefFileName = generatePrefFileNameForTest();
+        SecurePreferences securePrefs = new SecurePreferences(getContext(), "password", prefFileName);
+        securePrefs.edit().putString(DEFAULT_KEY, DEFAULT_VALUE).putBoolean("checked", true).commit();
+        SecurePreferenceDataStore store = new SecurePreferenceDataStore(securePrefs, 60000);
+        store.prefetch(Arrays.asList(DEFAULT_KEY, "checked")).get();
+        assertEquals(DEFAULT_VALUE, store.getString(DEFAULT_KEY, null));
+        assertTrue(store.getBoolean("checked", false));
+
+        store.putString(DEFAULT_KEY, "typed");
+        store.putString(DEFAULT_KEY, "typed more");
+        store.putBoolean("checked", false);
+        store.putInt("count", 3);
+        //buffered, not in the file yet but read back
+        assertEquals(DEFAULT_VALUE, securePrefs.getString(DEFAULT_KEY, null));
+        assertEquals("typed more", store.getString(DEFAULT_KEY, null));
+        assertFalse(store.getBoolean("checked", true));
+
+        store.flush().get();
+        assertEquals("typed more", securePrefs.getString(DEFAULT_KEY, null));
+        assertFalse(securePrefs.getBoolean("checked", true));
+        assertEquals(3, securePrefs.getInt("count", 0));
+        deletePrefFile(prefFileName);
+    }
+
     /**
      * Load the pref xml file and read through to see if it has any <string tags.
      * @param prefFileName
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Process;
+
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs {@link SecurePreferences} calls on a crypto executor, so none of the decryption, key
+ * derivation or disk writes happen on the calling thread. Each call returns a
+ * {@link PreferenceFuture}, e.g.
+ * <pre>
+ * AsyncSecurePreferences asyncPrefs = new AsyncSecurePreferences(securePrefs);
+ * asyncPrefs.getStringAsync("token", null).whenDone(new PreferenceFuture.Callback&lt;String&gt;() {
+ *     ...
+ * });
+ * </pre>
+ * Reads of the same key that are queued at the same time share one decryption. A read that has
+ * already started isn't joined, so a read never returns a value older than when it was asked for.
+ */
+public final class AsyncSecurePreferences {
+
+    private final SecurePreferences securePreferences;
+
+    private final ExecutorService cryptoExecutor;
+
+    //created here rather than supplied, so shut down with this
+    private final boolean ownsExecutor;
+
+    //reads queued but not started, by key, joined by reads of the same key
+    private final ConcurrentHashMap<String, PreferenceFuture<Object>> queuedReads = new ConcurrentHashMap<>();
+
+    /**
+     * Runs calls on a pool with a thread per core
+     */
+    public AsyncSecurePreferences(SecurePreferences securePreferences) {
+        this(securePreferences, Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "SecurePreferences-crypto");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), true);
+    }
+
+    /**
+     * @param cryptoExecutor runs the calls, it isn't shut down by {@link #shutdown()}
+     */
+    public AsyncSecurePreferences(SecurePreferences securePreferences, ExecutorService cryptoExecutor) {
+        this(securePreferences, cryptoExecutor, false);
+    }
+
+    private AsyncSecurePreferences(SecurePreferences securePreferences, ExecutorService cryptoExecutor, boolean ownsExecutor) {
+        this.securePreferences = securePreferences;
+        this.cryptoExecutor = cryptoExecutor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    public SecurePreferences getSecurePreferences() {
+        return securePreferences;
+    }
+
+    public PreferenceFuture<String> getStringAsync(String key, String defaultValue) {
+        return read(key, String.class, defaultValue);
+    }
+
+    @SuppressWarnings("unchecked")
+    public PreferenceFuture<Set<String>> getStringSetAsync(String key, Set<String> defaultValues) {
+        final PreferenceFuture<?> future = read(key, Set.class, defaultValues);
+        return (PreferenceFuture<Set<String>>) future;
+    }
+
+    public PreferenceFuture<Integer> getIntAsync(String key, int defaultValue) {
+        return read(key, Integer.class, defaultValue);
+    }
+
+    public PreferenceFuture<Long> getLongAsync(String key, long defaultValue) {
+        return read(key, Long.class, defaultValue);
+    }
+
+    public PreferenceFuture<Float> getFloatAsync(String key, float defaultValue) {
+        return read(key, Float.class, defaultValue);
+    }
+
+    public PreferenceFuture<Boolean> getBooleanAsync(String key, boolean defaultValue) {
+        return read(key, Boolean.class, defaultValue);
+    }
+
+    /**
+     * @see SecurePreferences#getValues(PreferenceBatch)
+     */
+    public PreferenceFuture<PreferenceBatch.Values> getValuesAsync(final PreferenceBatch batch) {
+        return submit(new Callable<PreferenceBatch.Values>() {
+            @Override
+            public PreferenceBatch.Values call() {
+                return securePreferences.getValues(batch);
+            }
+        });
+    }
+
+    /**
+     * Cancellable, cancelling with mayInterruptIfRunning stops decrypting the rest of the file
+     *
+     * @see SecurePreferences#getAll()
+     */
+    public PreferenceFuture<Map<String, ?>> getAllAsync() {
+        return submit(new Callable<Map<String, ?>>() {
+            @Override
+            public Map<String, ?> call() {
+                return securePreferences.getAll(true);
+            }
+        });
+    }
+
+    /**
+     * Commits editor on the crypto executor
+     *
+     * @param editor from {@link SecurePreferences#edit()} or a namespace of it
+     * @return true if the values were written to disk
+     */
+    public PreferenceFuture<Boolean> commitAsync(final SharedPreferences.Editor editor) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return editor.commit();
+            }
+        });
+    }
+
+    /**
+     * Cancellable until it commits: a cancelled change leaves every value under the old password.
+     *
+     * @see SecurePreferences#handlePasswordChange(String, Context, int)
+     */
+    public PreferenceFuture<Void> changePasswordAsync(final String newPassword, final Context context, final int iterationCount) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                securePreferences.handlePasswordChange(newPassword, context, iterationCount, true);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Cancellable, cancelling with mayInterruptIfRunning stops writing the archive
+     *
+     * @see SecurePreferences#exportTo(OutputStream, AesCbcWithIntegrity.SecretKeys, boolean)
+     */
+    public PreferenceFuture<BackupReport> exportAsync(final OutputStream out, final AesCbcWithIntegrity.SecretKeys backupKeys, final boolean keepCiphertext) {
+        return submit(new Callable<BackupReport>() {
+            @Override
+            public BackupReport call() throws Exception {
+                return securePreferences.exportTo(out, backupKeys, keepCiphertext);
+            }
+        });
+    }
+
+    /**
+     * Cancellable until it commits, a cancelled import leaves the file as it was
+     *
+     * @see SecurePreferences#importFrom(InputStream, AesCbcWithIntegrity.SecretKeys)
+     */
+    public PreferenceFuture<BackupReport> importAsync(final InputStream in, final AesCbcWithIntegrity.SecretKeys backupKeys) {
+        return submit(new Callable<BackupReport>() {
+            @Override
+            public BackupReport call() throws Exception {
+                return securePreferences.importFrom(in, backupKeys);
+            }
+        });
+    }
+
+    /**
+     * Stops the executor this created, calls already queued still run. A supplied executor is
+     * left to its owner.
+     */
+    public void shutdown() {
+        if (ownsExecutor) {
+            cryptoExecutor.shutdown();
+        }
+    }
+
+    private <T> PreferenceFuture<T> submit(final Callable<T> call) {
+        final PreferenceFuture<T> future = new PreferenceFuture<>();
+        execute(future, new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    future.complete(call.call());
+                } catch (Exception e) {
+                    //a no-op if it failed because it was cancelled
+                    future.fail(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    private void execute(PreferenceFuture<?> future, Runnable work) {
+        try {
+            future.setTask(cryptoExecutor.submit(work));
+        } catch (RejectedExecutionException e) {
+            future.fail(e);
+        }
+    }
+
+    private <T> PreferenceFuture<T> read(String key, final Class<?> type, final T defaultValue) {
+        final PreferenceFuture<T> future = new PreferenceFuture<>();
+        queuedRead(key).onComplete(new PreferenceFuture.Callback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void onResult(Object plainText) {
+                try {
+                    future.complete(plainText == null ? defaultValue : (T) SecurePreferences.convert(plainText, type));
+                } catch (ClassCastException e) {
+                    future.fail(e);
+                }
+            }
+
+            @Override
+            public void onError(Exception error) {
+                future.fail(error);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @return the queued decryption of key, joining one if it hasn't started yet
+     */
+    private PreferenceFuture<Object> queuedRead(final String key) {
+        final PreferenceFuture<Object> queued = queuedReads.get(key);
+        if (queued != null) {
+            return queued;
+        }
+        final PreferenceFuture<Object> read = new PreferenceFuture<>();
+        final PreferenceFuture<Object> raced = queuedReads.putIfAbsent(key, read);
+        if (raced != null) {
+            return raced;
+        }
+        execute(read, new Runnable() {
+            @Override
+            public void run() {
+                //reads from here on need a fresh decryption
+                queuedReads.remove(key, read);
+                try {
+                    read.complete(securePreferences.readDecrypted(securePreferences.hashKey(key)));
+                } catch (RuntimeException e) {
+                    read.fail(e);
+                }
+            }
+        });
+        if (read.isDone()) {
+            queuedReads.remove(key, read);
+        }
+        return read;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+/**
+ * Outcome of {@link SecurePreferences#exportTo(java.io.OutputStream, com.tozny.crypto.android.AesCbcWithIntegrity.SecretKeys, boolean)}
+ * or {@link SecurePreferences#importFrom(java.io.InputStream, com.tozny.crypto.android.AesCbcWithIntegrity.SecretKeys)}
+ */
+public final class BackupReport {
+    int entries;
+    int entriesFailed;
+    long bytes;
+    long elapsedMillis;
+
+    BackupReport() {
+    }
+
+    /**
+     * @return entries exported or imported
+     */
+    public int getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return entries left out because they couldn't be decrypted
+     */
+    public int getEntriesFailed() {
+        return entriesFailed;
+    }
+
+    /**
+     * @return size of the archive written or read
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public double getEntriesPerSecond() {
+        return elapsedMillis == 0 ? entries : entries * 1000d / elapsedMillis;
+    }
+
+    public double getBytesPerSecond() {
+        return elapsedMillis == 0 ? bytes : bytes * 1000d / elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return entries + " entries (" + entriesFailed + " failed), " + bytes + " bytes in "
+                + elapsedMillis + "ms, " + String.format("%.1f", getEntriesPerSecond()) + " entries/s, "
+                + String.format("%.1f", getBytesPerSecond() / 1024) + " KB/s";
+    }
+}
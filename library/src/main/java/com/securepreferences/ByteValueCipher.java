@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Byte and char level helpers for the {@code putBytes}/{@code getBytes} and
+ * {@code putChars}/{@code getChars} methods of {@link SecurePreferences}.
+ * <p>
+ * Values are stored in exactly the same {@code iv:mac:ciphertext} format as
+ * {@link AesCbcWithIntegrity} produces, but can be decrypted straight into a buffer supplied by
+ * the caller, and chars are converted to UTF-8 without going through a String, so secrets can be
+ * cleared once they've been used.
+ */
+final class ByteValueCipher {
+
+    //must match AesCbcWithIntegrity, padding is removed here so the length is known before writing
+    private static final String CIPHER_TRANSFORMATION = "AES/CBC/NoPadding";
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int BLOCK_SIZE = 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ByteValueCipher() {
+    }
+
+    /**
+     * Verifies the MAC and decrypts into out without allocating the plain text
+     *
+     * @return length of the plain text. If it's more than {@code out.length - offset} nothing is
+     * written, so the caller can retry with a larger buffer.
+     */
+    static int decryptInto(AesCbcWithIntegrity.CipherTextIvMac civ, AesCbcWithIntegrity.SecretKeys keys,
+                           byte[] out, int offset) throws GeneralSecurityException {
+        final byte[] iv = civ.getIv();
+        final byte[] cipherText = civ.getCipherText();
+
+        final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+        mac.init(keys.getIntegrityKey());
+        mac.update(iv);
+        mac.update(cipherText);
+        if (!AesCbcWithIntegrity.constantTimeEq(mac.doFinal(), civ.getMac())) {
+            throw new GeneralSecurityException("MAC stored in civ does not match computed MAC.");
+        }
+        if (cipherText.length == 0 || cipherText.length % BLOCK_SIZE != 0) {
+            throw new GeneralSecurityException("Cipher text is not a whole number of blocks");
+        }
+
+        //decrypt the last block first, its padding gives the length before anything is written
+        final int lastBlock = cipherText.length - BLOCK_SIZE;
+        final byte[] lastIv = lastBlock == 0 ? iv : Arrays.copyOfRange(cipherText, lastBlock - BLOCK_SIZE, lastBlock);
+        final byte[] tail = new byte[BLOCK_SIZE];
+        final Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, keys.getConfidentialityKey(), new IvParameterSpec(lastIv));
+            cipher.doFinal(cipherText, lastBlock, BLOCK_SIZE, tail, 0);
+            final int padding = tail[BLOCK_SIZE - 1] & 0xff;
+            if (padding < 1 || padding > BLOCK_SIZE) {
+                throw new GeneralSecurityException("Invalid padding");
+            }
+            final int length = cipherText.length - padding;
+            if (length > out.length - offset) {
+                return length;
+            }
+            if (lastBlock > 0) {
+                cipher.init(Cipher.DECRYPT_MODE, keys.getConfidentialityKey(), new IvParameterSpec(iv));
+                cipher.doFinal(cipherText, 0, lastBlock, out, offset);
+            }
+            System.arraycopy(tail, 0, out, offset + lastBlock, BLOCK_SIZE - padding);
+            return length;
+        } finally {
+            Arrays.fill(tail, (byte) 0);
+        }
+    }
+
+    /**
+     * @return chars as UTF-8, the caller should clear it once encrypted
+     */
+    static byte[] encode(char[] chars) {
+        final CharsetEncoder encoder = UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final ByteBuffer encoded;
+        try {
+            encoded = encoder.encode(CharBuffer.wrap(chars));
+        } catch (CharacterCodingException e) {
+            //can't happen with REPLACE
+            throw new IllegalArgumentException(e);
+        }
+        final byte[] bytes = Arrays.copyOfRange(encoded.array(), encoded.arrayOffset(), encoded.arrayOffset() + encoded.limit());
+        Arrays.fill(encoded.array(), (byte) 0);
+        return bytes;
+    }
+
+    /**
+     * Decodes the first length bytes of UTF-8 written by {@link #encode(char[])} into out
+     *
+     * @return number of chars. If it's more than {@code out.length - offset} nothing is written.
+     */
+    static int decodeInto(byte[] bytes, int length, char[] out, int offset) {
+        final int chars = countChars(bytes, length);
+        if (chars > out.length - offset) {
+            return chars;
+        }
+        UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                .decode(ByteBuffer.wrap(bytes, 0, length), CharBuffer.wrap(out, offset, out.length - offset), true);
+        return chars;
+    }
+
+    /**
+     * @return the number of UTF-16 chars the UTF-8 bytes decode to
+     */
+    private static int countChars(byte[] bytes, int length) {
+        int chars = 0;
+        for (int i = 0; i < length; i++) {
+            final int b = bytes[i] & 0xff;
+            if ((b & 0xc0) != 0x80) {
+                //a lead byte, four byte sequences decode to a surrogate pair
+                chars += b >= 0xf0 ? 2 : 1;
+            }
+        }
+        return chars;
+    }
+}
@@ -0,0 +1,537 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SharedPreferences} decorator that coalesces every {@link Editor#apply()} made within
+ * a time window into a single write of the backing file.
+ * <p>
+ * The write (and the fsync done by the backing {@link Editor#commit()}) happens on a dedicated
+ * background thread, so nothing is queued on Android's {@code QueuedWork} and
+ * {@code Activity.onStop} is never blocked waiting for it. Values that are still pending are
+ * visible to readers straight away, in the same way {@code apply()} updates the in-memory map.
+ * <p>
+ * The number of pending keys is bounded; once the bound is reached {@code apply()} blocks until
+ * the writer has drained the buffer. Use {@link #flush()} or {@link #awaitDurable(long)} when a
+ * durability guarantee is needed.
+ */
+final class CoalescingSharedPreferences implements SharedPreferences {
+
+    private static final String TAG = CoalescingSharedPreferences.class.getName();
+
+    //marks a key removed in the pending or in-flight buffers
+    private static final Object REMOVED = new Object();
+
+    private final SharedPreferences backing;
+
+    private final long windowMillis;
+
+    private final int maxPendingWrites;
+
+    //guards all the buffer state below
+    private final Object lock = new Object();
+
+    //serialises writes to the backing file between the writer thread and commit()
+    private final Object writeLock = new Object();
+
+    private final ScheduledExecutorService executor;
+
+    //changes made since the last write was started
+    private Map<String, Object> pending = new LinkedHashMap<>();
+    private boolean pendingClear;
+
+    //changes being written right now, still visible to readers until the backing prefs have them
+    private Map<String, Object> inFlight = new HashMap<>();
+    private boolean inFlightClear;
+
+    private boolean flushScheduled;
+
+    //generation of the last change buffered and of the last one known to be on disk
+    private long appliedGeneration;
+    private long durableGeneration;
+
+    private boolean lastWriteFailed;
+
+    private boolean shutdown;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            writePending();
+        }
+    };
+
+    /**
+     * @param backing          the real preference file
+     * @param windowMillis     how long to wait after the first apply() before writing
+     * @param maxPendingWrites maximum number of keys buffered before apply() blocks
+     */
+    CoalescingSharedPreferences(SharedPreferences backing, long windowMillis, int maxPendingWrites) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("windowMillis must be >= 0");
+        }
+        if (maxPendingWrites < 1) {
+            throw new IllegalArgumentException("maxPendingWrites must be > 0");
+        }
+        this.backing = backing;
+        this.windowMillis = windowMillis;
+        this.maxPendingWrites = maxPendingWrites;
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SecurePreferences-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return the preference file this instance writes to
+     */
+    SharedPreferences getBacking() {
+        return backing;
+    }
+
+    long getWindowMillis() {
+        return windowMillis;
+    }
+
+    int getMaxPendingWrites() {
+        return maxPendingWrites;
+    }
+
+    /**
+     * Writes all pending changes and blocks until they are durable.
+     *
+     * @return true if the changes were written successfully
+     */
+    boolean flush() {
+        writePending();
+        synchronized (lock) {
+            return !lastWriteFailed && durableGeneration >= appliedGeneration;
+        }
+    }
+
+    /**
+     * Waits for every change applied before this call to be written to disk, without forcing an
+     * early write.
+     *
+     * @param timeoutMillis maximum time to wait
+     * @return true if the changes are durable, false on timeout, failure or interrupt
+     */
+    boolean awaitDurable(long timeoutMillis) {
+        final long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        synchronized (lock) {
+            final long target = appliedGeneration;
+            while (durableGeneration < target) {
+                if (lastWriteFailed) {
+                    return false;
+                }
+                long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return !lastWriteFailed;
+        }
+    }
+
+    /**
+     * Flushes anything pending and stops the writer thread. Further apply() calls are written
+     * synchronously.
+     */
+    void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+        }
+        writePending();
+        executor.shutdown();
+    }
+
+    /**
+     * Merges the changes from an editor into the pending buffer.
+     *
+     * @param changes  keys to values, {@link #REMOVED} for removals
+     * @param clear    true if the editor cleared the file first
+     * @param schedule true to schedule a background write
+     */
+    private void enqueue(Map<String, Object> changes, boolean clear, boolean schedule) {
+        boolean writeNow = false;
+        boolean writeRequested = false;
+        synchronized (lock) {
+            //back-pressure: don't let the buffer grow past the bound while a write is running
+            while (!shutdown && !pending.isEmpty() && pending.size() + changes.size() > maxPendingWrites) {
+                if (!writeRequested) {
+                    //don't wait for the window to expire, the buffer is full
+                    writeRequested = true;
+                    flushScheduled = true;
+                    executor.execute(flushTask);
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            if (clear) {
+                pending.clear();
+                pendingClear = true;
+            }
+            pending.putAll(changes);
+            appliedGeneration++;
+
+            if (shutdown) {
+                writeNow = true;
+            } else if (schedule && !flushScheduled) {
+                flushScheduled = true;
+                executor.schedule(flushTask, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (writeNow) {
+            writePending();
+        }
+    }
+
+    /**
+     * Moves the pending buffer in flight and writes it to the backing prefs with commit(). Runs
+     * on the writer thread, or on the caller's thread for commit() and flush().
+     */
+    private void writePending() {
+        synchronized (writeLock) {
+            final Map<String, Object> batch;
+            final boolean batchClear;
+            final long batchGeneration;
+            synchronized (lock) {
+                flushScheduled = false;
+                if (pending.isEmpty() && !pendingClear) {
+                    return;
+                }
+                batch = pending;
+                batchClear = pendingClear;
+                batchGeneration = appliedGeneration;
+                inFlight = batch;
+                inFlightClear = batchClear;
+                pending = new LinkedHashMap<>();
+                pendingClear = false;
+                //wake anyone blocked by back-pressure
+                lock.notifyAll();
+            }
+
+            SharedPreferences.Editor editor = backing.edit();
+            if (batchClear) {
+                editor.clear();
+            }
+            for (Entry<String, Object> entry : batch.entrySet()) {
+                putRaw(editor, entry.getKey(), entry.getValue());
+            }
+            final boolean committed = editor.commit();
+
+            synchronized (lock) {
+                inFlight = new HashMap<>();
+                inFlightClear = false;
+                if (committed) {
+                    lastWriteFailed = false;
+                    durableGeneration = Math.max(durableGeneration, batchGeneration);
+                } else {
+                    if (SecurePreferences.isLoggingEnabled()) {
+                        Log.w(TAG, "Coalesced write of " + batch.size() + " keys failed, will retry");
+                    }
+                    lastWriteFailed = true;
+                    //put back anything that hasn't been superseded since
+                    if (!pendingClear) {
+                        for (Entry<String, Object> entry : batch.entrySet()) {
+                            if (!pending.containsKey(entry.getKey())) {
+                                pending.put(entry.getKey(), entry.getValue());
+                            }
+                        }
+                        pendingClear = batchClear;
+                    }
+                    if (!shutdown && !flushScheduled) {
+                        flushScheduled = true;
+                        executor.schedule(flushTask, windowMillis, TimeUnit.MILLISECONDS);
+                    }
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void putRaw(SharedPreferences.Editor editor, String key, Object value) {
+        if (value == REMOVED) {
+            editor.remove(key);
+        } else if (value instanceof String) {
+            editor.putString(key, (String) value);
+        } else if (value instanceof Set) {
+            editor.putStringSet(key, (Set<String>) value);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            editor.putFloat(key, (Float) value);
+        } else if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value);
+        }
+    }
+
+    /**
+     * Looks up a key in the pending then in-flight buffers.
+     *
+     * @return the buffered value, {@link #REMOVED} if the key was removed or cleared, or null if
+     * the backing prefs should be consulted
+     */
+    private Object findBuffered(String key) {
+        synchronized (lock) {
+            if (pending.containsKey(key)) {
+                return pending.get(key);
+            }
+            if (pendingClear) {
+                return REMOVED;
+            }
+            if (inFlight.containsKey(key)) {
+                return inFlight.get(key);
+            }
+            if (inFlightClear) {
+                return REMOVED;
+            }
+            return null;
+        }
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        synchronized (lock) {
+            Map<String, Object> all = new HashMap<>();
+            if (!pendingClear) {
+                if (!inFlightClear) {
+                    all.putAll(backing.getAll());
+                }
+                overlay(all, inFlight);
+            }
+            overlay(all, pending);
+            return all;
+        }
+    }
+
+    private static void overlay(Map<String, Object> all, Map<String, Object> changes) {
+        for (Entry<String, Object> entry : changes.entrySet()) {
+            if (entry.getValue() == REMOVED) {
+                all.remove(entry.getKey());
+            } else {
+                all.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        Object value = findBuffered(key);
+        if (value == null) {
+            return backing.getString(key, defValue);
+        }
+        return value == REMOVED ? defValue : (String) value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        Object value = findBuffered(key);
+        if (value == null) {
+            return backing.getStringSet(key, defValues);
+        }
+        return value == REMOVED ? defValues : (Set<String>) value;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Object value = findBuffered(key);
+        if (value == null) {
+            return backing.getInt(key, defValue);
+        }
+        return value == REMOVED ? defValue : (Integer) value;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Object value = findBuffered(key);
+        if (value == null) {
+            return backing.getLong(key, defValue);
+        }
+        return value == REMOVED ? defValue : (Long) value;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Object value = findBuffered(key);
+        if (value == null) {
+            return backing.getFloat(key, defValue);
+        }
+        return value == REMOVED ? defValue : (Float) value;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Object value = findBuffered(key);
+        if (value == null) {
+            return backing.getBoolean(key, defValue);
+        }
+        return value == REMOVED ? defValue : (Boolean) value;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        Object value = findBuffered(key);
+        if (value == null) {
+            return backing.contains(key);
+        }
+        return value != REMOVED;
+    }
+
+    @Override
+    public Editor edit() {
+        return new BufferingEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        backing.registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        backing.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
+    /**
+     * Collects changes like the platform editor and hands them to the writer on apply/commit.
+     */
+    private final class BufferingEditor implements Editor {
+        private final Map<String, Object> changes = new HashMap<>();
+        private boolean clear;
+
+        @Override
+        public Editor putString(String key, String value) {
+            synchronized (this) {
+                changes.put(key, value == null ? REMOVED : value);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            synchronized (this) {
+                changes.put(key, values == null ? REMOVED : new HashSet<>(values));
+            }
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            synchronized (this) {
+                changes.put(key, value);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            synchronized (this) {
+                changes.put(key, value);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            synchronized (this) {
+                changes.put(key, value);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            synchronized (this) {
+                changes.put(key, value);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            synchronized (this) {
+                changes.put(key, REMOVED);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            synchronized (this) {
+                clear = true;
+            }
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            drainTo(false);
+            return flush();
+        }
+
+        @Override
+        public void apply() {
+            drainTo(true);
+        }
+
+        private void drainTo(boolean schedule) {
+            final Map<String, Object> snapshot;
+            final boolean snapshotClear;
+            synchronized (this) {
+                snapshot = new HashMap<>(changes);
+                snapshotClear = clear;
+                changes.clear();
+                clear = false;
+            }
+            enqueue(snapshot, snapshotClear, schedule);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Outcome of {@link SecurePreferences#compact(boolean, boolean)}, the entries of the file nothing
+ * can read any more, by stored name
+ */
+public final class CompactionReport {
+
+    final Set<String> unreadable = new HashSet<>();
+    final Set<String> staleKeys = new HashSet<>();
+    final Set<String> plain = new HashSet<>();
+    long bytes;
+    boolean removed;
+    boolean plainRemoved;
+    boolean retiredKeysDropped;
+    boolean refused;
+
+    CompactionReport() {
+    }
+
+    /**
+     * @return values that don't authenticate under any key of the file, e.g. written under
+     * another password, salt or iteration count
+     */
+    public Set<String> getUnreadableEntries() {
+        return Collections.unmodifiableSet(unreadable);
+    }
+
+    /**
+     * @return generated keys stored for another salt or iteration count
+     */
+    public Set<String> getStaleKeyEntries() {
+        return Collections.unmodifiableSet(staleKeys);
+    }
+
+    /**
+     * @return entries that aren't encrypted at all, e.g. left from before the file was secured
+     * or encrypted by something else
+     */
+    public Set<String> getPlainEntries() {
+        return Collections.unmodifiableSet(plain);
+    }
+
+    /**
+     * @return number of entries found
+     */
+    public int getEntries() {
+        return unreadable.size() + staleKeys.size() + plain.size();
+    }
+
+    /**
+     * @return characters of the names and values found, roughly what removing them saves on
+     * every load
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return true if the entries found were removed, except the plain entries unless
+     * {@link #isPlainRemoved()}
+     */
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return true if the plain entries were removed as well
+     */
+    public boolean isPlainRemoved() {
+        return plainRemoved;
+    }
+
+    /**
+     * @return true if retired keys with nothing left under them were dropped from the key ring
+     */
+    public boolean isRetiredKeysDropped() {
+        return retiredKeysDropped;
+    }
+
+    /**
+     * @return true if removal was asked for but nothing was removed, as the keys had been
+     * destroyed or no value could be read with the current key. The unreadable entries are most
+     * likely fine under the right password.
+     */
+    public boolean isRefused() {
+        return refused;
+    }
+
+    @Override
+    public String toString() {
+        return getEntries() + " entries (" + unreadable.size() + " unreadable, " + staleKeys.size() + " stale keys, "
+                + plain.size() + " plain), " + bytes + " bytes" + (removed ? (plainRemoved ? ", removed" : ", removed except plain") : "")
+                + (retiredKeysDropped ? ", retired keys dropped" : "")
+                + (refused ? ", not removed as nothing reads with the current key" : "");
+    }
+}
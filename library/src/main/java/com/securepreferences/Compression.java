@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses plain text before it's encrypted, see {@link SecurePreferences#enableCompression(int)}.
+ * Deflate at its fastest level, with the zlib wrapper so a corrupted or wrongly flagged value
+ * fails its checksum rather than decompressing into garbage.
+ */
+final class Compression {
+
+    //compression has to save at least an AES block to make the value any shorter
+    private static final int MIN_SAVING = 16;
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private Compression() {
+    }
+
+    /**
+     * @return the compressed bytes, or null if compressing doesn't pay off
+     */
+    static byte[] compress(byte[] plain) {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(plain);
+            deflater.finish();
+            //anything longer than this isn't worth keeping, so don't produce it
+            final byte[] out = new byte[Math.max(0, plain.length - MIN_SAVING)];
+            int length = 0;
+            while (!deflater.finished() && length < out.length) {
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            if (!deflater.finished()) {
+                Arrays.fill(out, (byte) 0);
+                return null;
+            }
+            final byte[] compressed = Arrays.copyOf(out, length);
+            Arrays.fill(out, (byte) 0);
+            return compressed;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static byte[] decompress(byte[] compressed) throws DataFormatException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                final int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated compressed value");
+                }
+                out.write(buffer, 0, length);
+            }
+            Arrays.fill(buffer, (byte) 0);
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+}
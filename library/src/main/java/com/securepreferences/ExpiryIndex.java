@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable index of the entries written with a time to live, see
+ * {@link SecurePreferences.Editor#putString(String, String, long)}.
+ * <p>
+ * Stored (unencrypted) as {@code hashedName,expiryMillis;...} under {@link #EXPIRIES_PREF_KEY},
+ * so checking whether a value has expired never needs a decryption. The index reveals which
+ * entries are short lived and when they expire, nothing about their names or values.
+ */
+final class ExpiryIndex {
+
+    //the index is stored (unencrypted) under this name
+    static final String EXPIRIES_PREF_KEY = "com.securepreferences.expiries";
+
+    //neither can appear in a Base64 hashed name
+    private static final String ENTRY_SEPARATOR = ";";
+    private static final String FIELD_SEPARATOR = ",";
+
+    static final ExpiryIndex EMPTY = new ExpiryIndex(null, Collections.<String, Long>emptyMap());
+
+    //the stored string this was parsed from, so an unchanged index isn't parsed again
+    private final String source;
+
+    private final Map<String, Long> expiries;
+
+    private ExpiryIndex(String source, Map<String, Long> expiries) {
+        this.source = source;
+        this.expiries = expiries;
+    }
+
+    /**
+     * @param stored the stored index, null if there isn't one
+     * @param cached the index parsed last time, returned as is if stored hasn't changed
+     */
+    static ExpiryIndex load(String stored, ExpiryIndex cached) {
+        if (stored == null) {
+            return EMPTY;
+        }
+        if (stored.equals(cached.source)) {
+            return cached;
+        }
+        final Map<String, Long> expiries = new HashMap<>();
+        for (String entry : stored.split(ENTRY_SEPARATOR)) {
+            final int separator = entry.indexOf(FIELD_SEPARATOR);
+            if (separator > 0) {
+                try {
+                    expiries.put(entry.substring(0, separator), Long.parseLong(entry.substring(separator + 1)));
+                } catch (NumberFormatException e) {
+                    //a damaged entry never expires rather than taking the rest of the index with it
+                }
+            }
+        }
+        return new ExpiryIndex(stored, Collections.unmodifiableMap(expiries));
+    }
+
+    boolean isEmpty() {
+        return expiries.isEmpty();
+    }
+
+    boolean isExpired(String hashedKey, long nowMillis) {
+        final Long expiry = expiries.get(hashedKey);
+        return expiry != null && expiry <= nowMillis;
+    }
+
+    /**
+     * @return when the entry expires, 0 if it doesn't
+     */
+    long expiryOf(String hashedKey) {
+        final Long expiry = expiries.get(hashedKey);
+        return expiry != null ? expiry : 0;
+    }
+
+    /**
+     * @return the earliest expiry, 0 if the index is empty
+     */
+    long nextExpiry() {
+        long next = 0;
+        for (Long expiry : expiries.values()) {
+            if (next == 0 || expiry < next) {
+                next = expiry;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * @return up to max hashed names that have expired
+     */
+    List<String> expired(long nowMillis, int max) {
+        final List<String> expired = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : expiries.entrySet()) {
+            if (expired.size() == max) {
+                break;
+            }
+            if (entry.getValue() <= nowMillis) {
+                expired.add(entry.getKey());
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * @param changes hashed name to new expiry, 0 for entries that no longer expire or were removed
+     * @param cleared everything was removed before the changes
+     * @return the updated index, this if nothing changed
+     */
+    ExpiryIndex with(Map<String, Long> changes, boolean cleared) {
+        if (!cleared) {
+            boolean changed = false;
+            for (Map.Entry<String, Long> change : changes.entrySet()) {
+                if (expiryOf(change.getKey()) != change.getValue()) {
+                    changed = true;
+                    break;
+                }
+            }
+            if (!changed) {
+                return this;
+            }
+        }
+        final Map<String, Long> updated = cleared ? new HashMap<String, Long>() : new HashMap<>(expiries);
+        for (Map.Entry<String, Long> change : changes.entrySet()) {
+            if (change.getValue() == 0) {
+                updated.remove(change.getKey());
+            } else {
+                updated.put(change.getKey(), change.getValue());
+            }
+        }
+        if (updated.isEmpty()) {
+            return EMPTY;
+        }
+        final String serialized = serialize(updated);
+        return new ExpiryIndex(serialized, Collections.unmodifiableMap(updated));
+    }
+
+    /**
+     * @return the index to store, null if it's empty
+     */
+    String serialize() {
+        return source;
+    }
+
+    private static String serialize(Map<String, Long> expiries) {
+        final List<String> entries = new ArrayList<>(expiries.size());
+        for (Map.Entry<String, Long> entry : expiries.entrySet()) {
+            entries.add(entry.getKey() + FIELD_SEPARATOR + entry.getValue());
+        }
+        return TextUtils.join(ENTRY_SEPARATOR, entries);
+    }
+}
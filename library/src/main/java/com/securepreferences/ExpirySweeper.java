@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes entries once their time to live is up, see {@link ExpiryIndex}.
+ * <p>
+ * Expired entries already read as absent, this keeps them from piling up in the file. A single
+ * wake up is scheduled for the earliest expiry. It removes up to {@link #BATCH_SIZE} expired
+ * entries per commit, pausing between batches on a low priority thread, then schedules itself
+ * for the next expiry.
+ * <p>
+ * Every file's sweeps run on one shared thread, which stops when no sweep is scheduled. A
+ * scheduled sweep doesn't keep its SecurePreferences from being collected.
+ */
+final class ExpirySweeper {
+
+    private static final String TAG = ExpirySweeper.class.getName();
+
+    //entries removed per commit
+    static final int BATCH_SIZE = 100;
+
+    //pause between batches when more than one batch has expired
+    static final long PAUSE_MILLIS = 20;
+
+    //wait before trying again after a failed sweep, rather than spinning on entries already expired
+    private static final long RETRY_MILLIS = 60 * 1000;
+
+    //idle time before the shared thread stops
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private static ScheduledThreadPoolExecutor sExecutor;
+
+    private final WeakReference<SecurePreferences> securePreferences;
+
+    //guarded by this
+    private ScheduledFuture<?> scheduled;
+    private long scheduledAt;
+
+    private final Runnable sweepTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ExpirySweeper.this) {
+                scheduled = null;
+                scheduledAt = 0;
+            }
+            sweep();
+        }
+    };
+
+    ExpirySweeper(SecurePreferences securePreferences) {
+        this.securePreferences = new WeakReference<>(securePreferences);
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getExecutor() {
+        if (sExecutor != null) {
+            return sExecutor;
+        }
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "SecurePreferences-expiry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        sExecutor = executor;
+        return executor;
+    }
+
+    /**
+     * Makes sure a sweep runs by atMillis, an earlier wake up already scheduled is kept
+     *
+     * @param atMillis wall clock time of the next expiry, 0 for none
+     */
+    synchronized void schedule(long atMillis) {
+        if (atMillis == 0 || (scheduled != null && scheduledAt <= atMillis)) {
+            return;
+        }
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        scheduledAt = atMillis;
+        scheduled = getExecutor().schedule(sweepTask, Math.max(0, atMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancels the scheduled sweep, e.g. when the file is closed
+     */
+    synchronized void cancel() {
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+            scheduledAt = 0;
+            //so the cancelled wake up doesn't keep the thread alive until it was due
+            getExecutor().purge();
+        }
+    }
+
+    private void sweep() {
+        final SecurePreferences securePreferences = this.securePreferences.get();
+        if (securePreferences == null) {
+            //nobody can read the file through it any more, the next instance sweeps it
+            return;
+        }
+        boolean failed = false;
+        try {
+            int removed;
+            do {
+                removed = securePreferences.removeExpired(BATCH_SIZE);
+                if (SecurePreferences.isLoggingEnabled()) {
+                    Log.d(TAG, "Removed " + removed + " expired entries");
+                }
+                if (removed == BATCH_SIZE) {
+                    Thread.sleep(PAUSE_MILLIS);
+                }
+            } while (removed == BATCH_SIZE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RuntimeException e) {
+            //an unexpected failure shouldn't stop later expiries, they'll be retried then
+            Log.w(TAG, "Unable to remove expired entries", e);
+            failed = true;
+        }
+        long next = securePreferences.nextExpiry();
+        if (failed && next != 0) {
+            next = Math.max(next, System.currentTimeMillis() + RETRY_MILLIS);
+        }
+        schedule(next);
+    }
+}
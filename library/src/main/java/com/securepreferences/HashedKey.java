@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+/**
+ * A pref key with its {@link KeyNameScheme#SHA_256} name worked out ahead of time, so reading and
+ * writing it doesn't hash anything. The accessors generated by the securepreferences processor
+ * compute the names at build time, e.g.
+ * <pre>
+ * static final HashedKey TOKEN = new HashedKey("token", "PEaenWxYddN6Q/NT1PiOYfz4EsZu7jRXRlpAsNpBU+A=");
+ * String token = securePrefs.getString(TOKEN, null);
+ * </pre>
+ * Files whose keys have been migrated to another scheme name the key with that scheme instead,
+ * at the usual cost.
+ */
+public final class HashedKey {
+
+    final String key;
+    final String sha256Name;
+
+    /**
+     * @param sha256Name the key as {@link SecurePreferences#hashPrefKey(String)} names it
+     */
+    public HashedKey(String key, String sha256Name) {
+        if (key == null || sha256Name == null) {
+            throw new IllegalArgumentException("key and sha256Name are required");
+        }
+        this.key = key;
+        this.sha256Name = sha256Name;
+    }
+
+    /**
+     * Hashes key now, for keys that aren't known until runtime but are used many times
+     */
+    public static HashedKey of(String key) {
+        return new HashedKey(key, SecurePreferences.hashPrefKey(key));
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getSha256Name() {
+        return sha256Name;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof HashedKey && key.equals(((HashedKey) o).key) && sha256Name.equals(((HashedKey) o).sha256Name);
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Picks the key derivation iteration count for the current device by timing
+ * {@link AesCbcWithIntegrity#generateKeyFromPassword(String, byte[], int)}, so the password
+ * unlock takes roughly the same time on low end and flagship devices.
+ * <p>
+ * The chosen count is stored (in the clear, it isn't secret) in the preference file itself so
+ * later opens use it without benchmarking again:
+ * <pre>
+ * int iterations = IterationCountCalibrator.getIterationCount(context, "my_prefs", 300);
+ * SecurePreferences prefs = new SecurePreferences(context, password, "my_prefs", iterations);
+ * </pre>
+ * Use {@link SecurePreferences#recalibrateIterationCount(String, Context, long)} to calibrate
+ * again and re-key the file with the new count.
+ */
+public final class IterationCountCalibrator {
+
+    private static final String TAG = IterationCountCalibrator.class.getName();
+
+    /**
+     * Suggested unlock latency, in milliseconds
+     */
+    public static final long DEFAULT_TARGET_MILLIS = 300;
+
+    /**
+     * Calibration never goes below this, however fast the device
+     */
+    public static final int MIN_ITERATION_COUNT = 1000;
+
+    /**
+     * Calibration never goes above this, however slow the target
+     */
+    public static final int MAX_ITERATION_COUNT = 500000;
+
+    //iterations used for each timing sample
+    private static final int PROBE_ITERATION_COUNT = 2000;
+
+    private static final int PROBE_RUNS = 5;
+
+    //chosen counts are rounded to this so they look deliberate in the file
+    private static final int ROUND_TO = 500;
+
+    //the count is stored with the prefs under this (hashed) name
+    static final String ITERATION_COUNT_PREF_KEY = "com.securepreferences.iterationCount";
+
+    private IterationCountCalibrator() {
+    }
+
+    /**
+     * Returns the iteration count stored with the preference file, or calibrates and stores one
+     * if there isn't one yet.
+     *
+     * @param context            should be ApplicationContext not Activity
+     * @param sharedPrefFilename name of the shared pref file. If null use the default shared prefs
+     * @param targetMillis       unlock latency to aim for when calibrating
+     * @return iteration count to pass to the {@link SecurePreferences} constructor
+     */
+    public static int getIterationCount(Context context, String sharedPrefFilename, long targetMillis) {
+        final SharedPreferences prefs = SecurePreferences.openSharedPreferences(context, sharedPrefFilename);
+        int stored = getStoredIterationCount(prefs);
+        if (stored > 0) {
+            return stored;
+        }
+
+        int calibrated = calibrate(targetMillis);
+        storeIterationCount(prefs, calibrated);
+        return calibrated;
+    }
+
+    /**
+     * Times key derivation on this device without storing anything.
+     *
+     * @param targetMillis unlock latency to aim for
+     * @return the iteration count that takes about targetMillis, clamped to
+     * [{@link #MIN_ITERATION_COUNT}, {@link #MAX_ITERATION_COUNT}]
+     */
+    public static int calibrate(long targetMillis) {
+        if (targetMillis <= 0) {
+            throw new IllegalArgumentException("targetMillis must be > 0");
+        }
+        try {
+            final byte[] salt = AesCbcWithIntegrity.generateSalt();
+            final String password = "calibration";
+
+            //first run pays for provider lookup and class loading, don't time it
+            AesCbcWithIntegrity.generateKeyFromPassword(password, salt, PROBE_ITERATION_COUNT);
+
+            long[] samples = new long[PROBE_RUNS];
+            for (int i = 0; i < PROBE_RUNS; i++) {
+                long start = System.nanoTime();
+                AesCbcWithIntegrity.generateKeyFromPassword(password, salt, PROBE_ITERATION_COUNT);
+                samples[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(samples);
+            final double nanosPerIteration = (double) samples[PROBE_RUNS / 2] / PROBE_ITERATION_COUNT;
+
+            int estimate = clamp(targetMillis * 1000000d / nanosPerIteration);
+
+            //PBKDF2 is linear in the count, but check the estimate once at full size and correct it
+            long start = System.nanoTime();
+            AesCbcWithIntegrity.generateKeyFromPassword(password, salt, estimate);
+            long actualNanos = System.nanoTime() - start;
+            int corrected = clamp(estimate * (targetMillis * 1000000d / actualNanos));
+
+            if (SecurePreferences.isLoggingEnabled()) {
+                Log.d(TAG, "Calibrated iteration count " + corrected + " for " + targetMillis + "ms (estimate was " + estimate + ")");
+            }
+            return corrected;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Key derivation not available for calibration", e);
+        }
+    }
+
+    private static int clamp(double count) {
+        long rounded = Math.round(count / ROUND_TO) * ROUND_TO;
+        return (int) Math.max(MIN_ITERATION_COUNT, Math.min(MAX_ITERATION_COUNT, rounded));
+    }
+
+    /**
+     * @return the stored iteration count or 0 if the file hasn't been calibrated
+     */
+    static int getStoredIterationCount(SharedPreferences prefs) {
+        String stored = prefs.getString(SecurePreferences.hashPrefKey(ITERATION_COUNT_PREF_KEY), null);
+        if (stored == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(stored);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Ignoring unreadable stored iteration count");
+            return 0;
+        }
+    }
+
+    static void storeIterationCount(SharedPreferences prefs, int iterationCount) {
+        boolean committed = prefs.edit()
+                .putString(SecurePreferences.hashPrefKey(ITERATION_COUNT_PREF_KEY), Integer.toString(iterationCount))
+                .commit();
+        if (!committed) {
+            Log.w(TAG, "Iteration count not committed to prefs");
+        }
+    }
+}
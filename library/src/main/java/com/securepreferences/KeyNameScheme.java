@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+/**
+ * How a key is turned into the name its value is stored under in the pref file. A scheme must
+ * give the same name for a key every time and, in practice, different names for different keys.
+ * <p>
+ * Files use {@link #SHA_256} unless they've been moved to another scheme with
+ * {@link SecurePreferences#migrateKeyNames(KeyNameScheme, java.util.Collection)}.
+ */
+public interface KeyNameScheme {
+
+    /**
+     * The original scheme, the Base64 SHA-256 of the key. Names are 44 chars, and anyone with the
+     * file can tell whether it holds a key they guess.
+     */
+    KeyNameScheme SHA_256 = new KeyNameScheme() {
+        @Override
+        public String nameFor(String key) {
+            return SecurePreferences.hashPrefKey(key);
+        }
+    };
+
+    /**
+     * @return the name the value for key is stored under
+     */
+    String nameFor(String key);
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Immutable set of the keys a {@link SecurePreferences} file can decrypt with: the current key,
+ * used for all writes, and any retired keys that some entries are still encrypted under.
+ * <p>
+ * Each stored value is prefixed with the id of the key it was encrypted with,
+ * {@code keyId:iv:mac:ciphertext}. Values written before key ids existed have no prefix and
+ * belong to key 0. A {@code z} after the id, {@code keyId z:iv:mac:ciphertext}, marks plain text that
+ * was compressed before encryption. Retired keys are persisted in the pref file wrapped (encrypted) under the
+ * current key, so nothing readable is stored beyond what the current key already protects.
+ */
+final class KeyRing {
+
+    private static final String TAG = KeyRing.class.getName();
+
+    //the serialised ring is stored (unencrypted) under this name
+    static final String KEY_RING_PREF_KEY = "com.securepreferences.keyRing";
+
+    private static final char HEADER_SEPARATOR = ':';
+    //follows the key id of values compressed before encryption
+    private static final char COMPRESSED_FLAG = 'z';
+    //follows the key id of values whose plain text starts with a TypeTag
+    private static final char TYPED_FLAG = 't';
+    private static final String ENTRY_SEPARATOR = ";";
+    private static final String FIELD_SEPARATOR = ",";
+
+    //ids of values written before key ids were introduced
+    static final int LEGACY_KEY_ID = 0;
+
+    //returned by keyIdOf for values that aren't in the ciphertext format
+    static final int NO_KEY_ID = -1;
+
+    private final int currentId;
+
+    private final AesCbcWithIntegrity.SecretKeys currentKeys;
+
+    private final Map<Integer, AesCbcWithIntegrity.SecretKeys> retired;
+
+    KeyRing(int currentId, AesCbcWithIntegrity.SecretKeys currentKeys, Map<Integer, AesCbcWithIntegrity.SecretKeys> retired) {
+        this.currentId = currentId;
+        this.currentKeys = currentKeys;
+        this.retired = Collections.unmodifiableMap(new HashMap<>(retired));
+    }
+
+    /**
+     * @param stored      the serialised ring from the pref file, null for a file that has never
+     *                    been rotated
+     * @param currentKeys the key the file was opened with
+     */
+    static KeyRing load(String stored, AesCbcWithIntegrity.SecretKeys currentKeys) {
+        final Map<Integer, AesCbcWithIntegrity.SecretKeys> retired = new HashMap<>();
+        if (TextUtils.isEmpty(stored)) {
+            return new KeyRing(LEGACY_KEY_ID, currentKeys, retired);
+        }
+
+        final String[] entries = stored.split(ENTRY_SEPARATOR);
+        final int currentId = Integer.parseInt(entries[0]);
+        for (int i = 1; i < entries.length; i++) {
+            final String[] fields = entries[i].split(FIELD_SEPARATOR);
+            try {
+                final String unwrapped = AesCbcWithIntegrity.decryptString(
+                        new AesCbcWithIntegrity.CipherTextIvMac(fields[1]), currentKeys);
+                retired.put(Integer.parseInt(fields[0]), AesCbcWithIntegrity.keys(unwrapped));
+            } catch (GeneralSecurityException | UnsupportedEncodingException | RuntimeException e) {
+                //most likely opened with the wrong password, values under this key will read as null
+                if (SecurePreferences.isLoggingEnabled()) {
+                    Log.w(TAG, "Unable to unwrap retired key " + fields[0], e);
+                }
+            }
+        }
+        return new KeyRing(currentId, currentKeys, retired);
+    }
+
+    /**
+     * @return the ring to store in the pref file, or null if there is nothing worth storing
+     */
+    String serialize() throws GeneralSecurityException {
+        if (currentId == LEGACY_KEY_ID && retired.isEmpty()) {
+            return null;
+        }
+        final StringBuilder builder = new StringBuilder(Integer.toString(currentId));
+        for (Entry<Integer, AesCbcWithIntegrity.SecretKeys> entry : retired.entrySet()) {
+            final String wrapped;
+            try {
+                wrapped = AesCbcWithIntegrity.encrypt(entry.getValue().toString(), currentKeys).toString();
+            } catch (UnsupportedEncodingException e) {
+                throw new GeneralSecurityException(e);
+            }
+            builder.append(ENTRY_SEPARATOR).append(entry.getKey()).append(FIELD_SEPARATOR).append(wrapped);
+        }
+        return builder.toString();
+    }
+
+    int getCurrentId() {
+        return currentId;
+    }
+
+    AesCbcWithIntegrity.SecretKeys getCurrentKeys() {
+        return currentKeys;
+    }
+
+    /**
+     * @return true for a ring returned by {@link #destroyed()}
+     */
+    boolean isDestroyed() {
+        return currentKeys == null;
+    }
+
+    /**
+     * @return the current and retired keys by id
+     */
+    Map<Integer, AesCbcWithIntegrity.SecretKeys> getKeysById() {
+        final Map<Integer, AesCbcWithIntegrity.SecretKeys> keys = new HashMap<>(retired);
+        keys.put(currentId, currentKeys);
+        return keys;
+    }
+
+    boolean hasRetiredKeys() {
+        return !retired.isEmpty();
+    }
+
+    /**
+     * @return the key with this id, or null if the ring doesn't have it
+     */
+    AesCbcWithIntegrity.SecretKeys getKeys(int keyId) {
+        return keyId == currentId ? currentKeys : retired.get(keyId);
+    }
+
+    /**
+     * @return a ring where newKeys is current and the current key is retired
+     */
+    KeyRing rotate(AesCbcWithIntegrity.SecretKeys newKeys) {
+        int newId = currentId;
+        for (Integer id : retired.keySet()) {
+            newId = Math.max(newId, id);
+        }
+        final Map<Integer, AesCbcWithIntegrity.SecretKeys> newRetired = new HashMap<>(retired);
+        newRetired.put(currentId, currentKeys);
+        return new KeyRing(newId + 1, newKeys, newRetired);
+    }
+
+    /**
+     * @return this ring without its retired keys, once nothing is encrypted under them
+     */
+    KeyRing withoutRetiredKeys() {
+        return new KeyRing(currentId, currentKeys, Collections.<Integer, AesCbcWithIntegrity.SecretKeys>emptyMap());
+    }
+
+    /**
+     * @return a ring with the same ids and no key material
+     */
+    KeyRing destroyed() {
+        return new KeyRing(currentId, null, Collections.<Integer, AesCbcWithIntegrity.SecretKeys>emptyMap());
+    }
+
+    /**
+     * @return true if the stored value is encrypted under a key other than the current one
+     */
+    boolean isStale(String stored) {
+        final int keyId = keyIdOf(stored);
+        return keyId != NO_KEY_ID && keyId != currentId;
+    }
+
+    /**
+     * @param civ {@code iv:mac:ciphertext} from {@link AesCbcWithIntegrity.CipherTextIvMac#toString()}
+     * @return the value to store. Until the first rotation values are stored without a header,
+     * so the file stays readable by older versions of the library.
+     */
+    String addHeader(String civ) {
+        return addHeader(civ, false);
+    }
+
+    /**
+     * @param compressed the plain text was compressed before encryption, always written with a
+     *                   header as older versions of the library can't read it anyway
+     */
+    String addHeader(String civ, boolean compressed) {
+        return addHeader(civ, compressed, false);
+    }
+
+    /**
+     * @param typed the plain text starts with a {@link TypeTag}, also always written with a header
+     */
+    String addHeader(String civ, boolean compressed, boolean typed) {
+        if (compressed || typed) {
+            final StringBuilder header = new StringBuilder(civ.length() + 4).append(currentId);
+            if (compressed) {
+                header.append(COMPRESSED_FLAG);
+            }
+            if (typed) {
+                header.append(TYPED_FLAG);
+            }
+            return header.append(HEADER_SEPARATOR).append(civ).toString();
+        }
+        if (currentId == LEGACY_KEY_ID) {
+            return civ;
+        }
+        return Integer.toString(currentId) + HEADER_SEPARATOR + civ;
+    }
+
+    /**
+     * @return the id of the key the stored value was encrypted with, {@link #LEGACY_KEY_ID} if
+     * it has no header or {@link #NO_KEY_ID} if it isn't ciphertext at all
+     */
+    static int keyIdOf(String stored) {
+        final int separators = countSeparators(stored);
+        if (separators == 2) {
+            return LEGACY_KEY_ID;
+        }
+        if (separators != 3) {
+            return NO_KEY_ID;
+        }
+        int end = stored.indexOf(HEADER_SEPARATOR);
+        if (end > 0 && stored.charAt(end - 1) == TYPED_FLAG) {
+            end--;
+        }
+        if (end > 0 && stored.charAt(end - 1) == COMPRESSED_FLAG) {
+            end--;
+        }
+        try {
+            return Integer.parseInt(stored.substring(0, end));
+        } catch (NumberFormatException e) {
+            return NO_KEY_ID;
+        }
+    }
+
+    /**
+     * @return true if the stored value's plain text was compressed before encryption
+     */
+    static boolean isCompressed(String stored) {
+        if (countSeparators(stored) != 3) {
+            return false;
+        }
+        int separator = stored.indexOf(HEADER_SEPARATOR);
+        if (separator > 0 && stored.charAt(separator - 1) == TYPED_FLAG) {
+            separator--;
+        }
+        return separator > 0 && stored.charAt(separator - 1) == COMPRESSED_FLAG;
+    }
+
+    /**
+     * @return true if the stored value's plain text starts with a {@link TypeTag}
+     */
+    static boolean isTyped(String stored) {
+        if (countSeparators(stored) != 3) {
+            return false;
+        }
+        final int separator = stored.indexOf(HEADER_SEPARATOR);
+        return separator > 0 && stored.charAt(separator - 1) == TYPED_FLAG;
+    }
+
+    /**
+     * @return the {@code iv:mac:ciphertext} part of a stored value
+     */
+    static String stripHeader(String stored) {
+        if (countSeparators(stored) == 3) {
+            return stored.substring(stored.indexOf(HEADER_SEPARATOR) + 1);
+        }
+        return stored;
+    }
+
+    private static int countSeparators(String stored) {
+        if (stored == null) {
+            return 0;
+        }
+        int separators = 0;
+        for (int i = 0; i < stored.length(); i++) {
+            if (stored.charAt(i) == HEADER_SEPARATOR) {
+                separators++;
+            }
+        }
+        return separators;
+    }
+}
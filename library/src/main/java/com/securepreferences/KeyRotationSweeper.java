@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Background re-encryption of values still under a retired key after
+ * {@link SecurePreferences#rotateKey()}.
+ * <p>
+ * Values read by the app are repaired first, in small batches. The full sweep walks the file
+ * {@link #BATCH_SIZE} entries at a time with a pause between batches on a low priority thread,
+ * so a large file is rotated without holding up the app's own reads and writes. Once nothing is
+ * left under the retired keys they are dropped from the ring.
+ */
+final class KeyRotationSweeper {
+
+    private static final String TAG = KeyRotationSweeper.class.getName();
+
+    //entries re-encrypted per write
+    static final int BATCH_SIZE = 100;
+
+    //pause between batches of the sweep
+    static final long PAUSE_MILLIS = 20;
+
+    //give up and wait for the next rotation or open if the keys can't be retired after this
+    private static final int MAX_PASSES = 3;
+
+    private final SecurePreferences securePreferences;
+
+    private final ExecutorService executor;
+
+    //keys read by the app that are waiting to be re-encrypted
+    private final Set<String> pendingRepairs = new LinkedHashSet<>();
+
+    private boolean repairScheduled;
+
+    private final AtomicBoolean sweepScheduled = new AtomicBoolean();
+
+    KeyRotationSweeper(SecurePreferences securePreferences) {
+        this.securePreferences = securePreferences;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "SecurePreferences-rotation");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues an entry that was just read under a retired key for re-encryption
+     */
+    void repair(String hashedKey) {
+        synchronized (pendingRepairs) {
+            pendingRepairs.add(hashedKey);
+            if (repairScheduled) {
+                return;
+            }
+            repairScheduled = true;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<String> batch;
+                synchronized (pendingRepairs) {
+                    batch = new ArrayList<>(pendingRepairs);
+                    pendingRepairs.clear();
+                    repairScheduled = false;
+                }
+                for (int from = 0; from < batch.size(); from += BATCH_SIZE) {
+                    securePreferences.reEncryptStale(batch.subList(from, Math.min(from + BATCH_SIZE, batch.size())));
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts a sweep of the whole file unless one is already running
+     */
+    void sweep() {
+        if (!sweepScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runSweep();
+                } finally {
+                    sweepScheduled.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for the sweep and repairs queued so far to finish
+     *
+     * @return false on timeout
+     */
+    boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        //the executor has one thread, so this runs after everything queued before it
+        final Future<?> marker = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        try {
+            marker.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void runSweep() {
+        try {
+            for (int pass = 0; pass < MAX_PASSES; pass++) {
+                final List<String> stale = new ArrayList<>(securePreferences.findStaleKeys());
+                int reEncrypted = 0;
+                for (int from = 0; from < stale.size(); from += BATCH_SIZE) {
+                    reEncrypted += securePreferences.reEncryptStale(stale.subList(from, Math.min(from + BATCH_SIZE, stale.size())));
+                    Thread.sleep(PAUSE_MILLIS);
+                }
+                if (SecurePreferences.isLoggingEnabled()) {
+                    Log.d(TAG, "Sweep pass " + pass + " re-encrypted " + reEncrypted + " of " + stale.size() + " stale entries");
+                }
+                if (securePreferences.retireKeysIfUnused()) {
+                    return;
+                }
+            }
+            Log.w(TAG, "Retired keys still in use after " + MAX_PASSES + " passes");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Unable to store key ring after sweep", e);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import android.util.Base64;
+
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Names keys with an HMAC-SHA256 under a secret derived from the file's key, truncated to
+ * {@link #DEFAULT_NAME_BYTES} bytes: 16 chars per name rather than the 44 of
+ * {@link KeyNameScheme#SHA_256}, and without the secret a guessed key can't be checked against
+ * the file.
+ * <p>
+ * Collision budget: with b bit names the chance of any two of n keys sharing a name is about
+ * n<sup>2</sup> / 2<sup>b+1</sup>. At the default 96 bits that's 6 in 10<sup>18</sup> for a
+ * million keys, and at the minimum of 64 bits 3 in 10<sup>10</sup> for a hundred thousand.
+ * {@link SecurePreferences#migrateKeyNames(KeyNameScheme, java.util.Collection)} refuses to
+ * migrate keys that collide.
+ * <p>
+ * Created with {@link SecurePreferences#createKeyedKeyNameScheme(int)}. The secret is stored in
+ * the file wrapped under the current key and re-wrapped when the key changes, so names stay the
+ * same across key rotation and password changes.
+ */
+public final class KeyedHashKeyNameScheme implements KeyNameScheme {
+
+    /**
+     * 96 bit names
+     */
+    public static final int DEFAULT_NAME_BYTES = 12;
+
+    static final int MIN_NAME_BYTES = 8;
+
+    //shorter than a SHA-256 name, so the two schemes can't produce the same name
+    static final int MAX_NAME_BYTES = 24;
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    //the secret is derived from the integrity key with this label, so it's unrelated to any MAC of a value
+    private static final String DERIVATION_LABEL = "com.securepreferences.keyNames";
+
+    private static final String FIELD_SEPARATOR = ",";
+
+    private final byte[] secret;
+
+    private final int nameBytes;
+
+    //Mac instances aren't thread safe and are costly to create, one per reading thread
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                mac.init(new SecretKeySpec(secret, HMAC_ALGORITHM));
+                return mac;
+            } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    KeyedHashKeyNameScheme(byte[] secret, int nameBytes) {
+        if (nameBytes < MIN_NAME_BYTES || nameBytes > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("nameBytes must be between " + MIN_NAME_BYTES + " and " + MAX_NAME_BYTES);
+        }
+        this.secret = secret.clone();
+        this.nameBytes = nameBytes;
+    }
+
+    /**
+     * @return the scheme whose secret is derived from keys
+     */
+    static KeyedHashKeyNameScheme derive(AesCbcWithIntegrity.SecretKeys keys, int nameBytes) throws GeneralSecurityException {
+        final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+        mac.init(keys.getIntegrityKey());
+        final byte[] secret = mac.doFinal(DERIVATION_LABEL.getBytes());
+        try {
+            return new KeyedHashKeyNameScheme(secret, nameBytes);
+        } finally {
+            Arrays.fill(secret, (byte) 0);
+        }
+    }
+
+    /**
+     * @param stored the value written by {@link #serialize(String)}
+     * @return the wrapped secret, to decrypt before {@link #load(String, String)}
+     */
+    static String wrappedSecretOf(String stored) {
+        return stored.substring(stored.indexOf(FIELD_SEPARATOR) + 1);
+    }
+
+    /**
+     * @param stored    the value written by {@link #serialize(String)}
+     * @param unwrapped the secret from {@link #wrappedSecretOf(String)} once decrypted
+     */
+    static KeyedHashKeyNameScheme load(String stored, String unwrapped) {
+        final int nameBytes = Integer.parseInt(stored.substring(0, stored.indexOf(FIELD_SEPARATOR)));
+        return fromEncodedSecret(unwrapped, nameBytes);
+    }
+
+    /**
+     * @param encodedSecret from {@link #getEncodedSecret()}
+     */
+    static KeyedHashKeyNameScheme fromEncodedSecret(String encodedSecret, int nameBytes) {
+        final byte[] secret = Base64.decode(encodedSecret, AesCbcWithIntegrity.BASE64_FLAGS);
+        try {
+            return new KeyedHashKeyNameScheme(secret, nameBytes);
+        } finally {
+            Arrays.fill(secret, (byte) 0);
+        }
+    }
+
+    /**
+     * @param wrappedSecret {@link #getEncodedSecret()} encrypted under the file's current key
+     * @return the value to store in the pref file
+     */
+    String serialize(String wrappedSecret) {
+        return nameBytes + FIELD_SEPARATOR + wrappedSecret;
+    }
+
+    /**
+     * @return the secret as Base64, to be wrapped before it's stored
+     */
+    String getEncodedSecret() {
+        return Base64.encodeToString(secret, AesCbcWithIntegrity.BASE64_FLAGS);
+    }
+
+    public int getNameBytes() {
+        return nameBytes;
+    }
+
+    @Override
+    public String nameFor(String key) {
+        final Mac mac = macs.get();
+        try {
+            final byte[] hash = mac.doFinal(key.getBytes("UTF-8"));
+            return Base64.encodeToString(Arrays.copyOf(hash, nameBytes), AesCbcWithIntegrity.BASE64_FLAGS | Base64.NO_PADDING);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof KeyedHashKeyNameScheme)) {
+            return false;
+        }
+        final KeyedHashKeyNameScheme other = (KeyedHashKeyNameScheme) o;
+        return nameBytes == other.nameBytes && AesCbcWithIntegrity.constantTimeEq(secret, other.secret);
+    }
+
+    @Override
+    public int hashCode() {
+        return nameBytes;
+    }
+}
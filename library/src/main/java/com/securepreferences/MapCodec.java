@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The default {@link ObjectCodec}, for a map of String, Integer, Long, Float, Double, Boolean,
+ * byte[] and Set of String values. Each entry is its name, a one byte type and the value in
+ * binary, so there is no text to parse and no reflection.
+ * <pre>
+ * Map&lt;String, Object&gt; profile = new HashMap&lt;&gt;();
+ * profile.put("name", "Ada");
+ * profile.put("age", 36);
+ * securePrefs.edit().putObject("profile", profile, MapCodec.INSTANCE).apply();
+ * int age = (Integer) securePrefs.getObject("profile", MapCodec.INSTANCE).get("age");
+ * </pre>
+ */
+public final class MapCodec implements ObjectCodec<Map<String, ?>> {
+
+    public static final MapCodec INSTANCE = new MapCodec();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    //first byte, so the format can change later
+    private static final int VERSION = 1;
+
+    private static final byte NULL = 'n';
+    private static final byte STRING = 's';
+    private static final byte INT = 'i';
+    private static final byte LONG = 'l';
+    private static final byte FLOAT = 'f';
+    private static final byte DOUBLE = 'd';
+    private static final byte BOOLEAN = 'b';
+    private static final byte BYTES = 'x';
+    private static final byte STRING_SET = 'S';
+
+    private MapCodec() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if a value isn't one of the supported types
+     */
+    @Override
+    public void encode(Map<String, ?> value, DataOutput out) throws IOException {
+        out.writeByte(VERSION);
+        out.writeInt(value.size());
+        for (Map.Entry<String, ?> entry : value.entrySet()) {
+            writeString(entry.getKey(), out);
+            writeValue(entry.getKey(), entry.getValue(), out);
+        }
+    }
+
+    /**
+     * @return an unmodifiable map in the order it was encoded
+     */
+    @Override
+    public Map<String, ?> decode(DataInput in) throws IOException {
+        final int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unknown version " + version);
+        }
+        final int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("Bad size " + size);
+        }
+        final Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            final String name = readString(in);
+            map.put(name, readValue(in));
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    private static void writeValue(String name, Object value, DataOutput out) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString((String) value, out);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof byte[]) {
+            out.writeByte(BYTES);
+            out.writeInt(((byte[]) value).length);
+            out.write((byte[]) value);
+        } else if (value instanceof Set) {
+            out.writeByte(STRING_SET);
+            out.writeInt(((Set<?>) value).size());
+            for (Object member : (Set<?>) value) {
+                if (!(member instanceof String)) {
+                    throw new IllegalArgumentException(name + " has a member that isn't a String");
+                }
+                writeString((String) member, out);
+            }
+        } else {
+            throw new IllegalArgumentException(name + " is a " + value.getClass().getName());
+        }
+    }
+
+    private static Object readValue(DataInput in) throws IOException {
+        final byte type = in.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case FLOAT:
+                return in.readFloat();
+            case DOUBLE:
+                return in.readDouble();
+            case BOOLEAN:
+                return in.readBoolean();
+            case BYTES:
+                final byte[] bytes = new byte[readLength(in)];
+                in.readFully(bytes);
+                return bytes;
+            case STRING_SET:
+                final int size = readLength(in);
+                final Set<String> members = new HashSet<>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; i++) {
+                    members.add(readString(in));
+                }
+                return Collections.unmodifiableSet(members);
+            default:
+                throw new IOException("Unknown type " + type);
+        }
+    }
+
+    /**
+     * As length and UTF-8 bytes, writeUTF is limited to 64KB
+     */
+    private static void writeString(String value, DataOutput out) throws IOException {
+        final byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        final byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static int readLength(DataInput in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Bad length " + length);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,764 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * {@link SharedPreferences} stored as an append-only log of change records, for a file shared by
+ * several processes of an app.
+ * <p>
+ * Every commit appends one checksummed batch of changes while holding an exclusive OS file lock,
+ * so writers in different processes never overwrite each other's keys. Readers don't lock: they
+ * keep the log open and only read the batches appended since they last looked, so picking up
+ * another process's changes costs a stat plus the new records, never a reload of the whole file.
+ * Once the log holds several times more records than live entries it's compacted into a new
+ * file, and a marker left at the end of the old one tells readers to reopen.
+ * <p>
+ * {@link Editor#commit()} waits for the disk, {@link Editor#apply()} appends without waiting.
+ * Listeners hear about other processes' changes the next time this process reads or writes, or
+ * straight away on Android where the file is watched while listeners are registered.
+ * <p>
+ * The log and its lock file stay open until {@link #close()}.
+ * <p>
+ * Only depends on {@link Handler} and {@link FileObserver} from Android, so two JVM processes can
+ * share a file for testing.
+ */
+public final class MultiProcessSharedPreferences implements SharedPreferences {
+
+    private static final String TAG = MultiProcessSharedPreferences.class.getName();
+
+    //directory of the files opened with open(Context, String)
+    private static final String DIRECTORY = "securepreferences";
+    private static final String LOG_SUFFIX = ".log";
+
+    private static final int MAGIC = 0x53504c31; //"SPL1"
+    private static final int FILE_HEADER_LENGTH = 12; //magic, generation
+    private static final int BATCH_HEADER_LENGTH = 8; //payload length, crc
+
+    private static final byte OP_CLEAR = 0;
+    private static final byte OP_REMOVE = 1;
+    private static final byte OP_STRING = 2;
+    private static final byte OP_STRING_SET = 3;
+    private static final byte OP_INT = 4;
+    private static final byte OP_LONG = 5;
+    private static final byte OP_FLOAT = 6;
+    private static final byte OP_BOOLEAN = 7;
+    //last batch of a compacted file, the current data is in a new file
+    private static final byte OP_SUPERSEDED = 8;
+
+    //compact once the log holds this many times more records than live entries
+    private static final int COMPACT_RATIO = 4;
+    private static final int COMPACT_MIN_RECORDS = 256;
+
+    //file locks are held per process, writers within a process are serialised on these
+    private static final ConcurrentHashMap<String, Object> PROCESS_LOCKS = new ConcurrentHashMap<>();
+
+    private static final Object REMOVED = new Object();
+
+    private final File file;
+
+    private final Object processLock;
+
+    private final RandomAccessFile lockFile;
+
+    //guards log, generation, readOffset, recordCount and closed
+    private final ReentrantLock logLock = new ReentrantLock();
+    private RandomAccessFile log;
+    private long generation;
+    private long readOffset;
+    private int recordCount;
+    private boolean closed;
+
+    //replaced whole when the log is reopened, so readers never see it half loaded
+    private volatile ConcurrentHashMap<String, Object> values = new ConcurrentHashMap<>();
+
+    //held weakly like SharedPreferencesImpl, guarded by itself
+    private final Map<OnSharedPreferenceChangeListener, Object> listeners = new WeakHashMap<>();
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    //watches for other processes' writes while there are listeners, guarded by listeners
+    private FileObserver fileObserver;
+
+    /**
+     * @param file the log, created if it doesn't exist. A lock file is kept next to it.
+     */
+    public MultiProcessSharedPreferences(File file) throws IOException {
+        this.file = file.getAbsoluteFile();
+        final File parent = this.file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+        PROCESS_LOCKS.putIfAbsent(this.file.getPath(), new Object());
+        processLock = PROCESS_LOCKS.get(this.file.getPath());
+        lockFile = new RandomAccessFile(new File(this.file.getPath() + ".lock"), "rw");
+
+        logLock.lock();
+        try {
+            openLog(new ArrayList<String>());
+        } catch (IOException e) {
+            closeFiles();
+            throw e;
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    /**
+     * @param context should be ApplicationContext not Activity
+     * @param name    file name, the same in every process sharing it
+     * @throws IllegalStateException if the file can't be opened
+     */
+    public static MultiProcessSharedPreferences open(Context context, String name) {
+        final File directory = context.getDir(DIRECTORY, Context.MODE_PRIVATE);
+        try {
+            return new MultiProcessSharedPreferences(new File(directory, name + LOG_SUFFIX));
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open " + name, e);
+        }
+    }
+
+    /**
+     * Reads whatever other processes have written since the last read. Called before every read,
+     * it only costs a stat when nothing has changed.
+     */
+    public void reload() {
+        if (!logLock.tryLock()) {
+            //another thread is already catching up
+            return;
+        }
+        final List<String> changed = new ArrayList<>();
+        try {
+            if (closed) {
+                return;
+            }
+            catchUpOrReopen(changed);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + file, e);
+        } finally {
+            logLock.unlock();
+        }
+        notifyListeners(changed);
+    }
+
+    /**
+     * Closes the log and its lock file. Reads return the values as they were, writes fail.
+     */
+    public void close() {
+        synchronized (listeners) {
+            if (fileObserver != null) {
+                fileObserver.stopWatching();
+                fileObserver = null;
+            }
+        }
+        logLock.lock();
+        try {
+            if (!closed) {
+                closed = true;
+                closeFiles();
+            }
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    private void closeFiles() {
+        try {
+            if (log != null) {
+                log.close();
+            }
+            lockFile.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close " + file, e);
+        }
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        reload();
+        return new HashMap<>(values);
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        reload();
+        final String value = (String) values.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        reload();
+        final Set<String> value = (Set<String>) values.get(key);
+        return value != null ? value : defValues;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        reload();
+        final Integer value = (Integer) values.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        reload();
+        final Long value = (Long) values.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        reload();
+        final Float value = (Float) values.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        reload();
+        final Boolean value = (Boolean) values.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        reload();
+        return values.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new LogEditor();
+    }
+
+    /**
+     * Stores value unless a writer in any process has already stored one under key, checked and
+     * written under the file lock, so writers racing to create the same key agree on one value.
+     *
+     * @return the value stored under key afterwards, null if it couldn't be written
+     */
+    public String putStringIfAbsent(String key, String value) {
+        final byte[] payload = encode(Collections.<String, Object>singletonMap(key, value), false);
+        if (!write(payload, true, key)) {
+            return null;
+        }
+        final Object stored = values.get(key);
+        return stored instanceof String ? (String) stored : null;
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners) {
+            listeners.put(listener, Boolean.TRUE);
+            if (fileObserver == null) {
+                //the directory, as compaction replaces the file
+                fileObserver = new FileObserver(file.getParent(), FileObserver.MODIFY | FileObserver.MOVED_TO) {
+                    @Override
+                    public void onEvent(int event, String path) {
+                        if (file.getName().equals(path)) {
+                            reload();
+                        }
+                    }
+                };
+                fileObserver.startWatching();
+            }
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+            if (listeners.isEmpty() && fileObserver != null) {
+                fileObserver.stopWatching();
+                fileObserver = null;
+            }
+        }
+    }
+
+    /**
+     * Opens the current log and loads it from the start, creating it if it doesn't exist.
+     * Caller holds logLock.
+     *
+     * @param changed receives the keys that differ from what was loaded before
+     */
+    private void openLog(List<String> changed) throws IOException {
+        ConcurrentHashMap<String, Object> loaded;
+        do {
+            if (!file.exists()) {
+                synchronized (processLock) {
+                    final FileLock fileLock = lockFile.getChannel().lock();
+                    try {
+                        if (!file.exists()) {
+                            writeNewLog(0, null);
+                        }
+                    } finally {
+                        fileLock.release();
+                    }
+                }
+            }
+            if (log != null) {
+                log.close();
+            }
+            log = new RandomAccessFile(file, "rw");
+            if (log.readInt() != MAGIC) {
+                throw new IOException(file + " isn't a SecurePreferences log");
+            }
+            generation = log.readLong();
+            readOffset = FILE_HEADER_LENGTH;
+            recordCount = 0;
+            loaded = new ConcurrentHashMap<>();
+            //compacted again while loading, go round
+        } while (!catchUp(loaded, null));
+
+        final Map<String, Object> previous = values;
+        values = loaded;
+        for (Entry<String, Object> entry : previous.entrySet()) {
+            if (!entry.getValue().equals(loaded.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String key : loaded.keySet()) {
+            if (!previous.containsKey(key)) {
+                changed.add(key);
+            }
+        }
+    }
+
+    /**
+     * Applies the batches appended since readOffset. Stops at a batch that's incomplete, it's
+     * either still being written or was torn by a crash and will be dropped by the next writer.
+     * Caller holds logLock.
+     *
+     * @param target  the values to apply the batches to
+     * @param changed receives the changed keys, null when loading from scratch
+     * @return false if the log has been compacted into a new file that needs opening
+     */
+    private boolean catchUp(Map<String, Object> target, List<String> changed) throws IOException {
+        final CRC32 crc = new CRC32();
+        while (true) {
+            final long length = log.length();
+            if (readOffset + BATCH_HEADER_LENGTH > length) {
+                return true;
+            }
+            log.seek(readOffset);
+            final int payloadLength = log.readInt();
+            final long checksum = log.readInt() & 0xffffffffL;
+            if (payloadLength < 0 || readOffset + BATCH_HEADER_LENGTH + payloadLength > length) {
+                return true;
+            }
+            final byte[] payload = new byte[payloadLength];
+            log.readFully(payload);
+            crc.reset();
+            crc.update(payload);
+            if (crc.getValue() != checksum) {
+                return true;
+            }
+            readOffset += BATCH_HEADER_LENGTH + payloadLength;
+            if (!applyBatch(payload, target, changed)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return false if the batch says the log has been superseded by a compacted one
+     */
+    private boolean applyBatch(byte[] payload, Map<String, Object> target, List<String> changed) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final int records = in.readInt();
+        for (int i = 0; i < records; i++) {
+            final byte op = in.readByte();
+            if (op == OP_SUPERSEDED) {
+                return false;
+            }
+            recordCount++;
+            if (op == OP_CLEAR) {
+                if (changed != null) {
+                    changed.addAll(target.keySet());
+                }
+                target.clear();
+                continue;
+            }
+            final String key = readString(in);
+            final Object value;
+            switch (op) {
+                case OP_REMOVE:
+                    value = null;
+                    break;
+                case OP_STRING:
+                    value = readString(in);
+                    break;
+                case OP_STRING_SET:
+                    final int size = in.readInt();
+                    final Set<String> set = new HashSet<>(size);
+                    for (int j = 0; j < size; j++) {
+                        set.add(readString(in));
+                    }
+                    value = Collections.unmodifiableSet(set);
+                    break;
+                case OP_INT:
+                    value = in.readInt();
+                    break;
+                case OP_LONG:
+                    value = in.readLong();
+                    break;
+                case OP_FLOAT:
+                    value = in.readFloat();
+                    break;
+                case OP_BOOLEAN:
+                    value = in.readBoolean();
+                    break;
+                default:
+                    throw new IOException("Unknown record type " + op + " in " + file);
+            }
+            if (value == null) {
+                target.remove(key);
+            } else {
+                target.put(key, value);
+            }
+            if (changed != null) {
+                changed.add(key);
+            }
+        }
+        return true;
+    }
+
+    private void catchUpOrReopen(List<String> changed) throws IOException {
+        if (!catchUp(values, changed)) {
+            openLog(changed);
+        }
+    }
+
+    /**
+     * Appends a batch under the file lock, after catching up with other writers
+     *
+     * @param force wait for the disk
+     * @return false if it couldn't be written
+     */
+    private boolean write(byte[] payload, boolean force) {
+        return write(payload, force, null);
+    }
+
+    /**
+     * @param absentKey if not null, the batch is only appended if no value is stored under it
+     */
+    private boolean write(byte[] payload, boolean force, String absentKey) {
+        final List<String> changed = new ArrayList<>();
+        boolean written = false;
+        logLock.lock();
+        try {
+            if (closed) {
+                throw new IOException(file + " is closed");
+            }
+            synchronized (processLock) {
+                final FileLock fileLock = lockFile.getChannel().lock();
+                try {
+                    catchUpOrReopen(changed);
+                    //if another writer stored absentKey first, its value stands
+                    if (absentKey == null || !values.containsKey(absentKey)) {
+                        append(payload, force, changed);
+                    }
+                    written = true;
+                    if (recordCount > COMPACT_MIN_RECORDS && recordCount > COMPACT_RATIO * values.size()) {
+                        compact();
+                    }
+                } finally {
+                    fileLock.release();
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + file, e);
+        } finally {
+            logLock.unlock();
+        }
+        notifyListeners(changed);
+        return written;
+    }
+
+    /**
+     * Caller holds the file lock and logLock, and has caught up with the log.
+     */
+    private void append(byte[] payload, boolean force, List<String> changed) throws IOException {
+        //drop a batch torn by a writer that crashed
+        if (log.length() != readOffset) {
+            log.setLength(readOffset);
+        }
+        log.seek(readOffset);
+        log.write(frame(payload));
+        if (force) {
+            log.getChannel().force(false);
+        }
+        //applies the batch just written
+        catchUpOrReopen(changed);
+    }
+
+    /**
+     * Rewrites the live entries into a new file and points readers of the old one at it.
+     * Caller holds the file lock and logLock.
+     */
+    private void compact() throws IOException {
+        writeNewLog(generation + 1, values);
+        //after the rename, so a reader that reopens gets the new file
+        log.seek(log.length());
+        log.write(frame(encode(OP_SUPERSEDED)));
+        openLog(new ArrayList<String>());
+    }
+
+    /**
+     * Writes a log holding entries to a temp file and renames it into place
+     */
+    private void writeNewLog(long newGeneration, Map<String, Object> entries) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        final RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            out.writeLong(newGeneration);
+            if (entries != null && !entries.isEmpty()) {
+                out.write(frame(encode(entries, false)));
+            }
+            out.getChannel().force(false);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to rename " + tmp + " to " + file);
+        }
+    }
+
+    private void notifyListeners(final List<String> changed) {
+        if (changed.isEmpty()) {
+            return;
+        }
+        final List<OnSharedPreferenceChangeListener> toNotify;
+        synchronized (listeners) {
+            if (listeners.isEmpty()) {
+                return;
+            }
+            toNotify = new ArrayList<>(listeners.keySet());
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (String key : changed) {
+                    for (OnSharedPreferenceChangeListener listener : toNotify) {
+                        listener.onSharedPreferenceChanged(MultiProcessSharedPreferences.this, key);
+                    }
+                }
+            }
+        });
+    }
+
+    private static byte[] frame(byte[] payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(BATCH_HEADER_LENGTH + payload.length);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+        } catch (IOException e) {
+            //can't happen writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encode(byte op) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(1);
+            out.writeByte(op);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param changes values to put, or {@link #REMOVED}
+     * @param clear   clear everything before applying changes
+     */
+    @SuppressWarnings("unchecked")
+    private static byte[] encode(Map<String, Object> changes, boolean clear) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(changes.size() + (clear ? 1 : 0));
+            if (clear) {
+                out.writeByte(OP_CLEAR);
+            }
+            for (Entry<String, Object> entry : changes.entrySet()) {
+                final Object value = entry.getValue();
+                if (value == REMOVED) {
+                    out.writeByte(OP_REMOVE);
+                    writeString(out, entry.getKey());
+                } else if (value instanceof String) {
+                    out.writeByte(OP_STRING);
+                    writeString(out, entry.getKey());
+                    writeString(out, (String) value);
+                } else if (value instanceof Set) {
+                    final Set<String> set = (Set<String>) value;
+                    out.writeByte(OP_STRING_SET);
+                    writeString(out, entry.getKey());
+                    out.writeInt(set.size());
+                    for (String member : set) {
+                        writeString(out, member);
+                    }
+                } else if (value instanceof Integer) {
+                    out.writeByte(OP_INT);
+                    writeString(out, entry.getKey());
+                    out.writeInt((Integer) value);
+                } else if (value instanceof Long) {
+                    out.writeByte(OP_LONG);
+                    writeString(out, entry.getKey());
+                    out.writeLong((Long) value);
+                } else if (value instanceof Float) {
+                    out.writeByte(OP_FLOAT);
+                    writeString(out, entry.getKey());
+                    out.writeFloat((Float) value);
+                } else {
+                    out.writeByte(OP_BOOLEAN);
+                    writeString(out, entry.getKey());
+                    out.writeBoolean((Boolean) value);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    //not writeUTF, which is limited to 64KB
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        final byte[] utf8 = value.getBytes("UTF-8");
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final byte[] utf8 = new byte[in.readInt()];
+        in.readFully(utf8);
+        return new String(utf8, "UTF-8");
+    }
+
+    /**
+     * Collects changes and appends them as one batch
+     */
+    private final class LogEditor implements Editor {
+
+        //guarded by this
+        private final Map<String, Object> changes = new HashMap<>();
+        private boolean clear;
+
+        @Override
+        public synchronized Editor putString(String key, String value) {
+            changes.put(key, value != null ? value : REMOVED);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putStringSet(String key, Set<String> values) {
+            changes.put(key, values != null ? new HashSet<>(values) : REMOVED);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putInt(String key, int value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putLong(String key, long value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putFloat(String key, float value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putBoolean(String key, boolean value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor remove(String key) {
+            changes.put(key, REMOVED);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor clear() {
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return write(drain(), true);
+        }
+
+        @Override
+        public void apply() {
+            write(drain(), false);
+        }
+
+        private synchronized byte[] drain() {
+            final byte[] payload = encode(changes, clear);
+            changes.clear();
+            clear = false;
+            return payload;
+        }
+    }
+}
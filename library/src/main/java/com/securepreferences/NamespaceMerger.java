@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Merges files that modules wrote on their own into namespaces of one file, see
+ * {@link SecurePreferences#namespace(String)}, e.g.
+ * <pre>
+ * Map&lt;String, SecurePreferences&gt; modules = new HashMap&lt;&gt;();
+ * modules.put("billing", new SecurePreferences(context, billingPassword, "billing.xml"));
+ * modules.put("sync", new SecurePreferences(context, syncPassword, "sync.xml"));
+ * NamespaceMerger.merge(shared, modules);
+ * //once merged, read them from shared.namespace("billing") and clear the old files
+ * </pre>
+ * Keys don't need to be listed, a namespace identifies keys by the name a file of their own
+ * gives them. Each value is decrypted with its module's keys and encrypted again with the shared
+ * file's current key, all in one commit, so a merge that fails leaves the shared file as it was.
+ * Values already in a namespace are replaced by the module's value for the same key. Times to
+ * live aren't carried over.
+ */
+public final class NamespaceMerger {
+
+    private NamespaceMerger() {
+    }
+
+    /**
+     * Merges one module's file into a namespace of target
+     *
+     * @return number of values merged
+     * @see #merge(SecurePreferences, Map)
+     */
+    public static int merge(SecurePreferences target, String namespace, SecurePreferences module) throws IOException {
+        return merge(target, Collections.singletonMap(namespace, module));
+    }
+
+    /**
+     * @param target  the shared file
+     * @param modules each module's file by the namespace to merge it into. The files must still
+     *                name keys with {@link KeyNameScheme#SHA_256}, migrate any that don't back first.
+     * @return number of values merged
+     * @throws IOException if the merged values couldn't be written, target is unchanged
+     */
+    public static int merge(SecurePreferences target, Map<String, SecurePreferences> modules) throws IOException {
+        for (Entry<String, SecurePreferences> module : modules.entrySet()) {
+            if (module.getValue() == target) {
+                throw new IllegalArgumentException("Can't merge a file into itself");
+            }
+            if (module.getValue().getKeyNameScheme() != KeyNameScheme.SHA_256) {
+                throw new IllegalArgumentException(module.getKey() + " doesn't name keys with SHA-256, the namespace couldn't find them");
+            }
+        }
+        synchronized (target.getWriteLock()) {
+            final SecurePreferences.Editor editor = target.edit();
+            int merged = 0;
+            for (Entry<String, SecurePreferences> module : modules.entrySet()) {
+                final PreferenceNamespace.Editor namespaceEditor = target.namespace(module.getKey()).edit(editor);
+                for (Entry<String, Object> value : module.getValue().decryptAllValues().entrySet()) {
+                    namespaceEditor.putDecrypted(value.getKey(), value.getValue());
+                    merged++;
+                }
+                namespaceEditor.updateMembers();
+            }
+            if (!editor.commit()) {
+                throw new IOException("Couldn't write the merged values");
+            }
+            return merged;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Turns an object into the bytes stored by
+ * {@link SecurePreferences.Editor#putObject(String, Object, ObjectCodec)} and back. The bytes are
+ * encrypted as one value, so an object with many fields costs one decryption to read, e.g.
+ * <pre>
+ * static final ObjectCodec&lt;Profile&gt; PROFILE = new ObjectCodec&lt;Profile&gt;() {
+ *     public void encode(Profile profile, DataOutput out) throws IOException {
+ *         out.writeUTF(profile.name);
+ *         out.writeInt(profile.age);
+ *     }
+ *
+ *     public Profile decode(DataInput in) throws IOException {
+ *         return new Profile(in.readUTF(), in.readInt());
+ *     }
+ * };
+ * </pre>
+ * {@link MapCodec} stores a map of plain values without writing a codec.
+ */
+public interface ObjectCodec<T> {
+
+    /**
+     * @param value not null
+     */
+    void encode(T value, DataOutput out) throws IOException;
+
+    /**
+     * @param in the bytes written by {@link #encode(Object, DataOutput)}
+     * @return the object, which reads return as it is until the value changes so it shouldn't be
+     * modified
+     */
+    T decode(DataInput in) throws IOException;
+}
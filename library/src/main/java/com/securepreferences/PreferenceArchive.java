@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The backup format of {@link SecurePreferences#exportTo(OutputStream, AesCbcWithIntegrity.SecretKeys, boolean)}.
+ * <p>
+ * A short plaintext header, {@code magic, version, archive id}, followed by chunks of about
+ * {@link #CHUNK_BYTES} each encrypted and MACed under the backup key with
+ * {@link AesCbcWithIntegrity}. Each chunk starts with the archive id and its index, so chunks
+ * can't be reordered, dropped or swapped in from another archive, and the last holds an end
+ * record so a truncated archive is detected. Records never span chunks, so only one chunk is
+ * held in memory at a time whether writing or reading.
+ */
+final class PreferenceArchive {
+
+    private static final int MAGIC = 0x53504241;
+    private static final int VERSION = 1;
+
+    //chunks are written once they reach this size
+    static final int CHUNK_BYTES = 64 * 1024;
+
+    //a larger chunk can only come from a corrupt archive, refuse it rather than allocate it
+    private static final int MAX_CHUNK_BYTES = 64 * 1024 * 1024;
+
+    private static final int ARCHIVE_ID_BYTES = 16;
+    private static final int IV_BYTES = 16;
+    private static final int MAC_BYTES = 32;
+
+    private static final byte RECORD_END = 0;
+    //a key of the exporting store, for values kept as ciphertext
+    private static final byte RECORD_KEY = 1;
+    //the secret of a KeyedHashKeyNameScheme
+    private static final byte RECORD_KEY_NAMES = 2;
+    private static final byte RECORD_VALUE = 3;
+    private static final byte RECORD_STRING_SET = 4;
+    //a plain value starting with its TypeTag
+    private static final byte RECORD_TYPED_VALUE = 5;
+
+    private PreferenceArchive() {
+    }
+
+    /**
+     * A value read from an archive, under its hashed name
+     */
+    static final class Entry {
+        final String name;
+        //the value is ciphertext of the exporting store rather than plain text
+        final boolean encrypted;
+        //the plain value starts with a TypeTag
+        final boolean typed;
+        //plain bytes or the UTF-8 ciphertext, null for a StringSet
+        final byte[] value;
+        //plain or encrypted members, null unless a StringSet
+        final List<String> members;
+
+        Entry(String name, boolean encrypted, boolean typed, byte[] value, List<String> members) {
+            this.name = name;
+            this.encrypted = encrypted;
+            this.typed = typed;
+            this.value = value;
+            this.members = members;
+        }
+    }
+
+    /**
+     * Sized for a chunk plus the record that overflows it, so it rarely grows
+     */
+    private static final class ChunkBuffer extends WipeableBuffer {
+        ChunkBuffer() {
+            super(CHUNK_BYTES + CHUNK_BYTES / 4);
+        }
+    }
+
+    static final class Writer {
+        private final DataOutputStream out;
+        private final AesCbcWithIntegrity.SecretKeys backupKeys;
+        private final byte[] archiveId = new byte[ARCHIVE_ID_BYTES];
+        private final ChunkBuffer chunk = new ChunkBuffer();
+        private final DataOutputStream records = new DataOutputStream(chunk);
+        private int chunkIndex;
+        private long bytesWritten;
+
+        Writer(OutputStream out, AesCbcWithIntegrity.SecretKeys backupKeys) throws IOException {
+            this.out = new DataOutputStream(out);
+            this.backupKeys = backupKeys;
+            new SecureRandom().nextBytes(archiveId);
+            this.out.writeInt(MAGIC);
+            this.out.writeInt(VERSION);
+            this.out.write(archiveId);
+            bytesWritten = 8 + ARCHIVE_ID_BYTES;
+            startChunk();
+        }
+
+        /**
+         * @param current true for the key the store writes with
+         */
+        void writeKey(int keyId, AesCbcWithIntegrity.SecretKeys keys, boolean current) throws IOException, GeneralSecurityException {
+            records.writeByte(RECORD_KEY);
+            records.writeInt(keyId);
+            records.writeBoolean(current);
+            records.writeUTF(keys.toString());
+            endRecord();
+        }
+
+        void writeKeyNames(KeyedHashKeyNameScheme scheme) throws IOException, GeneralSecurityException {
+            records.writeByte(RECORD_KEY_NAMES);
+            records.writeInt(scheme.getNameBytes());
+            records.writeUTF(scheme.getEncodedSecret());
+            endRecord();
+        }
+
+        /**
+         * @param typed a plain value starts with its {@link TypeTag}, ciphertext says so itself
+         */
+        void writeValue(String name, boolean encrypted, boolean typed, byte[] value) throws IOException, GeneralSecurityException {
+            records.writeByte(!encrypted && typed ? RECORD_TYPED_VALUE : RECORD_VALUE);
+            records.writeUTF(name);
+            records.writeBoolean(encrypted);
+            records.writeInt(value.length);
+            records.write(value);
+            endRecord();
+        }
+
+        void writeStringSet(String name, boolean encrypted, Collection<String> members) throws IOException, GeneralSecurityException {
+            records.writeByte(RECORD_STRING_SET);
+            records.writeUTF(name);
+            records.writeBoolean(encrypted);
+            records.writeInt(members.size());
+            for (String member : members) {
+                //not writeUTF, a plain member may be longer than 64k
+                final byte[] bytes = member.getBytes("UTF-8");
+                records.writeInt(bytes.length);
+                records.write(bytes);
+            }
+            endRecord();
+        }
+
+        /**
+         * Writes the end record and the last chunk. The output stream is flushed but not closed.
+         */
+        void finish() throws IOException, GeneralSecurityException {
+            records.writeByte(RECORD_END);
+            writeChunk();
+            out.flush();
+        }
+
+        long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        private void startChunk() throws IOException {
+            records.write(archiveId);
+            records.writeInt(chunkIndex);
+        }
+
+        private void endRecord() throws IOException, GeneralSecurityException {
+            if (chunk.size() >= CHUNK_BYTES) {
+                writeChunk();
+                startChunk();
+            }
+        }
+
+        private void writeChunk() throws IOException, GeneralSecurityException {
+            final byte[] plain = chunk.toByteArray();
+            chunk.wipe();
+            final AesCbcWithIntegrity.CipherTextIvMac civ;
+            try {
+                civ = AesCbcWithIntegrity.encrypt(plain, backupKeys);
+            } finally {
+                Arrays.fill(plain, (byte) 0);
+            }
+            final byte[] cipherText = civ.getCipherText();
+            out.writeInt(cipherText.length);
+            out.write(civ.getIv());
+            out.write(civ.getMac());
+            out.write(cipherText);
+            bytesWritten += 4 + IV_BYTES + MAC_BYTES + cipherText.length;
+            chunkIndex++;
+        }
+    }
+
+    static final class Reader {
+        private final DataInputStream in;
+        private final AesCbcWithIntegrity.SecretKeys backupKeys;
+        private final byte[] archiveId = new byte[ARCHIVE_ID_BYTES];
+        private final Map<Integer, AesCbcWithIntegrity.SecretKeys> keys = new HashMap<>();
+        private int currentKeyId = KeyRing.NO_KEY_ID;
+        private KeyedHashKeyNameScheme keyNameScheme;
+        private int chunkIndex;
+        private boolean ended;
+        private long bytesRead;
+
+        Reader(InputStream in, AesCbcWithIntegrity.SecretKeys backupKeys) throws IOException {
+            this.in = new DataInputStream(in);
+            this.backupKeys = backupKeys;
+            try {
+                if (this.in.readInt() != MAGIC) {
+                    throw new IOException("Not a SecurePreferences backup");
+                }
+                final int version = this.in.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported backup version " + version);
+                }
+                this.in.readFully(archiveId);
+            } catch (EOFException e) {
+                throw new IOException("Not a SecurePreferences backup", e);
+            }
+            bytesRead = 8 + ARCHIVE_ID_BYTES;
+        }
+
+        /**
+         * @return the entries of the next chunk, possibly none, or null once the end record has
+         * been read
+         * @throws GeneralSecurityException if the archive is not from the backup key or has been
+         *                                  tampered with
+         */
+        List<Entry> nextEntries() throws IOException, GeneralSecurityException {
+            if (ended) {
+                return null;
+            }
+            final byte[] plain = readChunk();
+            try {
+                final DataInputStream chunk = new DataInputStream(new ByteArrayInputStream(plain));
+                final byte[] chunkArchiveId = new byte[ARCHIVE_ID_BYTES];
+                chunk.readFully(chunkArchiveId);
+                if (!Arrays.equals(archiveId, chunkArchiveId) || chunk.readInt() != chunkIndex) {
+                    throw new GeneralSecurityException("Backup chunks out of order or from another backup");
+                }
+                chunkIndex++;
+                return readRecords(chunk);
+            } finally {
+                Arrays.fill(plain, (byte) 0);
+            }
+        }
+
+        /**
+         * @return the exporting store's keys if values were kept as ciphertext, otherwise null
+         */
+        KeyRing getKeyRing() {
+            if (keys.isEmpty()) {
+                return null;
+            }
+            final Map<Integer, AesCbcWithIntegrity.SecretKeys> retired = new HashMap<>(keys);
+            final AesCbcWithIntegrity.SecretKeys current = retired.remove(currentKeyId);
+            return new KeyRing(currentKeyId, current, retired);
+        }
+
+        /**
+         * @return the exporting store's key name scheme, null if it was SHA-256
+         */
+        KeyedHashKeyNameScheme getKeyNameScheme() {
+            return keyNameScheme;
+        }
+
+        long getBytesRead() {
+            return bytesRead;
+        }
+
+        private byte[] readChunk() throws IOException, GeneralSecurityException {
+            final byte[] iv = new byte[IV_BYTES];
+            final byte[] mac = new byte[MAC_BYTES];
+            final byte[] cipherText;
+            try {
+                final int length = in.readInt();
+                if (length <= 0 || length > MAX_CHUNK_BYTES) {
+                    throw new IOException("Corrupt backup, chunk of " + length + " bytes");
+                }
+                in.readFully(iv);
+                in.readFully(mac);
+                cipherText = new byte[length];
+                in.readFully(cipherText);
+            } catch (EOFException e) {
+                throw new IOException("Backup is truncated", e);
+            }
+            bytesRead += 4 + IV_BYTES + MAC_BYTES + cipherText.length;
+            return AesCbcWithIntegrity.decrypt(new AesCbcWithIntegrity.CipherTextIvMac(cipherText, iv, mac), backupKeys);
+        }
+
+        private List<Entry> readRecords(DataInputStream chunk) throws IOException, GeneralSecurityException {
+            final List<Entry> entries = new ArrayList<>();
+            while (chunk.available() > 0) {
+                final byte type = chunk.readByte();
+                switch (type) {
+                    case RECORD_END:
+                        ended = true;
+                        return entries;
+                    case RECORD_KEY:
+                        final int keyId = chunk.readInt();
+                        if (chunk.readBoolean()) {
+                            currentKeyId = keyId;
+                        }
+                        keys.put(keyId, AesCbcWithIntegrity.keys(chunk.readUTF()));
+                        break;
+                    case RECORD_KEY_NAMES:
+                        final int nameBytes = chunk.readInt();
+                        keyNameScheme = KeyedHashKeyNameScheme.fromEncodedSecret(chunk.readUTF(), nameBytes);
+                        break;
+                    case RECORD_VALUE:
+                    case RECORD_TYPED_VALUE:
+                        final String name = chunk.readUTF();
+                        final boolean encrypted = chunk.readBoolean();
+                        entries.add(new Entry(name, encrypted, type == RECORD_TYPED_VALUE, readBytes(chunk), null));
+                        break;
+                    case RECORD_STRING_SET:
+                        final String setName = chunk.readUTF();
+                        final boolean setEncrypted = chunk.readBoolean();
+                        final int count = chunk.readInt();
+                        final List<String> members = new ArrayList<>(Math.min(count, chunk.available()));
+                        for (int i = 0; i < count; i++) {
+                            members.add(new String(readBytes(chunk), "UTF-8"));
+                        }
+                        entries.add(new Entry(setName, setEncrypted, false, null, Collections.unmodifiableList(members)));
+                        break;
+                    default:
+                        throw new IOException("Corrupt backup, unknown record " + type);
+                }
+            }
+            return entries;
+        }
+
+        private static byte[] readBytes(DataInputStream chunk) throws IOException {
+            final int length = chunk.readInt();
+            if (length < 0 || length > chunk.available()) {
+                throw new IOException("Corrupt backup, value of " + length + " bytes");
+            }
+            final byte[] bytes = new byte[length];
+            chunk.readFully(bytes);
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The keys to read with {@link SecurePreferences#getValues(PreferenceBatch)}, each with its type
+ * and default, e.g.
+ * <pre>
+ * PreferenceBatch.Values values = securePrefs.getValues(new PreferenceBatch()
+ *         .addString("name", "")
+ *         .addInt("age", 0));
+ * String name = values.getString("name");
+ * </pre>
+ * A batch can be kept and read again, it isn't changed by reading.
+ */
+public final class PreferenceBatch {
+
+    /**
+     * A requested key
+     */
+    static final class Request {
+        final Class<?> type;
+        final Object defaultValue;
+        //null if the key has to be hashed when read
+        final HashedKey hashedKey;
+
+        Request(Class<?> type, Object defaultValue, HashedKey hashedKey) {
+            this.type = type;
+            this.defaultValue = defaultValue;
+            this.hashedKey = hashedKey;
+        }
+    }
+
+    private final Map<String, Request> requests = new LinkedHashMap<>();
+
+    public PreferenceBatch addString(String key, String defaultValue) {
+        requests.put(key, new Request(String.class, defaultValue, null));
+        return this;
+    }
+
+    public PreferenceBatch addStringSet(String key, Set<String> defaultValues) {
+        requests.put(key, new Request(Set.class, defaultValues, null));
+        return this;
+    }
+
+    public PreferenceBatch addInt(String key, int defaultValue) {
+        requests.put(key, new Request(Integer.class, defaultValue, null));
+        return this;
+    }
+
+    public PreferenceBatch addLong(String key, long defaultValue) {
+        requests.put(key, new Request(Long.class, defaultValue, null));
+        return this;
+    }
+
+    public PreferenceBatch addFloat(String key, float defaultValue) {
+        requests.put(key, new Request(Float.class, defaultValue, null));
+        return this;
+    }
+
+    public PreferenceBatch addBoolean(String key, boolean defaultValue) {
+        requests.put(key, new Request(Boolean.class, defaultValue, null));
+        return this;
+    }
+
+    /**
+     * Adds a key whose name was hashed ahead of time, see {@link HashedKey}. Read its value back
+     * by {@link HashedKey#getKey()}.
+     */
+    public PreferenceBatch addString(HashedKey key, String defaultValue) {
+        requests.put(key.key, new Request(String.class, defaultValue, key));
+        return this;
+    }
+
+    public PreferenceBatch addStringSet(HashedKey key, Set<String> defaultValues) {
+        requests.put(key.key, new Request(Set.class, defaultValues, key));
+        return this;
+    }
+
+    public PreferenceBatch addInt(HashedKey key, int defaultValue) {
+        requests.put(key.key, new Request(Integer.class, defaultValue, key));
+        return this;
+    }
+
+    public PreferenceBatch addLong(HashedKey key, long defaultValue) {
+        requests.put(key.key, new Request(Long.class, defaultValue, key));
+        return this;
+    }
+
+    public PreferenceBatch addFloat(HashedKey key, float defaultValue) {
+        requests.put(key.key, new Request(Float.class, defaultValue, key));
+        return this;
+    }
+
+    public PreferenceBatch addBoolean(HashedKey key, boolean defaultValue) {
+        requests.put(key.key, new Request(Boolean.class, defaultValue, key));
+        return this;
+    }
+
+    public int size() {
+        return requests.size();
+    }
+
+    Map<String, Request> getRequests() {
+        return Collections.unmodifiableMap(requests);
+    }
+
+    /**
+     * The result of reading a batch. Each getter returns the stored value, or the default given
+     * when the key was added if there isn't one.
+     */
+    public static final class Values {
+
+        private final Map<String, Object> values;
+
+        Values(Map<String, Object> values) {
+            this.values = new HashMap<>(values);
+        }
+
+        public String getString(String key) {
+            return (String) get(key);
+        }
+
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(String key) {
+            return (Set<String>) get(key);
+        }
+
+        public int getInt(String key) {
+            return (Integer) get(key);
+        }
+
+        public long getLong(String key) {
+            return (Long) get(key);
+        }
+
+        public float getFloat(String key) {
+            return (Float) get(key);
+        }
+
+        public boolean getBoolean(String key) {
+            return (Boolean) get(key);
+        }
+
+        /**
+         * @return the decrypted values and defaults, by key
+         */
+        public Map<String, ?> asMap() {
+            return Collections.unmodifiableMap(values);
+        }
+
+        private Object get(String key) {
+            if (!values.containsKey(key)) {
+                throw new IllegalArgumentException(key + " wasn't in the batch");
+            }
+            return values.get(key);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an {@link AsyncSecurePreferences} call. Block for it with {@link #get()} off the
+ * main thread, or have it delivered on the main thread with {@link #whenDone(Callback)}.
+ *
+ * @param <T> type of the result
+ */
+public final class PreferenceFuture<T> implements Future<T> {
+
+    /**
+     * Receives the outcome of a {@link PreferenceFuture}
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+
+        /**
+         * @param error what the call failed with, a {@link CancellationException} if it was
+         *              cancelled
+         */
+        void onError(Exception error);
+    }
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    private final CountDownLatch completed = new CountDownLatch(1);
+
+    //called on the main thread, or directly for the ones added by onComplete
+    private final List<Callback<? super T>> mainThreadCallbacks = new ArrayList<>();
+    private final List<Callback<? super T>> directCallbacks = new ArrayList<>();
+
+    private boolean done;
+    private T result;
+    private Exception error;
+
+    //the queued or running work, cancelled along with this
+    private volatile Future<?> task;
+
+    PreferenceFuture() {
+    }
+
+    void setTask(Future<?> task) {
+        this.task = task;
+        if (isCancelled()) {
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * @param callback called once on the main thread with the result or error, straight away
+     *                 (posted) if it's already done
+     * @return this
+     */
+    public PreferenceFuture<T> whenDone(Callback<? super T> callback) {
+        synchronized (this) {
+            if (!done) {
+                mainThreadCallbacks.add(callback);
+                return this;
+            }
+        }
+        post(callback);
+        return this;
+    }
+
+    /**
+     * Like {@link #whenDone(Callback)} but called on the thread that completes it, for chaining
+     * results inside the library
+     */
+    void onComplete(Callback<? super T> callback) {
+        synchronized (this) {
+            if (!done) {
+                directCallbacks.add(callback);
+                return;
+            }
+        }
+        deliver(callback);
+    }
+
+    void complete(T value) {
+        finish(value, null);
+    }
+
+    void fail(Exception e) {
+        finish(null, e);
+    }
+
+    /**
+     * Cancelling a bulk call such as {@link AsyncSecurePreferences#changePasswordAsync} stops it
+     * before it commits anything, cancelling a batched read only cancels this caller's result.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!finish(null, new CancellationException())) {
+            return false;
+        }
+        final Future<?> current = task;
+        if (current != null) {
+            current.cancel(mayInterruptIfRunning);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return error instanceof CancellationException;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        completed.await();
+        return getNow();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!completed.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getNow();
+    }
+
+    private synchronized T getNow() throws ExecutionException {
+        if (error instanceof CancellationException) {
+            throw (CancellationException) error;
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+
+    /**
+     * @return false if it was already done, the first outcome wins
+     */
+    private boolean finish(T value, Exception e) {
+        final List<Callback<? super T>> direct;
+        final List<Callback<? super T>> mainThread;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            done = true;
+            result = value;
+            error = e;
+            direct = new ArrayList<>(directCallbacks);
+            mainThread = new ArrayList<>(mainThreadCallbacks);
+            directCallbacks.clear();
+            mainThreadCallbacks.clear();
+        }
+        completed.countDown();
+        for (Callback<? super T> callback : direct) {
+            deliver(callback);
+        }
+        for (Callback<? super T> callback : mainThread) {
+            post(callback);
+        }
+        return true;
+    }
+
+    private void post(final Callback<? super T> callback) {
+        MAIN_HANDLER.post(new Runnable() {
+            @Override
+            public void run() {
+                deliver(callback);
+            }
+        });
+    }
+
+    private void deliver(Callback<? super T> callback) {
+        final T value;
+        final Exception e;
+        synchronized (this) {
+            value = result;
+            e = error;
+        }
+        if (e != null) {
+            callback.onError(e);
+        } else {
+            callback.onResult(value);
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Moves the entries of a plaintext {@link SharedPreferences} file into a {@link SecurePreferences}.
+ * <p>
+ * Entries are encrypted in parallel batches and each batch is written to the target in a single
+ * commit, together with a checkpoint. If the process is killed part way through, calling
+ * {@link #migrate()} again carries on after the last committed batch, migrating again any earlier
+ * entry that was added or changed in the source meanwhile. Value types, including
+ * StringSets, are preserved. This does disk IO and crypto so don't call it on the main thread.
+ * <pre>
+ * PreferenceMigrator migrator = new PreferenceMigrator(legacyPrefs, securePrefs, "legacy_prefs");
+ * migrator.setRemoveSourceKeys(true);
+ * PreferenceMigrator.Report report = migrator.migrate();
+ * </pre>
+ */
+public class PreferenceMigrator {
+
+    private static final String TAG = PreferenceMigrator.class.getName();
+
+    //the checkpoints for all migrations into a file are stored (unencrypted) under this name
+    static final String CHECKPOINT_PREF_KEY = "com.securepreferences.migrationCheckpoint";
+
+    private static final String CHECKPOINT_SEPARATOR = ";";
+    private static final String CHECKPOINT_FIELD_SEPARATOR = " ";
+    private static final String CHECKPOINT_DONE = "done";
+
+    public static final int DEFAULT_BATCH_SIZE = 200;
+
+    private final SharedPreferences source;
+
+    private final SecurePreferences target;
+
+    //hashed so that the checkpoint doesn't leak the migration or key names
+    private final String migrationIdHash;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private boolean removeSourceKeys;
+
+    /**
+     * @param source      plaintext preferences to read from
+     * @param target      where the encrypted entries are written
+     * @param migrationId stable name for this migration, e.g. the source file name. Used to find
+     *                    the checkpoint when resuming.
+     */
+    public PreferenceMigrator(SharedPreferences source, SecurePreferences target, String migrationId) {
+        if (TextUtils.isEmpty(migrationId)) {
+            throw new IllegalArgumentException("migrationId is required");
+        }
+        this.source = source;
+        this.target = target;
+        this.migrationIdHash = SecurePreferences.hashPrefKey(migrationId);
+    }
+
+    /**
+     * @param batchSize number of entries written to the target per commit (and per checkpoint)
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be > 0");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param parallelism number of threads used to encrypt each batch, defaults to the core count
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be > 0");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @param removeSourceKeys true to remove each entry from the source once it's committed to
+     *                         the target
+     */
+    public void setRemoveSourceKeys(boolean removeSourceKeys) {
+        this.removeSourceKeys = removeSourceKeys;
+    }
+
+    /**
+     * @return true if this migration has already run to completion
+     */
+    public boolean isComplete() {
+        return CHECKPOINT_DONE.equals(readCheckpoints().get(migrationIdHash));
+    }
+
+    /**
+     * Forgets the checkpoint so the next {@link #migrate()} starts from the beginning
+     */
+    public void reset() {
+        Map<String, String> checkpoints = readCheckpoints();
+        checkpoints.remove(migrationIdHash);
+        target.edit().putUnencryptedString(CHECKPOINT_PREF_KEY, formatCheckpoints(checkpoints)).commit();
+    }
+
+    /**
+     * Runs (or resumes) the migration. Returns straight away if it has already completed.
+     *
+     * @return counts and throughput for this run
+     */
+    public Report migrate() {
+        final long start = SystemClock.elapsedRealtime();
+        final Report report = new Report();
+
+        final Map<String, String> checkpoints = readCheckpoints();
+        final String checkpoint = checkpoints.get(migrationIdHash);
+        if (CHECKPOINT_DONE.equals(checkpoint)) {
+            report.elapsedMillis = SystemClock.elapsedRealtime() - start;
+            return report;
+        }
+
+        //order by hashed key so the checkpoint is a position that doesn't reveal key names
+        final Map<String, ?> sourceEntries = source.getAll();
+        final List<String[]> pending = new ArrayList<>(sourceEntries.size());
+        final List<String> alreadyMigrated = new ArrayList<>();
+        for (String key : sourceEntries.keySet()) {
+            String hashedKey = target.hashKey(key);
+            if (checkpoint != null && hashedKey.compareTo(checkpoint) <= 0 && isMigrated(hashedKey, sourceEntries.get(key))) {
+                alreadyMigrated.add(key);
+            } else {
+                pending.add(new String[]{hashedKey, key});
+            }
+        }
+        Collections.sort(pending, new Comparator<String[]>() {
+            @Override
+            public int compare(String[] lhs, String[] rhs) {
+                return lhs[0].compareTo(rhs[0]);
+            }
+        });
+        report.entriesSkipped = alreadyMigrated.size();
+
+        //a previous run may have died between committing the target and cleaning the source
+        if (removeSourceKeys && !alreadyMigrated.isEmpty()) {
+            removeFromSource(alreadyMigrated);
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            for (int from = 0; from < pending.size(); from += batchSize) {
+                final List<String[]> batch = pending.subList(from, Math.min(from + batchSize, pending.size()));
+                final Map<String, Object> encrypted = encryptBatch(executor, batch, sourceEntries);
+
+                final String lastHashedKey = batch.get(batch.size() - 1)[0];
+                checkpoints.put(migrationIdHash, lastHashedKey);
+
+                SecurePreferences.Editor editor = target.edit();
+                for (Entry<String, Object> entry : encrypted.entrySet()) {
+                    editor.putEncryptedValue(entry.getKey(), entry.getValue());
+                }
+                editor.putUnencryptedString(CHECKPOINT_PREF_KEY, formatCheckpoints(checkpoints));
+                if (!editor.commit()) {
+                    throw new IllegalStateException("Failed to commit migration batch, re-run migrate() to resume");
+                }
+
+                if (removeSourceKeys) {
+                    List<String> keys = new ArrayList<>(batch.size());
+                    for (String[] hashedAndKey : batch) {
+                        keys.add(hashedAndKey[1]);
+                    }
+                    removeFromSource(keys);
+                }
+                report.entriesMigrated += encrypted.size();
+                report.batches++;
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        checkpoints.put(migrationIdHash, CHECKPOINT_DONE);
+        target.edit().putUnencryptedString(CHECKPOINT_PREF_KEY, formatCheckpoints(checkpoints)).commit();
+
+        report.elapsedMillis = SystemClock.elapsedRealtime() - start;
+        if (SecurePreferences.isLoggingEnabled()) {
+            Log.d(TAG, report.toString());
+        }
+        return report;
+    }
+
+    /**
+     * @return true if the target already holds value, the source may have changed since the
+     * checkpoint was written
+     */
+    private boolean isMigrated(String hashedKey, Object value) {
+        return value != null && value.equals(target.readTyped(hashedKey));
+    }
+
+    /**
+     * Splits the batch between the executor's threads and encrypts every value.
+     *
+     * @return hashed key to encrypted value, in batch order
+     */
+    private Map<String, Object> encryptBatch(ExecutorService executor, List<String[]> batch, final Map<String, ?> sourceEntries) {
+        final int chunkSize = Math.max(1, (batch.size() + parallelism - 1) / parallelism);
+        final List<Future<Map<String, Object>>> futures = new ArrayList<>();
+        for (int from = 0; from < batch.size(); from += chunkSize) {
+            final List<String[]> chunk = batch.subList(from, Math.min(from + chunkSize, batch.size()));
+            futures.add(executor.submit(new Callable<Map<String, Object>>() {
+                @Override
+                public Map<String, Object> call() {
+                    Map<String, Object> encrypted = new LinkedHashMap<>(chunk.size());
+                    for (String[] hashedAndKey : chunk) {
+                        Object value = sourceEntries.get(hashedAndKey[1]);
+                        if (value != null) {
+                            encrypted.put(hashedAndKey[0], target.encryptValue(value));
+                        }
+                    }
+                    return encrypted;
+                }
+            }));
+        }
+
+        Map<String, Object> encrypted = new LinkedHashMap<>(batch.size());
+        try {
+            for (Future<Map<String, Object>> future : futures) {
+                encrypted.putAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Migration interrupted, re-run migrate() to resume", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to encrypt migration batch", e.getCause());
+        }
+        return encrypted;
+    }
+
+    private void removeFromSource(List<String> keys) {
+        SharedPreferences.Editor editor = source.edit();
+        for (String key : keys) {
+            editor.remove(key);
+        }
+        if (!editor.commit()) {
+            Log.w(TAG, "Migrated keys not removed from source, they'll be removed on the next run");
+        }
+    }
+
+    private Map<String, String> readCheckpoints() {
+        Map<String, String> checkpoints = new LinkedHashMap<>();
+        String stored = target.getEncryptedString(CHECKPOINT_PREF_KEY, null);
+        if (!TextUtils.isEmpty(stored)) {
+            for (String checkpoint : stored.split(CHECKPOINT_SEPARATOR)) {
+                String[] fields = checkpoint.split(CHECKPOINT_FIELD_SEPARATOR);
+                if (fields.length == 2) {
+                    checkpoints.put(fields[0], fields[1]);
+                }
+            }
+        }
+        return checkpoints;
+    }
+
+    private static String formatCheckpoints(Map<String, String> checkpoints) {
+        StringBuilder builder = new StringBuilder();
+        for (Entry<String, String> checkpoint : checkpoints.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(CHECKPOINT_SEPARATOR);
+            }
+            builder.append(checkpoint.getKey()).append(CHECKPOINT_FIELD_SEPARATOR).append(checkpoint.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Outcome of a {@link #migrate()} run
+     */
+    public static class Report {
+        int entriesMigrated;
+        int entriesSkipped;
+        int batches;
+        long elapsedMillis;
+
+        /**
+         * @return entries encrypted and written by this run
+         */
+        public int getEntriesMigrated() {
+            return entriesMigrated;
+        }
+
+        /**
+         * @return entries already migrated by an earlier, interrupted run
+         */
+        public int getEntriesSkipped() {
+            return entriesSkipped;
+        }
+
+        public int getBatches() {
+            return batches;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * @return entries migrated per second by this run
+         */
+        public double getEntriesPerSecond() {
+            return elapsedMillis == 0 ? entriesMigrated : entriesMigrated * 1000d / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Migrated " + entriesMigrated + " entries (" + entriesSkipped + " already done) in "
+                    + batches + " batches, " + elapsedMillis + "ms, "
+                    + String.format("%.1f", getEntriesPerSecond()) + " entries/s";
+        }
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import android.annotation.TargetApi;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.text.TextUtils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The keys of one namespace of a {@link SecurePreferences} file, see
+ * {@link SecurePreferences#namespace(String)}. Namespaces share the file, its keys and its key
+ * name scheme, so modules don't each pay for a file and a key derivation, but the same key in two
+ * namespaces, or in a namespace and the file itself, is two separate values.
+ * <p>
+ * Within a namespace a key is identified by the SHA-256 name it would have in a file of its own,
+ * see {@link SecurePreferences#hashPrefKey(String)}, and stored under the name of that id
+ * prefixed with the namespace. The ids of a namespace are kept in one encrypted entry, so
+ * {@link #getAll()} and clearing a namespace only touch that namespace's values.
+ * {@link SecurePreferences#getAll()} still returns every value in the file, namespaced or not.
+ */
+public final class PreferenceNamespace implements SharedPreferences {
+
+    //between the namespace and a key id, so no key can be named into another namespace
+    private static final char SEPARATOR = '\u0000';
+
+    private static final String MEMBERS_PREF_KEY = "com.securepreferences.namespace" + SEPARATOR;
+
+    private static final String MEMBERS_SEPARATOR = ",";
+
+    private static final int MAX_KEY_IDS = 1024;
+
+    private final SecurePreferences securePreferences;
+    private final String name;
+    private final String prefix;
+    private final String membersKey;
+
+    //key to its id, cleared when full like the file's own hashed names
+    private final ConcurrentHashMap<String, String> keyIds = new ConcurrentHashMap<>();
+
+    //last parsed member ids, re-parsed only when the stored entry changes
+    private volatile Members members = Members.EMPTY;
+
+    private final Map<OnSharedPreferenceChangeListener, OnSharedPreferenceChangeListener> listeners = new HashMap<>();
+
+    //stored names of every member seen while listeners are registered, removed ones included
+    private final Set<String> memberNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private Members memberNamesFrom;
+    private KeyNameScheme memberNamesScheme;
+
+    private static final class Members {
+        static final Members EMPTY = new Members(null, Collections.<String>emptySet());
+
+        //the encrypted entry the ids were read from
+        final String source;
+        final Set<String> ids;
+
+        Members(String source, Set<String> ids) {
+            this.source = source;
+            this.ids = ids;
+        }
+    }
+
+    PreferenceNamespace(SecurePreferences securePreferences, String name) {
+        if (TextUtils.isEmpty(name) || name.indexOf(SEPARATOR) >= 0) {
+            throw new IllegalArgumentException("Invalid namespace name");
+        }
+        this.securePreferences = securePreferences;
+        this.name = name;
+        this.prefix = name + SEPARATOR;
+        this.membersKey = MEMBERS_PREF_KEY + name;
+    }
+
+    /**
+     * @return the pref key of this namespace's index of its members
+     */
+    String getMembersKey() {
+        return membersKey;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the id of a key in this namespace, the key's name in a file of its own
+     */
+    String idOf(String key) {
+        String id = keyIds.get(key);
+        if (id == null) {
+            id = SecurePreferences.hashPrefKey(key);
+            if (keyIds.size() >= MAX_KEY_IDS) {
+                keyIds.clear();
+            }
+            keyIds.put(key, id);
+        }
+        return id;
+    }
+
+    /**
+     * @return the key the value for this id is stored under in the file, before hashing
+     */
+    private String fileKeyOf(String id) {
+        return prefix + id;
+    }
+
+    private String fileKey(String key) {
+        return fileKeyOf(idOf(key));
+    }
+
+    private Members members() {
+        final Members cached = members;
+        final String source = securePreferences.getEncryptedString(membersKey, null);
+        if (TextUtils.equals(source, cached.source)) {
+            return cached;
+        }
+        final Set<String> ids = new HashSet<>();
+        final String joined = source != null ? securePreferences.getString(membersKey, null) : null;
+        if (!TextUtils.isEmpty(joined)) {
+            Collections.addAll(ids, joined.split(MEMBERS_SEPARATOR));
+        }
+        final Members loaded = new Members(source, Collections.unmodifiableSet(ids));
+        members = loaded;
+        return loaded;
+    }
+
+    /**
+     * @return Map<K, V> where K is the id of the key, its SHA-256 hash, and V is the decrypted
+     * value, typed like {@link SecurePreferences#getAll()}
+     */
+    @Override
+    public Map<String, ?> getAll() {
+        final Set<String> ids = members().ids;
+        final Map<String, Object> values = new HashMap<>(ids.size());
+        for (String id : ids) {
+            //ids of values that expired or were removed elsewhere are skipped
+            final Object value = securePreferences.readTyped(securePreferences.hashKey(fileKeyOf(id)));
+            if (value != null) {
+                values.put(id, value);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public String getString(String key, String defaultValue) {
+        return securePreferences.getString(fileKey(key), defaultValue);
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public Set<String> getStringSet(String key, Set<String> defaultValues) {
+        return securePreferences.getStringSet(fileKey(key), defaultValues);
+    }
+
+    @Override
+    public int getInt(String key, int defaultValue) {
+        return securePreferences.getInt(fileKey(key), defaultValue);
+    }
+
+    @Override
+    public long getLong(String key, long defaultValue) {
+        return securePreferences.getLong(fileKey(key), defaultValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defaultValue) {
+        return securePreferences.getFloat(fileKey(key), defaultValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defaultValue) {
+        return securePreferences.getBoolean(fileKey(key), defaultValue);
+    }
+
+    /**
+     * @see SecurePreferences#getBytes(String, byte[])
+     */
+    public byte[] getBytes(String key, byte[] defaultValue) {
+        return securePreferences.getBytes(fileKey(key), defaultValue);
+    }
+
+    /**
+     * @see SecurePreferences#getChars(String, char[])
+     */
+    public char[] getChars(String key, char[] defaultValue) {
+        return securePreferences.getChars(fileKey(key), defaultValue);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return securePreferences.contains(fileKey(key));
+    }
+
+    @Override
+    public Editor edit() {
+        return new Editor(securePreferences.edit());
+    }
+
+    /**
+     * An editor that writes through editor, so several namespaces can change in one commit
+     */
+    Editor edit(SecurePreferences.Editor editor) {
+        return new Editor(editor);
+    }
+
+    /**
+     * Listeners are called with the hashed key, like those registered with the file, and only
+     * for keys of this namespace.
+     */
+    @Override
+    public void registerOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+        final OnSharedPreferenceChangeListener filter = new OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                if (key == null || isMemberName(key)) {
+                    listener.onSharedPreferenceChanged(PreferenceNamespace.this, key);
+                }
+            }
+        };
+        synchronized (listeners) {
+            if (listeners.containsKey(listener)) {
+                return;
+            }
+            listeners.put(listener, filter);
+        }
+        //so removing a value stored before the listener was registered is reported
+        isMemberName(null);
+        securePreferences.registerOnSharedPreferenceChangeListener(filter);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        final OnSharedPreferenceChangeListener filter;
+        synchronized (listeners) {
+            filter = listeners.remove(listener);
+        }
+        if (filter != null) {
+            securePreferences.unregisterOnSharedPreferenceChangeListener(filter);
+        }
+    }
+
+    /**
+     * @return true if the stored name is, or was while listening, the name of one of this
+     * namespace's values. Names are never shared between namespaces, so once seen they're kept.
+     */
+    private synchronized boolean isMemberName(String hashedKey) {
+        final Members current = members();
+        final KeyNameScheme scheme = securePreferences.getKeyNameScheme();
+        if (scheme != memberNamesScheme) {
+            memberNames.clear();
+            memberNamesScheme = scheme;
+            memberNamesFrom = null;
+        }
+        if (current != memberNamesFrom) {
+            for (String id : current.ids) {
+                memberNames.add(securePreferences.hashKey(fileKeyOf(id)));
+            }
+            memberNamesFrom = current;
+        }
+        return hashedKey != null && memberNames.contains(hashedKey);
+    }
+
+    /**
+     * Wraps an editor of the file, naming keys into the namespace and keeping the namespace's
+     * ids up to date in the same commit.
+     */
+    public final class Editor implements SharedPreferences.Editor {
+
+        private final SecurePreferences.Editor mEditor;
+
+        //id to true if the last change to it was a put, false if a remove
+        private final Map<String, Boolean> mChanges = new HashMap<>();
+
+        private boolean mCleared;
+
+        private Editor(SecurePreferences.Editor editor) {
+            mEditor = editor;
+        }
+
+        private String put(String key) {
+            final String id = idOf(key);
+            mChanges.put(id, Boolean.TRUE);
+            return fileKeyOf(id);
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            mEditor.putString(put(key), value);
+            return this;
+        }
+
+        /**
+         * @see SecurePreferences.Editor#putString(String, String, long)
+         */
+        public Editor putString(String key, String value, long ttlMillis) {
+            mEditor.putString(put(key), value, ttlMillis);
+            return this;
+        }
+
+        @Override
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        public Editor putStringSet(String key, Set<String> values) {
+            mEditor.putStringSet(put(key), values);
+            return this;
+        }
+
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        public Editor putStringSet(String key, Set<String> values, long ttlMillis) {
+            mEditor.putStringSet(put(key), values, ttlMillis);
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            mEditor.putInt(put(key), value);
+            return this;
+        }
+
+        public Editor putInt(String key, int value, long ttlMillis) {
+            mEditor.putInt(put(key), value, ttlMillis);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            mEditor.putLong(put(key), value);
+            return this;
+        }
+
+        public Editor putLong(String key, long value, long ttlMillis) {
+            mEditor.putLong(put(key), value, ttlMillis);
+            return this;
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            mEditor.putFloat(put(key), value);
+            return this;
+        }
+
+        public Editor putFloat(String key, float value, long ttlMillis) {
+            mEditor.putFloat(put(key), value, ttlMillis);
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            mEditor.putBoolean(put(key), value);
+            return this;
+        }
+
+        public Editor putBoolean(String key, boolean value, long ttlMillis) {
+            mEditor.putBoolean(put(key), value, ttlMillis);
+            return this;
+        }
+
+        /**
+         * @see SecurePreferences.Editor#putBytes(String, byte[])
+         */
+        public Editor putBytes(String key, byte[] value) {
+            if (value == null) {
+                return remove(key);
+            }
+            mEditor.putBytes(put(key), value);
+            return this;
+        }
+
+        public Editor putBytes(String key, byte[] value, long ttlMillis) {
+            if (value == null) {
+                return remove(key);
+            }
+            mEditor.putBytes(put(key), value, ttlMillis);
+            return this;
+        }
+
+        /**
+         * @see SecurePreferences.Editor#putChars(String, char[])
+         */
+        public Editor putChars(String key, char[] value) {
+            if (value == null) {
+                return remove(key);
+            }
+            mEditor.putChars(put(key), value);
+            return this;
+        }
+
+        public Editor putChars(String key, char[] value, long ttlMillis) {
+            if (value == null) {
+                return remove(key);
+            }
+            mEditor.putChars(put(key), value, ttlMillis);
+            return this;
+        }
+
+        /**
+         * Stores a decrypted value by its id, used when merging files into namespaces
+         *
+         * @param plainValue bytes or a StringSet, bytes are cleared once committed
+         */
+        void putDecrypted(String id, Object plainValue) {
+            mChanges.put(id, Boolean.TRUE);
+            mEditor.putDecrypted(securePreferences.hashKey(fileKeyOf(id)), plainValue);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            final String id = idOf(key);
+            mChanges.put(id, Boolean.FALSE);
+            mEditor.remove(fileKeyOf(id));
+            return this;
+        }
+
+        /**
+         * Removes the values of this namespace only, the rest of the file is left as it is
+         */
+        @Override
+        public Editor clear() {
+            mCleared = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            synchronized (securePreferences.getWriteLock()) {
+                updateMembers();
+                return mEditor.commit();
+            }
+        }
+
+        @Override
+        public void apply() {
+            synchronized (securePreferences.getWriteLock()) {
+                updateMembers();
+                mEditor.apply();
+            }
+        }
+
+        /**
+         * Adds the removes for clear() and the updated ids to the file's editor, the caller holds
+         * the write lock until it's committed
+         */
+        void updateMembers() {
+            final Set<String> current = members().ids;
+            final Set<String> updated = new HashSet<>();
+            if (mCleared) {
+                //like any editor's clear() it comes before the puts, whenever it was called
+                for (String id : current) {
+                    if (!Boolean.TRUE.equals(mChanges.get(id))) {
+                        mEditor.remove(fileKeyOf(id));
+                    }
+                }
+            } else {
+                updated.addAll(current);
+            }
+            for (Entry<String, Boolean> change : mChanges.entrySet()) {
+                if (change.getValue()) {
+                    updated.add(change.getKey());
+                } else {
+                    updated.remove(change.getKey());
+                }
+            }
+            if (!updated.equals(current)) {
+                if (updated.isEmpty()) {
+                    mEditor.remove(membersKey);
+                } else {
+                    mEditor.putString(membersKey, TextUtils.join(MEMBERS_SEPARATOR, updated));
+                }
+            }
+            mChanges.clear();
+            mCleared = false;
+        }
+    }
+}
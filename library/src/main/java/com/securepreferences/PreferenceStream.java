@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Stream of the decrypted values of a single preference, from
+ * {@link SecurePreferences#observe(String, Class)}.
+ * <p>
+ * Every stream for the same key shares one decryption per change, and bursts of changes are
+ * coalesced so observers only see the latest value. Observers are called on the main thread,
+ * first with the current value and then whenever it changes.
+ *
+ * @param <T> String, Integer, Long, Float, Boolean or Set (of Strings)
+ */
+public final class PreferenceStream<T> {
+
+    /**
+     * Receives the values of a {@link PreferenceStream}
+     */
+    public interface Observer<T> {
+        /**
+         * @param key   the pref key as passed to observe()
+         * @param value the decrypted value, or null if the key isn't set or can't be decrypted
+         */
+        void onValue(String key, T value);
+    }
+
+    /**
+     * Returned by {@link #subscribe(Observer)}
+     */
+    public interface Subscription {
+        void unsubscribe();
+    }
+
+    private final ValueStreams streams;
+
+    private final String key;
+
+    private final String hashedKey;
+
+    private final Class<T> type;
+
+    private final CopyOnWriteArrayList<Observer<T>> observers = new CopyOnWriteArrayList<>();
+
+    private volatile T value;
+
+    private volatile boolean loaded;
+
+    PreferenceStream(ValueStreams streams, String key, String hashedKey, Class<T> type) {
+        this.streams = streams;
+        this.key = key;
+        this.hashedKey = hashedKey;
+        this.type = type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    /**
+     * @return the last value delivered, null until the first one has been decrypted
+     */
+    public T getValue() {
+        return value;
+    }
+
+    /**
+     * @param observer called on the main thread with the current value and every change after
+     * @return call {@link Subscription#unsubscribe()} when no longer interested, the stream stops
+     * decrypting once it has no observers
+     */
+    public Subscription subscribe(final Observer<T> observer) {
+        observers.add(observer);
+        //stopped when the last observer unsubscribed, the value may have changed since
+        final boolean reattached = streams.attach(this);
+        if (loaded) {
+            streams.deliver(this, observer, value);
+        }
+        if (!loaded || reattached) {
+            streams.markChanged(hashedKey);
+        }
+        return new Subscription() {
+            @Override
+            public void unsubscribe() {
+                observers.remove(observer);
+                if (observers.isEmpty()) {
+                    streams.remove(PreferenceStream.this);
+                }
+            }
+        };
+    }
+
+    String getHashedKey() {
+        return hashedKey;
+    }
+
+    boolean hasObservers() {
+        return !observers.isEmpty();
+    }
+
+    /**
+     * Converts and stores a newly decrypted value
+     *
+     * @return true if it differs from the previous value and observers need telling
+     */
+    boolean update(Object plainText) {
+        final T converted = convert(plainText);
+        final boolean changed = !loaded || (converted == null ? value != null : !converted.equals(value));
+        value = converted;
+        loaded = true;
+        return changed;
+    }
+
+    void notifyObservers() {
+        final T current = value;
+        for (Observer<T> observer : observers) {
+            observer.onValue(key, current);
+        }
+    }
+
+    /**
+     * @param plainText decrypted String or Set of Strings, null if missing
+     */
+    private T convert(Object plainText) {
+        if (plainText == null) {
+            return null;
+        }
+        try {
+            if (type.isInstance(plainText)) {
+                return type.cast(plainText);
+            }
+            final String text = plainText.toString();
+            if (type == Integer.class) {
+                return type.cast(Integer.valueOf(text));
+            } else if (type == Long.class) {
+                return type.cast(Long.valueOf(text));
+            } else if (type == Float.class) {
+                return type.cast(Float.valueOf(text));
+            } else if (type == Boolean.class) {
+                return type.cast(Boolean.valueOf(text));
+            }
+        } catch (NumberFormatException | ClassCastException e) {
+            //not the type being observed, same as a missing value
+        }
+        return null;
+    }
+}
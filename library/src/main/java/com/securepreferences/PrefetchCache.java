@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import android.os.SystemClock;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read path cache used by {@link SecurePreferences#prefetch(java.util.Collection)}.
+ * <p>
+ * Holds the hashed name of every key looked up under the current {@link KeyNameScheme}, and the
+ * decrypted value of prefetched keys along
+ * with the ciphertext they were decrypted from. A cached value is only returned while the stored
+ * ciphertext is unchanged, so writes, rotations and other processes never need to invalidate it.
+ * Objects read with {@link SecurePreferences#getObject(String, ObjectCodec)} are kept the same way,
+ * by the identity of the ciphertext String, which the file hands back until the value changes.
+ * <p>
+ * Also records which keys are read during startup so the next launch can prefetch them.
+ */
+final class PrefetchCache {
+
+    //hashed names are cheap to hold, but don't let a caller with unbounded key names grow this forever
+    private static final int MAX_HASHED_NAMES = 1024;
+
+    //decoded objects can be large, only keep the ones in use
+    private static final int MAX_DECODED_OBJECTS = 32;
+
+    //replaced as a whole when the scheme changes, so a name is never cached under the wrong scheme
+    private volatile Names names = new Names(KeyNameScheme.SHA_256);
+
+    private final ConcurrentHashMap<String, Decrypted> decrypted = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Decoded> decoded = new ConcurrentHashMap<>();
+
+    private final Set<String> recordedReads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile long recordUntil;
+
+    /**
+     * A decrypted value and the stored ciphertext it came from
+     */
+    private static final class Decrypted {
+        final Object cipherText;
+        final Object plainText;
+
+        Decrypted(Object cipherText, Object plainText) {
+            this.cipherText = cipherText;
+            this.plainText = plainText;
+        }
+    }
+
+    /**
+     * An object decoded by a codec and the stored ciphertext it was decrypted from
+     */
+    private static final class Decoded {
+        final String cipherText;
+        final ObjectCodec<?> codec;
+        final Object object;
+
+        Decoded(String cipherText, ObjectCodec<?> codec, Object object) {
+            this.cipherText = cipherText;
+            this.codec = codec;
+            this.object = object;
+        }
+    }
+
+    /**
+     * The scheme and the names it has produced so far
+     */
+    private static final class Names {
+        final KeyNameScheme scheme;
+        final ConcurrentHashMap<String, String> hashed = new ConcurrentHashMap<>();
+
+        Names(KeyNameScheme scheme) {
+            this.scheme = scheme;
+        }
+
+        void put(String key, String name) {
+            if (hashed.size() >= MAX_HASHED_NAMES) {
+                hashed.clear();
+            }
+            hashed.put(key, name);
+        }
+    }
+
+    KeyNameScheme getKeyNameScheme() {
+        return names.scheme;
+    }
+
+    void setKeyNameScheme(KeyNameScheme scheme) {
+        if (scheme != names.scheme) {
+            names = new Names(scheme);
+        }
+    }
+
+    String hashedName(String key) {
+        final Names current = names;
+        String hashed = current.hashed.get(key);
+        if (hashed == null) {
+            hashed = current.scheme.nameFor(key);
+            current.put(key, hashed);
+        }
+        return hashed;
+    }
+
+    /**
+     * Like {@link #hashedName(String)} for several keys, with the default scheme the misses share
+     * one digest
+     */
+    String[] hashedNames(List<String> keys) {
+        final Names current = names;
+        final String[] hashed = new String[keys.size()];
+        MessageDigest digest = null;
+        for (int i = 0; i < hashed.length; i++) {
+            final String key = keys.get(i);
+            hashed[i] = current.hashed.get(key);
+            if (hashed[i] != null) {
+                continue;
+            }
+            if (current.scheme != KeyNameScheme.SHA_256) {
+                hashed[i] = current.scheme.nameFor(key);
+            } else {
+                if (digest == null) {
+                    try {
+                        digest = MessageDigest.getInstance("SHA-256");
+                    } catch (NoSuchAlgorithmException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                hashed[i] = SecurePreferences.hashPrefKey(key, digest);
+            }
+            current.put(key, hashed[i]);
+        }
+        return hashed;
+    }
+
+    /**
+     * @return the cached plain text (String or Set of Strings) if cipherText is what it was
+     * decrypted from, otherwise null
+     */
+    Object get(String hashedKey, Object cipherText) {
+        if (cipherText == null) {
+            return null;
+        }
+        final Decrypted cached = decrypted.get(hashedKey);
+        if (cached != null && cached.cipherText.equals(cipherText)) {
+            return cached.plainText;
+        }
+        return null;
+    }
+
+    void put(String hashedKey, Object cipherText, Object plainText) {
+        if (cipherText != null && plainText != null) {
+            decrypted.put(hashedKey, new Decrypted(cipherText, plainText));
+        }
+    }
+
+    /**
+     * @return the object codec decoded if cipherText is the same instance it was decrypted from,
+     * otherwise null
+     */
+    Object getObject(String hashedKey, String cipherText, ObjectCodec<?> codec) {
+        final Decoded cached = decoded.get(hashedKey);
+        if (cached != null && cached.cipherText == cipherText && cached.codec == codec) {
+            return cached.object;
+        }
+        return null;
+    }
+
+    void putObject(String hashedKey, String cipherText, ObjectCodec<?> codec, Object object) {
+        if (object == null) {
+            return;
+        }
+        if (decoded.size() >= MAX_DECODED_OBJECTS && !decoded.containsKey(hashedKey)) {
+            decoded.clear();
+        }
+        decoded.put(hashedKey, new Decoded(cipherText, codec, object));
+    }
+
+    /**
+     * Forgets all decrypted values and decoded objects, e.g. when the keys are destroyed
+     */
+    void clearDecrypted() {
+        decrypted.clear();
+        decoded.clear();
+    }
+
+    /**
+     * Starts recording reads for the given time
+     */
+    synchronized void startRecording(long durationMillis) {
+        recordedReads.clear();
+        recordUntil = SystemClock.elapsedRealtime() + durationMillis;
+    }
+
+    /**
+     * @return true while reads are being recorded
+     */
+    boolean isRecording() {
+        return recordUntil != 0 && SystemClock.elapsedRealtime() < recordUntil;
+    }
+
+    /**
+     * @return true if a recording was running and has just run out of time
+     */
+    boolean recordingExpired() {
+        return recordUntil != 0 && SystemClock.elapsedRealtime() >= recordUntil;
+    }
+
+    void recordRead(String hashedKey) {
+        if (isRecording()) {
+            recordedReads.add(hashedKey);
+        }
+    }
+
+    /**
+     * Stops recording
+     *
+     * @return the hashed keys read while recording, or null if nothing was being recorded
+     */
+    synchronized Set<String> stopRecording() {
+        if (recordUntil == 0) {
+            return null;
+        }
+        recordUntil = 0;
+        return new HashSet<>(recordedReads);
+    }
+}
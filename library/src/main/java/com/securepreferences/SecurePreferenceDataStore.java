@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.res.XmlResourceParser;
+import android.os.Build;
+import android.preference.Preference;
+import android.preference.PreferenceDataStore;
+import android.preference.PreferenceGroup;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets preference screens read and write a SecurePreferences, rather than saving to plain text
+ * default preferences, e.g. in a PreferenceFragment
+ * <pre>
+ * SecurePreferenceDataStore store = new SecurePreferenceDataStore(securePrefs);
+ * store.prefetch(getActivity(), R.xml.preferences);
+ * getPreferenceManager().setPreferenceDataStore(store);
+ * addPreferencesFromResource(R.xml.preferences);
+ * ...
+ * public void onStop() {
+ *     store.flush();
+ * }
+ * </pre>
+ * {@link #prefetch(Context, int)} decrypts every key of the screen in one batch on a background
+ * thread while the screen inflates, rather than each widget decrypting its own key on the main
+ * thread. Widget writes are buffered for {@link #DEFAULT_WRITE_WINDOW_MILLIS} and committed
+ * together on a background thread, reads see them straight away.
+ */
+@TargetApi(Build.VERSION_CODES.O)
+public final class SecurePreferenceDataStore implements PreferenceDataStore {
+
+    private static final String TAG = SecurePreferenceDataStore.class.getName();
+
+    private static final String ANDROID_NAMESPACE = "http://schemas.android.com/apk/res/android";
+
+    /**
+     * How long writes are buffered, a burst of toggles or typing is one commit
+     */
+    public static final long DEFAULT_WRITE_WINDOW_MILLIS = 300;
+
+    //wait before committing again after a failed commit
+    private static final long RETRY_MILLIS = 1000;
+
+    //a pending remove, the buffer can't hold null
+    private static final Object REMOVED = new Object();
+
+    private static ScheduledExecutorService sWriteExecutor;
+
+    private final SecurePreferences securePreferences;
+    private final long writeWindowMillis;
+
+    //key to value of the writes not committed yet, guarded by this
+    private final Map<String, Object> pendingWrites = new LinkedHashMap<>();
+    private boolean flushScheduled;
+
+    private volatile Future<?> prefetched;
+    private volatile Set<String> prefetchedKeys = Collections.emptySet();
+
+    public SecurePreferenceDataStore(SecurePreferences securePreferences) {
+        this(securePreferences, DEFAULT_WRITE_WINDOW_MILLIS);
+    }
+
+    /**
+     * @param writeWindowMillis how long writes are buffered before they're committed together
+     */
+    public SecurePreferenceDataStore(SecurePreferences securePreferences, long writeWindowMillis) {
+        if (writeWindowMillis < 0) {
+            throw new IllegalArgumentException("writeWindowMillis can't be negative");
+        }
+        this.securePreferences = securePreferences;
+        this.writeWindowMillis = writeWindowMillis;
+    }
+
+    public SecurePreferences getSecurePreferences() {
+        return securePreferences;
+    }
+
+    /**
+     * Decrypts the keys of a preference screen in one batch on a background thread. Call it before
+     * inflating the screen, reads of those keys while the batch is running wait for it rather than
+     * decrypting again.
+     *
+     * @param preferencesResId the screen's preferences XML
+     * @return completes once the values are ready
+     */
+    public Future<?> prefetch(Context context, int preferencesResId) {
+        return prefetch(keysOf(context, preferencesResId));
+    }
+
+    /**
+     * Like {@link #prefetch(Context, int)} for a screen that's already inflated, e.g. to refresh it
+     * once the file has changed
+     */
+    public Future<?> prefetch(PreferenceGroup screen) {
+        final List<String> keys = new ArrayList<>();
+        addKeys(screen, keys);
+        return prefetch(keys);
+    }
+
+    /**
+     * Like {@link #prefetch(Context, int)} for keys already known, e.g. of a screen built in code
+     */
+    public Future<?> prefetch(Collection<String> keys) {
+        final Future<?> future = securePreferences.prefetch(keys);
+        prefetchedKeys = new HashSet<>(keys);
+        prefetched = future;
+        return future;
+    }
+
+    /**
+     * @return the android:key of every preference in the XML, resolving string resources
+     */
+    static List<String> keysOf(Context context, int preferencesResId) {
+        final List<String> keys = new ArrayList<>();
+        final XmlResourceParser parser = context.getResources().getXml(preferencesResId);
+        try {
+            for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+                if (event != XmlPullParser.START_TAG) {
+                    continue;
+                }
+                final int keyResId = parser.getAttributeResourceValue(ANDROID_NAMESPACE, "key", 0);
+                final String key = keyResId != 0 ? context.getString(keyResId) : parser.getAttributeValue(ANDROID_NAMESPACE, "key");
+                if (!TextUtils.isEmpty(key)) {
+                    keys.add(key);
+                }
+            }
+        } catch (XmlPullParserException | IOException e) {
+            //prefetch what was found, the rest is read when the screen asks for it
+            Log.w(TAG, "Unable to read the keys of " + preferencesResId, e);
+        } finally {
+            parser.close();
+        }
+        return keys;
+    }
+
+    private static void addKeys(PreferenceGroup group, List<String> keys) {
+        for (int i = 0; i < group.getPreferenceCount(); i++) {
+            final Preference preference = group.getPreference(i);
+            if (preference.hasKey()) {
+                keys.add(preference.getKey());
+            }
+            if (preference instanceof PreferenceGroup) {
+                addKeys((PreferenceGroup) preference, keys);
+            }
+        }
+    }
+
+    /**
+     * Commits the buffered writes now, on the background thread, e.g. from onStop
+     *
+     * @return completes once they're committed, or with an IllegalStateException if the commit
+     * failed, they're kept and committed again later
+     */
+    public Future<?> flush() {
+        return getWriteExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                if (!commitPending()) {
+                    throw new IllegalStateException("Preference writes not committed to prefs");
+                }
+            }
+        });
+    }
+
+    @Override
+    public void putString(String key, String value) {
+        buffer(key, value);
+    }
+
+    @Override
+    public void putStringSet(String key, Set<String> values) {
+        buffer(key, values == null ? null : Collections.unmodifiableSet(new HashSet<>(values)));
+    }
+
+    @Override
+    public void putInt(String key, int value) {
+        buffer(key, value);
+    }
+
+    @Override
+    public void putLong(String key, long value) {
+        buffer(key, value);
+    }
+
+    @Override
+    public void putFloat(String key, float value) {
+        buffer(key, value);
+    }
+
+    @Override
+    public void putBoolean(String key, boolean value) {
+        buffer(key, value);
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        final Object pending = getPending(key);
+        if (pending != null) {
+            return pending == REMOVED ? defValue : (String) pending;
+        }
+        awaitPrefetch(key);
+        return securePreferences.getString(key, defValue);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        final Object pending = getPending(key);
+        if (pending != null) {
+            return pending == REMOVED ? defValues : new HashSet<>((Set<String>) pending);
+        }
+        awaitPrefetch(key);
+        return securePreferences.getStringSet(key, defValues);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        final Object pending = getPending(key);
+        if (pending != null) {
+            return pending == REMOVED ? defValue : (Integer) pending;
+        }
+        awaitPrefetch(key);
+        return securePreferences.getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        final Object pending = getPending(key);
+        if (pending != null) {
+            return pending == REMOVED ? defValue : (Long) pending;
+        }
+        awaitPrefetch(key);
+        return securePreferences.getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        final Object pending = getPending(key);
+        if (pending != null) {
+            return pending == REMOVED ? defValue : (Float) pending;
+        }
+        awaitPrefetch(key);
+        return securePreferences.getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        final Object pending = getPending(key);
+        if (pending != null) {
+            return pending == REMOVED ? defValue : (Boolean) pending;
+        }
+        awaitPrefetch(key);
+        return securePreferences.getBoolean(key, defValue);
+    }
+
+    private synchronized Object getPending(String key) {
+        return pendingWrites.get(key);
+    }
+
+    private void buffer(String key, Object value) {
+        synchronized (this) {
+            pendingWrites.put(key, value == null ? REMOVED : value);
+        }
+        scheduleCommit(writeWindowMillis);
+    }
+
+    private void scheduleCommit(long delayMillis) {
+        synchronized (this) {
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        getWriteExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                commitPending();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Encrypts and commits the buffered writes in one commit, on the write thread. If the commit
+     * fails they stay buffered, so reads still see them, and it's tried again.
+     *
+     * @return false if the commit failed
+     */
+    @SuppressWarnings("unchecked")
+    private boolean commitPending() {
+        final Map<String, Object> writes;
+        synchronized (this) {
+            flushScheduled = false;
+            if (pendingWrites.isEmpty()) {
+                return true;
+            }
+            writes = new HashMap<>(pendingWrites);
+        }
+        final SecurePreferences.Editor editor = securePreferences.edit();
+        for (Map.Entry<String, Object> write : writes.entrySet()) {
+            final Object value = write.getValue();
+            if (value == REMOVED) {
+                editor.remove(write.getKey());
+            } else if (value instanceof String) {
+                editor.putString(write.getKey(), (String) value);
+            } else if (value instanceof Set) {
+                editor.putStringSet(write.getKey(), (Set<String>) value);
+            } else if (value instanceof Integer) {
+                editor.putInt(write.getKey(), (Integer) value);
+            } else if (value instanceof Long) {
+                editor.putLong(write.getKey(), (Long) value);
+            } else if (value instanceof Float) {
+                editor.putFloat(write.getKey(), (Float) value);
+            } else if (value instanceof Boolean) {
+                editor.putBoolean(write.getKey(), (Boolean) value);
+            }
+        }
+        if (!editor.commit()) {
+            Log.w(TAG, "Preference writes not committed to prefs, they'll be committed again");
+            scheduleCommit(Math.max(writeWindowMillis, RETRY_MILLIS));
+            return false;
+        }
+        synchronized (this) {
+            //reads fall through to the file once it has the value, unless it was written again meanwhile
+            for (Map.Entry<String, Object> write : writes.entrySet()) {
+                if (pendingWrites.get(write.getKey()) == write.getValue()) {
+                    pendingWrites.remove(write.getKey());
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for a running prefetch that includes key, decrypting it again would only be slower
+     */
+    private void awaitPrefetch(String key) {
+        final Future<?> future = prefetched;
+        if (future == null || future.isDone() || !prefetchedKeys.contains(key)) {
+            return;
+        }
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (SecurePreferences.isLoggingEnabled()) {
+                Log.w(TAG, "prefetch", e);
+            }
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getWriteExecutor() {
+        if (sWriteExecutor == null) {
+            sWriteExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "SecurePreferenceDataStore-write");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sWriteExecutor;
+    }
+}
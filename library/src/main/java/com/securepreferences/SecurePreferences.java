@@ -20,6 +20,7 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Build;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Base64;
@@ -27,16 +28,39 @@ import android.util.Log;
 
 import com.tozny.crypto.android.AesCbcWithIntegrity;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
 
 /**
  * Wrapper class for Android's {@link SharedPreferences} interface, which adds a
@@ -49,17 +73,63 @@ import java.util.Set;
  * <p>
  * Recommended to use with user password, in which case the key will be derived from the password and not stored in the file.
  * <p>
+ * Safe to use from multiple threads. Reads never lock: the keys are an immutable ring published
+ * through a volatile field, so a read sees either the old or the new keys, never a mix. Writes,
+ * re-keying and key rotation are serialised with each other.
+ * <p>
  * TODO: Handle OnSharedPreferenceChangeListener
  */
 public class SecurePreferences implements SharedPreferences {
 
     private static final int ORIGINAL_ITERATION_COUNT = 10000;
 
-    //the backing pref file
-    private SharedPreferences sharedPreferences;
+    //the backing pref file, or the coalescing writer in front of it. Volatile like keyRing, reads never lock
+    private volatile SharedPreferences sharedPreferences;
+
+    //secret keys used for enc and dec, current and retired
+    private volatile KeyRing keyRing;
+
+    //held while writing so key rotation and re-encryption can't interleave with editor commits
+    private final Object writeLock = new Object();
+
+    //pref key of the generated key, null when using a password or supplied keys
+    private volatile String generatedKeyName;
+
+    //re-encrypts values still under retired keys, created on first use
+    private KeyRotationSweeper keyRotationSweeper;
+
+    //hashed key names, prefetched values and startup read recording
+    private final PrefetchCache prefetchCache = new PrefetchCache();
+
+    //runs prefetch, created on first use
+    private ExecutorService prefetchExecutor;
+
+    //decrypts large getValues batches in parallel, created on first use
+    private ExecutorService decryptExecutor;
+
+    //getValues batches smaller than this are decrypted on the calling thread
+    static final int PARALLEL_DECRYPT_THRESHOLD = 16;
+
+    //archive chunks importFrom re-encrypts ahead of the commit, bounds its memory use
+    private static final int IMPORT_CHUNKS_IN_FLIGHT = 3;
+
+    /**
+     * A sensible threshold for {@link #enableCompression(int)}, smaller values rarely compress
+     */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+
+    //values at least this long are compressed before encryption, -1 when disabled
+    private volatile int compressionThreshold = -1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    //streams returned by observe, created on first use
+    private ValueStreams valueStreams;
 
-    //secret keys used for enc and dec
-    private AesCbcWithIntegrity.SecretKeys keys;
+    /**
+     * How long {@link #warmUp()} records reads for if {@link #markStartupComplete()} isn't called
+     */
+    public static final long DEFAULT_STARTUP_RECORDING_MILLIS = 5000;
 
     //the salt used for enc and dec
     private String salt;
@@ -68,9 +138,61 @@ public class SecurePreferences implements SharedPreferences {
 
     private static final String TAG = SecurePreferences.class.getName();
 
+    //hashed keys read during the last startup, stored (unencrypted) under this name
+    private static final String STARTUP_KEYS_PREF_KEY = "com.securepreferences.startupKeys";
+    private static final String STARTUP_KEYS_SEPARATOR = ",";
+
+    //the wrapped secret of a KeyedHashKeyNameScheme, stored (unencrypted) under this name
+    private static final String KEY_NAMES_PREF_KEY = "com.securepreferences.keyNames";
+
+    //plaintext metadata stored alongside the values. Always named with SHA-256, whatever the
+    //key name scheme, as some of it is needed before the scheme can be loaded
+    private static final Set<String> RESERVED_KEY_NAMES = new HashSet<>(Arrays.asList(
+            IterationCountCalibrator.ITERATION_COUNT_PREF_KEY,
+            PreferenceMigrator.CHECKPOINT_PREF_KEY,
+            KeyRing.KEY_RING_PREF_KEY,
+            STARTUP_KEYS_PREF_KEY,
+            KEY_NAMES_PREF_KEY,
+            ExpiryIndex.EXPIRIES_PREF_KEY));
+
+    //hashed names of the metadata, never decrypted or returned by getAll
+    private static final Set<String> RESERVED_KEYS = new HashSet<>();
+
+    static {
+        for (String name : RESERVED_KEY_NAMES) {
+            RESERVED_KEYS.add(hashPrefKey(name));
+        }
+    }
+
+    private static final String EXPIRIES_HASHED_KEY = hashPrefKey(ExpiryIndex.EXPIRIES_PREF_KEY);
+
+    //hashed names of the metadata Editor.clear() keeps, values written after it can't be read without it
+    private static final Set<String> KEPT_ON_CLEAR = new HashSet<>(Arrays.asList(
+            hashPrefKey(KeyRing.KEY_RING_PREF_KEY),
+            hashPrefKey(IterationCountCalibrator.ITERATION_COUNT_PREF_KEY),
+            hashPrefKey(KEY_NAMES_PREF_KEY)));
+
+    //last parsed expiry index, re-parsed only when the stored index changes
+    private volatile ExpiryIndex expiryIndex = ExpiryIndex.EMPTY;
+
+    //removes entries whose time to live is up, created on first use
+    private ExpirySweeper expirySweeper;
+
     //name of the currently loaded sharedPrefFile, can be null if default
     private String sharedPrefFilename;
 
+    //the backing file when it's a multi-process store, which has to be closed
+    private final MultiProcessSharedPreferences multiProcessStore;
+
+    //non null when apply() calls are being coalesced, see enableWriteCoalescing
+    private volatile CoalescingSharedPreferences coalescingWriter;
+
+    //told about values getAll() can't decode, rather than returning their ciphertext
+    private volatile OnDecodeFailureListener decodeFailureListener;
+
+    //views returned by namespace(String), one per name so they share their caches
+    private final ConcurrentHashMap<String, PreferenceNamespace> namespaces = new ConcurrentHashMap<>();
+
 
     /**
      * User password defaults to app generated password that's stores obfucated with the other preference values. Also this uses the Default shared pref file
@@ -130,16 +252,44 @@ public class SecurePreferences implements SharedPreferences {
      * @param iterationCount The iteration count for the keys generation
      */
     public SecurePreferences(Context context, final String password, final String salt, final String sharedPrefFilename, int iterationCount) {
-        this(context, null, password, salt, sharedPrefFilename, iterationCount);
+        this(context, null, password, salt, sharedPrefFilename, iterationCount, false);
+    }
+
+    /**
+     * Opens a file that can be shared by several processes of the app, stored with
+     * {@link MultiProcessSharedPreferences} instead of the standard SharedPreferences. Each
+     * process sees the others' writes, and no process's write is lost to another's.
+     * <p>
+     * Every process must open the file the same way. Change the password or rotate the key while
+     * only one process has the file open, the others won't know the new key until they reopen it.
+     * Call {@link #close()} once the file is no longer used, it's held open until then.
+     *
+     * @param context            should be ApplicationContext not Activity
+     * @param sharedPrefFilename name of the file. If null the package name is used
+     * @param multiProcess       true to use the multi-process store
+     */
+    public SecurePreferences(Context context, final String password, final String salt, final String sharedPrefFilename, int iterationCount, boolean multiProcess) {
+        this(context, null, password, salt, sharedPrefFilename, iterationCount, multiProcess);
     }
 
     private SecurePreferences(Context context, final AesCbcWithIntegrity.SecretKeys secretKey, final String password, final String salt, final String sharedPrefFilename, int iterationCount) {
-        if (sharedPreferences == null) {
+        this(context, secretKey, password, salt, sharedPrefFilename, iterationCount, false);
+    }
+
+    private SecurePreferences(Context context, final AesCbcWithIntegrity.SecretKeys secretKey, final String password, final String salt, final String sharedPrefFilename, int iterationCount, boolean multiProcess) {
+        if (multiProcess) {
+            this.sharedPrefFilename = sharedPrefFilename;
+            multiProcessStore = MultiProcessSharedPreferences.open(context,
+                    sharedPrefFilename != null ? sharedPrefFilename : context.getPackageName());
+            sharedPreferences = multiProcessStore;
+        } else {
+            multiProcessStore = null;
             sharedPreferences = getSharedPreferenceFile(context, sharedPrefFilename);
         }
 
         this.salt = salt;
 
+        final AesCbcWithIntegrity.SecretKeys keys;
         if (secretKey != null) {
             keys = secretKey;
         } else if (TextUtils.isEmpty(password)) {
@@ -148,7 +298,14 @@ public class SecurePreferences implements SharedPreferences {
                 final String key = generateAesKeyName(context, iterationCount);
 
                 String keyAsString = sharedPreferences.getString(key, null);
-                if (keyAsString == null) {
+                if (keyAsString == null && multiProcessStore != null) {
+                    //another process may be creating the key too, the first one stored is used by all
+                    keyAsString = multiProcessStore.putStringIfAbsent(key, AesCbcWithIntegrity.generateKey().toString());
+                    if (keyAsString == null) {
+                        throw new GeneralSecurityException("Key not committed to prefs");
+                    }
+                    keys = AesCbcWithIntegrity.keys(keyAsString);
+                } else if (keyAsString == null) {
                     keys = AesCbcWithIntegrity.generateKey();
                     //saving new key
                     boolean committed = sharedPreferences.edit().putString(key, keys.toString()).commit();
@@ -158,6 +315,7 @@ public class SecurePreferences implements SharedPreferences {
                 } else {
                     keys = AesCbcWithIntegrity.keys(keyAsString);
                 }
+                generatedKeyName = key;
 
                 if (keys == null) {
                     throw new GeneralSecurityException("Problem generating Key");
@@ -185,6 +343,14 @@ public class SecurePreferences implements SharedPreferences {
                 throw new IllegalStateException(e);
             }
         }
+
+        keyRing = KeyRing.load(sharedPreferences.getString(hashPrefKey(KeyRing.KEY_RING_PREF_KEY), null), keys);
+        loadKeyNameScheme();
+        scheduleExpirySweep(expiries().nextExpiry());
+        if (keyRing.hasRetiredKeys()) {
+            //a previous rotation hasn't finished re-encrypting
+            getKeyRotationSweeper().sweep();
+        }
     }
 
 
@@ -196,7 +362,15 @@ public class SecurePreferences implements SharedPreferences {
      */
     private SharedPreferences getSharedPreferenceFile(Context context, String prefFilename) {
         this.sharedPrefFilename = prefFilename;
+        return openSharedPreferences(context, prefFilename);
+    }
 
+    /**
+     * @param context      should be ApplicationContext not Activity
+     * @param prefFilename name of the shared pref file. If empty the default shared prefs are used
+     * @return the backing pref file, without any encryption
+     */
+    static SharedPreferences openSharedPreferences(Context context, String prefFilename) {
         if (TextUtils.isEmpty(prefFilename)) {
             return PreferenceManager
                     .getDefaultSharedPreferences(context);
@@ -206,311 +380,2363 @@ public class SecurePreferences implements SharedPreferences {
     }
 
     /**
-     * nulls in memory keys
+     * Coalesces every {@link Editor#apply()} made within {@code windowMillis} into a single write
+     * of the backing file, done together with its fsync on a background thread. This stops apply()
+     * calls made in tight loops from queueing a full file write each, which Android then waits for
+     * in {@code Activity.onStop}.
+     * <p>
+     * Applied values are visible to readers immediately. When more than {@code maxPendingWrites}
+     * keys are waiting to be written, apply() blocks until the writer catches up. Use
+     * {@link #flush()} or {@link #awaitDurable(long)} when the values must be on disk.
+     *
+     * @param windowMillis     how long to collect apply() calls before writing
+     * @param maxPendingWrites maximum number of keys buffered before apply() blocks
      */
-    public void destroyKeys() {
-        keys = null;
+    public void enableWriteCoalescing(long windowMillis, int maxPendingWrites) {
+        synchronized (writeLock) {
+            disableWriteCoalescing();
+            coalescingWriter = new CoalescingSharedPreferences(sharedPreferences, windowMillis, maxPendingWrites);
+            sharedPreferences = coalescingWriter;
+        }
     }
 
-
     /**
-     * Uses device and application values to generate the pref key for the encryption key
-     *
-     * @param context        should be ApplicationContext not Activity
-     * @param iterationCount The iteration count for the keys generation
-     * @return String to be used as the AESkey Pref key
-     * @throws GeneralSecurityException if something goes wrong in generation
+     * Writes anything still pending and goes back to the platform's apply() behaviour.
      */
-    private String generateAesKeyName(Context context, int iterationCount) throws GeneralSecurityException {
-        final String password = context.getPackageName();
-        final byte[] salt = getSalt(context).getBytes();
-        AesCbcWithIntegrity.SecretKeys generatedKeyName = AesCbcWithIntegrity.generateKeyFromPassword(password, salt, iterationCount);
-
-        return hashPrefKey(generatedKeyName.toString());
+    public void disableWriteCoalescing() {
+        synchronized (writeLock) {
+            if (coalescingWriter != null) {
+                coalescingWriter.shutdown();
+                sharedPreferences = coalescingWriter.getBacking();
+                coalescingWriter = null;
+            }
+        }
     }
 
     /**
-     * Gets the salt value
+     * Compresses values of at least thresholdBytes before encrypting them, for large values such
+     * as JSON that would otherwise make up most of the file. A value is only stored compressed if
+     * that makes it shorter, and compressed values are flagged in their header so they're read
+     * back whether or not compression is still enabled.
+     * <p>
+     * Compression means the stored length depends on the content as well as the length of the
+     * value. Don't enable it for values that mix secrets with text an attacker can choose.
      *
-     * @param context used for accessing hardware serial number (if accessible) or the DeviceId in case salt is not set
-     * @return
+     * @param thresholdBytes e.g. {@link #DEFAULT_COMPRESSION_THRESHOLD}
      */
-    private String getSalt(Context context) {
-        if (TextUtils.isEmpty(this.salt)) {
-            Log.w(TAG, "Using the default generated Salt, it's more forward compatible to pass your own salt or use password");
-            return Utils.getDefaultSalt(context);
-        } else {
-            return this.salt;
+    public void enableCompression(int thresholdBytes) {
+        if (thresholdBytes < 0) {
+            throw new IllegalArgumentException("thresholdBytes must not be negative");
         }
+        compressionThreshold = thresholdBytes;
     }
 
+    /**
+     * Stops compressing new values, compressed values already stored are still read
+     */
+    public void disableCompression() {
+        compressionThreshold = -1;
+    }
 
     /**
-     * The Pref keys must be same each time so we're using a hash to obscure the stored value
+     * Writes all the values applied so far and blocks until they are on disk. Does nothing unless
+     * write coalescing is enabled, as platform apply() offers no way to wait.
      *
-     * @param prefKey
-     * @return SHA-256 Hash of the preference key
+     * @return true if all the applied values were written successfully
      */
-    public static String hashPrefKey(String prefKey) {
-        final MessageDigest digest;
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-            byte[] bytes = prefKey.getBytes("UTF-8");
-            digest.update(bytes, 0, bytes.length);
-
-            return Base64.encodeToString(digest.digest(), AesCbcWithIntegrity.BASE64_FLAGS);
-
-        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
-            if (sLoggingEnabled) {
-                Log.w(TAG, "Problem generating hash", e);
-            }
-        }
-        return null;
+    public boolean flush() {
+        final CoalescingSharedPreferences writer = coalescingWriter;
+        return writer == null || writer.flush();
     }
 
+    /**
+     * Waits for the values applied before this call to reach disk, without forcing an early write.
+     *
+     * @param timeoutMillis maximum time to wait
+     * @return true if the values are durable, false on timeout or write failure
+     */
+    public boolean awaitDurable(long timeoutMillis) {
+        final CoalescingSharedPreferences writer = coalescingWriter;
+        return writer == null || writer.awaitDurable(timeoutMillis);
+    }
 
-    private String encrypt(String cleartext) {
-        if (TextUtils.isEmpty(cleartext)) {
-            return cleartext;
-        }
-        try {
-            return AesCbcWithIntegrity.encrypt(cleartext, keys).toString();
-        } catch (GeneralSecurityException e) {
-            if (sLoggingEnabled) {
-                Log.w(TAG, "encrypt", e);
+    /**
+     * Writes anything still pending, cancels the scheduled removal of expired entries and closes
+     * the files of a multi-process store. A multi-process instance can't write afterwards. For a
+     * standard SharedPreferences file, which the platform keeps open anyway, the instance can
+     * still be used.
+     */
+    public void close() {
+        synchronized (writeLock) {
+            disableWriteCoalescing();
+            synchronized (this) {
+                if (expirySweeper != null) {
+                    expirySweeper.cancel();
+                }
             }
-            return null;
-        } catch (UnsupportedEncodingException e) {
-            if (sLoggingEnabled) {
-                Log.w(TAG, "encrypt", e);
+            if (multiProcessStore != null) {
+                multiProcessStore.close();
             }
         }
-        return null;
     }
 
     /**
-     * @param ciphertext
-     * @return decrypted plain text, unless decryption fails, in which case null
+     * nulls in memory keys. Reading a value afterwards throws a NullPointerException, while
+     * {@link #getAll()} returns nothing.
      */
-    private String decrypt(final String ciphertext) {
-        if (TextUtils.isEmpty(ciphertext)) {
-            return ciphertext;
-        }
-        try {
-            AesCbcWithIntegrity.CipherTextIvMac cipherTextIvMac = new AesCbcWithIntegrity.CipherTextIvMac(ciphertext);
+    public void destroyKeys() {
+        keyRing = keyRing.destroyed();
+        prefetchCache.clearDecrypted();
+    }
 
-            return AesCbcWithIntegrity.decryptString(cipherTextIvMac, keys);
-        } catch (GeneralSecurityException | UnsupportedEncodingException e) {
-            if (sLoggingEnabled) {
-                Log.w(TAG, "decrypt", e);
+    /**
+     * Hashes and decrypts the given keys on a background thread, so later get calls for them
+     * return without doing any crypto. The prefetched values are only used while they're
+     * unchanged in the file, so there is nothing to invalidate.
+     *
+     * @param keys pref keys as passed to the get methods
+     * @return completes once the values are ready
+     */
+    public Future<?> prefetch(final Collection<String> keys) {
+        final List<String> keysCopy = new ArrayList<>(keys);
+        return getPrefetchExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                for (String key : keysCopy) {
+                    prefetchHashed(hashKey(key));
+                }
             }
-        }
-        return null;
+        });
     }
 
     /**
-     * Return the map of all the objects that are stored in the shared preferences.
-     * @return Map<K, V> where,
-     * K is the hashed key
-     * V is the decrypted value. The value will be of type String or StringSet only.
-     * All other types apart from StringSet will be returned as String.
+     * Prefetches the keys that were read during the last startup and records the ones read during
+     * this startup for next time, for {@link #DEFAULT_STARTUP_RECORDING_MILLIS} or until
+     * {@link #markStartupComplete()} is called. Call it as early as possible, e.g. from
+     * {@code Application.onCreate()}.
+     *
+     * @return completes once the values are ready
      */
-    @Override
-    public Map<String, ?> getAll() {
-        //wont be null as per http://androidxref.com/5.1.0_r1/xref/frameworks/base/core/java/android/app/SharedPreferencesImpl.java
-        final Map<String, ?> encryptedMap = sharedPreferences.getAll();
-
-        final Map<String, Object> decryptedMap = new HashMap<>(
-                encryptedMap.size());
-
-        for (Entry<String, ?> entry : encryptedMap.entrySet()) {
-            Object cipherText = entry.getValue();
+    public Future<?> warmUp() {
+        return warmUp(DEFAULT_STARTUP_RECORDING_MILLIS);
+    }
 
-            // Check if the data stored is a StringSet
-            if (cipherText == null || cipherText.equals(keys.toString())) {
-                continue;
+    /**
+     * @param recordMillis how long to record reads for if {@link #markStartupComplete()} isn't called
+     * @see #warmUp()
+     */
+    public Future<?> warmUp(long recordMillis) {
+        final String recorded = sharedPreferences.getString(hashPrefKey(STARTUP_KEYS_PREF_KEY), null);
+        prefetchCache.startRecording(recordMillis);
+        return getPrefetchExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                if (!TextUtils.isEmpty(recorded)) {
+                    for (String hashedKey : recorded.split(STARTUP_KEYS_SEPARATOR)) {
+                        prefetchHashed(hashedKey);
+                    }
+                }
             }
+        });
+    }
 
-            try {
-                Set<String> stringSet = getDecryptedStringSet(cipherText);
-
-                if (stringSet != null) {
-                    decryptedMap.put(entry.getKey(), stringSet);
-                } else {
-                    decryptedMap.put(entry.getKey(), decrypt(cipherText.toString()));
+    /**
+     * Stops recording startup reads and stores the keys read so far for the next {@link #warmUp()}
+     */
+    public void markStartupComplete() {
+        final Set<String> recorded = prefetchCache.stopRecording();
+        if (recorded == null) {
+            return;
+        }
+        getPrefetchExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean committed = sharedPreferences.edit()
+                        .putString(hashPrefKey(STARTUP_KEYS_PREF_KEY), TextUtils.join(STARTUP_KEYS_SEPARATOR, recorded))
+                        .commit();
+                if (!committed) {
+                    Log.w(TAG, "Startup keys not committed to prefs");
                 }
+            }
+        });
+    }
 
-            } catch (Exception e) {
-                if (sLoggingEnabled) {
-                    Log.w(TAG, "error during getAll", e);
-                }
-                // Ignore issues that unencrypted values and use instead raw cipher text string
-                decryptedMap.put(entry.getKey(),
-                        cipherText.toString());
+    private void prefetchHashed(String hashedKey) {
+        final Object cipherText = getRawValue(hashedKey);
+        if (cipherText instanceof String) {
+            prefetchCache.put(hashedKey, cipherText, decrypt((String) cipherText));
+        } else if (cipherText instanceof Set) {
+            final Set<String> decrypted = getDecryptedStringSet(cipherText);
+            if (decrypted != null) {
+                prefetchCache.put(hashedKey, cipherText, Collections.unmodifiableSet(decrypted));
             }
         }
+    }
 
-        return decryptedMap;
+    private synchronized ExecutorService getPrefetchExecutor() {
+        if (prefetchExecutor == null) {
+            prefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SecurePreferences-prefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return prefetchExecutor;
     }
 
-    @Override
-    public String getString(String key, String defaultValue) {
-        final String encryptedValue = sharedPreferences.getString(
-                SecurePreferences.hashPrefKey(key), null);
+    /**
+     * Called for each value {@link SecurePreferences#getAll()} leaves out because it can't be
+     * decrypted or decoded, e.g. written under a key that has since been destroyed, or stored
+     * unencrypted by {@link Editor#putUnencryptedString(String, String)}
+     */
+    public interface OnDecodeFailureListener {
 
-        String decryptedValue = decrypt(encryptedValue);
-        if (encryptedValue != null && decryptedValue != null) {
-            return decryptedValue;
-        } else {
-            return defaultValue;
-        }
+        /**
+         * Called on the thread that was reading
+         *
+         * @param hashedKey   the name the value is stored under
+         * @param storedValue the stored String or StringSet, as it is in the file
+         */
+        void onDecodeFailure(String hashedKey, Object storedValue);
     }
 
     /**
-     * Added to get a values as as it can be useful to store values that are
-     * already encrypted and encoded
-     *
-     * @param key          pref key
-     * @param defaultValue
-     * @return Encrypted value of the key or the defaultValue if no value exists
+     * @param listener told about values getAll() can't decode, null to stop reporting them
      */
-    public String getEncryptedString(String key, String defaultValue) {
-        final String encryptedValue = sharedPreferences.getString(
-                SecurePreferences.hashPrefKey(key), null);
-        return (encryptedValue != null) ? encryptedValue : defaultValue;
+    public void setOnDecodeFailureListener(OnDecodeFailureListener listener) {
+        decodeFailureListener = listener;
     }
 
-    @Override
-    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
-    public Set<String> getStringSet(String key, Set<String> defaultValues) {
-        final Set<String> encryptedSet = sharedPreferences.getStringSet(
-                SecurePreferences.hashPrefKey(key), null);
-        if (encryptedSet == null) {
-            return defaultValues;
-        }
-        final Set<String> decryptedSet = new HashSet<String>(
-                encryptedSet.size());
-        for (String encryptedValue : encryptedSet) {
-            decryptedSet.add(decrypt(encryptedValue));
+    /**
+     * A view of this file holding only the keys of one namespace, so separate modules can share
+     * the file and its derived key without their keys colliding. A namespace's keys are read and
+     * written through the view, and its {@link PreferenceNamespace#getAll()} and clear only touch
+     * that namespace. Files written by modules on their own can be merged into namespaces with
+     * {@link NamespaceMerger}.
+     *
+     * @param name namespace, not empty and without a \u0000 char
+     * @return the view, the same instance for repeated calls
+     */
+    public PreferenceNamespace namespace(String name) {
+        PreferenceNamespace namespace = namespaces.get(name);
+        if (namespace == null) {
+            final PreferenceNamespace created = new PreferenceNamespace(this, name);
+            namespace = namespaces.putIfAbsent(name, created);
+            if (namespace == null) {
+                namespace = created;
+            }
         }
-        return decryptedSet;
+        return namespace;
     }
 
-    @Override
-    public int getInt(String key, int defaultValue) {
-        final String encryptedValue = sharedPreferences.getString(
-                SecurePreferences.hashPrefKey(key), null);
-        if (encryptedValue == null) {
-            return defaultValue;
-        }
-        try {
-            return Integer.parseInt(decrypt(encryptedValue));
-        } catch (NumberFormatException e) {
-            throw new ClassCastException(e.getMessage());
-        }
+    /**
+     * @return the lock commits hold, so views such as {@link PreferenceNamespace} can update
+     * their own metadata in the same commit
+     */
+    Object getWriteLock() {
+        return writeLock;
     }
 
-    @Override
-    public long getLong(String key, long defaultValue) {
-        final String encryptedValue = sharedPreferences.getString(
-                SecurePreferences.hashPrefKey(key), null);
-        if (encryptedValue == null) {
-            return defaultValue;
-        }
-        try {
-            return Long.parseLong(decrypt(encryptedValue));
-        } catch (NumberFormatException e) {
-            throw new ClassCastException(e.getMessage());
-        }
+    /**
+     * @return the name the value for this key is stored under, without hashing unless the file
+     * has been migrated to another key name scheme
+     */
+    String hashKey(HashedKey key) {
+        return getKeyNameScheme() == KeyNameScheme.SHA_256 ? key.sha256Name : hashKey(key.key);
     }
 
-    @Override
-    public float getFloat(String key, float defaultValue) {
-        final String encryptedValue = sharedPreferences.getString(
-                SecurePreferences.hashPrefKey(key), null);
-        if (encryptedValue == null) {
-            return defaultValue;
-        }
-        try {
-            return Float.parseFloat(decrypt(encryptedValue));
-        } catch (NumberFormatException e) {
-            throw new ClassCastException(e.getMessage());
+    /**
+     * @return the name the value for this key is stored under
+     */
+    String hashKey(String key) {
+        if (RESERVED_KEY_NAMES.contains(key)) {
+            return hashPrefKey(key);
         }
+        return prefetchCache.hashedName(key);
     }
 
-    @Override
-    public boolean getBoolean(String key, boolean defaultValue) {
-        final String encryptedValue = sharedPreferences.getString(
-                SecurePreferences.hashPrefKey(key), null);
-        if (encryptedValue == null) {
-            return defaultValue;
-        }
-        try {
-            return Boolean.parseBoolean(decrypt(encryptedValue));
-        } catch (NumberFormatException e) {
-            throw new ClassCastException(e.getMessage());
-        }
+    /**
+     * @return the scheme keys are currently named with, {@link KeyNameScheme#SHA_256} unless the
+     * file has been migrated
+     */
+    public KeyNameScheme getKeyNameScheme() {
+        return prefetchCache.getKeyNameScheme();
     }
 
-    @Override
-    public boolean contains(String key) {
-        return sharedPreferences.contains(SecurePreferences.hashPrefKey(key));
+    /**
+     * Creates the built-in keyed scheme for this file, with its secret derived from the current
+     * key. Use it with {@link #migrateKeyNames(KeyNameScheme, Collection)}; once migrated the
+     * scheme is stored with the file and {@link #getKeyNameScheme()} returns it whenever the file
+     * is opened.
+     *
+     * @param nameBytes length of the names before Base64, e.g.
+     *                  {@link KeyedHashKeyNameScheme#DEFAULT_NAME_BYTES}
+     */
+    public KeyedHashKeyNameScheme createKeyedKeyNameScheme(int nameBytes) throws GeneralSecurityException {
+        return KeyedHashKeyNameScheme.derive(keyRing.getCurrentKeys(), nameBytes);
     }
 
+    /**
+     * Names keys with scheme from now on without moving anything, for a custom scheme the file was
+     * migrated to earlier. Custom schemes aren't stored with the file, so this has to be called
+     * each time the file is opened, before any reads or writes.
+     */
+    public void useKeyNameScheme(KeyNameScheme scheme) {
+        synchronized (writeLock) {
+            prefetchCache.setKeyNameScheme(scheme);
+        }
+    }
 
     /**
-     * Cycle through the unencrypt all the current prefs to mem cache, clear, then encypt with key generated from new password.
-     * This method can be used if switching from the generated key to a key derived from user password
+     * Moves the values of keys to the names newScheme gives them, in a single commit, and uses
+     * newScheme from then on. Names are hashes, so the keys to move have to be listed: entries
+     * for keys that aren't listed stay under their old names and can no longer be read.
      * <p>
-     * Note: the pref keys will remain the same as they are SHA256 hashes.
+     * Call it before other threads start using the file, editors and streams from
+     * {@link #observe(String, Class)} created earlier still use the old names. Other processes
+     * only see the new scheme once they reopen the file.
      *
-     * @param newPassword
-     * @param context        should be ApplicationContext not Activity
+     * @param newScheme e.g. from {@link #createKeyedKeyNameScheme(int)}
+     * @param keys      every key the file holds
+     * @return number of values moved
+     * @throws IllegalArgumentException if two of the keys have the same name under newScheme
+     */
+    @SuppressLint("CommitPrefEdits")
+    @SuppressWarnings("unchecked")
+    public int migrateKeyNames(KeyNameScheme newScheme, Collection<String> keys) throws GeneralSecurityException {
+        synchronized (writeLock) {
+            //everything pending must be on disk before it's moved
+            flush();
+
+            final KeyNameScheme oldScheme = getKeyNameScheme();
+            final Map<String, String> keysByNewName = new HashMap<>(keys.size());
+            for (String key : keys) {
+                final String previous = keysByNewName.put(newScheme.nameFor(key), key);
+                if (previous != null && !previous.equals(key)) {
+                    throw new IllegalArgumentException(previous + " and " + key + " have the same name under the new scheme");
+                }
+            }
+
+            final SharedPreferences prefs = sharedPreferences;
+            final Map<String, ?> allOfThePrefs = prefs.getAll();
+            final SharedPreferences.Editor editor = prefs.edit();
+            final ExpiryIndex expiries = expiries();
+            final Map<String, Long> expiryChanges = new HashMap<>();
+            int moved = 0;
+            for (Entry<String, String> entry : keysByNewName.entrySet()) {
+                final String oldName = oldScheme.nameFor(entry.getValue());
+                final Object value = allOfThePrefs.get(oldName);
+                if (value == null || oldName.equals(entry.getKey())) {
+                    continue;
+                }
+                if (value instanceof Set) {
+                    editor.putStringSet(entry.getKey(), (Set<String>) value);
+                } else {
+                    editor.putString(entry.getKey(), (String) value);
+                }
+                //a key moved onto another's old name has already replaced it
+                if (!keysByNewName.containsKey(oldName)) {
+                    editor.remove(oldName);
+                    if (!expiryChanges.containsKey(oldName)) {
+                        expiryChanges.put(oldName, 0L);
+                    }
+                }
+                expiryChanges.put(entry.getKey(), expiries.expiryOf(oldName));
+                moved++;
+            }
+            putExpiries(editor, expiries.with(expiryChanges, false));
+            putKeyNameScheme(editor, newScheme, keyRing);
+            if (!editor.commit()) {
+                throw new GeneralSecurityException("Migrated key names not committed to prefs");
+            }
+            prefetchCache.setKeyNameScheme(newScheme);
+            prefetchCache.clearDecrypted();
+            return moved;
+        }
+    }
+
+    /**
+     * Stores the wrapped secret if scheme is the built-in keyed one, otherwise removes it
+     *
+     * @param ring the keys the file will be read with after the commit
+     */
+    private void putKeyNameScheme(SharedPreferences.Editor editor, KeyNameScheme scheme, KeyRing ring) throws GeneralSecurityException {
+        if (scheme instanceof KeyedHashKeyNameScheme) {
+            final KeyedHashKeyNameScheme keyed = (KeyedHashKeyNameScheme) scheme;
+            final String wrapped = encrypt(keyed.getEncodedSecret(), ring);
+            if (wrapped == null) {
+                throw new GeneralSecurityException("Unable to wrap the key name secret");
+            }
+            editor.putString(hashPrefKey(KEY_NAMES_PREF_KEY), keyed.serialize(wrapped));
+        } else {
+            editor.remove(hashPrefKey(KEY_NAMES_PREF_KEY));
+        }
+    }
+
+    /**
+     * Restores the built-in keyed scheme if the file has been migrated to it
+     */
+    private void loadKeyNameScheme() {
+        final String stored = sharedPreferences.getString(hashPrefKey(KEY_NAMES_PREF_KEY), null);
+        if (stored == null) {
+            return;
+        }
+        final String unwrapped = decrypt(KeyedHashKeyNameScheme.wrappedSecretOf(stored));
+        if (unwrapped == null) {
+            //most likely opened with the wrong password, no value will read anyway
+            if (sLoggingEnabled) {
+                Log.w(TAG, "Unable to unwrap the key name secret");
+            }
+            return;
+        }
+        prefetchCache.setKeyNameScheme(KeyedHashKeyNameScheme.load(stored, unwrapped));
+    }
+
+    /**
+     * Decrypts a value read by one of the get methods, using the prefetched plain text if there
+     * is one
+     */
+    private String decryptForRead(String hashedKey, String encryptedValue) {
+        recordRead(hashedKey);
+        final Object prefetched = prefetchCache.get(hashedKey, encryptedValue);
+        if (prefetched instanceof String) {
+            return (String) prefetched;
+        }
+        final String decrypted = decrypt(encryptedValue);
+        if (decrypted == null) {
+            //re-keyed between reading the value and decrypting it, the old key is gone but the new value is there
+            final Object latest = getRawValue(hashedKey);
+            if (latest instanceof String && !latest.equals(encryptedValue)) {
+                return decrypt((String) latest);
+            }
+        }
+        return decrypted;
+    }
+
+    /**
+     * Observes the decrypted value of a single key. All streams for a key share one decryption per
+     * change, made on a background thread after a short window so bursts of writes only deliver
+     * the latest value. Observers are called on the main thread.
+     *
+     * @param key  pref key as passed to the get methods
+     * @param type String, Integer, Long, Float, Boolean or Set
+     * @return the stream for this key and type, the same instance for repeated calls
+     */
+    public <T> PreferenceStream<T> observe(String key, Class<T> type) {
+        return getValueStreams().get(key, hashKey(key), type);
+    }
+
+    private synchronized ValueStreams getValueStreams() {
+        if (valueStreams == null) {
+            valueStreams = new ValueStreams(this);
+        }
+        return valueStreams;
+    }
+
+    /**
+     * For the bulk operations of {@link AsyncSecurePreferences}, which are cancelled by
+     * interrupting them
+     */
+    private static void throwIfCancelled(boolean cancellable) {
+        if (cancellable && Thread.currentThread().isInterrupted()) {
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Like {@link #readDecrypted(String)}, with the value as the type it was put as like
+     * {@link #getAll()}
+     */
+    Object readTyped(String hashedKey) {
+        final Object cipherText = isExpired(hashedKey) ? null : getRawValue(hashedKey);
+        return cipherText == null ? null : decodeStored(hashedKey, cipherText, keyRing);
+    }
+
+    /**
+     * Decrypts a stored value by its type tag, no trial decoding
+     *
+     * @return the typed value or StringSet, null after reporting it to the decode failure
+     * listener if it can't be decoded
+     */
+    private Object decodeStored(String hashedKey, Object cipherText, KeyRing ring) {
+        Object value = null;
+        if (cipherText instanceof Set) {
+            final Set<String> members = getDecryptedStringSet(cipherText, ring);
+            value = members == null || members.contains(null) ? null : members;
+        } else if (cipherText instanceof String) {
+            value = decryptTyped((String) cipherText, ring);
+        }
+        if (value == null) {
+            final OnDecodeFailureListener listener = decodeFailureListener;
+            if (listener != null) {
+                listener.onDecodeFailure(hashedKey, cipherText);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return the decrypted String or StringSet stored under hashedKey, null if missing or it
+     * can't be decrypted
+     */
+    Object readDecrypted(String hashedKey) {
+        final Object cipherText = isExpired(hashedKey) ? null : getRawValue(hashedKey);
+        if (cipherText instanceof Set) {
+            final Set<String> decrypted = getDecryptedStringSet(cipherText);
+            return decrypted == null || decrypted.contains(null) ? null : Collections.unmodifiableSet(decrypted);
+        }
+        return cipherText == null ? null : decryptForRead(hashedKey, (String) cipherText);
+    }
+
+    private void recordRead(String hashedKey) {
+        prefetchCache.recordRead(hashedKey);
+        if (prefetchCache.recordingExpired()) {
+            markStartupComplete();
+        }
+    }
+
+
+    /**
+     * Uses device and application values to generate the pref key for the encryption key
+     *
+     * @param context        should be ApplicationContext not Activity
+     * @param iterationCount The iteration count for the keys generation
+     * @return String to be used as the AESkey Pref key
+     * @throws GeneralSecurityException if something goes wrong in generation
+     */
+    private String generateAesKeyName(Context context, int iterationCount) throws GeneralSecurityException {
+        final String password = context.getPackageName();
+        final byte[] salt = getSalt(context).getBytes();
+        AesCbcWithIntegrity.SecretKeys generatedKeyName = AesCbcWithIntegrity.generateKeyFromPassword(password, salt, iterationCount);
+
+        return hashPrefKey(generatedKeyName.toString());
+    }
+
+    /**
+     * Gets the salt value
+     *
+     * @param context used for accessing hardware serial number (if accessible) or the DeviceId in case salt is not set
+     * @return
+     */
+    private String getSalt(Context context) {
+        if (TextUtils.isEmpty(this.salt)) {
+            Log.w(TAG, "Using the default generated Salt, it's more forward compatible to pass your own salt or use password");
+            return Utils.getDefaultSalt(context);
+        } else {
+            return this.salt;
+        }
+    }
+
+
+    /**
+     * The Pref keys must be same each time so we're using a hash to obscure the stored value
+     *
+     * @param prefKey
+     * @return SHA-256 Hash of the preference key
+     */
+    public static String hashPrefKey(String prefKey) {
+        try {
+            return hashPrefKey(prefKey, MessageDigest.getInstance("SHA-256"));
+        } catch (NoSuchAlgorithmException e) {
+            if (sLoggingEnabled) {
+                Log.w(TAG, "Problem generating hash", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param digest a SHA-256 digest, reused when hashing several keys
+     */
+    static String hashPrefKey(String prefKey, MessageDigest digest) {
+        try {
+            byte[] bytes = prefKey.getBytes("UTF-8");
+            digest.reset();
+            digest.update(bytes, 0, bytes.length);
+
+            return Base64.encodeToString(digest.digest(), AesCbcWithIntegrity.BASE64_FLAGS);
+
+        } catch (UnsupportedEncodingException e) {
+            if (sLoggingEnabled) {
+                Log.w(TAG, "Problem generating hash", e);
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Encrypts a value the same way the matching {@link Editor} put method would, so it can be
+     * prepared off the writing thread and stored with {@link Editor#putEncryptedValue(String, Object)}.
+     *
+     * @param value String, Integer, Long, Float, Boolean or Set of Strings
+     * @return encrypted String, or Set of encrypted Strings for a StringSet
+     */
+    Object encryptValue(Object value) {
+        return encryptValue(value, keyRing);
+    }
+
+    private Object encryptValue(Object value, KeyRing ring) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Set) {
+            final Set<?> values = (Set<?>) value;
+            final Set<String> encryptedValues = new HashSet<String>(values.size());
+            for (Object member : values) {
+                encryptedValues.add(encrypt((String) member, ring));
+            }
+            return encryptedValues;
+        }
+        if (value instanceof byte[]) {
+            return encryptBytes((byte[]) value, ring);
+        }
+        return encryptTyped(value, ring);
+    }
+
+    /**
+     * Encrypts the value's text with its {@link TypeTag} in front, so {@link #getAll()} can
+     * return it as the type it was put as
+     */
+    private String encryptTyped(Object value, KeyRing ring) {
+        final byte[] text = String.valueOf(value).getBytes(UTF_8);
+        final byte[] plainBytes = new byte[text.length + 1];
+        plainBytes[0] = TypeTag.of(value);
+        System.arraycopy(text, 0, plainBytes, 1, text.length);
+        try {
+            return encryptBytes(plainBytes, ring, true);
+        } finally {
+            Arrays.fill(text, (byte) 0);
+            Arrays.fill(plainBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Like {@link #encrypt(String, KeyRing)} for raw bytes, without the UTF-8 step
+     */
+    private String encryptBytes(byte[] plainBytes, KeyRing ring) {
+        return encryptBytes(plainBytes, ring, false);
+    }
+
+    /**
+     * @param typed plainBytes start with a {@link TypeTag}
+     */
+    private String encryptBytes(byte[] plainBytes, KeyRing ring, boolean typed) {
+        if (plainBytes == null || plainBytes.length == 0) {
+            return plainBytes == null ? null : "";
+        }
+        try {
+            final int threshold = compressionThreshold;
+            final byte[] compressed = threshold >= 0 && plainBytes.length >= threshold ? Compression.compress(plainBytes) : null;
+            if (compressed != null) {
+                return ring.addHeader(AesCbcWithIntegrity.encrypt(compressed, ring.getCurrentKeys()).toString(), true, typed);
+            }
+            return ring.addHeader(AesCbcWithIntegrity.encrypt(plainBytes, ring.getCurrentKeys()).toString(), false, typed);
+        } catch (GeneralSecurityException e) {
+            if (sLoggingEnabled) {
+                Log.w(TAG, "encryptBytes", e);
+            }
+        }
+        return null;
+    }
+
+    private String encrypt(String cleartext) {
+        return encrypt(cleartext, keyRing);
+    }
+
+    private String encrypt(String cleartext, KeyRing ring) {
+        if (TextUtils.isEmpty(cleartext)) {
+            return cleartext;
+        }
+        final int threshold = compressionThreshold;
+        if (threshold >= 0 && cleartext.length() >= threshold) {
+            return encryptBytes(cleartext.getBytes(UTF_8), ring);
+        }
+        try {
+            return ring.addHeader(AesCbcWithIntegrity.encrypt(cleartext, ring.getCurrentKeys()).toString());
+        } catch (GeneralSecurityException e) {
+            if (sLoggingEnabled) {
+                Log.w(TAG, "encrypt", e);
+            }
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            if (sLoggingEnabled) {
+                Log.w(TAG, "encrypt", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param ciphertext
+     * @return decrypted plain text, unless decryption fails, in which case null
+     */
+    private String decrypt(final String ciphertext) {
+        return decrypt(ciphertext, keyRing);
+    }
+
+    /**
+     * @param ciphertext
+     * @param ring       keys to decrypt with, the value's header says which one
+     * @return decrypted plain text, unless decryption fails, in which case null
+     */
+    private String decrypt(final String ciphertext, KeyRing ring) {
+        if (TextUtils.isEmpty(ciphertext)) {
+            return ciphertext;
+        }
+        if (KeyRing.isCompressed(ciphertext) || KeyRing.isTyped(ciphertext)) {
+            final byte[] plainBytes = decryptBytes(ciphertext, ring);
+            return plainBytes != null ? new String(plainBytes, UTF_8) : null;
+        }
+        final AesCbcWithIntegrity.SecretKeys keys = keysFor(ciphertext, ring);
+        if (keys == null) {
+            return null;
+        }
+        try {
+            AesCbcWithIntegrity.CipherTextIvMac cipherTextIvMac = new AesCbcWithIntegrity.CipherTextIvMac(KeyRing.stripHeader(ciphertext));
+
+            return AesCbcWithIntegrity.decryptString(cipherTextIvMac, keys);
+        } catch (GeneralSecurityException | UnsupportedEncodingException e) {
+            if (sLoggingEnabled) {
+                Log.w(TAG, "decrypt", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Like {@link #decrypt(String, KeyRing)} without the UTF-8 step
+     *
+     * @return decrypted bytes, unless decryption fails, in which case null
+     */
+    private byte[] decryptBytes(final String ciphertext, KeyRing ring) {
+        final byte[] payload = decryptPayload(ciphertext, ring);
+        if (payload == null || payload.length == 0 || !KeyRing.isTyped(ciphertext)) {
+            return payload;
+        }
+        try {
+            return Arrays.copyOfRange(payload, 1, payload.length);
+        } finally {
+            Arrays.fill(payload, (byte) 0);
+        }
+    }
+
+    /**
+     * @return the value as the type it was put as, a String if it has no type tag, or null if it
+     * can't be decrypted
+     */
+    private Object decryptTyped(String ciphertext, KeyRing ring) {
+        if (!KeyRing.isTyped(ciphertext)) {
+            return decrypt(ciphertext, ring);
+        }
+        final byte[] payload = decryptPayload(ciphertext, ring);
+        if (payload == null || payload.length == 0) {
+            return null;
+        }
+        try {
+            return TypeTag.decode(payload[0], new String(payload, 1, payload.length - 1, UTF_8));
+        } finally {
+            Arrays.fill(payload, (byte) 0);
+        }
+    }
+
+    /**
+     * Decrypts a stored String value with one ring and encrypts it with another, keeping its type
+     * tag. As bytes, so values from putBytes needn't be valid UTF-8.
+     *
+     * @return null if it can't be decrypted
+     */
+    private String reEncrypt(String ciphertext, KeyRing from, KeyRing to) {
+        final byte[] payload = decryptPayload(ciphertext, from);
+        if (payload == null) {
+            return null;
+        }
+        try {
+            return encryptBytes(payload, to, KeyRing.isTyped(ciphertext));
+        } finally {
+            Arrays.fill(payload, (byte) 0);
+        }
+    }
+
+    /**
+     * @return the decrypted, decompressed plain text including any type tag, null if decryption
+     * fails
+     */
+    private byte[] decryptPayload(final String ciphertext, KeyRing ring) {
+        if (TextUtils.isEmpty(ciphertext)) {
+            return ciphertext == null ? null : new byte[0];
+        }
+        final AesCbcWithIntegrity.SecretKeys keys = keysFor(ciphertext, ring);
+        if (keys == null) {
+            return null;
+        }
+        try {
+            final byte[] plainBytes = AesCbcWithIntegrity.decrypt(new AesCbcWithIntegrity.CipherTextIvMac(KeyRing.stripHeader(ciphertext)), keys);
+            if (KeyRing.isCompressed(ciphertext)) {
+                try {
+                    return Compression.decompress(plainBytes);
+                } finally {
+                    Arrays.fill(plainBytes, (byte) 0);
+                }
+            }
+            return plainBytes;
+        } catch (GeneralSecurityException | IllegalArgumentException | DataFormatException e) {
+            if (sLoggingEnabled) {
+                Log.w(TAG, "decryptPayload", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the key the value was encrypted with, per its header, or null if the ring doesn't have it
+     * @throws NullPointerException if the value is under the current key and it was destroyed
+     */
+    private AesCbcWithIntegrity.SecretKeys keysFor(String ciphertext, KeyRing ring) {
+        final int keyId = KeyRing.keyIdOf(ciphertext);
+        if (keyId != KeyRing.NO_KEY_ID && keyId != ring.getCurrentId() && ring.getKeys(keyId) == null) {
+            //the value may have been written after the ring was read, e.g. during a re-key
+            ring = keyRing;
+        }
+        if (keyId == KeyRing.NO_KEY_ID || (keyId != ring.getCurrentId() && ring.getKeys(keyId) == null)) {
+            if (sLoggingEnabled) {
+                Log.w(TAG, "decrypt: no key for value with key id " + keyId);
+            }
+            return null;
+        }
+        if (keyId == ring.getCurrentId() && ring.isDestroyed()) {
+            //reads after destroyKeys() fail, rather than looking like missing values
+            throw new NullPointerException("Keys have been destroyed");
+        }
+        return ring.getKeys(keyId);
+    }
+
+    /**
+     * @return the index of entries with a time to live, parsed again only if it has changed
+     */
+    private ExpiryIndex expiries() {
+        final ExpiryIndex cached = expiryIndex;
+        final ExpiryIndex index = ExpiryIndex.load(sharedPreferences.getString(EXPIRIES_HASHED_KEY, null), cached);
+        if (index != cached) {
+            expiryIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * @return true if the entry had a time to live that is up, it reads as absent until the
+     * sweeper removes it
+     */
+    private boolean isExpired(String hashedKey) {
+        final ExpiryIndex index = expiries();
+        return !index.isEmpty() && index.isExpired(hashedKey, System.currentTimeMillis());
+    }
+
+    private String getUnexpiredString(String hashedKey) {
+        return isExpired(hashedKey) ? null : sharedPreferences.getString(hashedKey, null);
+    }
+
+    private void putExpiries(SharedPreferences.Editor editor, ExpiryIndex index) {
+        final String serialized = index.serialize();
+        if (serialized != null) {
+            editor.putString(EXPIRIES_HASHED_KEY, serialized);
+        } else {
+            editor.remove(EXPIRIES_HASHED_KEY);
+        }
+    }
+
+    /**
+     * @return when the next entry expires, 0 if none have a time to live. Used by {@link ExpirySweeper}.
+     */
+    long nextExpiry() {
+        return expiries().nextExpiry();
+    }
+
+    /**
+     * Removes entries whose time to live is up, in a single commit. Used by {@link ExpirySweeper}.
+     *
+     * @param max most entries to remove
+     * @return number of entries removed
+     */
+    @SuppressLint("CommitPrefEdits")
+    int removeExpired(int max) {
+        synchronized (writeLock) {
+            final ExpiryIndex index = expiries();
+            final List<String> expired = index.expired(System.currentTimeMillis(), max);
+            if (expired.isEmpty()) {
+                return 0;
+            }
+            final SharedPreferences.Editor editor = sharedPreferences.edit();
+            final Map<String, Long> changes = new HashMap<>(expired.size());
+            for (String hashedKey : expired) {
+                editor.remove(hashedKey);
+                changes.put(hashedKey, 0L);
+            }
+            putExpiries(editor, index.with(changes, false));
+            //committed rather than applied, expired secrets shouldn't linger on disk
+            return editor.commit() ? expired.size() : 0;
+        }
+    }
+
+    /**
+     * Schedules the sweeper for nextExpiry, creating it only if something expires
+     */
+    private void scheduleExpirySweep(long nextExpiry) {
+        if (nextExpiry == 0) {
+            return;
+        }
+        synchronized (this) {
+            if (expirySweeper == null) {
+                expirySweeper = new ExpirySweeper(this);
+            }
+        }
+        expirySweeper.schedule(nextExpiry);
+    }
+
+    /**
+     * Return the map of all the objects that are stored in the shared preferences.
+     * @return Map<K, V> where,
+     * K is the hashed key
+     * V is the decrypted value, as the String, Integer, Long, Float, Boolean or StringSet it was
+     * put as. Values written before type tags, and those from putBytes/putChars, are Strings.
+     * Values that can't be decoded are left out and reported to the
+     * {@link #setOnDecodeFailureListener(OnDecodeFailureListener) OnDecodeFailureListener}.
+     */
+    @Override
+    public Map<String, ?> getAll() {
+        return getAll(false);
+    }
+
+    /**
+     * @param cancellable if the thread is interrupted, stop decrypting with a
+     *                    {@link CancellationException}
+     */
+    Map<String, ?> getAll(boolean cancellable) {
+        //wont be null as per http://androidxref.com/5.1.0_r1/xref/frameworks/base/core/java/android/app/SharedPreferencesImpl.java
+        final Map<String, ?> encryptedMap = sharedPreferences.getAll();
+
+        final Map<String, Object> decryptedMap = new HashMap<>(
+                encryptedMap.size());
+        final KeyRing ring = keyRing;
+        if (ring.isDestroyed()) {
+            return decryptedMap;
+        }
+        final ExpiryIndex expiries = expiries();
+        final long now = System.currentTimeMillis();
+
+        for (Entry<String, ?> entry : encryptedMap.entrySet()) {
+            throwIfCancelled(cancellable);
+            final Object cipherText = entry.getValue();
+            if (cipherText == null || isCurrentKeys(cipherText, ring) || RESERVED_KEYS.contains(entry.getKey())
+                    || expiries.isExpired(entry.getKey(), now)) {
+                continue;
+            }
+            final Object value = decodeStored(entry.getKey(), cipherText, ring);
+            if (value != null) {
+                decryptedMap.put(entry.getKey(), value);
+                repairIfStale(entry.getKey(), cipherText);
+            }
+        }
+
+        return decryptedMap;
+    }
+
+    @Override
+    public String getString(String key, String defaultValue) {
+        return getStringNamed(hashKey(key), defaultValue);
+    }
+
+    /**
+     * Like {@link #getString(String, String)} without hashing the key, see {@link HashedKey}
+     */
+    public String getString(HashedKey key, String defaultValue) {
+        return getStringNamed(hashKey(key), defaultValue);
+    }
+
+    private String getStringNamed(String hashedKey, String defaultValue) {
+        final String encryptedValue = getUnexpiredString(hashedKey);
+
+        String decryptedValue = decryptForRead(hashedKey, encryptedValue);
+        repairIfStale(hashedKey, encryptedValue);
+        if (encryptedValue != null && decryptedValue != null) {
+            return decryptedValue;
+        } else {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Added to get a values as as it can be useful to store values that are
+     * already encrypted and encoded
+     *
+     * @param key          pref key
+     * @param defaultValue
+     * @return Encrypted value of the key or the defaultValue if no value exists
+     */
+    public String getEncryptedString(String key, String defaultValue) {
+        final String encryptedValue = getUnexpiredString(hashKey(key));
+        return (encryptedValue != null) ? encryptedValue : defaultValue;
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public Set<String> getStringSet(String key, Set<String> defaultValues) {
+        return getStringSetNamed(hashKey(key), defaultValues);
+    }
+
+    /**
+     * Like {@link #getStringSet(String, Set)} without hashing the key, see {@link HashedKey}
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public Set<String> getStringSet(HashedKey key, Set<String> defaultValues) {
+        return getStringSetNamed(hashKey(key), defaultValues);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @SuppressWarnings("unchecked")
+    private Set<String> getStringSetNamed(String hashedKey, Set<String> defaultValues) {
+        final Set<String> encryptedSet = isExpired(hashedKey) ? null : sharedPreferences.getStringSet(hashedKey, null);
+        if (encryptedSet == null) {
+            return defaultValues;
+        }
+        recordRead(hashedKey);
+        final Object prefetched = prefetchCache.get(hashedKey, encryptedSet);
+        if (prefetched instanceof Set) {
+            return new HashSet<String>((Set<String>) prefetched);
+        }
+        final Set<String> decryptedSet = new HashSet<String>(
+                encryptedSet.size());
+        for (String encryptedValue : encryptedSet) {
+            decryptedSet.add(decrypt(encryptedValue));
+        }
+        repairIfStale(hashedKey, encryptedSet);
+        return decryptedSet;
+    }
+
+    @Override
+    public int getInt(String key, int defaultValue) {
+        return getIntNamed(hashKey(key), defaultValue);
+    }
+
+    /**
+     * Like {@link #getInt(String, int)} without hashing the key, see {@link HashedKey}
+     */
+    public int getInt(HashedKey key, int defaultValue) {
+        return getIntNamed(hashKey(key), defaultValue);
+    }
+
+    private int getIntNamed(String hashedKey, int defaultValue) {
+        final String encryptedValue = getUnexpiredString(hashedKey);
+        if (encryptedValue == null) {
+            return defaultValue;
+        }
+        repairIfStale(hashedKey, encryptedValue);
+        try {
+            return Integer.parseInt(decryptForRead(hashedKey, encryptedValue));
+        } catch (NumberFormatException e) {
+            throw new ClassCastException(e.getMessage());
+        }
+    }
+
+    @Override
+    public long getLong(String key, long defaultValue) {
+        return getLongNamed(hashKey(key), defaultValue);
+    }
+
+    /**
+     * Like {@link #getLong(String, long)} without hashing the key, see {@link HashedKey}
+     */
+    public long getLong(HashedKey key, long defaultValue) {
+        return getLongNamed(hashKey(key), defaultValue);
+    }
+
+    private long getLongNamed(String hashedKey, long defaultValue) {
+        final String encryptedValue = getUnexpiredString(hashedKey);
+        if (encryptedValue == null) {
+            return defaultValue;
+        }
+        repairIfStale(hashedKey, encryptedValue);
+        try {
+            return Long.parseLong(decryptForRead(hashedKey, encryptedValue));
+        } catch (NumberFormatException e) {
+            throw new ClassCastException(e.getMessage());
+        }
+    }
+
+    @Override
+    public float getFloat(String key, float defaultValue) {
+        return getFloatNamed(hashKey(key), defaultValue);
+    }
+
+    /**
+     * Like {@link #getFloat(String, float)} without hashing the key, see {@link HashedKey}
+     */
+    public float getFloat(HashedKey key, float defaultValue) {
+        return getFloatNamed(hashKey(key), defaultValue);
+    }
+
+    private float getFloatNamed(String hashedKey, float defaultValue) {
+        final String encryptedValue = getUnexpiredString(hashedKey);
+        if (encryptedValue == null) {
+            return defaultValue;
+        }
+        repairIfStale(hashedKey, encryptedValue);
+        try {
+            return Float.parseFloat(decryptForRead(hashedKey, encryptedValue));
+        } catch (NumberFormatException e) {
+            throw new ClassCastException(e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defaultValue) {
+        return getBooleanNamed(hashKey(key), defaultValue);
+    }
+
+    /**
+     * Like {@link #getBoolean(String, boolean)} without hashing the key, see {@link HashedKey}
+     */
+    public boolean getBoolean(HashedKey key, boolean defaultValue) {
+        return getBooleanNamed(hashKey(key), defaultValue);
+    }
+
+    private boolean getBooleanNamed(String hashedKey, boolean defaultValue) {
+        final String encryptedValue = getUnexpiredString(hashedKey);
+        if (encryptedValue == null) {
+            return defaultValue;
+        }
+        repairIfStale(hashedKey, encryptedValue);
+        try {
+            return Boolean.parseBoolean(decryptForRead(hashedKey, encryptedValue));
+        } catch (NumberFormatException e) {
+            throw new ClassCastException(e.getMessage());
+        }
+    }
+
+    /**
+     * @param key          pref key
+     * @param defaultValue returned if there is no value or it can't be decrypted
+     * @return a new array holding the value stored with {@link Editor#putBytes(String, byte[])}
+     */
+    public byte[] getBytes(String key, byte[] defaultValue) {
+        final String hashedKey = hashKey(key);
+        final String encryptedValue = getUnexpiredString(hashedKey);
+        if (encryptedValue == null) {
+            return defaultValue;
+        }
+        recordRead(hashedKey);
+        repairIfStale(hashedKey, encryptedValue);
+        final byte[] decrypted = decryptBytes(encryptedValue, keyRing);
+        return decrypted != null ? decrypted : defaultValue;
+    }
+
+    /**
+     * Decrypts the value stored with {@link Editor#putBytes(String, byte[])} straight into buffer,
+     * without allocating a copy of it, so the buffer can be reused and cleared after use.
+     *
+     * @param key    pref key
+     * @param buffer receives the value
+     * @param offset where in buffer to write it
+     * @return the length of the value, or -1 if there is no value or it can't be decrypted. If the
+     * length is more than {@code buffer.length - offset} nothing is written.
+     */
+    public int getBytes(String key, byte[] buffer, int offset) {
+        final String hashedKey = hashKey(key);
+        final String encryptedValue = getUnexpiredString(hashedKey);
+        if (encryptedValue == null) {
+            return -1;
+        }
+        recordRead(hashedKey);
+        repairIfStale(hashedKey, encryptedValue);
+        if (encryptedValue.isEmpty()) {
+            return 0;
+        }
+        if (KeyRing.isCompressed(encryptedValue) || KeyRing.isTyped(encryptedValue)) {
+            //has to be decompressed, or have its type tag dropped, from a copy
+            final byte[] decrypted = decryptBytes(encryptedValue, keyRing);
+            if (decrypted == null) {
+                return -1;
+            }
+            if (decrypted.length <= buffer.length - offset) {
+                System.arraycopy(decrypted, 0, buffer, offset, decrypted.length);
+            }
+            Arrays.fill(decrypted, (byte) 0);
+            return decrypted.length;
+        }
+        final KeyRing ring = keyRing;
+        final AesCbcWithIntegrity.SecretKeys keys = keysFor(encryptedValue, ring);
+        if (keys == null) {
+            return -1;
+        }
+        try {
+            return ByteValueCipher.decryptInto(new AesCbcWithIntegrity.CipherTextIvMac(KeyRing.stripHeader(encryptedValue)),
+                    keys, buffer, offset);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            if (sLoggingEnabled) {
+                Log.w(TAG, "getBytes", e);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param key          pref key
+     * @param defaultValue returned if there is no value or it can't be decrypted
+     * @return a new array holding the value stored with {@link Editor#putChars(String, char[])}
+     */
+    public char[] getChars(String key, char[] defaultValue) {
+        final byte[] bytes = getBytes(key, null);
+        if (bytes == null) {
+            return defaultValue;
+        }
+        try {
+            final char[] chars = new char[ByteValueCipher.decodeInto(bytes, bytes.length, new char[0], 0)];
+            ByteValueCipher.decodeInto(bytes, bytes.length, chars, 0);
+            return chars;
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Decrypts the value stored with {@link Editor#putChars(String, char[])} into buffer, so
+     * the buffer can be reused and cleared after use.
+     *
+     * @param key    pref key
+     * @param buffer receives the value
+     * @param offset where in buffer to write it
+     * @return the number of chars in the value, or -1 if there is no value or it can't be
+     * decrypted. If it's more than {@code buffer.length - offset} nothing is written.
+     */
+    public int getChars(String key, char[] buffer, int offset) {
+        final byte[] bytes = getBytes(key, null);
+        if (bytes == null) {
+            return -1;
+        }
+        try {
+            return ByteValueCipher.decodeInto(bytes, bytes.length, buffer, offset);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Reads an object stored with {@link Editor#putObject(String, Object, ObjectCodec)}. All of
+     * it is decrypted and authenticated at once, and the decoded object is kept while the file
+     * holds the same ciphertext, so reading it again costs no decryption. The same instance is
+     * returned until the value changes, so don't modify it.
+     *
+     * @param key   pref key
+     * @param codec the codec it was put with
+     * @return the object, or null if there is no value or it can't be decrypted or decoded
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getObject(String key, ObjectCodec<T> codec) {
+        final String hashedKey = hashKey(key);
+        final String encryptedValue = getUnexpiredString(hashedKey);
+        if (encryptedValue == null) {
+            return null;
+        }
+        recordRead(hashedKey);
+        final Object cached = prefetchCache.getObject(hashedKey, encryptedValue, codec);
+        if (cached != null) {
+            return (T) cached;
+        }
+        repairIfStale(hashedKey, encryptedValue);
+        final byte[] decrypted = decryptBytes(encryptedValue, keyRing);
+        if (decrypted == null) {
+            return null;
+        }
+        try {
+            final T object = codec.decode(new DataInputStream(new ByteArrayInputStream(decrypted)));
+            prefetchCache.putObject(hashedKey, encryptedValue, codec, object);
+            return object;
+        } catch (IOException | RuntimeException e) {
+            if (sLoggingEnabled) {
+                Log.w(TAG, "getObject", e);
+            }
+            return null;
+        } finally {
+            Arrays.fill(decrypted, (byte) 0);
+        }
+    }
+
+    /**
+     * Reads several keys at once. The keys are hashed together, the ciphertexts are looked up by
+     * name, and batches of {@link #PARALLEL_DECRYPT_THRESHOLD} or more keys are decrypted in
+     * parallel.
+     *
+     * @param batch the keys to read with their types and defaults
+     * @return the values, or the defaults where there is no value
+     * @throws ClassCastException if a stored value isn't of the requested type, like the single getters
+     */
+    public PreferenceBatch.Values getValues(PreferenceBatch batch) {
+        final Map<String, PreferenceBatch.Request> requests = batch.getRequests();
+        final List<String> keys = new ArrayList<>(requests.keySet());
+        final String[] hashedKeys = hashedNames(keys, requests);
+
+        //a lookup per key, getAll() would copy the whole file
+        final ExpiryIndex expiries = expiries();
+        final long now = System.currentTimeMillis();
+        final Object[] cipherTexts = new Object[hashedKeys.length];
+        for (int i = 0; i < hashedKeys.length; i++) {
+            cipherTexts[i] = expiries.isExpired(hashedKeys[i], now) ? null
+                    : getRawValue(hashedKeys[i], requests.get(keys.get(i)).type == Set.class);
+        }
+
+        final Object[] plainTexts = new Object[hashedKeys.length];
+        if (hashedKeys.length < PARALLEL_DECRYPT_THRESHOLD) {
+            decryptRange(hashedKeys, cipherTexts, plainTexts, 0, hashedKeys.length);
+        } else {
+            decryptInParallel(hashedKeys, cipherTexts, plainTexts);
+        }
+
+        final Map<String, Object> values = new HashMap<>(keys.size());
+        for (int i = 0; i < hashedKeys.length; i++) {
+            final String key = keys.get(i);
+            final PreferenceBatch.Request request = requests.get(key);
+            values.put(key, plainTexts[i] == null ? request.defaultValue : convert(plainTexts[i], request.type));
+        }
+        return new PreferenceBatch.Values(values);
+    }
+
+    /**
+     * @return the stored names of keys, hashing only those not added as a {@link HashedKey}
+     */
+    private String[] hashedNames(List<String> keys, Map<String, PreferenceBatch.Request> requests) {
+        final List<String> toHash = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            if (requests.get(key).hashedKey == null) {
+                toHash.add(key);
+            }
+        }
+        if (toHash.size() == keys.size()) {
+            return prefetchCache.hashedNames(keys);
+        }
+        final String[] hashed = prefetchCache.hashedNames(toHash);
+        final String[] hashedKeys = new String[keys.size()];
+        int next = 0;
+        for (int i = 0; i < hashedKeys.length; i++) {
+            final HashedKey hashedKey = requests.get(keys.get(i)).hashedKey;
+            hashedKeys[i] = hashedKey != null ? hashKey(hashedKey) : hashed[next++];
+        }
+        return hashedKeys;
+    }
+
+    private void decryptInParallel(final String[] hashedKeys, final Object[] cipherTexts, final Object[] plainTexts) {
+        final ExecutorService executor = getDecryptExecutor();
+        //the calling thread takes a share too
+        final int shares = Runtime.getRuntime().availableProcessors() > 1 ? Math.min(Runtime.getRuntime().availableProcessors(), 4) : 1;
+        final int shareSize = (hashedKeys.length + shares - 1) / shares;
+        final List<Future<?>> futures = new ArrayList<>(shares - 1);
+        for (int from = shareSize; from < hashedKeys.length; from += shareSize) {
+            final int start = from;
+            final int end = Math.min(from + shareSize, hashedKeys.length);
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    decryptRange(hashedKeys, cipherTexts, plainTexts, start, end);
+                }
+            }));
+        }
+        decryptRange(hashedKeys, cipherTexts, plainTexts, 0, Math.min(shareSize, hashedKeys.length));
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while decrypting", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Decrypts cipherTexts[from, to) into plainTexts, leaving null where there's no value
+     */
+    private void decryptRange(String[] hashedKeys, Object[] cipherTexts, Object[] plainTexts, int from, int to) {
+        for (int i = from; i < to; i++) {
+            final Object cipherText = cipherTexts[i];
+            if (cipherText instanceof String) {
+                plainTexts[i] = decryptForRead(hashedKeys[i], (String) cipherText);
+            } else if (cipherText instanceof Set) {
+                recordRead(hashedKeys[i]);
+                final Object prefetched = prefetchCache.get(hashedKeys[i], cipherText);
+                plainTexts[i] = prefetched instanceof Set ? new HashSet<>((Set<?>) prefetched) : getDecryptedStringSet(cipherText);
+            }
+            repairIfStale(hashedKeys[i], cipherText);
+        }
+    }
+
+    /**
+     * Converts decrypted text to the type asked for, the same way the single getters do
+     */
+    static Object convert(Object plainText, Class<?> type) {
+        if (type == Set.class || plainText instanceof Set) {
+            if (type != Set.class || !(plainText instanceof Set)) {
+                throw new ClassCastException("Stored value isn't a " + type.getSimpleName());
+            }
+            return plainText;
+        }
+        final String text = (String) plainText;
+        try {
+            if (type == Integer.class) {
+                return Integer.parseInt(text);
+            } else if (type == Long.class) {
+                return Long.parseLong(text);
+            } else if (type == Float.class) {
+                return Float.parseFloat(text);
+            } else if (type == Boolean.class) {
+                return Boolean.parseBoolean(text);
+            }
+        } catch (NumberFormatException e) {
+            throw new ClassCastException(e.getMessage());
+        }
+        return text;
+    }
+
+    private synchronized ExecutorService getDecryptExecutor() {
+        if (decryptExecutor == null) {
+            decryptExecutor = Executors.newFixedThreadPool(3, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SecurePreferences-decrypt");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return decryptExecutor;
+    }
+
+    /**
+     * Queues a value still encrypted under a retired key to be re-encrypted with the current one
+     *
+     * @param hashedKey   pref key the value was read from
+     * @param cipherText  the stored String or StringSet
+     */
+    private void repairIfStale(String hashedKey, Object cipherText) {
+        final KeyRing ring = keyRing;
+        if (!ring.hasRetiredKeys()) {
+            return;
+        }
+        if (isStale(ring, cipherText)) {
+            getKeyRotationSweeper().repair(hashedKey);
+        }
+    }
+
+    /**
+     * @return true if stored is the generated key itself, never once the keys are destroyed
+     */
+    private static boolean isCurrentKeys(Object stored, KeyRing ring) {
+        final AesCbcWithIntegrity.SecretKeys keys = ring.getCurrentKeys();
+        return keys != null && keys.toString().equals(stored);
+    }
+
+    private static boolean isStale(KeyRing ring, Object cipherText) {
+        if (cipherText instanceof Set) {
+            for (Object member : (Set<?>) cipherText) {
+                if (member instanceof String && ring.isStale((String) member)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return cipherText instanceof String && ring.isStale((String) cipherText);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        final String hashedKey = hashKey(key);
+        return !isExpired(hashedKey) && sharedPreferences.contains(hashedKey);
+    }
+
+
+    /**
+     * Re-encrypts all the current prefs with the key generated from new password, in a single commit so
+     * reads from other threads carry on throughout and never see a missing value.
+     * This method can be used if switching from the generated key to a key derived from user password
+     * <p>
+     * Note: the pref keys will remain the same, they don't depend on the key even with
+     * {@link KeyedHashKeyNameScheme}.
+     *
+     * @param newPassword
+     * @param context        should be ApplicationContext not Activity
+     * @param iterationCount The iteration count for the keys generation
+     */
+    @SuppressLint("CommitPrefEdits")
+    public void handlePasswordChange(String newPassword, Context context, int iterationCount) throws GeneralSecurityException {
+        handlePasswordChange(newPassword, context, iterationCount, false);
+    }
+
+    /**
+     * @param cancellable if the thread is interrupted before the commit, give up with a
+     *                    {@link CancellationException} and leave everything under the old key
+     */
+    void handlePasswordChange(String newPassword, Context context, int iterationCount, boolean cancellable) throws GeneralSecurityException {
+        handlePasswordChange(newPassword, context, iterationCount, false, cancellable);
+    }
+
+    /**
+     * @param storeIterationCount store the iteration count with the file even if it hasn't been
+     *                            calibrated before
+     */
+    private void handlePasswordChange(String newPassword, Context context, int iterationCount, boolean storeIterationCount,
+                                      boolean cancellable) throws GeneralSecurityException {
+
+        final byte[] salt = getSalt(context).getBytes();
+        AesCbcWithIntegrity.SecretKeys newKey = AesCbcWithIntegrity.generateKeyFromPassword(newPassword, salt, iterationCount);
+
+        synchronized (writeLock) {
+            reEncryptAll(newKey, iterationCount, storeIterationCount, cancellable);
+        }
+    }
+
+    /**
+     * Re-encrypts every value with newKey in a single commit. Reads carry on without locking
+     * throughout: a ring holding both keys is published before the commit so old and new values
+     * both decrypt, and the old key is only dropped once every value has been replaced.
+     */
+    @SuppressWarnings("unchecked")
+    private void reEncryptAll(AesCbcWithIntegrity.SecretKeys newKey, int iterationCount, boolean storeIterationCount,
+                              boolean cancellable) throws GeneralSecurityException {
+        //everything pending must be on disk before it's re-encrypted
+        flush();
+
+        final KeyRing oldRing = keyRing;
+        final KeyRing transitionRing = oldRing.rotate(newKey);
+        final KeyRing newRing = transitionRing.withoutRetiredKeys();
+
+        final SharedPreferences prefs = sharedPreferences;
+        final Map<String, ?> allOfThePrefs = prefs.getAll();
+        final SharedPreferences.Editor updatedEditor = prefs.edit();
+        for (Entry<String, ?> entry : allOfThePrefs.entrySet()) {
+            throwIfCancelled(cancellable);
+            final String prefKey = entry.getKey();
+            final Object prefValue = entry.getValue();
+            if (RESERVED_KEYS.contains(prefKey)) {
+                //metadata isn't encrypted, it stays as is
+                continue;
+            }
+            if (prefValue instanceof String) {
+                //the generated key and anything else that doesn't decrypt is removed
+                updatedEditor.putString(prefKey, reEncrypt((String) prefValue, oldRing, newRing));
+            } else if (prefValue instanceof Set) {
+                final Set<String> plainText = getDecryptedStringSet(prefValue, oldRing);
+                if (plainText != null && !plainText.contains(null)) {
+                    updatedEditor.putStringSet(prefKey, (Set<String>) encryptValue(plainText, newRing));
+                } else {
+                    updatedEditor.remove(prefKey);
+                }
+            } else {
+                updatedEditor.remove(prefKey);
+            }
+        }
+        //a calibrated file must open with the count it was re-keyed with, so it's written in the
+        //same commit as the values
+        if (storeIterationCount || IterationCountCalibrator.getStoredIterationCount(prefs) > 0) {
+            updatedEditor.putString(hashPrefKey(IterationCountCalibrator.ITERATION_COUNT_PREF_KEY), Integer.toString(iterationCount));
+        }
+        updatedEditor.putString(hashPrefKey(KeyRing.KEY_RING_PREF_KEY), newRing.serialize());
+        //the key name secret is metadata too, re-wrapped rather than re-encrypted above
+        putKeyNameScheme(updatedEditor, getKeyNameScheme(), newRing);
+
+        keyRing = transitionRing;
+        if (!updatedEditor.commit()) {
+            //the file still holds values under the old key
+            keyRing = oldRing;
+            throw new GeneralSecurityException("Re-encrypted prefs not committed to prefs");
+        }
+        keyRing = newRing;
+        generatedKeyName = null;
+        prefetchCache.clearDecrypted();
+    }
+
+    /**
+     * Starts using a newly generated key for all writes without re-encrypting anything up front.
+     * Existing values stay readable under the old key, are re-encrypted the next time they're
+     * read and by a throttled background sweep, after which the old key is discarded. Only for
+     * prefs using the generated key, password based prefs should use
+     * {@link #rotateKey(String, Context, int)}.
+     */
+    public void rotateKey() throws GeneralSecurityException {
+        if (generatedKeyName == null) {
+            throw new IllegalStateException("Not using a generated key, use rotateKey(newPassword, context, iterationCount) or rotateKey(keys)");
+        }
+        rotateKey(AesCbcWithIntegrity.generateKey());
+    }
+
+    /**
+     * Like {@link #handlePasswordChange(String, Context, int)}, but without the stop the world
+     * re-encryption of every value: the key derived from the new password is used for all writes
+     * straight away and existing values are re-encrypted lazily.
+     *
+     * @param newPassword
+     * @param context        should be ApplicationContext not Activity
      * @param iterationCount The iteration count for the keys generation
      */
-    @SuppressLint("CommitPrefEdits")
-    public void handlePasswordChange(String newPassword, Context context, int iterationCount) throws GeneralSecurityException {
+    public void rotateKey(String newPassword, Context context, int iterationCount) throws GeneralSecurityException {
+        final byte[] salt = getSalt(context).getBytes();
+        rotateKey(AesCbcWithIntegrity.generateKeyFromPassword(newPassword, salt, iterationCount), iterationCount);
+    }
+
+    /**
+     * Starts using newKeys for all writes, see {@link #rotateKey()}. The caller is responsible
+     * for supplying newKeys when constructing this file in future.
+     *
+     * @param newKeys the new current key
+     */
+    public void rotateKey(AesCbcWithIntegrity.SecretKeys newKeys) throws GeneralSecurityException {
+        rotateKey(newKeys, 0);
+    }
+
+    /**
+     * @param iterationCount the count newKeys were derived with, written in the same commit as
+     *                       the ring if the file has a calibrated count, or 0 to leave it
+     */
+    @SuppressLint("CommitPrefEdits")
+    private void rotateKey(AesCbcWithIntegrity.SecretKeys newKeys, int iterationCount) throws GeneralSecurityException {
+        synchronized (writeLock) {
+            final KeyRing rotated = keyRing.rotate(newKeys);
+            SharedPreferences.Editor editor = sharedPreferences.edit();
+            editor.putString(hashPrefKey(KeyRing.KEY_RING_PREF_KEY), rotated.serialize());
+            //a count committed apart from the ring would derive the wrong key if the process died between them
+            if (iterationCount > 0 && IterationCountCalibrator.getStoredIterationCount(sharedPreferences) > 0) {
+                editor.putString(hashPrefKey(IterationCountCalibrator.ITERATION_COUNT_PREF_KEY), Integer.toString(iterationCount));
+            }
+            //the sweep skips metadata and the retired key may be dropped before the file is reopened
+            putKeyNameScheme(editor, getKeyNameScheme(), rotated);
+            if (generatedKeyName != null) {
+                editor.putString(generatedKeyName, newKeys.toString());
+            }
+            if (!editor.commit()) {
+                throw new GeneralSecurityException("Rotated key not committed to prefs");
+            }
+            keyRing = rotated;
+        }
+        getKeyRotationSweeper().sweep();
+    }
+
+    /**
+     * Waits for the background re-encryption after a rotateKey call to finish, e.g. before
+     * backing up the file
+     *
+     * @param timeoutMillis maximum time to wait
+     * @return true if every value is under the current key and the retired keys have been
+     * dropped, false on timeout or if some values are still under a retired key
+     */
+    public boolean awaitKeyRotation(long timeoutMillis) throws InterruptedException {
+        final KeyRotationSweeper sweeper;
+        synchronized (this) {
+            sweeper = keyRotationSweeper;
+        }
+        if (sweeper != null && !sweeper.awaitIdle(timeoutMillis)) {
+            return false;
+        }
+        return !keyRing.hasRetiredKeys();
+    }
+
+    private synchronized KeyRotationSweeper getKeyRotationSweeper() {
+        if (keyRotationSweeper == null) {
+            keyRotationSweeper = new KeyRotationSweeper(this);
+        }
+        return keyRotationSweeper;
+    }
+
+    /**
+     * Re-encrypts the given entries under the current key if they're still under a retired one
+     * and haven't been changed since they were read. Used by {@link KeyRotationSweeper}.
+     *
+     * @param hashedKeys pref keys to check
+     * @return number of entries re-encrypted
+     */
+    @SuppressWarnings("unchecked")
+    int reEncryptStale(Collection<String> hashedKeys) {
+        int reEncrypted = 0;
+        synchronized (writeLock) {
+            final KeyRing ring = keyRing;
+            if (!ring.hasRetiredKeys()) {
+                return 0;
+            }
+            SharedPreferences.Editor editor = sharedPreferences.edit();
+            for (String hashedKey : hashedKeys) {
+                final Object cipherText = getRawValue(hashedKey);
+                if (RESERVED_KEYS.contains(hashedKey) || !isStale(ring, cipherText)) {
+                    continue;
+                }
+                if (cipherText instanceof Set) {
+                    final Set<String> decrypted = getDecryptedStringSet(cipherText);
+                    if (decrypted != null && !decrypted.contains(null)) {
+                        editor.putStringSet(hashedKey, (Set<String>) encryptValue(decrypted, ring));
+                        reEncrypted++;
+                    }
+                } else {
+                    final String updated = reEncrypt((String) cipherText, ring, ring);
+                    if (updated != null) {
+                        editor.putString(hashedKey, updated);
+                        reEncrypted++;
+                    }
+                }
+            }
+            if (reEncrypted > 0) {
+                //apply() as the values are already in memory, this mustn't hold up other writers
+                editor.apply();
+            }
+        }
+        return reEncrypted;
+    }
+
+    /**
+     * Reports what each entry costs in the file and where the bytes go, to find which values
+     * make a file large or slow to load, e.g.
+     * <pre>
+     * StorageProfile profile = securePrefs.profileStorage(Arrays.asList("token", "profile", "history"));
+     * for (StorageProfile.Entry entry : profile.getLargestEntries(5)) { ... }
+     * </pre>
+     * Every value is decrypted to find its type and plain size, call it off the main thread. Once
+     * the keys are destroyed every value is reported as unreadable.
+     * The member lists of namespaces opened with {@link #namespace(String)} are metadata.
+     *
+     * @param keys key names to report entries by, entries of other keys are reported by their
+     *             hashed name
+     */
+    public StorageProfile profileStorage(Collection<String> keys) {
+        final Map<String, String> keyNames = new HashMap<>(keys.size());
+        for (String key : keys) {
+            keyNames.put(hashKey(key), key);
+        }
+        final Set<String> membersKeys = new HashSet<>();
+        for (PreferenceNamespace namespace : namespaces.values()) {
+            membersKeys.add(hashKey(namespace.getMembersKey()));
+        }
+        final KeyRing ring = keyRing;
+        final StorageProfile profile = new StorageProfile();
+        for (Entry<String, ?> entry : sharedPreferences.getAll().entrySet()) {
+            final String hashedKey = entry.getKey();
+            final Object stored = entry.getValue();
+            final String key = keyNames.get(hashedKey);
+            if (RESERVED_KEYS.contains(hashedKey) || hashedKey.equals(generatedKeyName) || membersKeys.contains(hashedKey)
+                    || isCurrentKeys(stored, ring)) {
+                profile.add(key, hashedKey, stored, StorageProfile.TYPE_METADATA, false, 0);
+            } else if (stored instanceof Set) {
+                boolean compressed = false;
+                boolean readable = true;
+                long plainTextBytes = 0;
+                for (Object member : (Set<?>) stored) {
+                    final String cipherText = String.valueOf(member);
+                    compressed |= KeyRing.isCompressed(cipherText);
+                    final byte[] payload = ring.isDestroyed() ? null : decryptPayload(cipherText, ring);
+                    if (payload == null) {
+                        readable = false;
+                    } else {
+                        plainTextBytes += payload.length;
+                        Arrays.fill(payload, (byte) 0);
+                    }
+                }
+                profile.add(key, hashedKey, stored, readable ? StorageProfile.TYPE_STRING_SET : StorageProfile.TYPE_UNREADABLE, compressed, plainTextBytes);
+            } else if (stored instanceof String && (((String) stored).isEmpty() || KeyRing.keyIdOf((String) stored) != KeyRing.NO_KEY_ID)) {
+                final String cipherText = (String) stored;
+                final byte[] payload = ring.isDestroyed() ? null : decryptPayload(cipherText, ring);
+                final boolean typed = KeyRing.isTyped(cipherText);
+                String type = StorageProfile.TYPE_UNREADABLE;
+                long plainTextBytes = 0;
+                if (payload != null) {
+                    try {
+                        if (!typed) {
+                            type = cipherText.isEmpty() ? String.class.getSimpleName() : StorageProfile.TYPE_UNTAGGED;
+                            plainTextBytes = payload.length;
+                        } else if (payload.length > 0) {
+                            final Object value = TypeTag.decode(payload[0], new String(payload, 1, payload.length - 1, UTF_8));
+                            type = value != null ? value.getClass().getSimpleName() : StorageProfile.TYPE_UNREADABLE;
+                            plainTextBytes = payload.length - 1;
+                        }
+                    } finally {
+                        Arrays.fill(payload, (byte) 0);
+                    }
+                }
+                profile.add(key, hashedKey, stored, type, KeyRing.isCompressed(cipherText), plainTextBytes);
+            } else {
+                profile.add(key, hashedKey, stored, StorageProfile.TYPE_PLAIN, false, 0);
+            }
+        }
+        return profile.finish();
+    }
+
+    /**
+     * Decrypts every value in the file, for {@link NamespaceMerger}. Values that have expired or
+     * can't be decrypted are left out.
+     *
+     * @return by hashed key, the typed value, the plain bytes of a value without a type tag,
+     * which the caller should clear, or the StringSet
+     */
+    Map<String, Object> decryptAllValues() {
+        final Map<String, ?> encryptedMap = sharedPreferences.getAll();
+        final Map<String, Object> decrypted = new HashMap<>(encryptedMap.size());
+        final KeyRing ring = keyRing;
+        if (ring.isDestroyed()) {
+            return decrypted;
+        }
+        final ExpiryIndex expiries = expiries();
+        final long now = System.currentTimeMillis();
+        for (Entry<String, ?> entry : encryptedMap.entrySet()) {
+            final Object cipherText = entry.getValue();
+            if (cipherText == null || isCurrentKeys(cipherText, ring) || RESERVED_KEYS.contains(entry.getKey())
+                    || expiries.isExpired(entry.getKey(), now)) {
+                continue;
+            }
+            final Object plain;
+            if (cipherText instanceof Set) {
+                plain = getDecryptedStringSet(cipherText, ring);
+            } else if (cipherText instanceof String) {
+                //values without a type tag stay bytes, they may be from putBytes
+                plain = KeyRing.isTyped((String) cipherText) ? decryptTyped((String) cipherText, ring) : decryptBytes((String) cipherText, ring);
+            } else {
+                plain = null;
+            }
+            if (plain instanceof Set && ((Set<?>) plain).contains(null)) {
+                continue;
+            }
+            if (plain != null) {
+                decrypted.put(entry.getKey(), plain);
+            } else if (sLoggingEnabled) {
+                Log.w(TAG, "decryptAllValues: skipping a value that can't be decrypted");
+            }
+        }
+        return decrypted;
+    }
+
+    /**
+     * @return the stored String or StringSet without decrypting it, null if there isn't one
+     */
+    private Object getRawValue(String hashedKey) {
+        return getRawValue(hashedKey, false);
+    }
+
+    /**
+     * @param stringSet true if a StringSet is expected, so it's looked up first
+     */
+    private Object getRawValue(String hashedKey, boolean stringSet) {
+        final SharedPreferences prefs = sharedPreferences;
+        try {
+            return stringSet ? prefs.getStringSet(hashedKey, null) : prefs.getString(hashedKey, null);
+        } catch (ClassCastException e) {
+            try {
+                return stringSet ? prefs.getString(hashedKey, null) : prefs.getStringSet(hashedKey, null);
+            } catch (ClassCastException neither) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return pref keys of all the entries encrypted under a retired key
+     */
+    Set<String> findStaleKeys() {
+        final KeyRing ring = keyRing;
+        final Set<String> stale = new HashSet<>();
+        for (Entry<String, ?> entry : sharedPreferences.getAll().entrySet()) {
+            if (!RESERVED_KEYS.contains(entry.getKey()) && isStale(ring, entry.getValue())) {
+                stale.add(entry.getKey());
+            }
+        }
+        return stale;
+    }
+
+    /**
+     * Forgets the retired keys once nothing readable is left under them
+     *
+     * @return true if the retired keys were dropped
+     */
+    boolean retireKeysIfUnused() throws GeneralSecurityException {
+        synchronized (writeLock) {
+            final KeyRing ring = keyRing;
+            if (!ring.hasRetiredKeys()) {
+                return true;
+            }
+            //anything still stale now couldn't be decrypted, it's lost with or without the old key
+            final Set<String> stale = findStaleKeys();
+            if (reEncryptStale(stale) > 0) {
+                return false;
+            }
+            final KeyRing current = ring.withoutRetiredKeys();
+            boolean committed = sharedPreferences.edit()
+                    .putString(hashPrefKey(KeyRing.KEY_RING_PREF_KEY), current.serialize())
+                    .commit();
+            if (committed) {
+                keyRing = current;
+            }
+            return committed;
+        }
+    }
+
+    /**
+     * Finds the entries of the file nothing can read any more, which are still loaded and parsed
+     * every time it's opened, and optionally removes them in one commit:
+     * <ul>
+     * <li>values that don't authenticate under any key of the file. Opening the file with a
+     * different password, salt or iteration count derives a different key, and values written
+     * under it can't be read with this one</li>
+     * <li>generated keys stored under another name, for another salt or iteration count</li>
+     * <li>entries that aren't encrypted at all. These are only reported, as they may be values
+     * encrypted by something else and stored with {@link Editor#putUnencryptedString(String, String)},
+     * see {@link #compact(boolean, boolean)} to remove them too</li>
+     * </ul>
+     * Removing them also drops retired keys from the key ring if no value is left under them.
+     * Make sure every way the file is opened uses the same password, salt and iteration count
+     * first, values written by another will be removed. Nothing is removed if the keys have been
+     * destroyed, or if values were found and none of them can be read, which most likely means
+     * the file was opened with the wrong password, see {@link CompactionReport#isRefused()}.
+     * Every value is decrypted, call it off the main thread.
+     *
+     * @param remove true to remove what is found, false to only report it
+     * @return what was found, and whether it was removed
+     */
+    public CompactionReport compact(boolean remove) {
+        return compact(remove, false);
+    }
+
+    /**
+     * Like {@link #compact(boolean)}, optionally removing the entries that aren't encrypted as
+     * well, e.g. left from before the file was secured. Only when nothing stores values with
+     * {@link Editor#putUnencryptedString(String, String)}, they'd be removed too.
+     *
+     * @param remove      true to remove what is found, false to only report it
+     * @param removePlain true to remove the entries that aren't encrypted along with the rest
+     */
+    public CompactionReport compact(boolean remove, boolean removePlain) {
+        synchronized (writeLock) {
+            final KeyRing ring = keyRing;
+            final CompactionReport report = new CompactionReport();
+            boolean staleValuesLeft = false;
+            int readable = 0;
+            for (Entry<String, ?> entry : sharedPreferences.getAll().entrySet()) {
+                final String hashedKey = entry.getKey();
+                final Object stored = entry.getValue();
+                if (RESERVED_KEYS.contains(hashedKey) || hashedKey.equals(generatedKeyName)) {
+                    continue;
+                }
+                final Set<String> found;
+                if (isKeyMaterial(stored)) {
+                    found = report.staleKeys;
+                } else if (!isCipherText(stored)) {
+                    found = report.plain;
+                } else if (ring.isDestroyed() || !isReadable(stored, ring)) {
+                    found = report.unreadable;
+                } else {
+                    staleValuesLeft |= isStale(ring, stored);
+                    readable++;
+                    continue;
+                }
+                found.add(hashedKey);
+                report.bytes += hashedKey.length() + storedLength(stored);
+            }
+
+            final boolean dropRetiredKeys = ring.hasRetiredKeys() && !staleValuesLeft;
+            final List<Set<String>> toRemove = removePlain
+                    ? Arrays.asList(report.unreadable, report.staleKeys, report.plain)
+                    : Arrays.asList(report.unreadable, report.staleKeys);
+            int removable = 0;
+            for (Set<String> found : toRemove) {
+                removable += found.size();
+            }
+            if (!remove || (removable == 0 && !dropRetiredKeys)) {
+                return report;
+            }
+            //with the wrong key every value looks unreadable, removing them would empty the file
+            if (ring.isDestroyed() || (readable == 0 && !report.unreadable.isEmpty())) {
+                report.refused = true;
+                if (sLoggingEnabled) {
+                    Log.w(TAG, "compact: nothing reads with the current key, entries not removed");
+                }
+                return report;
+            }
+            final SharedPreferences.Editor editor = sharedPreferences.edit();
+            final ExpiryIndex expiries = expiries();
+            final Map<String, Long> expiryChanges = new HashMap<>();
+            for (Set<String> found : toRemove) {
+                for (String hashedKey : found) {
+                    editor.remove(hashedKey);
+                    if (expiries.expiryOf(hashedKey) != 0) {
+                        expiryChanges.put(hashedKey, 0L);
+                    }
+                }
+            }
+            if (!expiryChanges.isEmpty()) {
+                putExpiries(editor, expiries.with(expiryChanges, false));
+            }
+            KeyRing current = null;
+            if (dropRetiredKeys) {
+                try {
+                    current = ring.withoutRetiredKeys();
+                    editor.putString(hashPrefKey(KeyRing.KEY_RING_PREF_KEY), current.serialize());
+                } catch (GeneralSecurityException e) {
+                    //the key ring is left as it is, the sweeper retires the keys later
+                    if (sLoggingEnabled) {
+                        Log.w(TAG, "compact: couldn't drop the retired keys", e);
+                    }
+                    current = null;
+                }
+            }
+            if (editor.commit()) {
+                report.removed = true;
+                report.plainRemoved = removePlain;
+                if (current != null) {
+                    keyRing = current;
+                    report.retiredKeysDropped = true;
+                }
+            } else if (sLoggingEnabled) {
+                Log.w(TAG, "compact: entries not removed, commit failed");
+            }
+            return report;
+        }
+    }
+
+    /**
+     * @return true if stored is a String, or StringSet of Strings, in the ciphertext format. An
+     * empty String is how an empty value is stored.
+     */
+    private static boolean isCipherText(Object stored) {
+        if (stored instanceof Set) {
+            for (Object member : (Set<?>) stored) {
+                if (!isCipherText(member)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return stored instanceof String
+                && (((String) stored).isEmpty() || KeyRing.keyIdOf((String) stored) != KeyRing.NO_KEY_ID);
+    }
 
-        final byte[] salt = getSalt(context).getBytes();
-        AesCbcWithIntegrity.SecretKeys newKey = AesCbcWithIntegrity.generateKeyFromPassword(newPassword, salt, iterationCount);
+    /**
+     * @return true if the value, or every member, decrypts with ring
+     */
+    private boolean isReadable(Object stored, KeyRing ring) {
+        if (stored instanceof Set) {
+            for (Object member : (Set<?>) stored) {
+                if (!isReadable(member, ring)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        final byte[] payload = decryptPayload((String) stored, ring);
+        if (payload == null) {
+            return false;
+        }
+        Arrays.fill(payload, (byte) 0);
+        return true;
+    }
 
-        Map<String, ?> allOfThePrefs = sharedPreferences.getAll();
-        Map<String, String> unencryptedPrefs = new HashMap<String, String>(allOfThePrefs.size());
-        //iterate through the current prefs unencrypting each one
-        for (String prefKey : allOfThePrefs.keySet()) {
-            Object prefValue = allOfThePrefs.get(prefKey);
-            if (prefValue instanceof String) {
-                //all the encrypted values will be Strings
-                final String prefValueString = (String) prefValue;
-                final String plainTextPrefValue = decrypt(prefValueString);
-                unencryptedPrefs.put(prefKey, plainTextPrefValue);
+    /**
+     * @return true if stored is an AES and HMAC key pair as a generated key is stored
+     */
+    private static boolean isKeyMaterial(Object stored) {
+        if (!(stored instanceof String)) {
+            return false;
+        }
+        final String[] keys = ((String) stored).split(":", -1);
+        if (keys.length != 2) {
+            return false;
+        }
+        try {
+            //128 bit AES and 256 bit HMAC keys
+            return Base64.decode(keys[0], AesCbcWithIntegrity.BASE64_FLAGS).length == 16
+                    && Base64.decode(keys[1], AesCbcWithIntegrity.BASE64_FLAGS).length == 32;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static long storedLength(Object stored) {
+        if (stored instanceof Set) {
+            long length = 0;
+            for (Object member : (Set<?>) stored) {
+                length += String.valueOf(member).length();
+            }
+            return length;
+        }
+        return String.valueOf(stored).length();
+    }
+
+    /**
+     * Streams every value into an archive encrypted under backupKeys, to be restored with
+     * {@link #importFrom(InputStream, AesCbcWithIntegrity.SecretKeys)}. The archive is written a
+     * chunk at a time, so beyond the values the backing prefs already hold in memory, memory use
+     * doesn't grow with the size of the file.
+     * <p>
+     * With keepCiphertext the values aren't decrypted at all: they're written as stored, along
+     * with this file's keys, and everything is wrapped under backupKeys. That's quicker, and
+     * importing into a file with the same key doesn't re-encrypt anything either.
+     *
+     * @param out            the archive is written here, flushed but not closed
+     * @param backupKeys     e.g. derived from a backup password with
+     *                       {@link AesCbcWithIntegrity#generateKeyFromPassword(String, byte[], int)}
+     * @param keepCiphertext true to re-wrap the stored ciphertext rather than decrypt it
+     * @return number of entries, archive size and throughput
+     * @throws InterruptedIOException if the thread is interrupted, the archive is incomplete
+     */
+    @SuppressWarnings("unchecked")
+    public BackupReport exportTo(OutputStream out, AesCbcWithIntegrity.SecretKeys backupKeys, boolean keepCiphertext) throws IOException, GeneralSecurityException {
+        final long start = SystemClock.elapsedRealtime();
+        final BackupReport report = new BackupReport();
+
+        final Map<String, ?> allOfThePrefs;
+        final KeyRing ring;
+        final KeyNameScheme scheme;
+        final String generatedKey;
+        final ExpiryIndex expiries;
+        synchronized (writeLock) {
+            //the values and the keys they're under must be from the same moment
+            flush();
+            allOfThePrefs = sharedPreferences.getAll();
+            ring = keyRing;
+            scheme = getKeyNameScheme();
+            generatedKey = generatedKeyName;
+            expiries = expiries();
+        }
+        final long now = System.currentTimeMillis();
+
+        final PreferenceArchive.Writer writer = new PreferenceArchive.Writer(out, backupKeys);
+        if (keepCiphertext) {
+            for (Entry<Integer, AesCbcWithIntegrity.SecretKeys> keys : ring.getKeysById().entrySet()) {
+                writer.writeKey(keys.getKey(), keys.getValue(), keys.getKey() == ring.getCurrentId());
+            }
+        }
+        if (scheme instanceof KeyedHashKeyNameScheme) {
+            writer.writeKeyNames((KeyedHashKeyNameScheme) scheme);
+        }
+        for (Entry<String, ?> entry : allOfThePrefs.entrySet()) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Interrupted while exporting");
+            }
+            final String hashedKey = entry.getKey();
+            final Object cipherText = entry.getValue();
+            if (RESERVED_KEYS.contains(hashedKey) || hashedKey.equals(generatedKey) || expiries.isExpired(hashedKey, now)) {
+                continue;
+            }
+            if (cipherText instanceof String) {
+                if (keepCiphertext) {
+                    writer.writeValue(hashedKey, true, false, ((String) cipherText).getBytes(UTF_8));
+                    report.entries++;
+                    continue;
+                }
+                //as bytes, values from putBytes needn't be valid UTF-8. The type tag goes with it
+                final byte[] plainText = decryptPayload((String) cipherText, ring);
+                if (plainText == null) {
+                    report.entriesFailed++;
+                    continue;
+                }
+                try {
+                    writer.writeValue(hashedKey, false, KeyRing.isTyped((String) cipherText), plainText);
+                } finally {
+                    Arrays.fill(plainText, (byte) 0);
+                }
+                report.entries++;
+            } else if (cipherText instanceof Set) {
+                final Set<String> members = keepCiphertext ? (Set<String>) cipherText : getDecryptedStringSet(cipherText, ring);
+                if (members == null || members.contains(null)) {
+                    report.entriesFailed++;
+                    continue;
+                }
+                writer.writeStringSet(hashedKey, keepCiphertext, members);
+                report.entries++;
             }
         }
+        writer.finish();
 
-        //destroy and clear the current pref file
-        destroyKeys();
+        report.bytes = writer.getBytesWritten();
+        report.elapsedMillis = SystemClock.elapsedRealtime() - start;
+        return report;
+    }
 
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-        editor.clear();
-        editor.commit();
+    /**
+     * Replaces every value with those in an archive written by
+     * {@link #exportTo(OutputStream, AesCbcWithIntegrity.SecretKeys, boolean)}, in a single commit.
+     * Values are re-encrypted under this file's current key on background threads while the
+     * archive is still being read, and only a few chunks are held at a time besides the commit
+     * itself. The key ring and other metadata are kept. The archive's key name scheme is adopted,
+     * except that a custom scheme has to be the same one the exporting file used. Expired values
+     * aren't exported, and times to live aren't carried over.
+     *
+     * @param in         the archive, read to its end record but not closed
+     * @param backupKeys the keys the archive was exported with
+     * @return number of entries, archive size and throughput
+     * @throws GeneralSecurityException if the archive isn't from backupKeys or has been tampered
+     *                                  with, in which case nothing is changed
+     * @throws InterruptedIOException   if the thread is interrupted before the commit, nothing is
+     *                                  changed either
+     */
+    @SuppressLint("CommitPrefEdits")
+    public BackupReport importFrom(InputStream in, AesCbcWithIntegrity.SecretKeys backupKeys) throws IOException, GeneralSecurityException {
+        final long start = SystemClock.elapsedRealtime();
+        final BackupReport report = new BackupReport();
+
+        synchronized (writeLock) {
+            flush();
+            final KeyRing ring = keyRing;
+            final SharedPreferences prefs = sharedPreferences;
+            final SharedPreferences.Editor editor = prefs.edit();
+            for (String hashedKey : prefs.getAll().keySet()) {
+                if (!RESERVED_KEYS.contains(hashedKey) && !hashedKey.equals(generatedKeyName)) {
+                    editor.remove(hashedKey);
+                }
+            }
+            //times to live aren't part of a backup, restored values don't expire
+            editor.remove(EXPIRIES_HASHED_KEY);
+
+            final PreferenceArchive.Reader reader = new PreferenceArchive.Reader(in, backupKeys);
+            final ExecutorService executor = getDecryptExecutor();
+            final Deque<Future<Map<String, Object>>> pending = new ArrayDeque<>();
+            List<PreferenceArchive.Entry> entries;
+            while ((entries = reader.nextEntries()) != null) {
+                if (Thread.currentThread().isInterrupted()) {
+                    //nothing is committed yet
+                    throw new InterruptedIOException("Interrupted while importing");
+                }
+                if (entries.isEmpty()) {
+                    continue;
+                }
+                final List<PreferenceArchive.Entry> chunk = entries;
+                //keys come before the values in the archive, so they're all known by now
+                final KeyRing archivedRing = reader.getKeyRing();
+                pending.add(executor.submit(new Callable<Map<String, Object>>() {
+                    @Override
+                    public Map<String, Object> call() {
+                        return reEncryptImported(chunk, archivedRing, ring);
+                    }
+                }));
+                if (pending.size() > IMPORT_CHUNKS_IN_FLIGHT) {
+                    putImported(editor, pending.poll(), report);
+                }
+            }
+            while (!pending.isEmpty()) {
+                putImported(editor, pending.poll(), report);
+            }
 
-        //refresh the sharedPreferences object ref: I found it was retaining old ref/values
-        sharedPreferences = null;
-        sharedPreferences = getSharedPreferenceFile(context, sharedPrefFilename);
+            KeyNameScheme scheme = reader.getKeyNameScheme();
+            if (scheme == null) {
+                //exported with SHA-256 names, or a custom scheme this file is already using
+                scheme = getKeyNameScheme() instanceof KeyedHashKeyNameScheme ? KeyNameScheme.SHA_256 : getKeyNameScheme();
+            }
+            putKeyNameScheme(editor, scheme, ring);
+            if (!editor.commit()) {
+                throw new IOException("Imported values not committed to prefs");
+            }
+            prefetchCache.setKeyNameScheme(scheme);
+            prefetchCache.clearDecrypted();
+            report.bytes = reader.getBytesRead();
+        }
+        report.elapsedMillis = SystemClock.elapsedRealtime() - start;
+        return report;
+    }
 
-        //assign new key
-        this.keys = newKey;
+    /**
+     * Encrypts a chunk of imported values under ring
+     *
+     * @param archivedRing the exporting file's keys, null unless the values were kept as ciphertext
+     * @return hashed name to value to store, null where the value couldn't be decrypted
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> reEncryptImported(List<PreferenceArchive.Entry> entries, KeyRing archivedRing, KeyRing ring) {
+        final Map<String, Object> encrypted = new HashMap<>(entries.size());
+        for (PreferenceArchive.Entry entry : entries) {
+            if (entry.members != null) {
+                if (entry.encrypted && isUnderCurrentKey(entry.members, archivedRing, ring)) {
+                    encrypted.put(entry.name, new HashSet<>(entry.members));
+                    continue;
+                }
+                final Set<String> plainText;
+                if (entry.encrypted) {
+                    plainText = archivedRing != null ? getDecryptedStringSet(new HashSet<>(entry.members), archivedRing) : null;
+                } else {
+                    plainText = new HashSet<>(entry.members);
+                }
+                encrypted.put(entry.name, plainText == null || plainText.contains(null) ? null : encryptValue(plainText, ring));
+            } else if (entry.encrypted) {
+                final String cipherText = new String(entry.value, UTF_8);
+                if (isUnderCurrentKey(Collections.singleton(cipherText), archivedRing, ring)) {
+                    encrypted.put(entry.name, cipherText);
+                    continue;
+                }
+                encrypted.put(entry.name, archivedRing != null ? reEncrypt(cipherText, archivedRing, ring) : null);
+            } else {
+                encrypted.put(entry.name, encryptBytes(entry.value, ring, entry.typed));
+                Arrays.fill(entry.value, (byte) 0);
+            }
+        }
+        return encrypted;
+    }
 
-        SharedPreferences.Editor updatedEditor = sharedPreferences.edit();
+    /**
+     * @return true if exported ciphertexts are already under ring's current key and id, so they
+     * can be stored as they are
+     */
+    private static boolean isUnderCurrentKey(Collection<String> cipherTexts, KeyRing archivedRing, KeyRing ring) {
+        if (archivedRing == null || ring.getCurrentKeys() == null) {
+            return false;
+        }
+        final AesCbcWithIntegrity.SecretKeys archivedKeys = archivedRing.getKeys(ring.getCurrentId());
+        if (archivedKeys == null || !archivedKeys.toString().equals(ring.getCurrentKeys().toString())) {
+            return false;
+        }
+        for (String cipherText : cipherTexts) {
+            if (KeyRing.keyIdOf(cipherText) != ring.getCurrentId()) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        //iterate through the unencryptedPrefs encrypting each one with new key
-        Iterator<String> unencryptedPrefsKeys = unencryptedPrefs.keySet().iterator();
-        while (unencryptedPrefsKeys.hasNext()) {
-            String prefKey = unencryptedPrefsKeys.next();
-            String prefPlainText = unencryptedPrefs.get(prefKey);
-            updatedEditor.putString(prefKey, encrypt(prefPlainText));
+    @SuppressWarnings("unchecked")
+    private static void putImported(SharedPreferences.Editor editor, Future<Map<String, Object>> future, BackupReport report) throws IOException {
+        final Map<String, Object> values;
+        try {
+            values = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while importing");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        for (Entry<String, Object> value : values.entrySet()) {
+            if (value.getValue() == null) {
+                report.entriesFailed++;
+            } else if (value.getValue() instanceof Set) {
+                editor.putStringSet(value.getKey(), (Set<String>) value.getValue());
+                report.entries++;
+            } else {
+                editor.putString(value.getKey(), (String) value.getValue());
+                report.entries++;
+            }
         }
-        updatedEditor.commit();
+    }
+
+    /**
+     * Benchmarks key derivation on this device, then re-keys the file with the password and the
+     * iteration count that meets the target latency. The new count is stored with the file so
+     * {@link IterationCountCalibrator#getIterationCount(Context, String, long)} returns it from
+     * now on.
+     *
+     * @param password     the current (or a new) user password
+     * @param context      should be ApplicationContext not Activity
+     * @param targetMillis unlock latency to aim for
+     * @return the new iteration count
+     */
+    public int recalibrateIterationCount(String password, Context context, long targetMillis) throws GeneralSecurityException {
+        final int iterationCount = IterationCountCalibrator.calibrate(targetMillis);
+        handlePasswordChange(password, context, iterationCount, true, false);
+        return iterationCount;
     }
 
     public void handlePasswordChange(String newPassword, Context context) throws GeneralSecurityException {
@@ -534,20 +2760,135 @@ public class SecurePreferences implements SharedPreferences {
     public final class Editor implements SharedPreferences.Editor {
         private SharedPreferences.Editor mEditor;
 
+        //keys the values were encrypted with when put
+        private final KeyRing mKeyRing;
+
+        //plain text of the encrypted puts, so they can be re-encrypted if the key rotates before commit
+        private final Map<String, Object> mPlainValues = new HashMap<>();
+
+        //hashed key to expiry of the puts and removes, 0 for values without a time to live
+        private final Map<String, Long> mExpiries = new HashMap<>();
+
+        private boolean mCleared;
+
         /**
          * Constructor.
          */
         private Editor() {
             mEditor = sharedPreferences.edit();
+            mKeyRing = keyRing;
         }
 
         @Override
         public SharedPreferences.Editor putString(String key, String value) {
-            mEditor.putString(SecurePreferences.hashPrefKey(key),
-                    encrypt(value));
+            putEncrypted(hashKey(key), value);
+            return this;
+        }
+
+        /**
+         * Encrypts and stores a plain value under an already hashed key
+         *
+         * @param plainValue String, bytes or a StringSet, bytes are cleared once committed
+         */
+        void putDecrypted(String hashedKey, Object plainValue) {
+            putEncrypted(hashedKey, plainValue);
+        }
+
+        private void putEncrypted(String hashedKey, Object plainValue) {
+            clearPlainValue(mPlainValues.put(hashedKey, plainValue));
+            putEncryptedValue(hashedKey, encryptValue(plainValue, mKeyRing));
+            //overwriting a value without a time to live makes it permanent
+            mExpiries.put(hashedKey, 0L);
+        }
+
+        /**
+         * Like {@link #putString(String, String)}, but the value reads as absent once ttlMillis
+         * have passed and is then removed from the file in the background. The expiry is stored
+         * unencrypted, so checking it needs no decryption.
+         *
+         * @param ttlMillis time to live from now, must be positive
+         */
+        public Editor putString(String key, String value, long ttlMillis) {
+            putString(key, value);
+            expireAfter(key, ttlMillis);
+            return this;
+        }
+
+        /**
+         * Like {@link #putString(String, String, long)} for a StringSet
+         */
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        public Editor putStringSet(String key, Set<String> values, long ttlMillis) {
+            putStringSet(key, values);
+            expireAfter(key, ttlMillis);
+            return this;
+        }
+
+        /**
+         * Like {@link #putString(String, String, long)} for an int
+         */
+        public Editor putInt(String key, int value, long ttlMillis) {
+            putInt(key, value);
+            expireAfter(key, ttlMillis);
+            return this;
+        }
+
+        /**
+         * Like {@link #putString(String, String, long)} for a long
+         */
+        public Editor putLong(String key, long value, long ttlMillis) {
+            putLong(key, value);
+            expireAfter(key, ttlMillis);
+            return this;
+        }
+
+        /**
+         * Like {@link #putString(String, String, long)} for a float
+         */
+        public Editor putFloat(String key, float value, long ttlMillis) {
+            putFloat(key, value);
+            expireAfter(key, ttlMillis);
+            return this;
+        }
+
+        /**
+         * Like {@link #putString(String, String, long)} for a boolean
+         */
+        public Editor putBoolean(String key, boolean value, long ttlMillis) {
+            putBoolean(key, value);
+            expireAfter(key, ttlMillis);
             return this;
         }
 
+        /**
+         * Like {@link #putString(String, String, long)} for {@link #putBytes(String, byte[])}
+         */
+        public Editor putBytes(String key, byte[] value, long ttlMillis) {
+            putBytes(key, value);
+            if (value != null) {
+                expireAfter(key, ttlMillis);
+            }
+            return this;
+        }
+
+        /**
+         * Like {@link #putString(String, String, long)} for {@link #putChars(String, char[])}
+         */
+        public Editor putChars(String key, char[] value, long ttlMillis) {
+            putChars(key, value);
+            if (value != null) {
+                expireAfter(key, ttlMillis);
+            }
+            return this;
+        }
+
+        private void expireAfter(String key, long ttlMillis) {
+            if (ttlMillis <= 0) {
+                throw new IllegalArgumentException("ttlMillis must be positive");
+            }
+            mExpiries.put(hashKey(key), System.currentTimeMillis() + ttlMillis);
+        }
+
         /**
          * This is useful for storing values that have be encrypted by something
          * else or for testing
@@ -558,7 +2899,81 @@ public class SecurePreferences implements SharedPreferences {
          */
         public SharedPreferences.Editor putUnencryptedString(String key,
                                                              String value) {
-            mEditor.putString(SecurePreferences.hashPrefKey(key), value);
+            final String hashedKey = hashKey(key);
+            mPlainValues.remove(hashedKey);
+            mEditor.putString(hashedKey, value);
+            return this;
+        }
+
+        /**
+         * Stores a value already encrypted with {@link #encryptValue(Object)}
+         *
+         * @param hashedKey key already hashed with {@link #hashPrefKey(String)}
+         * @param encrypted encrypted String or Set of encrypted Strings
+         */
+        @SuppressWarnings("unchecked")
+        SharedPreferences.Editor putEncryptedValue(String hashedKey, Object encrypted) {
+            if (encrypted instanceof Set) {
+                mEditor.putStringSet(hashedKey, (Set<String>) encrypted);
+            } else {
+                mEditor.putString(hashedKey, (String) encrypted);
+            }
+            return this;
+        }
+
+        /**
+         * Stores raw bytes, encrypted without converting them to a String first.
+         * Read back with {@link SecurePreferences#getBytes(String, byte[])}.
+         *
+         * @param value copied, so the caller can clear it once this returns. null removes the key.
+         */
+        public Editor putBytes(String key, byte[] value) {
+            if (value == null) {
+                remove(key);
+            } else {
+                putEncrypted(hashKey(key), value.clone());
+            }
+            return this;
+        }
+
+        /**
+         * Stores chars as UTF-8 without going through a String, so secrets such as passwords can
+         * be cleared by the caller once this returns. Read back with
+         * {@link SecurePreferences#getChars(String, char[])}.
+         *
+         * @param value null removes the key
+         */
+        public Editor putChars(String key, char[] value) {
+            if (value == null) {
+                remove(key);
+            } else {
+                putEncrypted(hashKey(key), ByteValueCipher.encode(value));
+            }
+            return this;
+        }
+
+        /**
+         * Encodes value with codec and stores it as one encrypted value, so all of it is read
+         * back with a single decryption by {@link SecurePreferences#getObject(String, ObjectCodec)}.
+         *
+         * @param value null removes the key
+         * @throws IllegalArgumentException if codec can't encode value
+         */
+        public <T> Editor putObject(String key, T value, ObjectCodec<? super T> codec) {
+            if (value == null) {
+                remove(key);
+                return this;
+            }
+            //the encoded object is plain text, so don't leave it in the stream's array
+            final WipeableBuffer bytes = new WipeableBuffer(64);
+            try {
+                codec.encode(value, new DataOutputStream(bytes));
+                putEncrypted(hashKey(key), bytes.toByteArray());
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Couldn't encode " + key, e);
+            } finally {
+                bytes.wipe();
+            }
             return this;
         }
 
@@ -566,70 +2981,198 @@ public class SecurePreferences implements SharedPreferences {
         @TargetApi(Build.VERSION_CODES.HONEYCOMB)
         public SharedPreferences.Editor putStringSet(String key,
                                                      Set<String> values) {
-            final Set<String> encryptedValues = new HashSet<String>(
-                    values.size());
-            for (String value : values) {
-                encryptedValues.add(encrypt(value));
-            }
-            mEditor.putStringSet(SecurePreferences.hashPrefKey(key),
-                    encryptedValues);
+            putEncrypted(hashKey(key), new HashSet<String>(values));
             return this;
         }
 
         @Override
         public SharedPreferences.Editor putInt(String key, int value) {
-            mEditor.putString(SecurePreferences.hashPrefKey(key),
-                    encrypt(Integer.toString(value)));
+            putEncrypted(hashKey(key), value);
             return this;
         }
 
         @Override
         public SharedPreferences.Editor putLong(String key, long value) {
-            mEditor.putString(SecurePreferences.hashPrefKey(key),
-                    encrypt(Long.toString(value)));
+            putEncrypted(hashKey(key), value);
             return this;
         }
 
         @Override
         public SharedPreferences.Editor putFloat(String key, float value) {
-            mEditor.putString(SecurePreferences.hashPrefKey(key),
-                    encrypt(Float.toString(value)));
+            putEncrypted(hashKey(key), value);
             return this;
         }
 
         @Override
         public SharedPreferences.Editor putBoolean(String key, boolean value) {
-            mEditor.putString(SecurePreferences.hashPrefKey(key),
-                    encrypt(Boolean.toString(value)));
+            putEncrypted(hashKey(key), value);
+            return this;
+        }
+
+        /**
+         * Like {@link #putString(String, String)} without hashing the key, see {@link HashedKey}
+         */
+        public Editor putString(HashedKey key, String value) {
+            putEncrypted(hashKey(key), value);
+            return this;
+        }
+
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        public Editor putStringSet(HashedKey key, Set<String> values) {
+            putEncrypted(hashKey(key), values != null ? new HashSet<String>(values) : null);
+            return this;
+        }
+
+        public Editor putInt(HashedKey key, int value) {
+            putEncrypted(hashKey(key), value);
+            return this;
+        }
+
+        public Editor putLong(HashedKey key, long value) {
+            putEncrypted(hashKey(key), value);
+            return this;
+        }
+
+        public Editor putFloat(HashedKey key, float value) {
+            putEncrypted(hashKey(key), value);
+            return this;
+        }
+
+        public Editor putBoolean(HashedKey key, boolean value) {
+            putEncrypted(hashKey(key), value);
+            return this;
+        }
+
+        public Editor remove(HashedKey key) {
+            removeNamed(hashKey(key));
             return this;
         }
 
         @Override
         public SharedPreferences.Editor remove(String key) {
-            mEditor.remove(SecurePreferences.hashPrefKey(key));
+            removeNamed(hashKey(key));
             return this;
         }
 
+        private void removeNamed(String hashedKey) {
+            clearPlainValue(mPlainValues.remove(hashedKey));
+            mEditor.remove(hashedKey);
+            mExpiries.put(hashedKey, 0L);
+        }
+
+        /**
+         * Removes every value. The key ring, the iteration count, the key name secret and a
+         * generated key are kept, so the values put after clearing can still be read once the
+         * file is reopened.
+         */
         @Override
         public SharedPreferences.Editor clear() {
             mEditor.clear();
+            mCleared = true;
             return this;
         }
 
         @Override
         public boolean commit() {
-            return mEditor.commit();
+            synchronized (writeLock) {
+                reEncryptIfRotated();
+                keepMetadataIfCleared();
+                final long nextExpiry = updateExpiries();
+                try {
+                    return mEditor.commit();
+                } finally {
+                    clearPlainValues();
+                    scheduleExpirySweep(nextExpiry);
+                }
+            }
         }
 
         @Override
         @TargetApi(Build.VERSION_CODES.GINGERBREAD)
         public void apply() {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
-                mEditor.apply();
+                synchronized (writeLock) {
+                    reEncryptIfRotated();
+                    keepMetadataIfCleared();
+                    final long nextExpiry = updateExpiries();
+                    mEditor.apply();
+                    clearPlainValues();
+                    scheduleExpirySweep(nextExpiry);
+                }
             } else {
                 commit();
             }
         }
+
+        /**
+         * The backing clear() removes everything, so put back the metadata it should keep
+         */
+        private void keepMetadataIfCleared() {
+            if (!mCleared) {
+                return;
+            }
+            for (String hashedKey : KEPT_ON_CLEAR) {
+                keepRawValue(hashedKey);
+            }
+            final String generatedKey = generatedKeyName;
+            if (generatedKey != null) {
+                keepRawValue(generatedKey);
+            }
+        }
+
+        private void keepRawValue(String hashedKey) {
+            final String stored = sharedPreferences.getString(hashedKey, null);
+            if (stored != null) {
+                mEditor.putString(hashedKey, stored);
+            }
+        }
+
+        /**
+         * Adds the expiry index to the commit if any time to live was set or lifted
+         *
+         * @return the earliest expiry once committed, 0 if none
+         */
+        private long updateExpiries() {
+            final ExpiryIndex current = expiries();
+            final ExpiryIndex updated = current.with(mExpiries, mCleared);
+            if (updated != current) {
+                putExpiries(mEditor, updated);
+            }
+            mExpiries.clear();
+            mCleared = false;
+            return updated.nextExpiry();
+        }
+
+        /**
+         * If the key was rotated since the values were put, encrypt them again with the current
+         * key, otherwise they could outlive the retired key they were encrypted with.
+         */
+        private void reEncryptIfRotated() {
+            final KeyRing current = keyRing;
+            if (current.getCurrentId() == mKeyRing.getCurrentId()) {
+                return;
+            }
+            for (Entry<String, Object> entry : mPlainValues.entrySet()) {
+                putEncryptedValue(entry.getKey(), encryptValue(entry.getValue(), current));
+            }
+        }
+
+        /**
+         * Forgets the plain text once the values are committed, like the backing editor forgets
+         * its changes, clearing the bytes of putBytes and putChars values
+         */
+        private void clearPlainValues() {
+            for (Object plainValue : mPlainValues.values()) {
+                clearPlainValue(plainValue);
+            }
+            mPlainValues.clear();
+        }
+
+        private void clearPlainValue(Object plainValue) {
+            if (plainValue instanceof byte[]) {
+                Arrays.fill((byte[]) plainValue, (byte) 0);
+            }
+        }
     }
 
     public static boolean isLoggingEnabled() {
@@ -673,6 +3216,10 @@ public class SecurePreferences implements SharedPreferences {
      * Else, it will return the StringSet with the decrypted values.
      */
     private Set<String> getDecryptedStringSet(Object cipherText) {
+        return getDecryptedStringSet(cipherText, keyRing);
+    }
+
+    private Set<String> getDecryptedStringSet(Object cipherText, KeyRing ring) {
         if (cipherText == null) {
             return null;
         }
@@ -688,7 +3235,7 @@ public class SecurePreferences implements SharedPreferences {
 
         for (Object object : encryptedSet) {
             if (object instanceof String) {
-                decryptedSet.add(decrypt((String) object));
+                decryptedSet.add(decrypt((String) object, ring));
             } else {
                 return null;
             }
@@ -0,0 +1,472 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Outcome of {@link SecurePreferences#profileStorage(java.util.Collection)}: what each entry
+ * costs in the file, largest first, and where those bytes go.
+ * <p>
+ * Sizes are of the XML the standard SharedPreferences writes, in bytes. Each entry's stored size
+ * splits into its key name, XML markup, the header and separators of its ciphertext, the IV, the
+ * MAC, the ciphertext itself (padding included), what Base64 adds to those three, and anything
+ * stored other than as ciphertext. Loading the file parses all of it before the first read, so
+ * an entry's share of the load time is estimated as its share of the bytes.
+ */
+public final class StorageProfile {
+
+    static final String TYPE_STRING_SET = "StringSet";
+    //decrypted, but without a type tag: from putBytes/putChars or written before tags
+    static final String TYPE_UNTAGGED = "Untagged";
+    static final String TYPE_UNREADABLE = "Unreadable";
+    //not in the ciphertext format, e.g. left by plain SharedPreferences
+    static final String TYPE_PLAIN = "Plain";
+    static final String TYPE_METADATA = "Metadata";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String XML_HEADER = "<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n<map>\n";
+    private static final String XML_FOOTER = "</map>\n";
+
+    private static final int PARSE_RUNS = 3;
+
+    /**
+     * One entry of the file
+     */
+    public static final class Entry {
+        final String key;
+        final String hashedKey;
+        final String type;
+        int members;
+        boolean compressed;
+        long storedBytes;
+        long keyNameBytes;
+        long markupBytes;
+        long headerBytes;
+        long ivBytes;
+        long macBytes;
+        long cipherTextBytes;
+        long base64Bytes;
+        long otherBytes;
+        long plainTextBytes;
+        double loadShare;
+        double estimatedLoadMillis;
+
+        Entry(String key, String hashedKey, String type) {
+            this.key = key;
+            this.hashedKey = hashedKey;
+            this.type = type;
+        }
+
+        /**
+         * @return the key name it was registered with, null if it wasn't
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public String getHashedKey() {
+            return hashedKey;
+        }
+
+        /**
+         * @return String, Integer, Long, Float or Boolean as put, StringSet, Untagged for values
+         * from putBytes/putChars or earlier versions, Unreadable if it doesn't decrypt with the
+         * current keys, Plain if it isn't encrypted, or Metadata for the library's own entries
+         */
+        public String getType() {
+            return type;
+        }
+
+        public boolean isMetadata() {
+            return TYPE_METADATA.equals(type);
+        }
+
+        /**
+         * @return members of a StringSet, otherwise 1
+         */
+        public int getMemberCount() {
+            return members;
+        }
+
+        /**
+         * @return true if the value, or any member, is stored compressed
+         */
+        public boolean isCompressed() {
+            return compressed;
+        }
+
+        /**
+         * @return bytes in the file, the sum of all the parts below
+         */
+        public long getStoredBytes() {
+            return storedBytes;
+        }
+
+        public long getKeyNameBytes() {
+            return keyNameBytes;
+        }
+
+        /**
+         * @return XML tags and indentation around the name and value
+         */
+        public long getMarkupBytes() {
+            return markupBytes;
+        }
+
+        /**
+         * @return key id, flags and separators of the ciphertext
+         */
+        public long getHeaderBytes() {
+            return headerBytes;
+        }
+
+        public long getIvBytes() {
+            return ivBytes;
+        }
+
+        public long getMacBytes() {
+            return macBytes;
+        }
+
+        /**
+         * @return raw ciphertext, including up to a block of padding
+         */
+        public long getCipherTextBytes() {
+            return cipherTextBytes;
+        }
+
+        /**
+         * @return what Base64 encoding adds to the IV, MAC and ciphertext
+         */
+        public long getBase64Bytes() {
+            return base64Bytes;
+        }
+
+        /**
+         * @return value bytes that aren't ciphertext, such as plain values and metadata
+         */
+        public long getOtherBytes() {
+            return otherBytes;
+        }
+
+        /**
+         * @return decrypted, decompressed size of the value or its members, 0 if it wasn't
+         * decrypted
+         */
+        public long getPlainTextBytes() {
+            return plainTextBytes;
+        }
+
+        /**
+         * @return fraction of the file's bytes
+         */
+        public double getLoadShare() {
+            return loadShare;
+        }
+
+        /**
+         * @return {@link #getLoadShare()} of the time measured to parse the file
+         */
+        public double getEstimatedLoadMillis() {
+            return estimatedLoadMillis;
+        }
+
+        @Override
+        public String toString() {
+            return (key != null ? key : hashedKey) + " (" + type + (members != 1 ? ", " + members + " members" : "")
+                    + (compressed ? ", compressed" : "") + "): " + storedBytes + " bytes, "
+                    + plainTextBytes + " plain, " + String.format("%.1f%%", loadShare * 100);
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final StringBuilder xml = new StringBuilder(XML_HEADER);
+
+    private long totalBytes;
+    private double loadMillis;
+
+    StorageProfile() {
+    }
+
+    /**
+     * @param stored     the value as stored, a String, StringSet, or for plain leftovers any
+     *                   SharedPreferences type
+     * @param type       see {@link Entry#getType()}
+     * @param compressed whether the value, or any member, is compressed
+     */
+    void add(String key, String hashedKey, Object stored, String type, boolean compressed, long plainTextBytes) {
+        final Entry entry = new Entry(key, hashedKey, type);
+        entry.compressed = compressed;
+        entry.plainTextBytes = plainTextBytes;
+        entry.keyNameBytes = utf8Length(escape(hashedKey));
+
+        final int start = xml.length();
+        if (stored instanceof Set) {
+            final Set<?> members = (Set<?>) stored;
+            entry.members = members.size();
+            xml.append("    <set name=\"").append(escape(hashedKey)).append("\">\n");
+            for (Object member : members) {
+                xml.append("        <string>").append(escape(String.valueOf(member))).append("</string>\n");
+                addValueParts(entry, String.valueOf(member));
+            }
+            xml.append("    </set>\n");
+        } else if (stored instanceof String) {
+            entry.members = 1;
+            xml.append("    <string name=\"").append(escape(hashedKey)).append("\">")
+                    .append(escape((String) stored)).append("</string>\n");
+            addValueParts(entry, (String) stored);
+        } else {
+            entry.members = 1;
+            final String value = String.valueOf(stored);
+            xml.append("    <").append(tagFor(stored)).append(" name=\"").append(escape(hashedKey))
+                    .append("\" value=\"").append(escape(value)).append("\" />\n");
+            entry.otherBytes += utf8Length(escape(value));
+        }
+        entry.storedBytes = utf8Length(xml.substring(start));
+        entry.markupBytes = entry.storedBytes - entry.keyNameBytes - entry.headerBytes - entry.ivBytes - entry.macBytes
+                - entry.cipherTextBytes - entry.base64Bytes - entry.otherBytes;
+        entries.add(entry);
+    }
+
+    /**
+     * Sorts the entries and measures how long the file takes to parse
+     */
+    StorageProfile finish() {
+        xml.append(XML_FOOTER);
+        totalBytes = utf8Length(xml);
+        loadMillis = measureParseMillis(xml.toString());
+        xml.setLength(0);
+        for (Entry entry : entries) {
+            entry.loadShare = totalBytes == 0 ? 0 : entry.storedBytes / (double) totalBytes;
+            entry.estimatedLoadMillis = entry.loadShare * loadMillis;
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.storedBytes < b.storedBytes ? 1 : a.storedBytes > b.storedBytes ? -1 : 0;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * @return every entry, largest first
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return the count largest entries, the ones to move, compress or remove first
+     */
+    public List<Entry> getLargestEntries(int count) {
+        return getEntries().subList(0, Math.min(count, entries.size()));
+    }
+
+    /**
+     * @return the entry for a registered key name, null if it isn't in the file
+     */
+    public Entry getEntry(String key) {
+        for (Entry entry : entries) {
+            if (key.equals(entry.key)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return size of the file as SharedPreferences writes it
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return time taken to parse a copy of the file, roughly what loading it costs
+     */
+    public double getLoadMillis() {
+        return loadMillis;
+    }
+
+    /**
+     * @return number of entries of each {@link Entry#getType() type}
+     */
+    public Map<String, Integer> getTypeCounts() {
+        final Map<String, Integer> counts = new TreeMap<>();
+        for (Entry entry : entries) {
+            final Integer count = counts.get(entry.type);
+            counts.put(entry.type, count == null ? 1 : count + 1);
+        }
+        return counts;
+    }
+
+    /**
+     * @return total members of all the StringSets
+     */
+    public int getStringSetMemberCount() {
+        int members = 0;
+        for (Entry entry : entries) {
+            if (TYPE_STRING_SET.equals(entry.type)) {
+                members += entry.members;
+            }
+        }
+        return members;
+    }
+
+    /**
+     * @return the parts of every entry summed, by the names used in {@link #toString()}
+     */
+    public Map<String, Long> getBreakdown() {
+        final long[] totals = new long[9];
+        for (Entry entry : entries) {
+            totals[0] += entry.keyNameBytes;
+            totals[1] += entry.markupBytes;
+            totals[2] += entry.headerBytes;
+            totals[3] += entry.ivBytes;
+            totals[4] += entry.macBytes;
+            totals[5] += entry.cipherTextBytes;
+            totals[6] += entry.base64Bytes;
+            totals[7] += entry.otherBytes;
+        }
+        final long entryBytes = totals[0] + totals[1] + totals[2] + totals[3] + totals[4] + totals[5] + totals[6] + totals[7];
+        totals[8] = totalBytes - entryBytes;
+        final Map<String, Long> breakdown = new LinkedHashMap<>();
+        final String[] names = {"keyName", "markup", "header", "iv", "mac", "cipherText", "base64", "other", "file"};
+        for (int i = 0; i < names.length; i++) {
+            breakdown.put(names[i], totals[i]);
+        }
+        return breakdown;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(entries.size()).append(" entries, ").append(totalBytes).append(" bytes, ")
+                .append(String.format("%.1f", loadMillis)).append("ms to parse\n");
+        for (Map.Entry<String, Long> part : getBreakdown().entrySet()) {
+            builder.append("  ").append(part.getKey()).append(": ").append(part.getValue()).append(" bytes")
+                    .append(totalBytes == 0 ? "" : String.format(" (%.1f%%)", part.getValue() * 100d / totalBytes)).append('\n');
+        }
+        builder.append("types: ").append(getTypeCounts()).append(", ").append(getStringSetMemberCount()).append(" StringSet members\n");
+        builder.append("largest:\n");
+        for (Entry entry : getLargestEntries(10)) {
+            builder.append("  ").append(entry).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Splits a stored value into header, IV, MAC, ciphertext and Base64, or other if it isn't
+     * ciphertext
+     */
+    private static void addValueParts(Entry entry, String stored) {
+        final String ivMacCipherText = KeyRing.stripHeader(stored);
+        final String[] parts = ivMacCipherText.split(":", -1);
+        if (parts.length != 3) {
+            entry.otherBytes += utf8Length(escape(stored));
+            return;
+        }
+        //the key id, flags and both separators
+        entry.headerBytes += stored.length() - ivMacCipherText.length() + 2;
+        final long iv = base64DecodedLength(parts[0]);
+        final long mac = base64DecodedLength(parts[1]);
+        final long cipherText = base64DecodedLength(parts[2]);
+        entry.ivBytes += iv;
+        entry.macBytes += mac;
+        entry.cipherTextBytes += cipherText;
+        entry.base64Bytes += parts[0].length() - iv + parts[1].length() - mac + parts[2].length() - cipherText;
+    }
+
+    private static long base64DecodedLength(String encoded) {
+        int padding = 0;
+        for (int i = encoded.length() - 1; i >= 0 && encoded.charAt(i) == '='; i--) {
+            padding++;
+        }
+        return Math.max(0, (encoded.length() * 3L) / 4 - padding);
+    }
+
+    private static String tagFor(Object stored) {
+        if (stored instanceof Integer) {
+            return "int";
+        }
+        if (stored instanceof Long) {
+            return "long";
+        }
+        if (stored instanceof Float) {
+            return "float";
+        }
+        if (stored instanceof Boolean) {
+            return "boolean";
+        }
+        return "string";
+    }
+
+    /**
+     * @return text as it's escaped in the file
+     */
+    private static String escape(String text) {
+        if (text.indexOf('&') < 0 && text.indexOf('<') < 0 && text.indexOf('>') < 0 && text.indexOf('"') < 0) {
+            return text;
+        }
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static long utf8Length(CharSequence text) {
+        return text.toString().getBytes(UTF_8).length;
+    }
+
+    /**
+     * @return median time to parse xml, 0 if it can't be parsed
+     */
+    private static double measureParseMillis(String xml) {
+        final double[] millis = new double[PARSE_RUNS];
+        try {
+            for (int run = 0; run < PARSE_RUNS; run++) {
+                final long start = System.nanoTime();
+                final XmlPullParser parser = Xml.newPullParser();
+                parser.setInput(new StringReader(xml));
+                while (parser.next() != XmlPullParser.END_DOCUMENT) {
+                    //reading each token is the cost
+                    parser.getText();
+                }
+                millis[run] = (System.nanoTime() - start) / 1000000d;
+            }
+        } catch (XmlPullParserException | IOException e) {
+            return 0;
+        }
+        Arrays.sort(millis);
+        return millis[PARSE_RUNS / 2];
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+/**
+ * The type of a value, written as the first byte of its plain text so it's encrypted along with
+ * the value. Values carrying a tag are flagged in their header, see {@link KeyRing#isTyped(String)};
+ * values written before tags, and those from putBytes/putChars, have none and read as Strings.
+ */
+final class TypeTag {
+
+    static final byte STRING = 's';
+    static final byte INT = 'i';
+    static final byte LONG = 'l';
+    static final byte FLOAT = 'f';
+    static final byte BOOLEAN = 'b';
+
+    private TypeTag() {
+    }
+
+    /**
+     * @param value String, Integer, Long, Float or Boolean, anything else is tagged as a String
+     */
+    static byte of(Object value) {
+        if (value instanceof Integer) {
+            return INT;
+        }
+        if (value instanceof Long) {
+            return LONG;
+        }
+        if (value instanceof Float) {
+            return FLOAT;
+        }
+        if (value instanceof Boolean) {
+            return BOOLEAN;
+        }
+        return STRING;
+    }
+
+    /**
+     * @param text the value as written by {@link String#valueOf(Object)}
+     * @return the value as its tagged type, null if the tag is unknown or the text isn't of that
+     * type
+     */
+    static Object decode(byte tag, String text) {
+        try {
+            switch (tag) {
+                case STRING:
+                    return text;
+                case INT:
+                    return Integer.valueOf(text);
+                case LONG:
+                    return Long.valueOf(text);
+                case FLOAT:
+                    return Float.valueOf(text);
+                case BOOLEAN:
+                    return "true".equals(text) ? Boolean.TRUE : "false".equals(text) ? Boolean.FALSE : null;
+                default:
+                    return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Backs {@link SecurePreferences#observe(String, Class)}.
+ * <p>
+ * A single change listener is registered on the backing prefs for all streams. Changes to
+ * observed keys are collected for {@link #COALESCE_MILLIS}, then each changed value is decrypted
+ * once on a background thread and handed to every stream for that key. Observers are called on
+ * the main thread and only when their value actually changed.
+ */
+final class ValueStreams implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    //how long changes are collected before decrypting, about a frame
+    static final long COALESCE_MILLIS = 16;
+
+    private final SecurePreferences securePreferences;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    //guarded by this
+    private final Map<String, List<PreferenceStream<?>>> streamsByHashedKey = new HashMap<>();
+    private final Set<String> changed = new HashSet<>();
+    private boolean dispatchScheduled;
+
+    private ScheduledExecutorService executor;
+
+    private final Runnable dispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    ValueStreams(SecurePreferences securePreferences) {
+        this.securePreferences = securePreferences;
+    }
+
+    /**
+     * @return the existing stream for this key and type, or a new one
+     */
+    @SuppressWarnings("unchecked")
+    synchronized <T> PreferenceStream<T> get(String key, String hashedKey, Class<T> type) {
+        final List<PreferenceStream<?>> streams = streamsFor(hashedKey);
+        for (PreferenceStream<?> stream : streams) {
+            if (stream.getType() == type) {
+                return (PreferenceStream<T>) stream;
+            }
+        }
+        PreferenceStream<T> stream = new PreferenceStream<>(this, key, hashedKey, type);
+        streams.add(stream);
+        return stream;
+    }
+
+    /**
+     * Adds a stream back when it's subscribed to again after {@link #remove(PreferenceStream)}
+     *
+     * @return true if it had been removed, so its value may be out of date
+     */
+    synchronized boolean attach(PreferenceStream<?> stream) {
+        final List<PreferenceStream<?>> streams = streamsFor(stream.getHashedKey());
+        if (streams.contains(stream)) {
+            return false;
+        }
+        streams.add(stream);
+        return true;
+    }
+
+    private List<PreferenceStream<?>> streamsFor(String hashedKey) {
+        List<PreferenceStream<?>> streams = streamsByHashedKey.get(hashedKey);
+        if (streams == null) {
+            streams = new ArrayList<>();
+            if (streamsByHashedKey.isEmpty()) {
+                //the backing prefs only hold listeners weakly, this object keeps itself alive
+                securePreferences.registerOnSharedPreferenceChangeListener(this);
+            }
+            streamsByHashedKey.put(hashedKey, streams);
+        }
+        return streams;
+    }
+
+    /**
+     * Stops updating a stream, unless it has been subscribed to again meanwhile
+     */
+    synchronized void remove(PreferenceStream<?> stream) {
+        List<PreferenceStream<?>> streams = streamsByHashedKey.get(stream.getHashedKey());
+        if (streams == null || stream.hasObservers()) {
+            return;
+        }
+        streams.remove(stream);
+        if (streams.isEmpty()) {
+            streamsByHashedKey.remove(stream.getHashedKey());
+            if (streamsByHashedKey.isEmpty()) {
+                securePreferences.unregisterOnSharedPreferenceChangeListener(this);
+            }
+        }
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String hashedKey) {
+        if (hashedKey == null) {
+            //the file was cleared
+            markAllChanged();
+        } else {
+            markChanged(hashedKey);
+        }
+    }
+
+    synchronized void markChanged(String hashedKey) {
+        if (streamsByHashedKey.containsKey(hashedKey)) {
+            changed.add(hashedKey);
+            scheduleDispatch();
+        }
+    }
+
+    synchronized void markAllChanged() {
+        changed.addAll(streamsByHashedKey.keySet());
+        scheduleDispatch();
+    }
+
+    /**
+     * Gives a new observer the value the stream already has
+     */
+    <T> void deliver(final PreferenceStream<T> stream, final PreferenceStream.Observer<T> observer, final T value) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                observer.onValue(stream.getKey(), value);
+            }
+        });
+    }
+
+    private void scheduleDispatch() {
+        if (dispatchScheduled || changed.isEmpty()) {
+            return;
+        }
+        dispatchScheduled = true;
+        if (executor == null) {
+            executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SecurePreferences-streams");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        executor.schedule(dispatchTask, COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void dispatch() {
+        final Map<String, List<PreferenceStream<?>>> toUpdate = new HashMap<>();
+        synchronized (this) {
+            dispatchScheduled = false;
+            for (String hashedKey : changed) {
+                List<PreferenceStream<?>> streams = streamsByHashedKey.get(hashedKey);
+                if (streams != null) {
+                    toUpdate.put(hashedKey, new ArrayList<>(streams));
+                }
+            }
+            changed.clear();
+        }
+
+        final List<PreferenceStream<?>> toNotify = new ArrayList<>();
+        for (Map.Entry<String, List<PreferenceStream<?>>> entry : toUpdate.entrySet()) {
+            //one decryption shared by every stream and observer of the key
+            final Object plainText = securePreferences.readDecrypted(entry.getKey());
+            for (PreferenceStream<?> stream : entry.getValue()) {
+                if (stream.update(plainText)) {
+                    toNotify.add(stream);
+                }
+            }
+        }
+
+        if (!toNotify.isEmpty()) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (PreferenceStream<?> stream : toNotify) {
+                        stream.notifyObservers();
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * A ByteArrayOutputStream for plain text that can be cleared. It also clears the old array
+ * each time it grows, so no copy of what was written is left behind.
+ */
+class WipeableBuffer extends ByteArrayOutputStream {
+
+    WipeableBuffer(int size) {
+        super(size);
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        ensureCapacity(count + 1);
+        super.write(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        super.write(b, off, len);
+    }
+
+    /**
+     * Zeroes the bytes written so far and empties the buffer
+     */
+    synchronized void wipe() {
+        Arrays.fill(buf, (byte) 0);
+        reset();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buf.length) {
+            final byte[] grown = Arrays.copyOf(buf, Math.max(buf.length * 2, capacity));
+            Arrays.fill(buf, (byte) 0);
+            buf = grown;
+        }
+    }
+}
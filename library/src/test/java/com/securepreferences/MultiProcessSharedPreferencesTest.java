@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Two JVM processes writing one {@link MultiProcessSharedPreferences} log at the same time. The
+ * store only needs Handler and FileObserver from Android, which the unit test android.jar stubs
+ * out, so each writer is a plain JVM running {@link #main(String[])}.
+ */
+public class MultiProcessSharedPreferencesTest {
+
+    private static final int KEYS_PER_PROCESS = 1500;
+
+    //enough rewrites of one key per process to compact the log while the other is writing
+    private static final int HOT_KEY_WRITES = 10000;
+
+    //keys both processes try to create, like the key SecurePreferences generates on first run
+    private static final int KEY_RACES = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 300000)
+    public void writersInTwoProcessesDontLoseEachOthersKeys() throws Exception {
+        final File log = new File(folder.getRoot(), "shared.log");
+        final Process first = start(MultiProcessSharedPreferencesTest.class, log, "first");
+        final Process second = start(MultiProcessSharedPreferencesTest.class, log, "second");
+        assertEquals("first writer exit code", 0, first.waitFor());
+        assertEquals("second writer exit code", 0, second.waitFor());
+
+        final MultiProcessSharedPreferences prefs = new MultiProcessSharedPreferences(log);
+        try {
+            for (int i = 0; i < KEYS_PER_PROCESS; i++) {
+                assertEquals(String.valueOf(i), prefs.getString("first" + i, null));
+                assertEquals(String.valueOf(i), prefs.getString("second" + i, null));
+            }
+            assertEquals(HOT_KEY_WRITES - 1, prefs.getInt("firstHot", 0));
+            assertEquals(HOT_KEY_WRITES - 1, prefs.getInt("secondHot", 0));
+            assertEquals(2 * KEYS_PER_PROCESS + 2, prefs.getAll().size());
+        } finally {
+            prefs.close();
+        }
+        assertTrue("log wasn't compacted", readGeneration(log) > 0);
+    }
+
+    @Test(timeout = 300000)
+    public void processesCreatingTheSameKeyAgreeOnItsValue() throws Exception {
+        final File log = new File(folder.getRoot(), "keys.log");
+        final Process first = start(KeyCreator.class, log, "first");
+        final Process second = start(KeyCreator.class, log, "second");
+        assertEquals("first creator exit code", 0, first.waitFor());
+        assertEquals("second creator exit code", 0, second.waitFor());
+
+        final MultiProcessSharedPreferences prefs = new MultiProcessSharedPreferences(log);
+        try {
+            for (int i = 0; i < KEY_RACES; i++) {
+                final String stored = prefs.getString("key" + i, null);
+                assertNotNull(stored);
+                assertEquals("first process used another value for key" + i, stored, prefs.getString("first" + i, null));
+                assertEquals("second process used another value for key" + i, stored, prefs.getString("second" + i, null));
+            }
+        } finally {
+            prefs.close();
+        }
+    }
+
+    /**
+     * A writer process: commits {@link #KEYS_PER_PROCESS} keys one at a time, then applies
+     * {@link #HOT_KEY_WRITES} values of one key. Exits non-zero if a commit fails.
+     *
+     * @param args the log file and the prefix of the keys to write
+     */
+    public static void main(String[] args) throws IOException {
+        final MultiProcessSharedPreferences prefs = new MultiProcessSharedPreferences(new File(args[0]));
+        final String prefix = args[1];
+        try {
+            for (int i = 0; i < KEYS_PER_PROCESS; i++) {
+                if (!prefs.edit().putString(prefix + i, String.valueOf(i)).commit()) {
+                    throw new IllegalStateException("Commit of " + prefix + i + " failed");
+                }
+            }
+            for (int i = 0; i < HOT_KEY_WRITES; i++) {
+                prefs.edit().putInt(prefix + "Hot", i).apply();
+            }
+        } finally {
+            prefs.close();
+        }
+    }
+
+    /**
+     * A process creating {@link #KEY_RACES} keys with
+     * {@link MultiProcessSharedPreferences#putStringIfAbsent(String, String)}. It records the
+     * value each key ended up with under its own prefix, so the test can check both processes
+     * got the same one.
+     */
+    public static final class KeyCreator {
+
+        /**
+         * @param args the log file and the prefix of the values to offer
+         */
+        public static void main(String[] args) throws IOException {
+            final MultiProcessSharedPreferences prefs = new MultiProcessSharedPreferences(new File(args[0]));
+            final String prefix = args[1];
+            try {
+                for (int i = 0; i < KEY_RACES; i++) {
+                    final String stored = prefs.putStringIfAbsent("key" + i, prefix + i);
+                    if (stored == null || !prefs.edit().putString(prefix + i, stored).commit()) {
+                        throw new IllegalStateException("Write of key" + i + " failed");
+                    }
+                }
+            } finally {
+                prefs.close();
+            }
+        }
+    }
+
+    private static Process start(Class<?> mainClass, File log, String prefix) throws IOException {
+        final String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                mainClass.getName(), log.getPath(), prefix)
+                .inheritIO()
+                .start();
+    }
+
+    /**
+     * @return the generation in the log's header, which compaction increments
+     */
+    private static long readGeneration(File log) throws IOException {
+        final DataInputStream in = new DataInputStream(new FileInputStream(log));
+        try {
+            in.readInt();
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+}
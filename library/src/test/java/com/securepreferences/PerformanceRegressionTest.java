@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.tozny.crypto.android.AesCbcWithIntegrity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Macro benchmarks of whole scenarios on the JVM. Only run when {@code securepreferences.perf} is
+ * set, with {@code ./gradlew :library:testDebugUnitTest -PperformanceTests}.
+ * <p>
+ * For each file size in {@code securepreferences.perf.sizes} this measures cold open, first read
+ * and single commit latency, the size of the file and {@link SecurePreferences#handlePasswordChange(String, Context, int)}.
+ * Results are written to {@code securepreferences.perf.results}.
+ * <p>
+ * Each timing is checked against a reference timed in the same run on the same machine: the
+ * platform doing the same to a plain SharedPreferences file of the same size, plus the key
+ * derivation and AES work the scenario can't avoid. The test fails if a timing is over
+ * {@link #REFERENCE_ALLOWANCE} times its reference by more than
+ * {@code securepreferences.perf.tolerance}, as a fraction, plus {@link #SLACK_MILLIS}, so the
+ * check holds on any machine. Any result in the checked in baseline, such as the file size, must
+ * also stay within the tolerance of it.
+ * <p>
+ * Record a new baseline with {@code ./gradlew :library:testDebugUnitTest -PperformanceTests -PupdatePerformanceBaseline}
+ * and check in the updated file. Timings recorded there only hold for the machine they came from.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PerformanceRegressionTest {
+
+    private static final String PASSWORD = "password";
+    private static final String NEW_PASSWORD = "new password";
+    private static final int ITERATION_COUNT = 10000;
+
+    //timings are the median of this many runs
+    private static final int REPEATS = 5;
+
+    //absolute allowance on top of the tolerance for timings
+    private static final double SLACK_MILLIS = 5;
+
+    //how much slower than its bare reference a scenario may be, for the library's own work such
+    //as hashing key names, value headers and type tags
+    private static final double REFERENCE_ALLOWANCE = 1.5;
+
+    //the timings checked against a reference, see checkReferences
+    private static final String[] TIMINGS = {"coldOpenMillis", "firstReadMillis", "commitMillis", "passwordChangeMillis"};
+    private static final String REFERENCE_SUFFIX = "Reference";
+
+    private static final String DEFAULT_SIZES = "100,1000,10000,50000";
+    private static final double DEFAULT_TOLERANCE = 0.25;
+
+    private Context context;
+    private final List<String> prefFileNames = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        assumeTrue("performance tests run with -PperformanceTests", Boolean.getBoolean("securepreferences.perf"));
+        context = RuntimeEnvironment.application;
+    }
+
+    @After
+    public void tearDown() {
+        for (String prefFileName : prefFileNames) {
+            getPrefFile(prefFileName).delete();
+        }
+    }
+
+    @Test
+    public void scenariosDoNotRegress() throws Exception {
+        final Properties results = new Properties();
+        final List<Integer> sizes = new ArrayList<>();
+        for (String size : System.getProperty("securepreferences.perf.sizes", DEFAULT_SIZES).split(",")) {
+            sizes.add(Integer.parseInt(size.trim()));
+            runScenarios(sizes.get(sizes.size() - 1), results);
+        }
+        writeProperties(results, new File(System.getProperty("securepreferences.perf.results", "build/reports/performance/results.properties")),
+                "SecurePreferences performance results");
+
+        final double tolerance = Double.parseDouble(System.getProperty("securepreferences.perf.tolerance", Double.toString(DEFAULT_TOLERANCE)));
+        final List<String> regressions = checkReferences(results, sizes, tolerance);
+        final File baselineFile = new File(System.getProperty("securepreferences.perf.baseline", "src/test/resources/performance-baseline.properties"));
+        if (Boolean.getBoolean("securepreferences.perf.updateBaseline")) {
+            writeProperties(results, baselineFile, "SecurePreferences performance baseline, see PerformanceRegressionTest");
+        } else {
+            regressions.addAll(compare(results, readProperties(baselineFile), tolerance));
+        }
+        if (!regressions.isEmpty()) {
+            fail("Performance regressed:\n" + join(regressions));
+        }
+    }
+
+    private void runScenarios(int entries, Properties results) throws Exception {
+        final String prefFileName = newPrefFileName();
+        SecurePreferences securePrefs = new SecurePreferences(context, PASSWORD, prefFileName, ITERATION_COUNT);
+        final SharedPreferences.Editor editor = securePrefs.edit();
+        for (int i = 0; i < entries; i++) {
+            editor.putString(key(i), value(i));
+        }
+        editor.commit();
+
+        //the references do the same to a plain copy of the file, with keys of their own
+        final String plainFileName = newPrefFileName();
+        copyFile(getPrefFile(prefFileName), getPrefFile(plainFileName));
+        final SharedPreferences plainPrefs = context.getSharedPreferences(plainFileName, Context.MODE_PRIVATE);
+        final String[] hashedKeys = new String[entries];
+        final String[] cipherTexts = new String[entries];
+        final AesCbcWithIntegrity.SecretKeys[] referenceKeys = {AesCbcWithIntegrity.generateKey(), AesCbcWithIntegrity.generateKey()};
+        final byte[] referenceSalt = AesCbcWithIntegrity.generateSalt();
+        for (int i = 0; i < entries; i++) {
+            hashedKeys[i] = SecurePreferences.hashPrefKey(key(i));
+            cipherTexts[i] = AesCbcWithIntegrity.encrypt(value(i), referenceKeys[0]).toString();
+        }
+        final int readIndex = entries / 2;
+
+        final double[] coldOpen = new double[REPEATS];
+        final double[] firstRead = new double[REPEATS];
+        final double[] coldOpenReference = new double[REPEATS];
+        final double[] firstReadReference = new double[REPEATS];
+        for (int run = 0; run < REPEATS; run++) {
+            //a file never opened before is loaded from disk, as at app start
+            final String copy = newPrefFileName();
+            copyFile(getPrefFile(prefFileName), getPrefFile(copy));
+
+            long start = System.nanoTime();
+            final SecurePreferences opened = new SecurePreferences(context, PASSWORD, copy, ITERATION_COUNT);
+            coldOpen[run] = millisSince(start);
+
+            start = System.nanoTime();
+            opened.getString(key(readIndex), null);
+            firstRead[run] = millisSince(start);
+
+            final String plainCopy = newPrefFileName();
+            copyFile(getPrefFile(prefFileName), getPrefFile(plainCopy));
+            start = System.nanoTime();
+            context.getSharedPreferences(plainCopy, Context.MODE_PRIVATE).getString(hashedKeys[readIndex], null);
+            AesCbcWithIntegrity.generateKeyFromPassword(PASSWORD, referenceSalt, ITERATION_COUNT);
+            coldOpenReference[run] = millisSince(start);
+
+            start = System.nanoTime();
+            AesCbcWithIntegrity.decryptString(new AesCbcWithIntegrity.CipherTextIvMac(cipherTexts[readIndex]), referenceKeys[0]);
+            firstReadReference[run] = millisSince(start);
+        }
+        record(results, "coldOpenMillis", entries, median(coldOpen));
+        record(results, "firstReadMillis", entries, median(firstRead));
+        record(results, "coldOpenMillis" + REFERENCE_SUFFIX, entries, median(coldOpenReference));
+        record(results, "firstReadMillis" + REFERENCE_SUFFIX, entries, median(firstReadReference));
+
+        //the whole file is rewritten on every commit, so this grows with the number of entries
+        final double[] commit = new double[REPEATS];
+        final double[] commitReference = new double[REPEATS];
+        for (int run = 0; run < REPEATS; run++) {
+            long start = System.nanoTime();
+            securePrefs.edit().putString(key(run), "updated " + run).commit();
+            commit[run] = millisSince(start);
+
+            start = System.nanoTime();
+            final String cipherText = AesCbcWithIntegrity.encrypt("updated " + run, referenceKeys[0]).toString();
+            plainPrefs.edit().putString(hashedKeys[run], cipherText).commit();
+            commitReference[run] = millisSince(start);
+        }
+        record(results, "commitMillis", entries, median(commit));
+        record(results, "commitMillis" + REFERENCE_SUFFIX, entries, median(commitReference));
+        record(results, "fileBytes", entries, getPrefFile(prefFileName).length());
+
+        //back and forth, every run re-encrypts the whole file
+        final double[] passwordChange = new double[REPEATS];
+        final double[] passwordChangeReference = new double[REPEATS];
+        for (int run = 0; run < REPEATS; run++) {
+            long start = System.nanoTime();
+            securePrefs.handlePasswordChange(run % 2 == 0 ? NEW_PASSWORD : PASSWORD, context, ITERATION_COUNT);
+            passwordChange[run] = millisSince(start);
+
+            start = System.nanoTime();
+            reKey(plainPrefs, hashedKeys, cipherTexts, referenceKeys[run % 2], referenceKeys[(run + 1) % 2], referenceSalt);
+            passwordChangeReference[run] = millisSince(start);
+        }
+        record(results, "passwordChangeMillis", entries, median(passwordChange));
+        record(results, "passwordChangeMillis" + REFERENCE_SUFFIX, entries, median(passwordChangeReference));
+    }
+
+    /**
+     * The least a password change has to do: derive the new key, decrypt and encrypt every value,
+     * and write them all in one commit
+     */
+    private static void reKey(SharedPreferences plainPrefs, String[] hashedKeys, String[] cipherTexts,
+                              AesCbcWithIntegrity.SecretKeys from, AesCbcWithIntegrity.SecretKeys to, byte[] salt) throws Exception {
+        AesCbcWithIntegrity.generateKeyFromPassword(NEW_PASSWORD, salt, ITERATION_COUNT);
+        final SharedPreferences.Editor editor = plainPrefs.edit();
+        for (int i = 0; i < hashedKeys.length; i++) {
+            final String plainText = AesCbcWithIntegrity.decryptString(new AesCbcWithIntegrity.CipherTextIvMac(cipherTexts[i]), from);
+            cipherTexts[i] = AesCbcWithIntegrity.encrypt(plainText, to).toString();
+            editor.putString(hashedKeys[i], cipherTexts[i]);
+        }
+        editor.commit();
+    }
+
+    /**
+     * @return a line for each timing at any size that's over {@link #REFERENCE_ALLOWANCE} times
+     * its reference by more than the tolerance plus {@link #SLACK_MILLIS}
+     */
+    private static List<String> checkReferences(Properties results, List<Integer> sizes, double tolerance) {
+        final List<String> regressions = new ArrayList<>();
+        for (String timing : TIMINGS) {
+            for (int entries : sizes) {
+                final String name = timing + "." + entries;
+                final double actual = Double.parseDouble(results.getProperty(name));
+                final double reference = Double.parseDouble(results.getProperty(timing + REFERENCE_SUFFIX + "." + entries));
+                final double limit = reference * REFERENCE_ALLOWANCE * (1 + tolerance) + SLACK_MILLIS;
+                if (actual > limit) {
+                    regressions.add(name + ": " + format(actual) + ", reference " + format(reference) + ", limit " + format(limit));
+                }
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * @return a line for each result worse than its baseline, results without one are new and pass
+     */
+    private static List<String> compare(Properties results, Properties baseline, double tolerance) {
+        final List<String> regressions = new ArrayList<>();
+        for (String name : new TreeSet<>(results.stringPropertyNames())) {
+            final String expected = baseline.getProperty(name);
+            if (expected == null) {
+                continue;
+            }
+            final double actual = Double.parseDouble(results.getProperty(name));
+            final double slack = name.startsWith("fileBytes") ? 0 : SLACK_MILLIS;
+            final double limit = Double.parseDouble(expected) * (1 + tolerance) + slack;
+            if (actual > limit) {
+                regressions.add(name + ": " + format(actual) + ", baseline " + expected + ", limit " + format(limit));
+            }
+        }
+        return regressions;
+    }
+
+    private static void record(Properties results, String metric, int entries, double value) {
+        results.setProperty(metric + "." + entries, format(value));
+    }
+
+    private static String key(int i) {
+        return "key" + i;
+    }
+
+    private static String value(int i) {
+        return "value " + i;
+    }
+
+    private String newPrefFileName() {
+        final String prefFileName = "perf" + prefFileNames.size();
+        prefFileNames.add(prefFileName);
+        return prefFileName;
+    }
+
+    private File getPrefFile(String prefFileName) {
+        return new File(context.getFilesDir().getParent() + "/shared_prefs", prefFileName + ".xml");
+    }
+
+    private static double millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000d;
+    }
+
+    private static double median(double[] values) {
+        final double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.2f", value);
+    }
+
+    private static String join(List<String> lines) {
+        final StringBuilder builder = new StringBuilder();
+        for (String line : lines) {
+            builder.append("  ").append(line).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        final InputStream in = new FileInputStream(from);
+        try {
+            final OutputStream out = new FileOutputStream(to);
+            try {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Properties readProperties(File file) throws IOException {
+        final Properties properties = new Properties();
+        if (!file.exists()) {
+            return properties;
+        }
+        final InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    private static void writeProperties(Properties properties, File file, String comment) throws IOException {
+        final File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        //sorted so the checked in baseline diffs cleanly, names and values never need escaping
+        final Writer out = new OutputStreamWriter(new FileOutputStream(file), "ISO-8859-1");
+        try {
+            out.write("# " + comment + "\n");
+            for (String name : new TreeSet<>(properties.stringPropertyNames())) {
+                out.write(name + "=" + properties.getProperty(name) + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
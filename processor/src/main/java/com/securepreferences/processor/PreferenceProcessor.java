@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences.processor;
+
+import com.securepreferences.annotations.Pref;
+import com.securepreferences.annotations.PreferenceDefinitions;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a typed accessor class for each {@link PreferenceDefinitions} interface. Key names
+ * are hashed here, at build time, the same way SecurePreferences.hashPrefKey does at runtime,
+ * so the generated class reads and writes without hashing or reflection.
+ */
+public final class PreferenceProcessor extends AbstractProcessor {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private Elements elements;
+    private Types types;
+    private Messager messager;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        elements = processingEnv.getElementUtils();
+        types = processingEnv.getTypeUtils();
+        messager = processingEnv.getMessager();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(PreferenceDefinitions.class.getCanonicalName());
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(PreferenceDefinitions.class)) {
+            if (element.getKind() != ElementKind.INTERFACE) {
+                error(element, "@PreferenceDefinitions can only be used on an interface");
+                continue;
+            }
+            final TypeElement definitions = (TypeElement) element;
+            final List<Preference> preferences = readPreferences(definitions);
+            if (preferences == null) {
+                continue;
+            }
+            try {
+                writeAccessor(definitions, preferences);
+            } catch (IOException e) {
+                error(definitions, "Couldn't write the accessor: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A method of a definitions interface
+     */
+    static final class Preference {
+        final String method;
+        final String key;
+        final Type type;
+        //Java expression for the default
+        final String defaultValue;
+
+        Preference(String method, String key, Type type, String defaultValue) {
+            this.method = method;
+            this.key = key;
+            this.type = type;
+            this.defaultValue = defaultValue;
+        }
+
+        String constant() {
+            return "KEY_" + method.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase(Locale.US);
+        }
+
+        String capitalized() {
+            return Character.toUpperCase(method.charAt(0)) + method.substring(1);
+        }
+    }
+
+    /**
+     * The types a preference can have, with the SecurePreferences method suffix for each
+     */
+    enum Type {
+        STRING("String", "String", "null"),
+        STRING_SET("Set<String>", "StringSet", "null"),
+        INT("int", "Int", "0"),
+        LONG("long", "Long", "0L"),
+        FLOAT("float", "Float", "0f"),
+        BOOLEAN("boolean", "Boolean", "false");
+
+        final String javaType;
+        final String suffix;
+        final String zero;
+
+        Type(String javaType, String suffix, String zero) {
+            this.javaType = javaType;
+            this.suffix = suffix;
+            this.zero = zero;
+        }
+    }
+
+    /**
+     * @return the preferences of definitions, null after reporting errors if it isn't valid
+     */
+    private List<Preference> readPreferences(TypeElement definitions) {
+        boolean valid = true;
+        if (definitions.getModifiers().contains(Modifier.PRIVATE)) {
+            error(definitions, "@PreferenceDefinitions interfaces can't be private");
+            valid = false;
+        }
+        if (!definitions.getTypeParameters().isEmpty()) {
+            error(definitions, "@PreferenceDefinitions interfaces can't be generic");
+            valid = false;
+        }
+        final List<Preference> preferences = new ArrayList<>();
+        final Map<String, ExecutableElement> methodsByKey = new HashMap<>();
+        for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(definitions))) {
+            if (method.getEnclosingElement().getKind() != ElementKind.INTERFACE
+                    || !method.getModifiers().contains(Modifier.ABSTRACT)) {
+                continue;
+            }
+            final Preference preference = readPreference(method);
+            if (preference == null) {
+                valid = false;
+                continue;
+            }
+            final ExecutableElement other = methodsByKey.put(preference.key, method);
+            if (other != null) {
+                error(method, "Key \"" + preference.key + "\" is also used by " + other.getSimpleName() + "()");
+                valid = false;
+                continue;
+            }
+            preferences.add(preference);
+        }
+        return valid ? preferences : null;
+    }
+
+    private Preference readPreference(ExecutableElement method) {
+        final String name = method.getSimpleName().toString();
+        if (!method.getParameters().isEmpty() || !method.getTypeParameters().isEmpty()) {
+            error(method, name + "() can't have parameters");
+            return null;
+        }
+        final Type type = typeOf(method.getReturnType());
+        if (type == null) {
+            error(method, name + "() must return String, Set<String>, int, long, float or boolean");
+            return null;
+        }
+        final Pref pref = method.getAnnotation(Pref.class);
+        final String key = pref != null && !pref.key().isEmpty() ? pref.key() : name;
+        final String defaultValue = pref != null ? pref.defaultValue() : Pref.NO_DEFAULT;
+        final String literal = defaultLiteral(type, defaultValue);
+        if (literal == null) {
+            error(method, "\"" + defaultValue + "\" isn't a default for " + type.javaType);
+            return null;
+        }
+        return new Preference(name, key, type, literal);
+    }
+
+    private Type typeOf(TypeMirror returnType) {
+        switch (returnType.getKind()) {
+            case INT:
+                return Type.INT;
+            case LONG:
+                return Type.LONG;
+            case FLOAT:
+                return Type.FLOAT;
+            case BOOLEAN:
+                return Type.BOOLEAN;
+            case DECLARED:
+                final TypeMirror string = elements.getTypeElement("java.lang.String").asType();
+                if (types.isSameType(returnType, string)) {
+                    return Type.STRING;
+                }
+                final TypeMirror stringSet = types.getDeclaredType(elements.getTypeElement("java.util.Set"), string);
+                return types.isSameType(returnType, stringSet) ? Type.STRING_SET : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return the default as a Java expression, null if it isn't one of type
+     */
+    static String defaultLiteral(Type type, String value) {
+        if (Pref.NO_DEFAULT.equals(value)) {
+            return type.zero;
+        }
+        try {
+            switch (type) {
+                case STRING:
+                    return stringLiteral(value);
+                case INT:
+                    return Integer.toString(Integer.parseInt(value.trim()));
+                case LONG:
+                    return Long.parseLong(value.trim()) + "L";
+                case FLOAT:
+                    final float f = Float.parseFloat(value.trim());
+                    if (Float.isNaN(f)) {
+                        return "Float.NaN";
+                    }
+                    if (Float.isInfinite(f)) {
+                        return f > 0 ? "Float.POSITIVE_INFINITY" : "Float.NEGATIVE_INFINITY";
+                    }
+                    return f + "f";
+                case BOOLEAN:
+                    final String trimmed = value.trim();
+                    return "true".equals(trimmed) || "false".equals(trimmed) ? trimmed : null;
+                default:
+                    return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void writeAccessor(TypeElement definitions, List<Preference> preferences) throws IOException {
+        final String packageName = elements.getPackageOf(definitions).getQualifiedName().toString();
+        final String qualifiedName = definitions.getQualifiedName().toString();
+        //the interface's name relative to its package, Outer.Inner for a nested one
+        final String interfaceName = packageName.isEmpty() ? qualifiedName : qualifiedName.substring(packageName.length() + 1);
+        final String className = className(definitions, interfaceName);
+
+        final StringBuilder out = new StringBuilder();
+        out.append("// Generated by the securepreferences processor from ").append(qualifiedName).append(", don't edit\n");
+        if (!packageName.isEmpty()) {
+            out.append("package ").append(packageName).append(";\n\n");
+        }
+        out.append("import com.securepreferences.HashedKey;\n");
+        out.append("import com.securepreferences.PreferenceBatch;\n");
+        out.append("import com.securepreferences.SecurePreferences;\n\n");
+        out.append("import java.util.Set;\n\n");
+
+        out.append("/**\n * Reads and writes the preferences of {@link ").append(interfaceName)
+                .append("} through a SecurePreferences, with\n * their key names hashed at build time\n */\n");
+        out.append("public final class ").append(className).append(" implements ").append(interfaceName).append(" {\n\n");
+        for (Preference preference : preferences) {
+            out.append("    public static final HashedKey ").append(preference.constant()).append(" = new HashedKey(")
+                    .append(stringLiteral(preference.key)).append(", \"").append(sha256Name(preference.key)).append("\");\n");
+        }
+        out.append("\n    private static final PreferenceBatch ALL_KEYS = new PreferenceBatch()");
+        for (Preference preference : preferences) {
+            out.append("\n            .add").append(preference.type.suffix).append('(').append(preference.constant())
+                    .append(", ").append(preference.defaultValue).append(')');
+        }
+        out.append(";\n\n");
+
+        out.append("    private final SecurePreferences securePreferences;\n\n");
+        out.append("    public ").append(className).append("(SecurePreferences securePreferences) {\n");
+        out.append("        this.securePreferences = securePreferences;\n");
+        out.append("    }\n\n");
+        out.append("    public SecurePreferences getSecurePreferences() {\n");
+        out.append("        return securePreferences;\n");
+        out.append("    }\n");
+
+        for (Preference preference : preferences) {
+            out.append("\n    @Override\n");
+            out.append("    public ").append(preference.type.javaType).append(' ').append(preference.method).append("() {\n");
+            out.append("        return securePreferences.get").append(preference.type.suffix).append('(')
+                    .append(preference.constant()).append(", ").append(preference.defaultValue).append(");\n");
+            out.append("    }\n");
+        }
+
+        out.append("\n    /**\n     * Reads every preference in one batch\n     *\n     * @return the values as they were when read\n     */\n");
+        out.append("    public ").append(interfaceName).append(" loadAll() {\n");
+        out.append("        final PreferenceBatch.Values values = securePreferences.getValues(ALL_KEYS);\n");
+        out.append("        return new Snapshot(");
+        for (int i = 0; i < preferences.size(); i++) {
+            final Preference preference = preferences.get(i);
+            out.append(i == 0 ? "" : ", ").append("values.get").append(preference.type.suffix).append('(')
+                    .append(preference.constant()).append(".getKey())");
+        }
+        out.append(");\n    }\n\n");
+
+        out.append("    public Editor edit() {\n");
+        out.append("        return new Editor(securePreferences.edit());\n");
+        out.append("    }\n\n");
+
+        out.append("    /**\n     * Changes are written together by {@link #commit()} or {@link #apply()}\n     */\n");
+        out.append("    public static final class Editor {\n\n");
+        out.append("        private final SecurePreferences.Editor editor;\n\n");
+        out.append("        Editor(SecurePreferences.Editor editor) {\n");
+        out.append("            this.editor = editor;\n");
+        out.append("        }\n");
+        for (Preference preference : preferences) {
+            out.append("\n        public Editor put").append(preference.capitalized()).append('(')
+                    .append(preference.type.javaType).append(" value) {\n");
+            out.append("            editor.put").append(preference.type.suffix).append('(').append(preference.constant()).append(", value);\n");
+            out.append("            return this;\n");
+            out.append("        }\n\n");
+            out.append("        public Editor remove").append(preference.capitalized()).append("() {\n");
+            out.append("            editor.remove(").append(preference.constant()).append(");\n");
+            out.append("            return this;\n");
+            out.append("        }\n");
+        }
+        out.append("\n        public boolean commit() {\n");
+        out.append("            return editor.commit();\n");
+        out.append("        }\n\n");
+        out.append("        public void apply() {\n");
+        out.append("            editor.apply();\n");
+        out.append("        }\n");
+        out.append("    }\n\n");
+
+        out.append("    private static final class Snapshot implements ").append(interfaceName).append(" {\n\n");
+        for (Preference preference : preferences) {
+            out.append("        private final ").append(preference.type.javaType).append(' ').append(preference.method).append(";\n");
+        }
+        out.append("\n        Snapshot(");
+        for (int i = 0; i < preferences.size(); i++) {
+            final Preference preference = preferences.get(i);
+            out.append(i == 0 ? "" : ", ").append(preference.type.javaType).append(' ').append(preference.method);
+        }
+        out.append(") {\n");
+        for (Preference preference : preferences) {
+            out.append("            this.").append(preference.method).append(" = ").append(preference.method).append(";\n");
+        }
+        out.append("        }\n");
+        for (Preference preference : preferences) {
+            out.append("\n        @Override\n");
+            out.append("        public ").append(preference.type.javaType).append(' ').append(preference.method).append("() {\n");
+            out.append("            return ").append(preference.method).append(";\n");
+            out.append("        }\n");
+        }
+        out.append("    }\n");
+        out.append("}\n");
+
+        final String generatedName = packageName.isEmpty() ? className : packageName + "." + className;
+        final Writer writer = processingEnv.getFiler().createSourceFile(generatedName, definitions).openWriter();
+        try {
+            writer.write(out.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String className(TypeElement definitions, String interfaceName) {
+        final String className = definitions.getAnnotation(PreferenceDefinitions.class).className();
+        return className.isEmpty() ? interfaceName.replace('.', '_') + "Prefs" : className;
+    }
+
+    /**
+     * @return the key named as SecurePreferences.hashPrefKey names it: SHA-256 of its UTF-8
+     * bytes, Base64 encoded with padding and no line breaks
+     */
+    static String sha256Name(String key) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder encoded = new StringBuilder((digest.length + 2) / 3 * 4);
+        for (int i = 0; i < digest.length; i += 3) {
+            final int b0 = digest[i] & 0xff;
+            final int b1 = i + 1 < digest.length ? digest[i + 1] & 0xff : 0;
+            final int b2 = i + 2 < digest.length ? digest[i + 2] & 0xff : 0;
+            encoded.append(BASE64[b0 >> 2]);
+            encoded.append(BASE64[(b0 << 4 | b1 >> 4) & 0x3f]);
+            encoded.append(i + 1 < digest.length ? BASE64[(b1 << 2 | b2 >> 6) & 0x3f] : '=');
+            encoded.append(i + 2 < digest.length ? BASE64[b2 & 0x3f] : '=');
+        }
+        return encoded.toString();
+    }
+
+    private static String stringLiteral(String value) {
+        final StringBuilder literal = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    literal.append("\\\"");
+                    break;
+                case '\\':
+                    literal.append("\\\\");
+                    break;
+                case '\n':
+                    literal.append("\\n");
+                    break;
+                case '\r':
+                    literal.append("\\r");
+                    break;
+                case '\t':
+                    literal.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7e) {
+                        literal.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        literal.append(c);
+                    }
+            }
+        }
+        return literal.append('"').toString();
+    }
+
+    private void error(Element element, String message) {
+        messager.printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences.processor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PreferenceProcessorTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private File sourceDir;
+    private File outputDir;
+    private DiagnosticCollector<JavaFileObject> diagnostics;
+
+    @Before
+    public void setUp() throws IOException {
+        sourceDir = Files.createTempDirectory("prefs-src").toFile();
+        outputDir = Files.createTempDirectory("prefs-out").toFile();
+        diagnostics = new DiagnosticCollector<>();
+    }
+
+    @Test
+    public void testKeyNamesAreHashedLikeAtRuntime() {
+        //SecurePreferences.hashPrefKey("token")
+        assertEquals("PEaenWxYddN6Q/NT1PiOYfz4EsZu7jRXRlpAsNpBU+A=", PreferenceProcessor.sha256Name("token"));
+        assertEquals("47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=", PreferenceProcessor.sha256Name(""));
+    }
+
+    @Test
+    public void testGeneratesAccessorWithHashedKeys() throws IOException {
+        process("example/Settings.java",
+                "package example;\n"
+                        + "import com.securepreferences.annotations.Pref;\n"
+                        + "import com.securepreferences.annotations.PreferenceDefinitions;\n"
+                        + "import java.util.Set;\n"
+                        + "@PreferenceDefinitions\n"
+                        + "public interface Settings {\n"
+                        + "    @Pref(key = \"token\") String authToken();\n"
+                        + "    @Pref(defaultValue = \"3\") int launchCount();\n"
+                        + "    Set<String> tags();\n"
+                        + "}\n");
+
+        assertFalse(diagnostics.getDiagnostics().toString(), hasProcessorError());
+        final File generated = new File(outputDir, "example/SettingsPrefs.java");
+        assertTrue(generated.exists());
+        final String source = new String(Files.readAllBytes(generated.toPath()), UTF_8);
+        assertTrue(source.contains("KEY_AUTH_TOKEN = new HashedKey(\"token\", \"PEaenWxYddN6Q/NT1PiOYfz4EsZu7jRXRlpAsNpBU+A=\")"));
+        assertTrue(source.contains("securePreferences.getInt(KEY_LAUNCH_COUNT, 3)"));
+        assertTrue(source.contains(".addStringSet(KEY_TAGS, null)"));
+        assertTrue(source.contains("public Editor putAuthToken(String value)"));
+        assertTrue(source.contains("public Settings loadAll()"));
+        assertFalse(source.contains("hashPrefKey"));
+    }
+
+    @Test
+    public void testRejectsUnsupportedReturnType() throws IOException {
+        final boolean compiled = process("example/Bad.java",
+                "package example;\n"
+                        + "import com.securepreferences.annotations.PreferenceDefinitions;\n"
+                        + "@PreferenceDefinitions\n"
+                        + "public interface Bad {\n"
+                        + "    double ratio();\n"
+                        + "}\n");
+
+        assertFalse(compiled);
+        assertTrue(hasError("ratio() must return"));
+    }
+
+    @Test
+    public void testRejectsDuplicateKeysAndBadDefaults() throws IOException {
+        final boolean compiled = process("example/Clash.java",
+                "package example;\n"
+                        + "import com.securepreferences.annotations.Pref;\n"
+                        + "import com.securepreferences.annotations.PreferenceDefinitions;\n"
+                        + "@PreferenceDefinitions\n"
+                        + "public interface Clash {\n"
+                        + "    @Pref(key = \"name\") String first();\n"
+                        + "    @Pref(key = \"name\") String second();\n"
+                        + "    @Pref(defaultValue = \"many\") int count();\n"
+                        + "}\n");
+
+        assertFalse(compiled);
+        assertTrue(hasError("Key \"name\" is also used by"));
+        assertTrue(hasError("\"many\" isn't a default for int"));
+    }
+
+    /**
+     * Runs the processor only, the generated source needs the library to compile
+     *
+     * @return false if there were errors, including ones in the generated source
+     */
+    private boolean process(String path, String source) throws IOException {
+        final File file = new File(sourceDir, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), source.getBytes(UTF_8));
+
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        final StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, UTF_8);
+        try {
+            final JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics,
+                    Arrays.asList("-proc:only", "-s", outputDir.getPath(),
+                            "-classpath", System.getProperty("java.class.path")),
+                    null, fileManager.getJavaFileObjectsFromFiles(Collections.singletonList(file)));
+            task.setProcessors(Collections.singletonList(new PreferenceProcessor()));
+            return task.call();
+        } finally {
+            fileManager.close();
+        }
+    }
+
+    /**
+     * @return true if there were errors other than ones in the generated source, which can't
+     * find the library here
+     */
+    private boolean hasProcessorError() {
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR && (diagnostic.getSource() == null
+                    || !diagnostic.getSource().toUri().getPath().startsWith(outputDir.toURI().getPath()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasError(String message) {
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR && diagnostic.getMessage(null).contains(message)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences.sample;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.View;
+import android.view.WindowManager;
+import android.widget.Button;
+import android.widget.TextView;
+
+import com.securepreferences.sample.benchmark.BenchmarkRunner;
+import com.securepreferences.sample.benchmark.StressRunner;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs the {@link BenchmarkRunner} scenarios or the {@link StressRunner} mixes on this device,
+ * shows a summary and writes the full results as JSON to {@code <external files dir>/benchmarks},
+ * from where they can be pulled with adb or shared.
+ */
+public class BenchmarkActivity extends AppCompatActivity {
+
+    private static final String TAG = "secureprefsample";
+
+    private Button runButton;
+    private Button stressTestButton;
+    private Button shareButton;
+    private TextView statusTextView;
+    private TextView resultsTextView;
+
+    private Thread benchmarkThread;
+    private String reportJson;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_benchmark);
+        runButton = findViewById(R.id.runBenchmarkButton);
+        stressTestButton = findViewById(R.id.runStressTestButton);
+        shareButton = findViewById(R.id.shareBenchmarkButton);
+        statusTextView = findViewById(R.id.benchmarkStatusTV);
+        resultsTextView = findViewById(R.id.benchmarkResultsTV);
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (benchmarkThread != null) {
+            benchmarkThread.interrupt();
+        }
+        super.onDestroy();
+    }
+
+    public void onRunBenchmarkButtonClick(View v) {
+        final BenchmarkRunner runner = new BenchmarkRunner(this, newListener());
+        start("benchmark", new Callable<JSONObject>() {
+            @Override
+            public JSONObject call() throws Exception {
+                return runner.run();
+            }
+        });
+    }
+
+    public void onRunStressTestButtonClick(View v) {
+        final StressRunner runner = new StressRunner(this, newListener());
+        start("stress", new Callable<JSONObject>() {
+            @Override
+            public JSONObject call() throws Exception {
+                return runner.run(StressRunner.standardMixes());
+            }
+        });
+    }
+
+    /**
+     * Runs runner on a thread of its own and saves its report as {@code <name>-<time>.json}
+     */
+    private void start(final String name, final Callable<JSONObject> runner) {
+        runButton.setEnabled(false);
+        stressTestButton.setEnabled(false);
+        shareButton.setEnabled(false);
+        resultsTextView.setText("");
+        reportJson = null;
+        //the screen going off would throttle the device mid run
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+
+        benchmarkThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String status;
+                String json = null;
+                try {
+                    final JSONObject report = runner.call();
+                    json = report.toString(2);
+                    final String path = save(name, json).getAbsolutePath();
+                    if (!report.has("passed")) {
+                        status = getString(R.string.benchmark_saved, path);
+                    } else if (report.getBoolean("passed")) {
+                        status = getString(R.string.benchmark_stress_passed, path);
+                    } else {
+                        status = getString(R.string.benchmark_stress_violations, path);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    Log.e(TAG, "Benchmark failed", e);
+                    status = getString(R.string.benchmark_failed, e.toString());
+                }
+                finished(status, json);
+            }
+        }, "SecurePreferences-" + name);
+        benchmarkThread.start();
+    }
+
+    private BenchmarkRunner.Listener newListener() {
+        return new BenchmarkRunner.Listener() {
+            @Override
+            public void onScenarioStarted(final String description) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        statusTextView.setText(getString(R.string.benchmark_running, description));
+                    }
+                });
+            }
+
+            @Override
+            public void onResult(JSONObject result) {
+                final String summary = summarise(result);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        resultsTextView.append(summary);
+                    }
+                });
+            }
+        };
+    }
+
+    public void onShareBenchmarkButtonClick(View v) {
+        final Intent share = new Intent(Intent.ACTION_SEND);
+        share.setType("application/json");
+        share.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.benchmark_share_subject));
+        share.putExtra(Intent.EXTRA_TEXT, reportJson);
+        startActivity(Intent.createChooser(share, getString(R.string.benchmark_share_button)));
+    }
+
+    private void finished(final String status, final String json) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                benchmarkThread = null;
+                reportJson = json;
+                getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+                statusTextView.setText(status);
+                runButton.setEnabled(true);
+                stressTestButton.setEnabled(true);
+                shareButton.setEnabled(json != null);
+            }
+        });
+    }
+
+    private File save(String name, String json) throws IOException {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            //no external storage mounted
+            dir = getFilesDir();
+        }
+        dir = new File(dir, "benchmarks");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        final File file = new File(dir, name + "-" + System.currentTimeMillis() + ".json");
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(json.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static String summarise(JSONObject result) {
+        try {
+            final String summary = String.format(Locale.US, "%s %s\n  p50 %.2fms  p90 %.2fms  p99 %.2fms  max %.2fms\n",
+                    result.getString("scenario"), result.getJSONObject("params"),
+                    result.getDouble("p50Millis"), result.getDouble("p90Millis"),
+                    result.getDouble("p99Millis"), result.getDouble("maxMillis"));
+            if (result.has("throughputPerSecond")) {
+                return summary + String.format(Locale.US, "  %.0f ops/s\n", result.getDouble("throughputPerSecond"));
+            }
+            return summary;
+        } catch (JSONException e) {
+            return result + "\n";
+        }
+    }
+}
@@ -159,6 +159,10 @@ public class MainActivity extends AppCompatActivity {
         startActivity(new Intent(this, ActivityWithPreferenceFragment.class));
     }
 
+    public void onBenchmarkButtonClick(View v) {
+        startActivity(new Intent(this, BenchmarkActivity.class));
+    }
+
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
@@ -20,6 +20,7 @@ import java.util.Map.Entry;
 
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
+import android.os.Build;
 import android.os.Bundle;
 import android.preference.CheckBoxPreference;
 import android.preference.EditTextPreference;
@@ -30,10 +31,12 @@ import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.securepreferences.SecurePreferenceDataStore;
 import com.securepreferences.SecurePreferences;
 /**
  * Shows example of how to use secure prefs with PreferenceFragment. Note the code in the onStart and onStop.
  * With out this the preference fragment/activity will just save things unencrypted to default preferences.
+ * From Android O the screen reads and writes the secure prefs through a {@link SecurePreferenceDataStore} instead.
  */
 public class SamplePreferenceActivity extends PreferenceActivity {
 
@@ -50,17 +53,26 @@ public class SamplePreferenceActivity extends PreferenceActivity {
     private String textKeyHash;
     private String listKeyHash;
 
+    private SecurePreferenceDataStore mDataStore;
+
 	@Override
 	@SuppressWarnings("deprecation")
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
-		addPreferencesFromResource(R.xml.preferences);
 
         //DefaultSharedPreferences is used by the PreferenceActivity
 		mInsecurePrefs = PreferenceManager.getDefaultSharedPreferences(this);
         //both use a different pref file
 		mSecurePrefs = App.get().getSharedPreferences();
 
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            //decrypts the screen's keys in one batch in the background while it inflates
+            mDataStore = new SecurePreferenceDataStore((SecurePreferences) mSecurePrefs);
+            mDataStore.prefetch(this, R.xml.preferences);
+            getPreferenceManager().setPreferenceDataStore(mDataStore);
+        }
+		addPreferencesFromResource(R.xml.preferences);
+
         //we need to use the hashed version of the keys to look them up (annoying i know!)
         checkBoxKeyHash = SecurePreferences.hashPrefKey(getString(R.string.checkbox_key));
         textKeyHash = SecurePreferences.hashPrefKey(getString(R.string.text_key));
@@ -102,6 +114,10 @@ public class SamplePreferenceActivity extends PreferenceActivity {
 	@Override
 	public void onStart() {
 		super.onStart();
+        if (mDataStore != null) {
+            //the widgets already read the secure prefs
+            return;
+        }
 
 		// Decrypt relevant key/value pairs, if they exist and set the values of the prefs
 		// this is automatic usually, but we need to map the hashed keys to the unhashed keys in the preference.xml)
@@ -131,6 +147,11 @@ public class SamplePreferenceActivity extends PreferenceActivity {
 	@Override
 	public void onStop() {
 		super.onStop();
+        if (mDataStore != null) {
+            //commit anything still buffered
+            mDataStore.flush();
+            return;
+        }
 
         //because the standard PreferenceActivity deals with unencrpyted prefs, we get them and replace with encrypted version when the activity is stopped
 		final Editor insecureEditor = mInsecurePrefs.edit();
@@ -33,11 +33,13 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.view.View;
 
+import com.securepreferences.SecurePreferenceDataStore;
 import com.securepreferences.SecurePreferences;
 
 /**
  * Shows example of how to use secure prefs with PreferenceFragment. Note the code in the onStart and onStop.
  * With out this the preference fragment/activity will just save things unencrypted to default preferences.
+ * From Android O the screen reads and writes the secure prefs through a {@link SecurePreferenceDataStore} instead.
  */
 @TargetApi(Build.VERSION_CODES.HONEYCOMB)
 public class SamplePreferenceFragment extends PreferenceFragment {
@@ -55,16 +57,24 @@ public class SamplePreferenceFragment extends PreferenceFragment {
     private String textKeyHash;
     private String listKeyHash;
 
+    private SecurePreferenceDataStore mDataStore;
+
     @Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 
-		addPreferencesFromResource(R.xml.preferences);
-
         //DefaultSharedPreferences is used by the PreferenceActivity
         mInsecurePrefs = PreferenceManager.getDefaultSharedPreferences(getActivity());
         //both use a different pref file
         mSecurePrefs = App.get().getSharedPreferences();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            //decrypts the screen's keys in one batch in the background while it inflates
+            mDataStore = new SecurePreferenceDataStore((SecurePreferences) mSecurePrefs);
+            mDataStore.prefetch(getActivity(), R.xml.preferences);
+            getPreferenceManager().setPreferenceDataStore(mDataStore);
+        }
+		addPreferencesFromResource(R.xml.preferences);
 	}
 
     @Override
@@ -111,6 +121,10 @@ public class SamplePreferenceFragment extends PreferenceFragment {
     @Override
     public void onStart() {
         super.onStart();
+        if (mDataStore != null) {
+            //the widgets already read the secure prefs
+            return;
+        }
 
         // Decrypt relevant key/value pairs, if they exist and set the values of the prefs
         // this is automatic usually, but we need to map the hashed keys to the unhashed keys in the preference.xml)
@@ -140,6 +154,11 @@ public class SamplePreferenceFragment extends PreferenceFragment {
     @Override
     public void onStop() {
         super.onStop();
+        if (mDataStore != null) {
+            //commit anything still buffered
+            mDataStore.flush();
+            return;
+        }
 
         //because the standard PreferenceActivity deals with unencrpyted prefs, we get them and replace with encrypted version when the activity is stopped
         final Editor insecureEditor = mInsecurePrefs.edit();
@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences.sample.benchmark;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import com.securepreferences.SecurePreferences;
+import com.securepreferences.sample.BuildConfig;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs the standard scenarios against files of its own and reports them as JSON, so results
+ * from different devices can be collected and compared:
+ * <ul>
+ * <li>open, a cold open of a file not loaded before, for each iteration count</li>
+ * <li>write and read, a commit and a getString of one value, for each value size</li>
+ * <li>writeStringSet and readStringSet, for each set size</li>
+ * <li>getAll, for each number of entries</li>
+ * <li>passwordChange, of a file of {@link #PASSWORD_CHANGE_ENTRIES} entries</li>
+ * </ul>
+ * Each scenario is run a number of times unmeasured to warm up, then timed over repeated runs
+ * and reported as percentiles. Call {@link #run()} off the main thread, interrupt it to stop.
+ */
+public class BenchmarkRunner {
+
+    /**
+     * Called on the benchmark thread
+     */
+    public interface Listener {
+        void onScenarioStarted(String description);
+
+        void onResult(JSONObject result);
+    }
+
+    public static final int DEFAULT_WARM_UP_RUNS = 3;
+    public static final int DEFAULT_RUNS = 20;
+
+    static final int[] ITERATION_COUNTS = {1000, 10000};
+    static final int[] VALUE_SIZES = {16, 256, 4096, 16384};
+    static final int[] STRING_SET_SIZES = {1, 10, 100};
+    static final int[] GET_ALL_ENTRIES = {100, 1000, 5000};
+    static final int PASSWORD_CHANGE_ENTRIES = 1000;
+
+    //entries in the file a cold open loads
+    private static final int OPEN_ENTRIES = 100;
+    private static final int ITERATION_COUNT = 10000;
+    private static final String PASSWORD = "benchmark password";
+
+    private final Context context;
+    private final int warmUpRuns;
+    private final int runs;
+    private final Listener listener;
+
+    private final List<String> prefFileNames = new ArrayList<>();
+
+    public BenchmarkRunner(Context context, Listener listener) {
+        this(context, DEFAULT_WARM_UP_RUNS, DEFAULT_RUNS, listener);
+    }
+
+    public BenchmarkRunner(Context context, int warmUpRuns, int runs, Listener listener) {
+        if (runs < 1) {
+            throw new IllegalArgumentException("runs must be at least 1");
+        }
+        this.context = context.getApplicationContext();
+        this.warmUpRuns = warmUpRuns;
+        this.runs = runs;
+        this.listener = listener;
+    }
+
+    /**
+     * @return the report, the device it ran on and a result for each scenario
+     * @throws InterruptedException if the thread was interrupted, files written so far are
+     *                              deleted
+     */
+    public JSONObject run() throws Exception {
+        final JSONObject report = new JSONObject();
+        report.put("device", describeDevice());
+        report.put("appVersion", BuildConfig.VERSION_NAME);
+        report.put("startedAt", System.currentTimeMillis());
+        report.put("warmUpRuns", warmUpRuns);
+        report.put("runs", runs);
+        final JSONArray results = new JSONArray();
+        report.put("results", results);
+        try {
+            for (int iterationCount : ITERATION_COUNTS) {
+                results.put(open(iterationCount));
+            }
+            for (int valueSize : VALUE_SIZES) {
+                results.put(write(valueSize));
+                results.put(read(valueSize));
+            }
+            for (int setSize : STRING_SET_SIZES) {
+                results.put(writeStringSet(setSize));
+                results.put(readStringSet(setSize));
+            }
+            for (int entries : GET_ALL_ENTRIES) {
+                results.put(getAll(entries));
+            }
+            results.put(passwordChange());
+        } finally {
+            deletePrefFiles();
+        }
+        report.put("finishedAt", System.currentTimeMillis());
+        return report;
+    }
+
+    private JSONObject open(final int iterationCount) throws Exception {
+        final String prefFileName = newPrefFileName();
+        fill(new SecurePreferences(context, PASSWORD, prefFileName, iterationCount), OPEN_ENTRIES);
+
+        return measure("open", params("iterationCount", iterationCount, "entries", OPEN_ENTRIES), runs, new Operation() {
+            private String copy;
+
+            @Override
+            void prepare(int run) throws IOException {
+                //a file never opened before is loaded from disk, as at app start
+                copy = newPrefFileName();
+                copyFile(getPrefFile(prefFileName), getPrefFile(copy));
+            }
+
+            @Override
+            void run(int run) {
+                new SecurePreferences(context, PASSWORD, copy, iterationCount);
+            }
+        });
+    }
+
+    private JSONObject write(int valueSize) throws Exception {
+        final SecurePreferences securePrefs = newSecurePreferences();
+        final String value = value(valueSize);
+        final JSONObject result = measure("write", params("valueBytes", valueSize), runs, new Operation() {
+            @Override
+            void run(int run) {
+                securePrefs.edit().putString(key(run), value).commit();
+            }
+        });
+        return withBytesPerSecond(result, valueSize);
+    }
+
+    private JSONObject read(int valueSize) throws Exception {
+        final SecurePreferences securePrefs = newSecurePreferences();
+        final String value = value(valueSize);
+        final SecurePreferences.Editor editor = securePrefs.edit();
+        for (int i = 0; i < warmUpRuns + runs; i++) {
+            editor.putString(key(i), value);
+        }
+        editor.commit();
+
+        final JSONObject result = measure("read", params("valueBytes", valueSize), runs, new Operation() {
+            @Override
+            void run(int run) {
+                //a different key each run, nothing is decrypted twice
+                securePrefs.getString(key(run), null);
+            }
+        });
+        return withBytesPerSecond(result, valueSize);
+    }
+
+    private JSONObject writeStringSet(int setSize) throws Exception {
+        final SecurePreferences securePrefs = newSecurePreferences();
+        final Set<String> values = stringSet(setSize);
+        return measure("writeStringSet", params("setSize", setSize), runs, new Operation() {
+            @Override
+            void run(int run) {
+                securePrefs.edit().putStringSet(key(run), values).commit();
+            }
+        });
+    }
+
+    private JSONObject readStringSet(int setSize) throws Exception {
+        final SecurePreferences securePrefs = newSecurePreferences();
+        final Set<String> values = stringSet(setSize);
+        final SecurePreferences.Editor editor = securePrefs.edit();
+        for (int i = 0; i < warmUpRuns + runs; i++) {
+            editor.putStringSet(key(i), values);
+        }
+        editor.commit();
+
+        return measure("readStringSet", params("setSize", setSize), runs, new Operation() {
+            @Override
+            void run(int run) {
+                securePrefs.getStringSet(key(run), null);
+            }
+        });
+    }
+
+    private JSONObject getAll(int entries) throws Exception {
+        final SecurePreferences securePrefs = newSecurePreferences();
+        fill(securePrefs, entries);
+        return measure("getAll", params("entries", entries), runs, new Operation() {
+            @Override
+            void run(int run) {
+                securePrefs.getAll();
+            }
+        });
+    }
+
+    private JSONObject passwordChange() throws Exception {
+        final SecurePreferences securePrefs = newSecurePreferences();
+        fill(securePrefs, PASSWORD_CHANGE_ENTRIES);
+        //each run re-encrypts the whole file, so fewer of them
+        final int passwordChangeRuns = Math.max(1, runs / 4);
+        return measure("passwordChange", params("entries", PASSWORD_CHANGE_ENTRIES, "iterationCount", ITERATION_COUNT), passwordChangeRuns, new Operation() {
+            @Override
+            void run(int run) throws Exception {
+                securePrefs.handlePasswordChange(PASSWORD + run, context, ITERATION_COUNT);
+            }
+        });
+    }
+
+    /**
+     * A step of a scenario, prepare isn't timed
+     */
+    private abstract static class Operation {
+        void prepare(int run) throws Exception {
+        }
+
+        abstract void run(int run) throws Exception;
+    }
+
+    /**
+     * Runs operation warmUpRuns times then measuredRuns times, numbering the runs from 0 across
+     * both
+     */
+    private JSONObject measure(String scenario, JSONObject params, int measuredRuns, Operation operation) throws Exception {
+        listener.onScenarioStarted(scenario + " " + params);
+        int run = 0;
+        for (int i = 0; i < warmUpRuns; i++, run++) {
+            throwIfInterrupted();
+            operation.prepare(run);
+            operation.run(run);
+        }
+        final Samples samples = new Samples(measuredRuns);
+        for (int i = 0; i < measuredRuns; i++, run++) {
+            throwIfInterrupted();
+            operation.prepare(run);
+            final long start = System.nanoTime();
+            operation.run(run);
+            samples.add(start);
+        }
+        final JSONObject result = new JSONObject();
+        result.put("scenario", scenario);
+        result.put("params", params);
+        samples.writeTo(result);
+        listener.onResult(result);
+        return result;
+    }
+
+    private static JSONObject withBytesPerSecond(JSONObject result, int valueSize) throws JSONException {
+        result.put("bytesPerSecond", valueSize * result.getDouble("opsPerSecond"));
+        return result;
+    }
+
+    private static void throwIfInterrupted() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    static JSONObject describeDevice() throws JSONException {
+        final JSONObject device = new JSONObject();
+        device.put("manufacturer", Build.MANUFACTURER);
+        device.put("model", Build.MODEL);
+        device.put("device", Build.DEVICE);
+        device.put("hardware", Build.HARDWARE);
+        device.put("sdkInt", Build.VERSION.SDK_INT);
+        device.put("release", Build.VERSION.RELEASE);
+        device.put("fingerprint", Build.FINGERPRINT);
+        device.put("cores", Runtime.getRuntime().availableProcessors());
+        device.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+        return device;
+    }
+
+    static JSONObject params(Object... namesAndValues) throws JSONException {
+        final JSONObject params = new JSONObject();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            params.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return params;
+    }
+
+    private static void fill(SecurePreferences securePrefs, int entries) {
+        final SecurePreferences.Editor editor = securePrefs.edit();
+        for (int i = 0; i < entries; i++) {
+            editor.putString(key(i), "value " + i);
+        }
+        editor.commit();
+    }
+
+    private static String key(int i) {
+        return "key" + i;
+    }
+
+    private static String value(int bytes) {
+        final StringBuilder value = new StringBuilder(bytes);
+        for (int i = 0; i < bytes; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        return value.toString();
+    }
+
+    private static Set<String> stringSet(int size) {
+        final Set<String> values = new HashSet<>();
+        for (int i = 0; i < size; i++) {
+            values.add("member " + i);
+        }
+        return values;
+    }
+
+    private SecurePreferences newSecurePreferences() {
+        return new SecurePreferences(context, PASSWORD, newPrefFileName(), ITERATION_COUNT);
+    }
+
+    private String newPrefFileName() {
+        //never reused, the Context keeps every file it has loaded
+        final String prefFileName = "benchmark_" + System.currentTimeMillis() + "_" + prefFileNames.size();
+        prefFileNames.add(prefFileName);
+        return prefFileName;
+    }
+
+    private File getPrefFile(String prefFileName) {
+        return new File(context.getFilesDir().getParent() + "/shared_prefs", prefFileName + ".xml");
+    }
+
+    private void deletePrefFiles() {
+        for (String prefFileName : prefFileNames) {
+            final SharedPreferences loaded = context.getSharedPreferences(prefFileName, Context.MODE_PRIVATE);
+            //frees the values the Context holds on to
+            loaded.edit().clear().commit();
+            getPrefFile(prefFileName).delete();
+        }
+        prefFileNames.clear();
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        final InputStream in = new FileInputStream(from);
+        try {
+            final OutputStream out = new FileOutputStream(to);
+            try {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
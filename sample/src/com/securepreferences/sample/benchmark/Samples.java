@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015, Scott Alexander-Bown, Daniel Abraham
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.securepreferences.sample.benchmark;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Timings of the measured runs of one scenario, in milliseconds
+ */
+public class Samples {
+
+    private double[] millis;
+    private int count;
+
+    /**
+     * @param runs expected number of runs, more can be added
+     */
+    public Samples(int runs) {
+        millis = new double[Math.max(1, runs)];
+    }
+
+    /**
+     * Records the time since startNanos, from {@link System#nanoTime()}
+     */
+    public void add(long startNanos) {
+        add((System.nanoTime() - startNanos) / 1000000d);
+    }
+
+    /**
+     * Adds the runs of other after these
+     */
+    public void addAll(Samples other) {
+        for (int i = 0; i < other.count; i++) {
+            add(other.millis[i]);
+        }
+    }
+
+    private void add(double runMillis) {
+        if (count == millis.length) {
+            millis = Arrays.copyOf(millis, count * 2);
+        }
+        millis[count++] = runMillis;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @param percent 0 to 100, nearest rank so p99 of a few runs is the slowest run
+     */
+    public double percentile(double percent) {
+        final double[] sorted = sorted();
+        final int rank = (int) Math.ceil(percent / 100d * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    public double min() {
+        return sorted()[0];
+    }
+
+    public double max() {
+        return sorted()[count - 1];
+    }
+
+    public double mean() {
+        double total = 0;
+        for (int i = 0; i < count; i++) {
+            total += millis[i];
+        }
+        return total / count;
+    }
+
+    /**
+     * Adds the runs, percentiles, mean and the timings of each run to json
+     */
+    void writeTo(JSONObject json) throws JSONException {
+        writeSummaryTo(json);
+        //in run order, so thermal throttling during a scenario shows up
+        final JSONArray runs = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            runs.put(millis[i]);
+        }
+        json.put("samplesMillis", runs);
+    }
+
+    /**
+     * Like {@link #writeTo(JSONObject)} without the timings of each run, for runs too many to list
+     */
+    void writeSummaryTo(JSONObject json) throws JSONException {
+        json.put("runs", count);
+        json.put("minMillis", min());
+        json.put("p50Millis", percentile(50));
+        json.put("p90Millis", percentile(90));
+        json.put("p99Millis", percentile(99));
+        json.put("maxMillis", max());
+        json.put("meanMillis", mean());
+        json.put("opsPerSecond", 1000d / mean());
+    }
+
+    private double[] sorted() {
+        if (count == 0) {
+            throw new IllegalStateException("No runs recorded");
+        }
+        final double[] sorted = Arrays.copyOf(millis, count);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+}
@@ -0,0 +1,507 @@
+package com.securepreferences.sample.benchmark;
+
+import android.content.Context;
+
+import com.securepreferences.SecurePreferences;
+import com.securepreferences.sample.BuildConfig;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives one SecurePreferences from many threads at once, as WorkManager jobs, the UI and network
+ * callbacks do, and checks nothing is lost or mixed up on the way:
+ * <ul>
+ * <li>writers each commit their own keys over and over, every value naming its key and a
+ * sequence number</li>
+ * <li>readers read random keys, which must be readable, hold their own key's value and never go
+ * back to an older sequence number</li>
+ * <li>getAll callers check every entry is under the name of the key its value names</li>
+ * <li>a password changer re-encrypts the file a number of times during the run</li>
+ * </ul>
+ * Afterwards each key must hold the last value committed to it, read from the same instance and
+ * from one newly opened with the final password. Throughput and latency percentiles are reported
+ * for each operation, with the invariant violations found. Call {@link #run(List)} off the main
+ * thread, interrupt it to stop.
+ */
+public class StressRunner {
+
+    /**
+     * The threads and length of one run, e.g.
+     * {@code new Mix("readHeavy").readers(8).writers(1)}
+     */
+    public static final class Mix {
+        final String name;
+        int readers = 4;
+        int writers = 2;
+        int getAllCallers = 1;
+        int passwordChanges = 2;
+        int keysPerWriter = 50;
+        long durationMillis = 10000;
+
+        public Mix(String name) {
+            this.name = name;
+        }
+
+        public Mix readers(int readers) {
+            this.readers = readers;
+            return this;
+        }
+
+        public Mix writers(int writers) {
+            if (writers < 1) {
+                throw new IllegalArgumentException("writers must be at least 1");
+            }
+            this.writers = writers;
+            return this;
+        }
+
+        public Mix getAllCallers(int getAllCallers) {
+            this.getAllCallers = getAllCallers;
+            return this;
+        }
+
+        /**
+         * @param passwordChanges spread evenly over the run
+         */
+        public Mix passwordChanges(int passwordChanges) {
+            this.passwordChanges = passwordChanges;
+            return this;
+        }
+
+        public Mix keysPerWriter(int keysPerWriter) {
+            if (keysPerWriter < 1) {
+                throw new IllegalArgumentException("keysPerWriter must be at least 1");
+            }
+            this.keysPerWriter = keysPerWriter;
+            return this;
+        }
+
+        public Mix durationMillis(long durationMillis) {
+            this.durationMillis = durationMillis;
+            return this;
+        }
+
+        JSONObject toJson() throws JSONException {
+            return BenchmarkRunner.params("mix", name, "readers", readers, "writers", writers,
+                    "getAllCallers", getAllCallers, "passwordChanges", passwordChanges,
+                    "keysPerWriter", keysPerWriter, "durationMillis", durationMillis);
+        }
+    }
+
+    /**
+     * @return read heavy, write heavy and balanced mixes, each with password changes
+     */
+    public static List<Mix> standardMixes() {
+        return Arrays.asList(
+                new Mix("readHeavy").readers(8).writers(1).getAllCallers(1),
+                new Mix("writeHeavy").readers(2).writers(6).getAllCallers(0),
+                new Mix("balanced").readers(4).writers(4).getAllCallers(2));
+    }
+
+    static final String READ = "read";
+    static final String WRITE = "write";
+    static final String GET_ALL = "getAll";
+    static final String PASSWORD_CHANGE = "passwordChange";
+
+    //kept low so a password change is mostly re-encryption rather than key derivation
+    private static final int ITERATION_COUNT = 1000;
+    private static final String PASSWORD = "stress password";
+    //violations described in the report, the rest are only counted
+    private static final int MAX_DESCRIBED_VIOLATIONS = 20;
+
+    private final Context context;
+    private final BenchmarkRunner.Listener listener;
+
+    private final List<String> prefFileNames = new ArrayList<>();
+
+    public StressRunner(Context context, BenchmarkRunner.Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+    }
+
+    /**
+     * @return the report, the device it ran on, a result for each operation of each mix, and
+     * whether every invariant held
+     * @throws InterruptedException if the thread was interrupted, files written so far are
+     *                              deleted
+     */
+    public JSONObject run(List<Mix> mixes) throws Exception {
+        final JSONObject report = new JSONObject();
+        report.put("device", BenchmarkRunner.describeDevice());
+        report.put("appVersion", BuildConfig.VERSION_NAME);
+        report.put("startedAt", System.currentTimeMillis());
+        final JSONArray results = new JSONArray();
+        final JSONArray mixViolations = new JSONArray();
+        report.put("results", results);
+        report.put("violations", mixViolations);
+        boolean passed = true;
+        try {
+            for (Mix mix : mixes) {
+                final Violations violations = run(mix, results);
+                final JSONObject json = violations.toJson();
+                json.put("params", mix.toJson());
+                mixViolations.put(json);
+                passed &= violations.total() == 0;
+            }
+        } finally {
+            deletePrefFiles();
+        }
+        report.put("passed", passed);
+        report.put("finishedAt", System.currentTimeMillis());
+        return report;
+    }
+
+    /**
+     * Counts of each invariant broken, and descriptions of the first few
+     */
+    static final class Violations {
+        final AtomicInteger unreadable = new AtomicInteger();
+        final AtomicInteger wrongKey = new AtomicInteger();
+        final AtomicInteger wentBackwards = new AtomicInteger();
+        final AtomicInteger lostWrites = new AtomicInteger();
+        final AtomicInteger failedCommits = new AtomicInteger();
+        final AtomicInteger exceptions = new AtomicInteger();
+        private final List<String> described = new ArrayList<>();
+
+        void add(AtomicInteger counter, String description) {
+            counter.incrementAndGet();
+            synchronized (described) {
+                if (described.size() < MAX_DESCRIBED_VIOLATIONS) {
+                    described.add(description);
+                }
+            }
+        }
+
+        int total() {
+            return unreadable.get() + wrongKey.get() + wentBackwards.get() + lostWrites.get()
+                    + failedCommits.get() + exceptions.get();
+        }
+
+        JSONObject toJson() throws JSONException {
+            final JSONObject json = new JSONObject();
+            json.put("unreadable", unreadable.get());
+            json.put("wrongKey", wrongKey.get());
+            json.put("wentBackwards", wentBackwards.get());
+            json.put("lostWrites", lostWrites.get());
+            json.put("failedCommits", failedCommits.get());
+            json.put("exceptions", exceptions.get());
+            synchronized (described) {
+                json.put("first", new JSONArray(described));
+            }
+            return json;
+        }
+    }
+
+    /**
+     * A thread of a run, looping until the run's deadline and timing each step
+     */
+    private abstract static class Worker implements Runnable {
+        final String operation;
+        final Samples samples = new Samples(1024);
+        private final Run run;
+
+        Worker(String operation, Run run) {
+            this.operation = operation;
+            this.run = run;
+        }
+
+        @Override
+        public void run() {
+            try {
+                run.start.await();
+                while (System.nanoTime() < run.deadlineNanos && !Thread.currentThread().isInterrupted()) {
+                    step();
+                }
+            } catch (InterruptedException e) {
+                //stopping
+            } catch (Exception e) {
+                run.violations.add(run.violations.exceptions, operation + ": " + e);
+            } finally {
+                run.done.countDown();
+            }
+        }
+
+        /**
+         * @throws InterruptedException to stop early
+         */
+        abstract void step() throws Exception;
+    }
+
+    /**
+     * State shared by the threads of one mix
+     */
+    private static final class Run {
+        final SecurePreferences securePrefs;
+        final String[][] keys;
+        //last sequence number committed to each key, written by its writer only
+        final long[][] committed;
+        final Violations violations = new Violations();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done;
+        volatile long deadlineNanos;
+        volatile String password = PASSWORD;
+
+        Run(SecurePreferences securePrefs, Mix mix, int threads) {
+            this.securePrefs = securePrefs;
+            keys = new String[mix.writers][mix.keysPerWriter];
+            committed = new long[mix.writers][mix.keysPerWriter];
+            for (int w = 0; w < mix.writers; w++) {
+                for (int k = 0; k < mix.keysPerWriter; k++) {
+                    keys[w][k] = "w" + w + "k" + k;
+                }
+            }
+            done = new CountDownLatch(threads);
+        }
+
+        int totalKeys() {
+            return keys.length * keys[0].length;
+        }
+    }
+
+    private Violations run(final Mix mix, JSONArray results) throws Exception {
+        listener.onScenarioStarted("stress " + mix.toJson());
+        final String prefFileName = newPrefFileName();
+        final int passwordChangers = mix.passwordChanges > 0 ? 1 : 0;
+        final int threads = mix.readers + mix.writers + mix.getAllCallers + passwordChangers;
+        final Run run = new Run(new SecurePreferences(context, PASSWORD, prefFileName, ITERATION_COUNT), mix, threads);
+
+        //every key has a value before the readers start
+        final SecurePreferences.Editor editor = run.securePrefs.edit();
+        for (String[] writerKeys : run.keys) {
+            for (String key : writerKeys) {
+                editor.putString(key, value(key, 0));
+            }
+        }
+        editor.commit();
+
+        final List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < mix.writers; i++) {
+            workers.add(writer(run, i));
+        }
+        for (int i = 0; i < mix.readers; i++) {
+            workers.add(reader(run, i));
+        }
+        for (int i = 0; i < mix.getAllCallers; i++) {
+            workers.add(getAllCaller(run));
+        }
+        if (passwordChangers > 0) {
+            workers.add(passwordChanger(run, mix));
+        }
+        final List<Thread> started = new ArrayList<>();
+        for (Worker worker : workers) {
+            final Thread thread = new Thread(worker, "SecurePreferences-stress-" + worker.operation + "-" + started.size());
+            thread.start();
+            started.add(thread);
+        }
+
+        final long startNanos = System.nanoTime();
+        run.deadlineNanos = startNanos + mix.durationMillis * 1000000L;
+        run.start.countDown();
+        try {
+            run.done.await();
+        } catch (InterruptedException e) {
+            for (Thread thread : started) {
+                thread.interrupt();
+            }
+            throw e;
+        }
+        final double elapsedSeconds = (System.nanoTime() - startNanos) / 1000000000d;
+
+        checkLastCommitted(run, run.securePrefs, "");
+        //a fresh key derivation, as after a restart
+        checkLastCommitted(run, new SecurePreferences(context, run.password, prefFileName, ITERATION_COUNT), " after reopening");
+
+        for (String operation : new String[]{READ, WRITE, GET_ALL, PASSWORD_CHANGE}) {
+            final Samples samples = new Samples(1024);
+            int operationThreads = 0;
+            for (Worker worker : workers) {
+                if (worker.operation.equals(operation)) {
+                    samples.addAll(worker.samples);
+                    operationThreads++;
+                }
+            }
+            if (samples.count() == 0) {
+                continue;
+            }
+            final JSONObject result = new JSONObject();
+            result.put("scenario", "stress " + operation);
+            final JSONObject params = mix.toJson();
+            params.put("threads", operationThreads);
+            result.put("params", params);
+            samples.writeSummaryTo(result);
+            result.put("throughputPerSecond", samples.count() / elapsedSeconds);
+            listener.onResult(result);
+            results.put(result);
+        }
+        return run.violations;
+    }
+
+    private static Worker writer(final Run run, final int writer) {
+        return new Worker(WRITE, run) {
+            private int next;
+            private long sequence;
+
+            @Override
+            void step() {
+                final int k = next++ % run.keys[writer].length;
+                final String key = run.keys[writer][k];
+                final long value = ++sequence;
+                final long start = System.nanoTime();
+                final boolean committed = run.securePrefs.edit().putString(key, value(key, value)).commit();
+                samples.add(start);
+                if (committed) {
+                    run.committed[writer][k] = value;
+                } else {
+                    run.violations.add(run.violations.failedCommits, "commit of " + key + " failed");
+                }
+            }
+        };
+    }
+
+    private static Worker reader(final Run run, int reader) {
+        final Random random = new Random(reader);
+        return new Worker(READ, run) {
+            private final Map<String, Long> lastSeen = new HashMap<>();
+
+            @Override
+            void step() {
+                final String[] writerKeys = run.keys[random.nextInt(run.keys.length)];
+                final String key = writerKeys[random.nextInt(writerKeys.length)];
+                final long start = System.nanoTime();
+                final String value = run.securePrefs.getString(key, null);
+                samples.add(start);
+                final long sequence = check(run, key, value, "read");
+                if (sequence < 0) {
+                    return;
+                }
+                final Long seen = lastSeen.put(key, sequence);
+                if (seen != null && sequence < seen) {
+                    run.violations.add(run.violations.wentBackwards, "read " + key + " went from " + seen + " back to " + sequence);
+                }
+            }
+        };
+    }
+
+    private static Worker getAllCaller(final Run run) {
+        return new Worker(GET_ALL, run) {
+            @Override
+            void step() {
+                final long start = System.nanoTime();
+                final Map<String, ?> all = run.securePrefs.getAll();
+                samples.add(start);
+                int found = 0;
+                for (Map.Entry<String, ?> entry : all.entrySet()) {
+                    final String key = keyOf(entry.getValue());
+                    if (key == null) {
+                        continue;
+                    }
+                    found++;
+                    if (!SecurePreferences.hashPrefKey(key).equals(entry.getKey())) {
+                        run.violations.add(run.violations.wrongKey, "getAll has " + key + "'s value under " + entry.getKey());
+                    }
+                }
+                if (found < run.totalKeys()) {
+                    run.violations.add(run.violations.unreadable, "getAll returned " + found + " of " + run.totalKeys() + " keys");
+                }
+            }
+        };
+    }
+
+    private Worker passwordChanger(final Run run, final Mix mix) {
+        return new Worker(PASSWORD_CHANGE, run) {
+            private int changes;
+
+            @Override
+            void step() throws Exception {
+                if (changes == mix.passwordChanges) {
+                    //done, wait for the others
+                    Thread.sleep(Math.max(1, (run.deadlineNanos - System.nanoTime()) / 1000000L));
+                    return;
+                }
+                //spread evenly over the run
+                final long at = run.deadlineNanos - mix.durationMillis * 1000000L
+                        + mix.durationMillis * 1000000L * (changes + 1) / (mix.passwordChanges + 1);
+                final long waitMillis = (at - System.nanoTime()) / 1000000L;
+                if (waitMillis > 0) {
+                    Thread.sleep(waitMillis);
+                }
+                final String password = PASSWORD + " " + ++changes;
+                final long start = System.nanoTime();
+                run.securePrefs.handlePasswordChange(password, context, ITERATION_COUNT);
+                samples.add(start);
+                run.password = password;
+            }
+        };
+    }
+
+    private static void checkLastCommitted(Run run, SecurePreferences securePrefs, String when) {
+        for (int w = 0; w < run.keys.length; w++) {
+            for (int k = 0; k < run.keys[w].length; k++) {
+                final String key = run.keys[w][k];
+                final long sequence = check(run, key, securePrefs.getString(key, null), "final read" + when);
+                if (sequence >= 0 && sequence != run.committed[w][k]) {
+                    run.violations.add(run.violations.lostWrites, key + when + " holds " + sequence
+                            + " rather than the last committed " + run.committed[w][k]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the sequence number of value, or -1 after recording why it isn't key's
+     */
+    private static long check(Run run, String key, String value, String operation) {
+        if (value == null) {
+            run.violations.add(run.violations.unreadable, operation + " of " + key + " returned nothing");
+            return -1;
+        }
+        if (!key.equals(keyOf(value))) {
+            run.violations.add(run.violations.wrongKey, operation + " of " + key + " returned " + value);
+            return -1;
+        }
+        return Long.parseLong(value.substring(value.lastIndexOf('#') + 1));
+    }
+
+    private static String value(String key, long sequence) {
+        return key + "#" + sequence;
+    }
+
+    /**
+     * @return the key a value written by this runner names, null if it isn't one
+     */
+    private static String keyOf(Object value) {
+        if (!(value instanceof String)) {
+            return null;
+        }
+        final String text = (String) value;
+        final int hash = text.lastIndexOf('#');
+        return text.startsWith("w") && hash > 0 ? text.substring(0, hash) : null;
+    }
+
+    private String newPrefFileName() {
+        final String prefFileName = "stress_" + System.currentTimeMillis() + "_" + prefFileNames.size();
+        prefFileNames.add(prefFileName);
+        return prefFileName;
+    }
+
+    private void deletePrefFiles() {
+        for (String prefFileName : prefFileNames) {
+            //frees the values the Context holds on to
+            context.getSharedPreferences(prefFileName, Context.MODE_PRIVATE).edit().clear().commit();
+            new File(context.getFilesDir().getParent() + "/shared_prefs", prefFileName + ".xml").delete();
+        }
+        prefFileNames.clear();
+    }
+}